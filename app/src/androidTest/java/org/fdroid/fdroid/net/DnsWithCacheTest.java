@@ -2,6 +2,7 @@ package org.fdroid.fdroid.net;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.fdroid.fdroid.Preferences;
 import org.junit.Test;
@@ -11,12 +12,17 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DnsWithCacheTest {
 
     private static final String URL_1 = "locaihost";
     private static final String URL_2 = "fdroid.org";
     private static final String URL_3 = "fdroid.net";
+    private static final String URL_4 = "stale.example.org";
+    private static final String URL_5 = "failing.example.org";
 
     private static final InetAddress IP_1;
     private static final InetAddress IP_2;
@@ -77,4 +83,38 @@ public class DnsWithCacheTest {
         testList = testObject.lookup(URL_2);
         assertNull(testList);
     }
+
+    @Test
+    public void staleEntryGetsRefreshedInBackground() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        CountDownLatch refreshed = new CountDownLatch(2);
+        DnsCache testObject = new DnsCache(host -> {
+            lookups.incrementAndGet();
+            refreshed.countDown();
+            return refreshed.getCount() == 0 ? LIST_3 : LIST_2;
+        }, 0);
+
+        // first lookup needs to hit the resolver
+        assertEquals(LIST_2, testObject.resolve(URL_4));
+        assertEquals(1, lookups.get());
+
+        // entry is stale right away, but still gets returned while refreshing
+        assertEquals(LIST_2, testObject.resolve(URL_4));
+        assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void failedAddressGetsEvicted() throws Exception {
+        DnsCache testObject = new DnsCache(host -> LIST_1, DnsCache.DEFAULT_TTL_MILLIS);
+        assertEquals(LIST_1, testObject.resolve(URL_5));
+
+        testObject.onConnectFailed(URL_5, IP_1);
+        assertEquals(Arrays.asList(IP_2, IP_3), testObject.resolve(URL_5));
+
+        // last known addresses are kept, even if all of them failed
+        testObject.onConnectFailed(URL_5, IP_2);
+        testObject.onConnectFailed(URL_5, IP_3);
+        assertEquals(LIST_3, testObject.resolve(URL_5));
+    }
 }
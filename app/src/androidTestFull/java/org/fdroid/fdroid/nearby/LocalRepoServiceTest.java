@@ -0,0 +1,64 @@
+package org.fdroid.fdroid.nearby;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+
+import androidx.core.content.pm.PackageInfoCompat;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Preferences;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Test that recreating the swap repo keeps what can be re-used from the last run.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LocalRepoServiceTest {
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        Preferences.setupForTests(context);
+        FDroidApp.repo = FDroidApp.createSwapRepo("http://127.0.0.1:8888/fdroid/repo", null);
+    }
+
+    @Test
+    public void testCachedPackagesSurviveRecreatingRepo() throws Exception {
+        String packageName = context.getPackageName();
+        String[] selectedApps = new String[]{packageName};
+        LocalRepoService.runProcess(context, selectedApps);
+
+        LocalRepoManager lrm = LocalRepoManager.get(context);
+        File repoDir = new File(lrm.getWebRoot(), "fdroid/repo");
+        PackageInfo packageInfo = context.getPackageManager().getPackageInfo(packageName, 0);
+        String name = packageName + "_" + PackageInfoCompat.getLongVersionCode(packageInfo);
+        File icon = new File(repoDir, "icons/" + name + ".png");
+        File apk = new File(repoDir, name + ".apk");
+        File stale = new File(repoDir, "org.example.stale_1.apk");
+        assertTrue(lrm.getIndexJar().isFile());
+        assertTrue(icon.isFile());
+        assertTrue(apk.exists());
+        assertTrue(stale.createNewFile());
+        assertTrue(icon.setLastModified(1000));
+
+        LocalRepoService.runProcess(context, selectedApps);
+
+        assertTrue(lrm.getIndexJar().isFile());
+        assertTrue(apk.exists());
+        // the icon was not written again, the cached package info got used
+        assertEquals(1000, icon.lastModified());
+        assertFalse(stale.exists());
+    }
+}
@@ -26,10 +26,11 @@ public class BluetoothClient {
             connection = new BluetoothConnection(socket);
             connection.open();
             return connection;
-        } finally {
+        } catch (IOException e) {
             if (connection != null) {
                 connection.closeQuietly();
             }
+            throw e;
         }
     }
 }
@@ -21,6 +21,7 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.nearby.peers.BluetoothPeer;
+import org.fdroid.fdroid.net.BluetoothDownloader;
 
 import java.lang.ref.WeakReference;
 
@@ -60,6 +61,7 @@ public class BluetoothManager {
      */
     public static void stop(Context context) {
         BluetoothManager.context = new WeakReference<>(context);
+        BluetoothDownloader.closeIdleConnections();
         if (handler == null || handlerThread == null || !handlerThread.isAlive()) {
             Log.w(TAG, "handlerThread is already stopped, doing nothing!");
             sendBroadcast(STATUS_STOPPED, null);
@@ -16,11 +16,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
 
 import fi.iki.elonen.NanoHTTPD;
 
@@ -34,7 +34,7 @@ public class BluetoothServer extends Thread {
     private static final String TAG = "BluetoothServer";
 
     private BluetoothServerSocket serverSocket;
-    private final List<ClientConnection> clients = new ArrayList<>();
+    private final List<ClientConnection> clients = Collections.synchronizedList(new ArrayList<>());
 
     private final File webRoot;
 
@@ -44,8 +44,10 @@ public class BluetoothServer extends Thread {
 
     public void close() {
 
-        for (ClientConnection clientConnection : clients) {
-            clientConnection.interrupt();
+        synchronized (clients) {
+            for (ClientConnection clientConnection : clients) {
+                clientConnection.close();
+            }
         }
 
         interrupt();
@@ -86,9 +88,13 @@ public class BluetoothServer extends Thread {
                         Utils.debugLog(TAG, "Server stopped after socket accepted from client, but before initiating connection.");
                         break;
                     }
-                    ClientConnection client = new ClientConnection(clientSocket, webRoot);
-                    client.start();
+                    ClientConnection client = new ClientConnection(clientSocket, webRoot, clients);
                     clients.add(client);
+                    String peer = clientSocket.getRemoteDevice().getAddress();
+                    // blocks while too many connections are waiting, so we stop accepting more
+                    if (!NearbyServerExecutor.get().execute(peer, client, client::close)) {
+                        clients.remove(client);
+                    }
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Error receiving client connection over Bluetooth server socket, will continue listening for other clients", e);
@@ -96,19 +102,39 @@ public class BluetoothServer extends Thread {
         }
     }
 
-    private static class ClientConnection extends Thread {
+    private static class ClientConnection implements Runnable {
 
         private final BluetoothSocket socket;
         private final File webRoot;
+        private final List<ClientConnection> clients;
+        private volatile boolean closed = false;
 
-        ClientConnection(BluetoothSocket socket, File webRoot) {
+        ClientConnection(BluetoothSocket socket, File webRoot, List<ClientConnection> clients) {
             this.socket = socket;
             this.webRoot = webRoot;
+            this.clients = clients;
+        }
+
+        /**
+         * Closes the socket, which also ends a blocking read in {@link #run()}.
+         */
+        void close() {
+            closed = true;
+            Utils.closeQuietly(socket);
         }
 
         @Override
         @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
         public void run() {
+            try {
+                serve();
+            } finally {
+                clients.remove(this);
+            }
+        }
+
+        @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
+        private void serve() {
 
             Utils.debugLog(TAG, "Listening for incoming Bluetooth requests from client");
 
@@ -118,23 +144,37 @@ public class BluetoothServer extends Thread {
                 connection.open();
             } catch (IOException e) {
                 Log.e(TAG, "Error listening for incoming connections over bluetooth", e);
+                Utils.closeQuietly(socket);
                 return;
             }
 
-            while (true) {
-
+            // the client keeps the connection open for all its requests, and may send the next
+            // ones before reading our responses, so only flush when it is waiting for them
+            while (!closed) {
                 try {
                     Utils.debugLog(TAG, "Listening for new Bluetooth request from client.");
-                    Request incomingRequest = Request.listenForRequest(connection);
-                    handleRequest(incomingRequest).send(connection);
+                    // don't let a client that stopped sending requests keep this thread forever
+                    ScheduledFuture<?> idleTimeout = NearbyServerExecutor.get().closeWhenIdle(socket);
+                    Request incomingRequest;
+                    try {
+                        incomingRequest = Request.listenForRequest(connection);
+                    } finally {
+                        idleTimeout.cancel(false);
+                    }
+                    if (incomingRequest == null) {
+                        Utils.debugLog(TAG, "Client closed the connection.");
+                        break;
+                    }
+                    try (Response response = handleRequest(incomingRequest)) {
+                        response.write(connection);
+                    }
+                    if (connection.getInputStream().available() == 0) {
+                        connection.getOutputStream().flush();
+                    }
                 } catch (IOException e) {
                     Log.e(TAG, "Error receiving incoming connection over bluetooth", e);
                     break;
                 }
-
-                if (isInterrupted()) {
-                    break;
-                }
             }
 
             connection.closeQuietly();
@@ -144,46 +184,19 @@ public class BluetoothServer extends Thread {
 
             Utils.debugLog(TAG, "Received Bluetooth request from client, will process it now.");
 
-            Response.Builder builder = null;
-
             try {
-                int statusCode = HttpURLConnection.HTTP_NOT_FOUND;
-                int totalSize = -1;
-
+                Response response = respond(request.getHeaders(), "/" + request.getPath());
                 if (request.getMethod().equals(Request.Methods.HEAD)) {
-                    builder = new Response.Builder();
-                } else {
-                    HashMap<String, String> headers = new HashMap<>();
-                    Response resp = respond(headers, "/" + request.getPath());
-
-                    builder = new Response.Builder(resp.toContentStream());
-                    statusCode = resp.getStatusCode();
-                    totalSize = resp.getFileSize();
+                    return response.withoutContent();
                 }
-
-                // TODO: At this stage, will need to download the file to get this info.
-                // However, should be able to make totalDownloadSize and getCacheTag work without downloading.
-                return builder
-                        .setStatusCode(statusCode)
-                        .setFileSize(totalSize)
-                        .build();
-
+                return response;
             } catch (Exception e) {
-                // throw new IOException("Error getting file " + request.getPath() + " from local repo proxy - " + e.getMessage(), e);
-
                 Log.e(TAG, "error processing request; sending 500 response", e);
-
-                if (builder == null) {
-                    builder = new Response.Builder();
-                }
-
-                return builder
+                return new Response.Builder()
                         .setStatusCode(500)
                         .setFileSize(0)
                         .build();
-
             }
-
         }
 
         private Response respond(Map<String, String> headers, String uri) {
@@ -0,0 +1,100 @@
+package org.fdroid.fdroid.nearby;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Streams parts of a file using positional {@link FileChannel} reads straight into the
+ * caller's buffer, so ranges don't need skipping and no extra buffer sits between the file
+ * and the socket.  Parts of the file can be mixed with fixed bytes, e.g. the part headers of a
+ * {@code multipart/byteranges} response.
+ */
+class FileRangesInputStream extends InputStream {
+
+    static final class Segment {
+        /**
+         * The bytes of this segment or null, if this segment is a part of the file.
+         */
+        final byte[] bytes;
+        final long start;
+        final long length;
+
+        private Segment(byte[] bytes, long start, long length) {
+            this.bytes = bytes;
+            this.start = start;
+            this.length = length;
+        }
+
+        static Segment ofBytes(byte[] bytes) {
+            return new Segment(bytes, 0, bytes.length);
+        }
+
+        static Segment ofFile(long start, long length) {
+            return new Segment(null, start, length);
+        }
+    }
+
+    private final FileChannel channel;
+    private final List<Segment> segments;
+    private int index = 0;
+    private long position = 0;
+
+    FileRangesInputStream(FileChannel channel, List<Segment> segments) {
+        this.channel = channel;
+        this.segments = segments;
+    }
+
+    /**
+     * Returns the number of bytes this stream returns in total.
+     */
+    long getLength() {
+        long length = 0;
+        for (Segment segment : segments) {
+            length += segment.length;
+        }
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (index < segments.size()) {
+            Segment segment = segments.get(index);
+            long remaining = segment.length - position;
+            if (remaining <= 0) {
+                index++;
+                position = 0;
+                continue;
+            }
+            int count = (int) Math.min(len, remaining);
+            if (segment.bytes != null) {
+                System.arraycopy(segment.bytes, (int) position, b, off, count);
+            } else {
+                count = channel.read(ByteBuffer.wrap(b, off, count), segment.start + position);
+                if (count == -1) {
+                    throw new EOFException("File got shorter while being served");
+                }
+            }
+            position += count;
+            return count;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
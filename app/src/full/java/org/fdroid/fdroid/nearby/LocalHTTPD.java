@@ -36,18 +36,25 @@ package org.fdroid.fdroid.nearby;
 import android.content.Context;
 import android.net.Uri;
 
+import androidx.annotation.Nullable;
+
 import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.nearby.FileRangesInputStream.Segment;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -57,8 +64,11 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SSLServerSocketFactory;
 
@@ -86,6 +96,9 @@ public class LocalHTTPD extends NanoHTTPD {
 
     protected List<File> rootDirs;
 
+    private final ConcurrentHashMap<String, FileMetadata> fileMetadata = new ConcurrentHashMap<>();
+    private final BoundedAsyncRunner boundedRunner = new BoundedAsyncRunner(NearbyServerExecutor.get());
+
     // Date format specified by RFC 7231 section 7.1.1.1.
     private static final DateFormat RFC_1123 = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
 
@@ -104,6 +117,7 @@ public class LocalHTTPD extends NanoHTTPD {
         super(hostname, port);
         rootDirs = Collections.singletonList(webRoot);
         this.context = new WeakReference<>(context.getApplicationContext());
+        setAsyncRunner(boundedRunner);
         if (useHttps) {
             enableHTTPS();
         }
@@ -382,98 +396,45 @@ public class LocalHTTPD extends NanoHTTPD {
     Response serveFile(String uri, Map<String, String> header, File file, String mime) {
         Response res;
         try {
-            // Calculate etag
-            String etag =
-                    Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
-
-            // Support (simple) skipping:
-            long startFrom = 0;
-            long endAt = -1;
-            String range = header.get("range");
-            if (range != null) {
-                if (range.startsWith("bytes=")) {
-                    range = range.substring("bytes=".length());
-                    int minus = range.indexOf('-');
-                    try {
-                        if (minus > 0) {
-                            startFrom = Long.parseLong(range.substring(0, minus));
-                            endAt = Long.parseLong(range.substring(minus + 1));
-                        }
-                    } catch (NumberFormatException ignored) {
-                    }
-                }
-            }
+            FileMetadata metadata = getFileMetadata(file);
+            String etag = metadata.etag;
+            long fileLen = metadata.length;
 
             // get if-range header. If present, it must match etag or else we
             // should ignore the range request
             String ifRange = header.get("if-range");
             boolean headerIfRangeMissingOrMatching = (ifRange == null || etag.equals(ifRange));
+            String range = header.get("range");
+            List<ByteRange> ranges = null;
+            if (range != null && headerIfRangeMissingOrMatching) {
+                ranges = ByteRange.parse(range, fileLen);
+            }
 
             String ifNoneMatch = header.get("if-none-match");
             boolean headerIfNoneMatchPresentAndMatching =
                     ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(etag));
 
-            // Change return code and add Content-Range header when skipping is
-            // requested
-            long fileLen = file.length();
-
-            if (headerIfRangeMissingOrMatching && range != null && startFrom >= 0 && startFrom < fileLen) {
-                // range request that matches current etag
-                // and the startFrom of the range is satisfiable
-                if (headerIfNoneMatchPresentAndMatching) {
-                    // range request that matches current etag
-                    // and the startFrom of the range is satisfiable
-                    // would return range from file
-                    // respond with not-modified
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else {
-                    if (endAt < 0) {
-                        endAt = fileLen - 1;
-                    }
-                    long newLen = endAt - startFrom + 1;
-                    if (newLen < 0) {
-                        newLen = 0;
-                    }
-
-                    FileInputStream fis = new FileInputStream(file);
-                    fis.skip(startFrom);
-
-                    res = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, mime, fis, newLen);
-                    res.addHeader("Accept-Ranges", "bytes");
-                    res.addHeader("Content-Length", "" + newLen);
-                    res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
-                    res.addHeader("ETag", etag);
-                    res.addHeader("Last-Modified", RFC_1123.format(new Date(file.lastModified())));
-                }
+            if (ranges != null && ranges.isEmpty()) {
+                // return the size of the file
+                // 4xx responses are not trumped by if-none-match
+                res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
+                res.addHeader("Content-Range", "bytes */" + fileLen);
+                res.addHeader("ETag", etag);
+            } else if (headerIfNoneMatchPresentAndMatching) {
+                // would return the file or ranges of it,
+                // respond with not-modified
+                res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
+                res.addHeader("ETag", etag);
+            } else if (ranges == null) {
+                // supply the file
+                res = newFixedFileResponse(file, mime, fileLen);
+                res.addHeader("Content-Length", "" + fileLen);
+                res.addHeader("ETag", etag);
+                res.addHeader("Last-Modified", metadata.lastModifiedHeader);
             } else {
-
-                if (headerIfRangeMissingOrMatching && range != null && startFrom >= fileLen) {
-                    // return the size of the file
-                    // 4xx responses are not trumped by if-none-match
-                    res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
-                    res.addHeader("Content-Range", "bytes */" + fileLen);
-                    res.addHeader("ETag", etag);
-                } else if (range == null && headerIfNoneMatchPresentAndMatching) {
-                    // full-file-fetch request
-                    // would return entire file
-                    // respond with not-modified
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else if (!headerIfRangeMissingOrMatching && headerIfNoneMatchPresentAndMatching) {
-                    // range request that doesn't match current etag
-                    // would return entire (different) file
-                    // respond with not-modified
-
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else {
-                    // supply the file
-                    res = newFixedFileResponse(file, mime);
-                    res.addHeader("Content-Length", "" + fileLen);
-                    res.addHeader("ETag", etag);
-                    res.addHeader("Last-Modified", RFC_1123.format(new Date(file.lastModified())));
-                }
+                res = newRangesResponse(file, mime, fileLen, ranges);
+                res.addHeader("ETag", etag);
+                res.addHeader("Last-Modified", metadata.lastModifiedHeader);
             }
         } catch (IOException ioe) {
             res = getForbiddenResponse("Reading file failed.");
@@ -482,14 +443,221 @@ public class LocalHTTPD extends NanoHTTPD {
         return addResponseHeaders(res);
     }
 
-    private Response newFixedFileResponse(File file, String mime) throws FileNotFoundException {
-        Response res;
-        res = newFixedLengthResponse(Response.Status.OK, mime, new FileInputStream(file), (int) file.length());
+    private Response newFixedFileResponse(File file, String mime, long fileLen) throws IOException {
+        List<Segment> segments = Collections.singletonList(Segment.ofFile(0, fileLen));
+        FileRangesInputStream data = new FileRangesInputStream(openChannel(file), segments);
+        Response res = newFixedLengthResponse(Response.Status.OK, mime, data, fileLen);
         addResponseHeaders(res);
         res.addHeader("Accept-Ranges", "bytes");
         return res;
     }
 
+    /**
+     * Returns a single range as it is, and several ranges as {@code multipart/byteranges}
+     * as described in RFC 7233 section 4.1.
+     */
+    private Response newRangesResponse(File file, String mime, long fileLen, List<ByteRange> ranges)
+            throws IOException {
+        if (ranges.size() == 1) {
+            ByteRange r = ranges.get(0);
+            List<Segment> segments = Collections.singletonList(Segment.ofFile(r.start, r.getLength()));
+            FileRangesInputStream data = new FileRangesInputStream(openChannel(file), segments);
+            Response res = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, mime, data, r.getLength());
+            res.addHeader("Accept-Ranges", "bytes");
+            res.addHeader("Content-Length", "" + r.getLength());
+            res.addHeader("Content-Range", r.toContentRange(fileLen));
+            return res;
+        }
+        String boundary = UUID.randomUUID().toString();
+        List<Segment> segments = new ArrayList<>(ranges.size() * 2 + 1);
+        for (ByteRange r : ranges) {
+            String partHeader = "\r\n--" + boundary + "\r\n"
+                    + (mime == null ? "" : "Content-Type: " + mime + "\r\n")
+                    + "Content-Range: " + r.toContentRange(fileLen) + "\r\n\r\n";
+            segments.add(Segment.ofBytes(partHeader.getBytes(StandardCharsets.US_ASCII)));
+            segments.add(Segment.ofFile(r.start, r.getLength()));
+        }
+        String end = "\r\n--" + boundary + "--\r\n";
+        segments.add(Segment.ofBytes(end.getBytes(StandardCharsets.US_ASCII)));
+        FileRangesInputStream data = new FileRangesInputStream(openChannel(file), segments);
+        String contentType = "multipart/byteranges; boundary=" + boundary;
+        Response res = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, contentType, data,
+                data.getLength());
+        res.addHeader("Accept-Ranges", "bytes");
+        res.addHeader("Content-Length", "" + data.getLength());
+        return res;
+    }
+
+    private static FileChannel openChannel(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Returns the headers describing the given file, which only get created again
+     * when it was changed, since all peers of a swap get served the same files.
+     */
+    private FileMetadata getFileMetadata(File file) {
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        FileMetadata metadata = fileMetadata.get(path);
+        if (metadata == null || metadata.lastModified != lastModified || metadata.length != length) {
+            metadata = new FileMetadata(path, lastModified, length);
+            fileMetadata.put(path, metadata);
+        }
+        return metadata;
+    }
+
+    private static final class FileMetadata {
+        final long lastModified;
+        final long length;
+        final String etag;
+        final String lastModifiedHeader;
+
+        FileMetadata(String path, long lastModified, long length) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.etag = Integer.toHexString((path + lastModified + "" + length).hashCode());
+            // SimpleDateFormat is not thread-safe, but each connection has its own thread
+            synchronized (RFC_1123) {
+                this.lastModifiedHeader = RFC_1123.format(new Date(lastModified));
+            }
+        }
+    }
+
+    /**
+     * An inclusive range of bytes requested with a {@code Range} header.
+     */
+    static final class ByteRange {
+        /**
+         * More ranges than this are probably not a download client, so the entire file gets sent.
+         */
+        private static final int MAX_RANGES = 16;
+
+        final long start;
+        final long end;
+
+        ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long getLength() {
+            return end - start + 1;
+        }
+
+        String toContentRange(long fileLen) {
+            return "bytes " + start + "-" + end + "/" + fileLen;
+        }
+
+        /**
+         * Parses a {@code Range} header like {@code bytes=0-99,200-,-50} for a file of the
+         * given length.  Ends after the end of the file get cut off.
+         *
+         * @return the satisfiable ranges, which may be none,
+         * or null if the header is invalid and should be ignored.
+         */
+        @Nullable
+        static List<ByteRange> parse(String header, long fileLen) {
+            if (!header.startsWith("bytes=")) {
+                return null;
+            }
+            String[] specs = header.substring("bytes=".length()).split(",");
+            if (specs.length > MAX_RANGES) {
+                return null;
+            }
+            List<ByteRange> ranges = new ArrayList<>(specs.length);
+            try {
+                for (String spec : specs) {
+                    spec = spec.trim();
+                    int minus = spec.indexOf('-');
+                    if (minus < 0) {
+                        return null;
+                    }
+                    String first = spec.substring(0, minus).trim();
+                    String last = spec.substring(minus + 1).trim();
+                    long start;
+                    long end;
+                    if (first.isEmpty()) {
+                        // suffix range with the number of bytes at the end of the file
+                        long suffixLength = Long.parseLong(last);
+                        if (suffixLength < 0) {
+                            return null;
+                        }
+                        start = Math.max(0, fileLen - suffixLength);
+                        end = fileLen - 1;
+                        if (suffixLength == 0) {
+                            continue;
+                        }
+                    } else {
+                        start = Long.parseLong(first);
+                        end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                        if (start < 0 || end < start) {
+                            return null;
+                        }
+                        end = Math.min(end, fileLen - 1);
+                    }
+                    if (start < fileLen) {
+                        ranges.add(new ByteRange(start, end));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return ranges;
+        }
+    }
+
+    @Override
+    protected ClientHandler createClientHandler(Socket finalAccept, InputStream inputStream) {
+        ClientHandler clientHandler = super.createClientHandler(finalAccept, inputStream);
+        InetAddress address = finalAccept.getInetAddress();
+        if (address != null) {
+            boundedRunner.setPeer(clientHandler, address.getHostAddress());
+        }
+        return clientHandler;
+    }
+
+    /**
+     * Runs requests on the shared {@link NearbyServerExecutor}
+     * instead of NanoHTTPD's default of starting a new thread for each.
+     */
+    private static final class BoundedAsyncRunner implements AsyncRunner {
+        private final NearbyServerExecutor executor;
+        private final Map<ClientHandler, String> peers = new ConcurrentHashMap<>();
+        private final Set<ClientHandler> running = ConcurrentHashMap.newKeySet();
+
+        BoundedAsyncRunner(NearbyServerExecutor executor) {
+            this.executor = executor;
+        }
+
+        void setPeer(ClientHandler clientHandler, String peer) {
+            peers.put(clientHandler, peer);
+        }
+
+        @Override
+        public void closeAll() {
+            for (ClientHandler clientHandler : new ArrayList<>(running)) {
+                clientHandler.close();
+            }
+        }
+
+        @Override
+        public void closed(ClientHandler clientHandler) {
+            running.remove(clientHandler);
+            peers.remove(clientHandler);
+        }
+
+        @Override
+        public void exec(ClientHandler clientHandler) {
+            String peer = peers.get(clientHandler);
+            running.add(clientHandler);
+            if (!executor.execute(peer == null ? "unknown" : peer, clientHandler, clientHandler::close)) {
+                closed(clientHandler);
+            }
+        }
+    }
+
     private void enableHTTPS() {
         try {
             LocalRepoKeyStore localRepoKeyStore = LocalRepoKeyStore.get(context.get());
@@ -2,12 +2,14 @@ package org.fdroid.fdroid.nearby;
 
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.content.pm.PackageInfoCompat;
 
 import org.apache.commons.io.FileUtils;
 import org.fdroid.fdroid.FDroidApp;
@@ -63,6 +65,12 @@ public final class LocalRepoManager {
             "swap-tick-not-done.png",
     };
 
+    /**
+     * Keeps what was found out about the swapped packages, so it doesn't need to be
+     * done again for apps that haven't changed since the last swap.
+     */
+    private static final String PACKAGE_CACHE_FILE_NAME = "swap-repo-packages.json";
+
     private final List<App> apps = new ArrayList<>();
 
     private final SanitizedFile indexJar;
@@ -223,12 +231,12 @@ public final class LocalRepoManager {
         Utils.symlinkOrCopyFileQuietly(new SanitizedFile(new File(directory, symlinkPrefix), fileName), index);
     }
 
-    private void deleteContents(File path) {
+    private void deleteContents(File path, Set<String> keptFileNames) {
         if (path.exists()) {
             for (File file : path.listFiles()) {
                 if (file.isDirectory()) {
-                    deleteContents(file);
-                } else {
+                    deleteContents(file, keptFileNames);
+                } else if (!keptFileNames.contains(file.getName())) {
                     attemptToDelete(file);
                 }
             }
@@ -246,8 +254,22 @@ public final class LocalRepoManager {
         return webRoot;
     }
 
-    public void deleteRepo() {
-        deleteContents(repoDir);
+    /**
+     * Deletes everything in the repo, except the APK links and icons of the currently
+     * installed versions of the given {@code selectedApps}.  {@link IndexV1Creator}
+     * can then re-use what it found out about those packages last time.
+     */
+    public void deleteRepo(String[] selectedApps) {
+        Set<String> keptFileNames = new HashSet<>();
+        for (String packageName : selectedApps) {
+            PackageInfo packageInfo = Utils.getPackageInfo(context, packageName);
+            if (packageInfo == null) continue;
+            // same names as IndexV1Creator uses
+            String name = packageName + "_" + PackageInfoCompat.getLongVersionCode(packageInfo);
+            keptFileNames.add(name + ".apk");
+            keptFileNames.add(name + ".png");
+        }
+        deleteContents(repoDir, keptFileNames);
     }
 
     void generateIndex(String repoUri, String address, String[] selectedApps) throws IOException {
@@ -257,7 +279,9 @@ public final class LocalRepoManager {
         RepoV1 repo = new RepoV1(System.currentTimeMillis(), 20001, 7, name, "swap-icon.png",
                 address, description, Collections.emptyList());
         Set<String> apps = new HashSet<>(Arrays.asList(selectedApps));
-        IndexV1Creator creator = new IndexV1Creator(context.getPackageManager(), repoDir, apps, repo);
+        // outside the web root, so it doesn't get served
+        File cacheFile = new File(context.getCacheDir(), PACKAGE_CACHE_FILE_NAME);
+        IndexV1Creator creator = new IndexV1Creator(context.getPackageManager(), repoDir, apps, repo, cacheFile);
         IndexV1 indexV1 = creator.createRepo();
         cacheApps(indexV1);
         writeIndexPage(repoUri);
@@ -101,7 +101,7 @@ public class LocalRepoService extends IntentService {
         try {
             final LocalRepoManager lrm = LocalRepoManager.get(context);
             broadcast(context, STATUS_PROGRESS, R.string.deleting_repo);
-            lrm.deleteRepo();
+            lrm.deleteRepo(selectedApps);
             broadcast(context, STATUS_PROGRESS, R.string.linking_apks);
             String urlString = Utils.getSharingUri(FDroidApp.repo).toString();
             lrm.generateIndex(urlString, FDroidApp.repo.getAddress(), selectedApps);
@@ -0,0 +1,220 @@
+package org.fdroid.fdroid.nearby;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.fdroid.fdroid.Utils;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the connections of all nearby swap servers, {@link LocalHTTPD} and {@link BluetoothServer},
+ * on a bounded number of threads, so a swap in a crowded room doesn't make the phone thrash.
+ * <p>
+ * Each peer can only have {@link #MAX_CONNECTIONS_PER_PEER} connections served at the same time,
+ * up to as many more connections from that peer wait until one of its connections is done,
+ * so an HTTP client opening a few more connections than that doesn't get them reset.
+ * Connections that don't get a thread right away wait in a queue.  When that is full,
+ * the server waits up to {@link #QUEUE_WAIT_MILLIS} before accepting more connections,
+ * and then gives up on the new connection.
+ */
+public final class NearbyServerExecutor {
+
+    private static final String TAG = "NearbyServerExecutor";
+
+    static final int MAX_WORKERS = 8;
+    static final int MAX_QUEUED = 16;
+    static final int MAX_CONNECTIONS_PER_PEER = 4;
+    static final long QUEUE_WAIT_MILLIS = 2000;
+    /**
+     * Idle worker threads get stopped after this, and so do connections that don't
+     * send a new request for this long, see {@link #closeWhenIdle(Closeable)}.
+     */
+    static final long IDLE_TIMEOUT_MILLIS = 30_000;
+
+    private static final int PEER_FREE = 0;
+    private static final int PEER_WAITING = 1;
+    private static final int PEER_FULL = 2;
+
+    private static NearbyServerExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService idleTimer = Executors.newSingleThreadScheduledExecutor();
+    private final Semaphore slots;
+    private final int maxConnectionsPerPeer;
+    private final Map<String, Integer> connectionsPerPeer = new HashMap<>();
+    private final Map<String, Queue<Runnable>> waitingPerPeer = new HashMap<>();
+    private int waitingCount;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public static synchronized NearbyServerExecutor get() {
+        if (instance == null) {
+            instance = new NearbyServerExecutor(MAX_WORKERS, MAX_QUEUED, MAX_CONNECTIONS_PER_PEER);
+        }
+        return instance;
+    }
+
+    @VisibleForTesting
+    NearbyServerExecutor(int maxWorkers, int maxQueued, int maxConnectionsPerPeer) {
+        this.executor = new ThreadPoolExecutor(maxWorkers, maxWorkers,
+                IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.slots = new Semaphore(maxWorkers + maxQueued);
+        this.maxConnectionsPerPeer = maxConnectionsPerPeer;
+    }
+
+    /**
+     * Runs the given connection {@code task} from the given {@code peer} once a thread is free.
+     * This blocks while the queue is full, so call this from the thread accepting connections.
+     * If the connection can't be run, it gets closed.
+     *
+     * @return true, if the connection will be run.
+     */
+    public boolean execute(@NonNull String peer, @NonNull Runnable task, @NonNull Closeable connection) {
+        boolean hasSlot;
+        try {
+            hasSlot = slots.tryAcquire(QUEUE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            hasSlot = false;
+        }
+        if (!hasSlot) {
+            Log.w(TAG, "Too many connections waiting (" + getQueuedCount() + "), closing new one");
+            reject(connection);
+            return false;
+        }
+        int peerState = acquirePeer(peer, task);
+        if (peerState == PEER_FULL) {
+            Log.w(TAG, "Too many connections from " + peer + ", closing new one");
+            slots.release();
+            reject(connection);
+            return false;
+        } else if (peerState == PEER_FREE) {
+            run(peer, task);
+        }
+        Utils.debugLog(TAG, "Accepted connection from " + peer + ", active: " + getActiveCount()
+                + ", queued: " + getQueuedCount());
+        return true;
+    }
+
+    private void run(String peer, Runnable task) {
+        executor.execute(() -> {
+            active.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                active.decrementAndGet();
+                slots.release();
+                Runnable next = releasePeer(peer);
+                if (next != null) run(peer, next);
+            }
+        });
+    }
+
+    /**
+     * Closes the given connection after {@link #IDLE_TIMEOUT_MILLIS},
+     * unless the returned future gets cancelled because the connection was used again.
+     * This is for connections that stay open between requests, so they don't block a thread forever.
+     */
+    public ScheduledFuture<?> closeWhenIdle(@NonNull Closeable connection) {
+        return idleTimer.schedule(() -> {
+            Utils.debugLog(TAG, "Closing idle connection");
+            Utils.closeQuietly(connection);
+        }, IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of connections that are being served right now.
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Returns the number of connections waiting for a thread to be served on,
+     * including those waiting for another connection of the same peer to finish.
+     */
+    public int getQueuedCount() {
+        synchronized (this) {
+            return executor.getQueue().size() + waitingCount;
+        }
+    }
+
+    /**
+     * Returns the number of connections that got closed without being served.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Counts a new connection for the given {@code peer}, if it has a free one.
+     * Otherwise, the {@code task} waits until {@link #releasePeer(String)} hands it on,
+     * unless the {@code peer} has as many connections waiting as it can have running.
+     *
+     * @return {@link #PEER_FREE}, if the {@code task} can be run now,
+     * {@link #PEER_WAITING}, if it was queued, or {@link #PEER_FULL}.
+     */
+    private synchronized int acquirePeer(String peer, Runnable task) {
+        int connections = connectionsPerPeer.containsKey(peer) ? connectionsPerPeer.get(peer) : 0;
+        if (connections < maxConnectionsPerPeer) {
+            connectionsPerPeer.put(peer, connections + 1);
+            return PEER_FREE;
+        }
+        Queue<Runnable> waiting = waitingPerPeer.get(peer);
+        if (waiting == null) {
+            waiting = new ArrayDeque<>();
+            waitingPerPeer.put(peer, waiting);
+        } else if (waiting.size() >= maxConnectionsPerPeer) {
+            return PEER_FULL;
+        }
+        waiting.add(task);
+        waitingCount++;
+        return PEER_WAITING;
+    }
+
+    /**
+     * Frees a connection of the given {@code peer}.
+     *
+     * @return the next waiting task of the {@code peer} that takes over the connection, if any.
+     */
+    @Nullable
+    private synchronized Runnable releasePeer(String peer) {
+        Queue<Runnable> waiting = waitingPerPeer.get(peer);
+        if (waiting != null) {
+            Runnable next = waiting.poll();
+            if (waiting.isEmpty()) waitingPerPeer.remove(peer);
+            waitingCount--;
+            return next;
+        }
+        int connections = connectionsPerPeer.containsKey(peer) ? connectionsPerPeer.get(peer) : 0;
+        if (connections <= 1) {
+            connectionsPerPeer.remove(peer);
+        } else {
+            connectionsPerPeer.put(peer, connections - 1);
+        }
+        return null;
+    }
+
+    private void reject(Closeable connection) {
+        rejected.incrementAndGet();
+        Utils.closeQuietly(connection);
+    }
+}
@@ -3,6 +3,16 @@ package org.fdroid.fdroid
 import android.content.Context
 import android.net.Uri
 import androidx.core.net.toUri
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.sync.withPermit
 import mu.KotlinLogging
 import org.acra.util.versionCodeLong
 import org.fdroid.database.DbUpdateChecker
@@ -17,6 +27,13 @@ import org.fdroid.fdroid.installer.InstallManagerService
 import org.fdroid.fdroid.installer.InstallerFactory
 import org.fdroid.index.RepoManager
 
+/**
+ * Updates all apps with updates pending.
+ * Up to [maxParallelDownloads] APKs get downloaded at the same time,
+ * but at most [maxDownloadsPerHost] from the same repository host,
+ * so one slow host can't hold up updates coming from others.
+ * Installs happen one at a time as downloads complete with our own app last.
+ */
 class AppUpdateManager @JvmOverloads constructor(
     private val context: Context,
     private val repoManager: RepoManager,
@@ -24,8 +41,15 @@ class AppUpdateManager @JvmOverloads constructor(
     private val downloaderFactory: DownloaderFactory =
         org.fdroid.fdroid.net.DownloaderFactory.INSTANCE,
     private val statusManager: AppUpdateStatusManager = AppUpdateStatusManager.getInstance(context),
+    private val maxParallelDownloads: Int = MAX_PARALLEL_DOWNLOADS,
+    private val maxDownloadsPerHost: Int = MAX_DOWNLOADS_PER_HOST,
 ) {
 
+    companion object {
+        const val MAX_PARALLEL_DOWNLOADS = 4
+        const val MAX_DOWNLOADS_PER_HOST = 2
+    }
+
     private val log = KotlinLogging.logger { }
 
     /**
@@ -44,50 +68,71 @@ class AppUpdateManager @JvmOverloads constructor(
             }
         // inform the status manager of the available updates
         statusManager.addUpdatableApps(updatableApps, false)
-        // update each individual app
-        var success = true
-        updatableApps.forEach { app ->
-            val repo = repoManager.getRepository(app.repoId)
-                ?: return@forEach // repo removed in the meantime?
-            val listener = object : AppInstallListener {
-                private val installManagerService = InstallManagerService.getInstance(context)
-                private val legacyApp = App(app)
-                private val legacyApk = Apk(app.update, repo)
-                private val uri = legacyApk.canonicalUrl.toUri()
-                private var lastProgress = 0L
-
-                override fun onInstallProcessStarted() {
-                    statusManager.addApk(legacyApp, legacyApk, Downloading, null)
-                }
+        // update all apps, downloading several at once
+        val downloadSlots = Semaphore(maxParallelDownloads)
+        val hostSlots = HashMap<String, Semaphore>()
+        val installLock = Mutex()
+        return runBlocking(Dispatchers.IO) {
+            val otherUpdates = ArrayList<Deferred<Boolean>>()
+            updatableApps.mapNotNull { app ->
+                val repo = repoManager.getRepository(app.repoId)
+                    ?: return@mapNotNull null // repo removed in the meantime?
+                val host = repo.address.toUri().host ?: repo.address
+                val hostSlot = hostSlots.getOrPut(host) { Semaphore(maxDownloadsPerHost) }
+                val isOwnApp = app.packageName == context.packageName
+                async {
+                    // wait for a slot of our host first, so we don't block others meanwhile
+                    val install = hostSlot.withPermit {
+                        downloadSlots.withPermit { downloadApp(app, repo, getListener(app, repo)) }
+                    } ?: return@async false
+                    // our own app will be last to install, because updating us kills us
+                    if (isOwnApp) otherUpdates.joinAll()
+                    installLock.withLock { install() }
+                    true
+                }.also { if (!isOwnApp) otherUpdates.add(it) }
+            }.awaitAll().all { it }
+        }
+    }
 
-                override fun onDownloadProgress(downloadedBytes: Long, totalBytes: Long) {
-                    val now = System.currentTimeMillis()
-                    if (now - lastProgress > 1000) {
-                        installManagerService.onDownloadProgress(
-                            uri, legacyApp, legacyApk, downloadedBytes, totalBytes
-                        )
-                        lastProgress = now
-                    }
-                }
+    private fun getListener(app: UpdatableApp, repo: Repository) = object : AppInstallListener {
+        private val installManagerService = InstallManagerService.getInstance(context)
+        private val legacyApp = App(app)
+        private val legacyApk = Apk(app.update, repo)
+        private val uri = legacyApk.canonicalUrl.toUri()
+        private var lastProgress = 0L
 
-                override fun onDownloadFailed(e: Exception) {
-                    installManagerService.onDownloadFailed(uri, e.message)
-                }
+        override fun onInstallProcessStarted() {
+            statusManager.addApk(legacyApp, legacyApk, Downloading, null)
+        }
 
-                override fun onReadyToInstall() {
-                    installManagerService.onDownloadComplete(uri)
-                }
+        override fun onDownloadProgress(downloadedBytes: Long, totalBytes: Long) {
+            val now = System.currentTimeMillis()
+            if (now - lastProgress > 1000) {
+                installManagerService.onDownloadProgress(
+                    uri, legacyApp, legacyApk, downloadedBytes, totalBytes
+                )
+                lastProgress = now
             }
-            success = success && updateApp(app, repo, listener)
         }
-        return success
+
+        override fun onDownloadFailed(e: Exception) {
+            installManagerService.onDownloadFailed(uri, e.message)
+        }
+
+        override fun onReadyToInstall() {
+            installManagerService.onDownloadComplete(uri)
+        }
     }
 
-    private fun updateApp(
+    /**
+     * Downloads the update of the given [app] and returns a function installing it,
+     * or null if the download failed.
+     */
+    private fun downloadApp(
         app: UpdatableApp,
         repo: Repository,
         listener: AppInstallListener?,
-    ): Boolean {
+    ): (() -> Unit)? {
         listener?.onInstallProcessStarted()
         // legacy cruft
         val legacyApp = App(app)
@@ -97,7 +142,7 @@ class AppUpdateManager @JvmOverloads constructor(
         try {
             val packageInfo = context.packageManager.getPackageInfo(app.packageName, 0)
             // bail out if app update was already installed
-            if (packageInfo.versionCodeLong >= app.update.manifest.versionCode) return true
+            if (packageInfo.versionCodeLong >= app.update.manifest.versionCode) return {}
         } catch (e: Exception) {
             log.error(e) { "Error getting package info for ${app.packageName}" }
         }
@@ -113,14 +158,15 @@ class AppUpdateManager @JvmOverloads constructor(
         } catch (e: Exception) {
             log.error(e) { "Error downloading $uri" }
             listener?.onDownloadFailed(e)
-            return false
+            return null
         }
         listener?.onReadyToInstall()
-        // install file
-        log.info { "Download of ${app.name} (${app.packageName}) complete, installing..." }
-        val installer = InstallerFactory.create(context, legacyApp, legacyApk)
-        installer.installPackage(Uri.fromFile(file), uri)
-        return true
+        return {
+            // install file
+            log.info { "Download of ${app.name} (${app.packageName}) complete, installing..." }
+            val installer = InstallerFactory.create(context, legacyApp, legacyApk)
+            installer.installPackage(Uri.fromFile(file), uri)
+        }
     }
 
 }
@@ -8,6 +8,7 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -30,13 +31,21 @@ import org.fdroid.index.RepoManager;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
+import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.disposables.CompositeDisposable;
 import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.disposables.SerialDisposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
 
 /**
  * Manages the state of APKs that are being installed or that have updates available.
@@ -224,8 +233,25 @@ public final class AppUpdateStatusManager {
     private final RepoManager repoManager;
     private final DbUpdateChecker updateChecker;
     private final HashMap<String, AppUpdateStatus> appMapping = new HashMap<>();
+    /**
+     * The apps that can be updated by package name, guarded by {@link #appMapping}.
+     * This is null until the first full check for updates completed.
+     */
+    @Nullable
+    private HashMap<String, UpdatableApp> updatableApps;
     @Nullable
     private Disposable disposable;
+    private final CompositeDisposable partialCheckDisposables = new CompositeDisposable();
+    /**
+     * Packages a partial check for updates is running for, guarded by {@link #appMapping}.
+     */
+    private final HashSet<String> partialCheckPackageNames = new HashSet<>();
+    /**
+     * Packages that changed while a full check for updates was running, guarded by {@link #appMapping}.
+     * Its result may not reflect those changes, so they get checked again when it completed.
+     */
+    private final HashSet<String> pendingPackageNames = new HashSet<>();
+    private boolean pendingExtraNotify;
     private boolean isBatchUpdating;
 
     private AppUpdateStatusManager(Context context) {
@@ -235,7 +261,10 @@ public final class AppUpdateStatusManager {
         updateChecker = new DbUpdateChecker(DBHelper.getDb(context), context.getPackageManager());
         // let's check number of updatable apps at the beginning, so the badge can show the right number
         // then we can also use the populated entries in other places to show updates
-        disposable = Utils.runOffUiThread(this::getUpdatableApps, this::addUpdatableAppsNoNotify);
+        disposable = Utils.runOffUiThread(this::getUpdatableApps, apps -> {
+            addUpdatableAppsNoNotify(apps);
+            checkPendingPackages();
+        });
     }
 
     public void removeAllByRepo(long repoId) {
@@ -326,8 +355,8 @@ public final class AppUpdateStatusManager {
         notifyChange(entry, isStatusUpdate);
 
         if (status == Status.Installed) {
-            // After an app got installed, update available updates
-            checkForUpdates();
+            // After an app got installed, update available updates for it
+            checkForUpdates(Collections.singleton(entry.app.packageName), false);
         }
     }
 
@@ -390,9 +419,90 @@ public final class AppUpdateStatusManager {
 
     public void checkForUpdates(boolean singleNotification) {
         if (disposable != null) disposable.dispose();
+        partialCheckDisposables.clear();
+        boolean notify = singleNotification && Preferences.get().isUpdateNotificationEnabled();
+        synchronized (appMapping) {
+            // this check also covers the packages that were waiting for the previous one
+            pendingPackageNames.clear();
+            notify |= pendingExtraNotify;
+            pendingExtraNotify = false;
+        }
+        boolean extraNotify = notify;
+        disposable = Utils.runOffUiThread(this::getUpdatableApps, apps -> {
+            addUpdatableApps(apps, extraNotify);
+            checkPendingPackages();
+        });
+    }
+
+    /**
+     * Like {@link #checkForUpdates(boolean)}, but only re-checks the given packages,
+     * e.g. because a repository update changed only those or they were (re-)installed.
+     * The updates of all other apps are kept as they are.
+     * If a full check is still running, the packages get checked once it completed.
+     * Falls back to a full check, if there was none before.
+     */
+    public void checkForUpdates(@NonNull Set<String> packageNames, boolean singleNotification) {
+        if (packageNames.isEmpty()) return;
         boolean extraNotify = singleNotification && Preferences.get().isUpdateNotificationEnabled();
-        disposable = Utils.runOffUiThread(this::getUpdatableApps, apps ->
-                addUpdatableApps(apps, extraNotify));
+        checkPackagesForUpdates(packageNames, extraNotify);
+    }
+
+    private void checkPackagesForUpdates(Set<String> packageNames, boolean extraNotify) {
+        if (deferWhileFullCheckRunning(packageNames, extraNotify)) return;
+        Set<String> toCheck = new HashSet<>(packageNames);
+        synchronized (appMapping) {
+            // e.g. an install changes the app's status and sends PACKAGE_REPLACED, one check is enough
+            toCheck.removeAll(partialCheckPackageNames);
+            if (toCheck.isEmpty()) return;
+            partialCheckPackageNames.addAll(toCheck);
+        }
+        SerialDisposable check = new SerialDisposable();
+        partialCheckDisposables.add(check);
+        check.set(Single.fromCallable(() -> getUpdatableApps(toCheck))
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .doFinally(() -> {
+                    partialCheckDisposables.delete(check);
+                    synchronized (appMapping) {
+                        partialCheckPackageNames.removeAll(toCheck);
+                    }
+                })
+                .doOnError(throwable -> Log.e(TAG, "Error checking packages for updates", throwable))
+                .subscribe(apps -> replaceUpdatableApps(toCheck, apps, extraNotify), e -> {
+                    throw e; // pass this through to ACRA
+                }));
+    }
+
+    /**
+     * Remembers the given {@code packageNames} for checking them after the running full check completed,
+     * so it doesn't need to be restarted.
+     *
+     * @return false, if no full check is running.
+     */
+    private boolean deferWhileFullCheckRunning(Set<String> packageNames, boolean extraNotify) {
+        synchronized (appMapping) {
+            if (disposable == null || disposable.isDisposed()) return false;
+            pendingPackageNames.addAll(packageNames);
+            pendingExtraNotify |= extraNotify;
+            return true;
+        }
+    }
+
+    /**
+     * Checks the packages that changed while the full check was running.
+     * Call this when the full check completed.
+     */
+    private void checkPendingPackages() {
+        Set<String> packageNames;
+        boolean extraNotify;
+        synchronized (appMapping) {
+            if (pendingPackageNames.isEmpty()) return;
+            packageNames = new HashSet<>(pendingPackageNames);
+            extraNotify = pendingExtraNotify;
+            pendingPackageNames.clear();
+            pendingExtraNotify = false;
+        }
+        checkPackagesForUpdates(packageNames, extraNotify);
     }
 
     @WorkerThread
@@ -401,8 +511,52 @@ public final class AppUpdateStatusManager {
         return updateChecker.getUpdatableApps(releaseChannels, true);
     }
 
+    @WorkerThread
+    private List<UpdatableApp> getUpdatableApps(Set<String> packageNames) {
+        List<String> releaseChannels = Preferences.get().getBackendReleaseChannels();
+        return updateChecker.getUpdatableApps(packageNames, releaseChannels, true, false);
+    }
+
+    /**
+     * Replaces the updates for the given {@code packageNames} with the ones in {@code canUpdate}.
+     */
+    private void replaceUpdatableApps(Set<String> packageNames, List<UpdatableApp> canUpdate, boolean extraNotify) {
+        int numUpdatableApps;
+        synchronized (appMapping) {
+            // if a full check started in the meantime, this result would get lost, so check again after it
+            if (deferWhileFullCheckRunning(packageNames, extraNotify)) return;
+            if (updatableApps == null) {
+                // we can't know what the result of the partial check should be applied to
+                checkForUpdates(extraNotify);
+                return;
+            }
+            startBatchUpdates();
+            for (String packageName : packageNames) {
+                if (updatableApps.remove(packageName) == null) continue;
+                // remove the outdated update, if it isn't being downloaded or installed already
+                for (AppUpdateStatus entry : getByPackageName(packageName)) {
+                    if (entry.status == Status.UpdateAvailable) removeApk(entry.getCanonicalUrl());
+                }
+            }
+            for (UpdatableApp app : canUpdate) {
+                updatableApps.put(app.getPackageName(), app);
+                Repository repo = repoManager.getRepository(app.getUpdate().getRepoId());
+                if (repo == null) continue; // if repo is gone, it was just deleted, so skip app
+                addApk(new App(app), new Apk(app.getUpdate(), repo), Status.UpdateAvailable, null);
+            }
+            endBatchUpdates(Status.UpdateAvailable);
+            numUpdatableApps = updatableApps.size();
+        }
+        if (extraNotify && !canUpdate.isEmpty()) {
+            NotificationManager nm = new NotificationManager(context);
+            nm.showAppUpdatesAvailableNotification(numUpdatableApps);
+        }
+        setNumUpdatableApps(numUpdatableApps);
+    }
+
     void addUpdatableApps(@Nullable List<UpdatableApp> canUpdate, boolean extraNotify) {
         if (canUpdate == null) return;
+        rememberUpdatableApps(canUpdate);
         if (!canUpdate.isEmpty()) {
             if (extraNotify) {
                 NotificationManager nm = new NotificationManager(context);
@@ -418,7 +572,17 @@ public final class AppUpdateStatusManager {
         setNumUpdatableApps(canUpdate.size());
     }
 
+    private void rememberUpdatableApps(List<UpdatableApp> canUpdate) {
+        synchronized (appMapping) {
+            updatableApps = new HashMap<>();
+            for (UpdatableApp app : canUpdate) {
+                updatableApps.put(app.getPackageName(), app);
+            }
+        }
+    }
+
     private void addUpdatableAppsNoNotify(List<UpdatableApp> canUpdate) {
+        rememberUpdatableApps(canUpdate);
         synchronized (appMapping) {
             isBatchUpdating = true;
             try {
@@ -75,6 +75,7 @@ import org.fdroid.fdroid.net.DnsCache;
 import org.fdroid.fdroid.net.DownloaderFactory;
 import org.fdroid.fdroid.panic.HidingManager;
 import org.fdroid.fdroid.receiver.DeviceStorageReceiver;
+import org.fdroid.fdroid.receiver.PackageChangeReceiver;
 import org.fdroid.fdroid.work.AppUpdateWorker;
 import org.fdroid.fdroid.work.CleanCacheWorker;
 import org.fdroid.fdroid.work.RepoUpdateWorker;
@@ -349,6 +350,7 @@ public class FDroidApp extends Application implements androidx.work.Configuratio
 
         // register broadcast receivers
         registerReceiver(new DeviceStorageReceiver(), new IntentFilter(Intent.ACTION_DEVICE_STORAGE_LOW));
+        registerReceiver(new PackageChangeReceiver(), PackageChangeReceiver.getIntentFilter());
         WifiStateChangeService.registerReceiver(this);
 
         applyTheme();
@@ -126,6 +126,7 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
     public static final String PREF_USE_DNS_CACHE = "useDnsCache";
     public static final String PREF_DNS_CACHE = "dnsCache";
     public static final String PREF_MIRROR_ERROR_DATA = "mirrorErrorData";
+    public static final String PREF_MIRROR_STATS_DATA = "mirrorStatsData";
     public static final String PREF_PREFER_FOREIGN = "preferForeign";
     public static final String PREF_USE_TOR = "useTor";
     public static final String PREF_ENABLE_PROXY = "enableProxy";
@@ -642,6 +643,36 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
         return output;
     }
 
+    private String stringMapToString(Map<String, String> stringMap) {
+        StringBuilder output = new StringBuilder();
+        for (Map.Entry<String, String> entry : stringMap.entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            if (key == null || key.isEmpty() || value == null || value.isEmpty()) {
+                Utils.debugLog(TAG, "Don't serialize record with null key or value: " + key);
+            } else {
+                if (output.length() > 0) {
+                    output.append('\n');
+                }
+                output.append(key).append(' ').append(value);
+            }
+        }
+        return output.toString();
+    }
+
+    private Map<String, String> stringToStringMap(String mapString) {
+        HashMap<String, String> output = new HashMap<>();
+        for (String line : mapString.split("\n")) {
+            String[] pair = line.split(" ");
+            if (pair.length == 2 && !pair[0].isEmpty()) {
+                output.put(pair[0], pair[1]);
+            } else {
+                Utils.debugLog(TAG, "Serialized map entry can't be parsed: " + line);
+            }
+        }
+        return output;
+    }
+
     public void setPreferForeignValue(boolean newValue) {
         preferences.edit().putBoolean(PREF_PREFER_FOREIGN, newValue).apply();
     }
@@ -665,6 +696,21 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
         return mirrorDataMap;
     }
 
+    /**
+     * @see org.fdroid.download.MirrorStats#serialize()
+     */
+    public void setMirrorStatsData(Map<String, String> mirrorStatsMap) {
+        preferences.edit().putString(PREF_MIRROR_STATS_DATA, stringMapToString(mirrorStatsMap)).apply();
+    }
+
+    public Map<String, String> getMirrorStatsData() {
+        String mapString = preferences.getString(PREF_MIRROR_STATS_DATA, "");
+        if (mapString == null || mapString.isEmpty()) {
+            return new HashMap<>();
+        }
+        return stringToStringMap(mapString);
+    }
+
     /**
      * This preference's default is set dynamically based on whether Orbot is
      * installed. If Orbot is installed, default to using Tor, the user can still override
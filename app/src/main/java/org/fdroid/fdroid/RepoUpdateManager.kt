@@ -7,15 +7,23 @@ import android.util.Log
 import android.widget.Toast.LENGTH_LONG
 import androidx.annotation.WorkerThread
 import androidx.lifecycle.asLiveData
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.asStateFlow
 import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import org.fdroid.CompatibilityChecker
 import org.fdroid.CompatibilityCheckerImpl
 import org.fdroid.database.FDroidDatabase
 import org.fdroid.database.Repository
+import org.fdroid.download.ConnectionStats
 import org.fdroid.fdroid.data.App
 import org.fdroid.fdroid.data.DBHelper
+import org.fdroid.fdroid.net.DnsCache
 import org.fdroid.fdroid.net.DownloaderFactory
 import org.fdroid.fdroid.work.RepoUpdateWorker
 import org.fdroid.index.IndexUpdateListener
@@ -38,11 +46,31 @@ class RepoUpdateManager @JvmOverloads constructor(
         packageManager = context.packageManager,
         forceTouchApps = Preferences.get().forceTouchApps(),
     ),
+    private val changedPackages: ChangedPackages = ChangedPackages(),
+    private val downloadProgress: DownloadProgress = DownloadProgress(),
     private val indexUpdateListener: IndexUpdateListener = object : IndexUpdateListener {
         override fun onDownloadProgress(repo: Repository, bytesRead: Long, totalBytes: Long) {
             Log.d(TAG, "Downloading ${repo.address} ($bytesRead/$totalBytes)")
+            downloadProgress.update(repo.repoId, bytesRead, totalBytes)
             if (!Preferences.get().isUpdateNotificationEnabled) return
 
+            // when downloading from several repos at once, show their combined progress
+            val numDownloads = downloadProgress.numDownloads
+            val totalBytesAll = downloadProgress.totalBytes
+            if (numDownloads > 1 && totalBytesAll > 0) {
+                val bytesReadAll = downloadProgress.bytesRead
+                val percentAll = Utils.getPercent(bytesReadAll, totalBytesAll)
+                val message = context.resources.getQuantityString(
+                    R.plurals.status_download_repos,
+                    numDownloads,
+                    numDownloads,
+                    Utils.getFriendlySize(bytesReadAll),
+                    Utils.getFriendlySize(totalBytesAll),
+                    percentAll,
+                )
+                notificationManager.showUpdateRepoNotification(msg = message, progress = percentAll)
+                return
+            }
             val percent = if (totalBytes > 0) {
                 Utils.getPercent(bytesRead, totalBytes)
             } else {
@@ -68,6 +96,7 @@ class RepoUpdateManager @JvmOverloads constructor(
          */
         override fun onUpdateProgress(repo: Repository, appsProcessed: Int, totalApps: Int) {
             Log.d(TAG, "Committing ${repo.address} ($appsProcessed/$totalApps)")
+            downloadProgress.remove(repo.repoId)
             if (!Preferences.get().isUpdateNotificationEnabled) return
 
             if (totalApps > 0) notificationManager.showUpdateRepoNotification(
@@ -82,6 +111,10 @@ class RepoUpdateManager @JvmOverloads constructor(
                 msg = context.getString(R.string.status_inserting_apps),
             )
         }
+
+        override fun onPackagesChanged(repo: Repository, packageNames: Set<String>?) {
+            changedPackages.add(repo.repoId, packageNames)
+        }
     },
     private val repoUpdater: RepoUpdater = RepoUpdater(
         tempDir = context.cacheDir,
@@ -93,6 +126,7 @@ class RepoUpdateManager @JvmOverloads constructor(
         },
         compatibilityChecker = compatibilityChecker,
         listener = indexUpdateListener,
+        httpManager = DownloaderFactory.HTTP_MANAGER,
     ),
     private val indexV1Updater: IndexV1Updater? = if (Preferences.get().isForceOldIndexEnabled) {
         IndexV1Updater(
@@ -107,8 +141,17 @@ class RepoUpdateManager @JvmOverloads constructor(
             listener = indexUpdateListener,
         )
     } else null,
+    private val maxParallelUpdates: Int = MAX_PARALLEL_UPDATES,
 ) {
 
+    companion object {
+        /**
+         * How many repositories get updated at the same time.
+         * Their indexes still get written to the database one after the other.
+         */
+        const val MAX_PARALLEL_UPDATES = 4
+    }
+
     private val _isUpdating = MutableStateFlow(false)
     val isUpdating = _isUpdating.asStateFlow()
     val isUpdatingLiveData = _isUpdating.asLiveData()
@@ -135,6 +178,8 @@ class RepoUpdateManager @JvmOverloads constructor(
             return
         }
         _isUpdating.value = true
+        changedPackages.clear()
+        downloadProgress.clear()
         try {
             var reposUpdated = false
             val repoErrors = mutableListOf<Pair<Repository, Exception>>()
@@ -143,30 +188,36 @@ class RepoUpdateManager @JvmOverloads constructor(
             //   the repos above might not be available, yet
             // * when an update is requested when adding a new repo,
             //   it might not be in the FDroidApp list, yet
-            db.getRepositoryDao().getRepositories().forEach { repo ->
-                if (!repo.enabled) return@forEach
-
-                // show notification
-                if (fdroidPrefs.isUpdateNotificationEnabled) {
-                    val msg = context.getString(R.string.status_connecting_to_repo, repo.address)
-                    notificationManager.showUpdateRepoNotification(msg, throttle = false)
-                }
-
-                // indexV1Updater only gets used directly if forceIndexV1 was true
-                val result = indexV1Updater?.update(repo) ?: repoUpdater.update(repo)
-
-                if (result is IndexUpdateResult.Processed) reposUpdated = true
-                else if (result is IndexUpdateResult.Error) {
+            val repos = db.getRepositoryDao().getRepositories().filter { it.enabled }
+            prefetchMirrorHosts(repos)
+            // update several repos at once, so one slow repo doesn't hold up the others
+            val updateSlots = Semaphore(maxParallelUpdates)
+            val results = runBlocking(Dispatchers.IO) {
+                repos.map { repo ->
+                    async { updateSlots.withPermit { Pair(repo, updateRepoInt(repo)) } }
+                }.awaitAll()
+            }
+            results.forEach { (repo, result) ->
+                if (result is IndexUpdateResult.Processed) {
+                    reposUpdated = true
+                    // without knowing what changed, we need to check all apps for updates
+                    if (!changedPackages.contains(repo.repoId)) {
+                        changedPackages.add(repo.repoId, null)
+                    }
+                } else if (result is IndexUpdateResult.Error) {
                     Log.e(TAG, "Error updating repository ${repo.address}", result.e)
                     repoErrors.add(Pair(repo, result.e))
                 }
             }
             db.getRepositoryDao().walCheckpoint()
+            Log.d(TAG, "Connection reuse rate: ${ConnectionStats.reuseRate}")
             fdroidPrefs.lastUpdateCheck = System.currentTimeMillis()
             if (repoErrors.isNotEmpty()) showRepoErrors(repoErrors)
             if (reposUpdated) {
                 val appUpdateStatusManager = AppUpdateStatusManager.getInstance(context)
-                appUpdateStatusManager.checkForUpdates(true)
+                val packageNames = changedPackages.get()
+                if (packageNames == null) appUpdateStatusManager.checkForUpdates(true)
+                else appUpdateStatusManager.checkForUpdates(packageNames, true)
             }
         } finally {
             notificationManager.cancelUpdateRepoNotification()
@@ -174,6 +225,20 @@ class RepoUpdateManager @JvmOverloads constructor(
         }
     }
 
+    /**
+     * Resolves the hosts of all mirrors of the given [repos] in the background,
+     * so the [DnsCache] has fresh entries by the time we connect to them.
+     * Nothing gets resolved when using a proxy, as this would leak DNS requests.
+     */
+    private fun prefetchMirrorHosts(repos: List<Repository>) {
+        if (!fdroidPrefs.isDnsCacheEnabled || fdroidPrefs.isTorEnabled) return
+        if (fdroidPrefs.isProxyEnabled) return
+        val hosts = repos.flatMap { repo ->
+            repo.getMirrors().filter { it.isHttp() && !it.isOnion() && !it.isLocal() }
+        }.mapTo(HashSet()) { it.url.host }
+        DnsCache.get().prefetch(hosts)
+    }
+
     @WorkerThread
     fun updateRepo(repoId: Long): IndexUpdateResult {
         if (isUpdating.value) {
@@ -182,14 +247,7 @@ class RepoUpdateManager @JvmOverloads constructor(
         val repo = repoManager.getRepository(repoId) ?: return IndexUpdateResult.NotFound
         _isUpdating.value = true
         try {
-            // show notification
-            if (fdroidPrefs.isUpdateNotificationEnabled) {
-                val msg = context.getString(R.string.status_connecting_to_repo, repo.address)
-                notificationManager.showUpdateRepoNotification(msg, throttle = false)
-            }
-
-            // indexV1Updater only gets used directly if forceIndexV1 was true
-            return indexV1Updater?.update(repo) ?: repoUpdater.update(repo)
+            return updateRepoInt(repo)
         } finally {
             notificationManager.cancelUpdateRepoNotification()
             _isUpdating.value = false
@@ -197,6 +255,16 @@ class RepoUpdateManager @JvmOverloads constructor(
         }
     }
 
+    private fun updateRepoInt(repo: Repository): IndexUpdateResult {
+        // show notification
+        if (fdroidPrefs.isUpdateNotificationEnabled) {
+            val msg = context.getString(R.string.status_connecting_to_repo, repo.address)
+            notificationManager.showUpdateRepoNotification(msg, throttle = false)
+        }
+        // indexV1Updater only gets used directly if forceIndexV1 was true
+        return indexV1Updater?.update(repo) ?: repoUpdater.update(repo)
+    }
+
     private fun showRepoErrors(repoErrors: List<Pair<Repository, Exception>>) {
         val msgBuilder = StringBuilder()
         for ((repo, e) in repoErrors) {
@@ -217,3 +285,73 @@ class RepoUpdateManager @JvmOverloads constructor(
         }
     }
 }
+
+/**
+ * Collects the package names that changed in repositories during [RepoUpdateManager.updateRepos],
+ * so only those need to be checked for updates afterwards.
+ */
+class ChangedPackages {
+    private val packageNames = HashMap<Long, Set<String>?>()
+
+    @Synchronized
+    fun add(repoId: Long, changed: Set<String>?) {
+        if (packageNames.containsKey(repoId) && changed != null) {
+            // don't turn an unknown set of changes into a known one
+            val existing = packageNames[repoId] ?: return
+            packageNames[repoId] = existing + changed
+        } else {
+            packageNames[repoId] = changed
+        }
+    }
+
+    @Synchronized
+    fun contains(repoId: Long): Boolean = packageNames.containsKey(repoId)
+
+    @Synchronized
+    fun clear() = packageNames.clear()
+
+    /**
+     * Returns all changed package names or null if any repository could have changed all apps.
+     */
+    @Synchronized
+    fun get(): Set<String>? {
+        val result = HashSet<String>()
+        packageNames.values.forEach { changed -> result.addAll(changed ?: return null) }
+        return result
+    }
+}
+
+/**
+ * Keeps track of the index downloads of repositories being updated at the same time,
+ * so their combined progress can be shown.
+ */
+class DownloadProgress {
+    private val downloads = HashMap<Long, Pair<Long, Long>>()
+
+    @get:Synchronized
+    val numDownloads: Int get() = downloads.size
+
+    @get:Synchronized
+    val bytesRead: Long get() = downloads.values.sumOf { it.first }
+
+    /**
+     * The combined size of all downloads or -1 if any size is unknown.
+     */
+    @get:Synchronized
+    val totalBytes: Long
+        get() = downloads.values.sumOf { if (it.second > 0) it.second else return -1 }
+
+    @Synchronized
+    fun update(repoId: Long, bytesRead: Long, totalBytes: Long) {
+        if (totalBytes in 1..bytesRead) downloads.remove(repoId) // done
+        else downloads[repoId] = Pair(bytesRead, totalBytes)
+    }
+
+    @Synchronized
+    fun remove(repoId: Long) {
+        downloads.remove(repoId)
+    }
+
+    @Synchronized
+    fun clear() = downloads.clear()
+}
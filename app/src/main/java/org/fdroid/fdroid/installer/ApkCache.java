@@ -23,11 +23,14 @@ import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
 
 import androidx.annotation.WorkerThread;
 import androidx.core.util.Pair;
 
 import org.apache.commons.io.FileUtils;
+import org.fdroid.download.HashCheckpointKt;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.SanitizedFile;
@@ -153,10 +156,20 @@ public class ApkCache {
      * Verifies the size of the file on disk matches, and then hashes the file to compare with what
      * we received from the signed repo.
      * Bails out if the file sizes don't match to prevent having to do the work of hashing the file.
+     * The downloader keeps the hash state of the file next to it,
+     * so usually only a few or no bytes need hashing here.
      */
     private static boolean apkIsCached(File apkFile, Apk apkToCheck) {
-        return apkFile.length() == apkToCheck.size &&
-                Utils.isFileMatchingHash(apkFile, apkToCheck.apkFile.getSha256(), "sha256");
+        String sha256 = apkToCheck.apkFile.getSha256();
+        if (apkFile.length() != apkToCheck.size || TextUtils.isEmpty(sha256)) {
+            return false;
+        }
+        try {
+            return HashCheckpointKt.isFileMatchingSha256(apkFile, sha256);
+        } catch (IOException e) {
+            Log.w(TAG, "Error hashing " + apkFile, e);
+            return false;
+        }
     }
 
     /**
@@ -290,8 +290,8 @@ public abstract class Installer {
     /**
      * Install apk given the URI that points to the local APK file, and the
      * download URI to identify which session this belongs to.  This first
-     * moves the APK file to private directory for the installation process
-     * to read from.  Then the hash of the APK is checked against the
+     * gets a {@link #getSafeUri(Uri)} for the installation process to read
+     * from.  Then the hash of the APK is checked against the
      * {@link Apk} instance provided when this {@code Installer} object was
      * instantiated.  The list of permissions in the APK file and the
      * {@code Apk} instance are compared, if they do not match, then the user
@@ -308,7 +308,7 @@ public abstract class Installer {
         Uri sanitizedUri;
 
         try {
-            sanitizedUri = ApkFileProvider.getSafeUri(context, localApkUri, apk);
+            sanitizedUri = getSafeUri(localApkUri);
         } catch (IOException e) {
             Utils.debugLog(TAG, e.getMessage(), e);
             sendBroadcastInstall(canonicalUri, Installer.ACTION_INSTALL_INTERRUPTED, e.getMessage());
@@ -339,6 +339,15 @@ public abstract class Installer {
         installPackageInternal(sanitizedUri, canonicalUri);
     }
 
+    /**
+     * Returns a {@link Uri} for the APK at {@code localApkUri} that other apps can't modify
+     * while it gets installed.  By default, this is a copy in our private files directory
+     * that was checked against the hash of the {@link Apk}.
+     */
+    protected Uri getSafeUri(Uri localApkUri) throws IOException {
+        return ApkFileProvider.getSafeUri(context, localApkUri, apk);
+    }
+
     protected abstract void installPackageInternal(Uri localApkUri, Uri canonicalUri);
 
     /**
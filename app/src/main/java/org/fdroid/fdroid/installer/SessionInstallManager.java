@@ -14,6 +14,7 @@ import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -30,10 +31,16 @@ import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.net.DownloaderService;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.concurrent.TimeUnit;
 
+import vendored.org.apache.commons.codec.binary.Hex;
+
 public class SessionInstallManager extends BroadcastReceiver {
 
     private static final String TAG = "SessionInstallManager";
@@ -49,6 +56,11 @@ public class SessionInstallManager extends BroadcastReceiver {
     private static final String EXTRA_BUNDLE =
             "org.fdroid.fdroid.installer.SessionInstallManager.bundle";
 
+    /**
+     * Large reads from the APK and writes into the session mean fewer system calls.
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
     private final Context context;
 
     // Used to cache isStockXiaomi() to prevent repeat PackageManager calls
@@ -76,23 +88,36 @@ public class SessionInstallManager extends BroadcastReceiver {
         });
     }
 
+    /**
+     * Streams the APK at {@code localApkUri} into a new install session while hashing it,
+     * and commits the session only if the SHA-256 hash matches the one of the given {@link Apk}.
+     * So the APK gets read only once and nothing that wasn't checked can get installed.
+     */
     @WorkerThread
     public void install(App app, Apk apk, Uri localApkUri, Uri canonicalUri) {
-        DocumentFile documentFile = ObjectsCompat.requireNonNull(DocumentFile.fromSingleUri(context, localApkUri));
-        long size = documentFile.length();
-        Log.i(TAG, "Installing " + documentFile.getUri() + " with size " + size + " bytes");
+        long size = getSize(localApkUri);
+        Log.i(TAG, "Installing " + localApkUri + " with size " + size + " bytes");
         PackageInstaller.SessionParams params = getSessionParams(app, size);
         PackageInstaller installer = context.getPackageManager().getPackageInstaller();
         try {
+            String expectedHash = apk.apkFile == null ? null : apk.apkFile.getSha256();
+            if (TextUtils.isEmpty(expectedHash)) {
+                throw new IOException("No hash to verify " + localApkUri);
+            }
             int sessionId = installer.createSession(params);
             ContentResolver contentResolver = context.getContentResolver();
             try (PackageInstaller.Session session = installer.openSession(sessionId)) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
                 try (InputStream inputStream = contentResolver.openInputStream(localApkUri)) {
                     try (OutputStream outputStream = session.openWrite(app.packageName, 0, size)) {
-                        IOUtils.copy(inputStream, outputStream);
+                        IOUtils.copy(inputStream, new DigestOutputStream(outputStream, digest), COPY_BUFFER_SIZE);
                         session.fsync(outputStream);
                     }
                 }
+                if (!expectedHash.equalsIgnoreCase(Hex.encodeHexString(digest.digest()))) {
+                    session.abandon();
+                    throw new IOException(localApkUri + " failed to verify!");
+                }
                 IntentSender sender = getInstallIntentSender(sessionId, app, apk, canonicalUri);
                 // wait for install constraints, if they can be used
                 if (Build.VERSION.SDK_INT >= 34 && canUseInstallConstraints(app.packageName)) {
@@ -114,6 +139,13 @@ public class SessionInstallManager extends BroadcastReceiver {
         }
     }
 
+    private long getSize(Uri localApkUri) {
+        if (ContentResolver.SCHEME_FILE.equals(localApkUri.getScheme())) {
+            return new File(localApkUri.getPath()).length();
+        }
+        return ObjectsCompat.requireNonNull(DocumentFile.fromSingleUri(context, localApkUri)).length();
+    }
+
     @NonNull
     private static PackageInstaller.SessionParams getSessionParams(App app, long size) {
         PackageInstaller.SessionParams params =
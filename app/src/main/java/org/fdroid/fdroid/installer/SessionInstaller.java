@@ -18,6 +18,16 @@ class SessionInstaller extends Installer {
         super(context, app, apk);
     }
 
+    /**
+     * The APK doesn't need copying, because {@link SessionInstallManager#install(App, Apk, Uri, Uri)}
+     * reads it only once from our private cache and checks the hash of exactly the bytes
+     * it writes into the install session.
+     */
+    @Override
+    protected Uri getSafeUri(Uri localApkUri) {
+        return localApkUri;
+    }
+
     @Override
     protected void installPackageInternal(Uri localApkUri, Uri canonicalUri) {
         sessionInstallManager.install(app, apk, localApkUri, canonicalUri);
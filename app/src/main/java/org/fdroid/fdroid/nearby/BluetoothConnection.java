@@ -45,6 +45,14 @@ public class BluetoothConnection {
         Utils.debugLog(TAG, "Opened connection to Bluetooth device");
     }
 
+    /**
+     * False once the socket got closed, so the connection can't be used anymore.
+     * A peer closing its end may only be noticed by the next read or write.
+     */
+    public boolean isConnected() {
+        return socket.isConnected();
+    }
+
     public void closeQuietly() {
         Utils.closeQuietly(input);
         Utils.closeQuietly(output);
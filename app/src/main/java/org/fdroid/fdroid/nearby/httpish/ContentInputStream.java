@@ -0,0 +1,69 @@
+package org.fdroid.fdroid.nearby.httpish;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The content of a single {@link Response} on a connection that stays open afterwards.
+ * It ends after the content length given in the response frame
+ * and closing it leaves the connection open.
+ */
+class ContentInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    ContentInputStream(InputStream input, long length) {
+        super(input);
+        this.remaining = length;
+    }
+
+    /**
+     * Returns true, if all content was read, so the next frame can be read from the connection.
+     */
+    boolean isExhausted() {
+        return remaining == 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining == 0) return -1;
+        int b = super.read();
+        if (b == -1) throw new EOFException("Connection closed " + remaining + " bytes early");
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining == 0) return -1;
+        if (len == 0) return 0;
+        int count = super.read(b, off, (int) Math.min(len, remaining));
+        if (count == -1) throw new EOFException("Connection closed " + remaining + " bytes early");
+        remaining -= count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        // the connection is shared with the following responses
+    }
+}
@@ -8,6 +8,6 @@ public class ContentLengthHeader extends Header {
     }
 
     public void handle(FileDetails details, String value) {
-        details.setFileSize(Integer.parseInt(value));
+        details.setFileSize(Long.parseLong(value));
     }
 }
\ No newline at end of file
@@ -13,7 +13,7 @@ public class FileDetails {
         return fileSize;
     }
 
-    void setFileSize(int fileSize) {
+    void setFileSize(long fileSize) {
         this.fileSize = fileSize;
     }
 
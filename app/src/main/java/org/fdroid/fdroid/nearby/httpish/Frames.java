@@ -0,0 +1,106 @@
+package org.fdroid.fdroid.nearby.httpish;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The framing of requests and responses sent over Bluetooth connections between swap peers.
+ * <p>
+ * Every frame starts with {@link #MAGIC} followed by fields written with {@link DataOutputStream},
+ * so the other side can read exactly one frame with plain blocking reads.
+ * A response ends with the length of its content followed by exactly that many bytes,
+ * so the same connection can be kept open for many requests.
+ * Requests may also be sent before the responses of earlier requests have arrived,
+ * because responses always come back in the order of their requests.
+ * <pre>
+ * request:  MAGIC method:UTF path:UTF numHeaders:short (name:UTF value:UTF)*
+ * response: MAGIC status:short numHeaders:short (name:UTF value:UTF)* length:long content
+ * </pre>
+ * A length of -1 means that there is no content, e.g. for HEAD requests.
+ */
+final class Frames {
+
+    /**
+     * "FDs1", also makes peers with an older version of this protocol fail right away.
+     */
+    static final int MAGIC = 0x46447331;
+
+    private static final int MAX_HEADERS = 64;
+    private static final int BUFFER_SIZE = 8192;
+
+    private Frames() {
+    }
+
+    /**
+     * Reads the start of the next frame, blocking until it arrives.
+     *
+     * @return false, if the other side closed the connection instead of sending another frame.
+     */
+    static boolean readMagic(DataInputStream input) throws IOException {
+        int magic;
+        try {
+            magic = input.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (magic != MAGIC) {
+            throw new ProtocolException("Unexpected frame from peer: " + Integer.toHexString(magic));
+        }
+        return true;
+    }
+
+    static void writeHeaders(DataOutputStream output, Map<String, String> headers) throws IOException {
+        int numHeaders = 0;
+        for (String value : headers.values()) {
+            if (value != null) numHeaders++;
+        }
+        output.writeShort(numHeaders);
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getValue() == null) continue;
+            output.writeUTF(entry.getKey());
+            output.writeUTF(entry.getValue());
+        }
+    }
+
+    /**
+     * Reads headers written by {@link #writeHeaders(DataOutputStream, Map)}.
+     * Header names are case-insensitive, so they get returned in lower case.
+     */
+    static Map<String, String> readHeaders(DataInputStream input) throws IOException {
+        int numHeaders = input.readUnsignedShort();
+        if (numHeaders > MAX_HEADERS) {
+            throw new ProtocolException("Too many headers: " + numHeaders);
+        }
+        Map<String, String> headers = new HashMap<>(numHeaders);
+        for (int i = 0; i < numHeaders; i++) {
+            String name = input.readUTF().toLowerCase(Locale.ENGLISH);
+            headers.put(name, input.readUTF());
+        }
+        return headers;
+    }
+
+    /**
+     * Copies exactly {@code length} bytes, because the other side relies on
+     * the length it was told to find the start of the next frame.
+     */
+    static void copy(InputStream input, OutputStream output, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+            int count = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (count == -1) {
+                throw new EOFException("Content ended " + remaining + " bytes early");
+            }
+            output.write(buffer, 0, count);
+            remaining -= count;
+        }
+    }
+}
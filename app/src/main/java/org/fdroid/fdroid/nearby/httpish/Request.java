@@ -3,15 +3,17 @@ package org.fdroid.fdroid.nearby.httpish;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.nearby.BluetoothConnection;
 
-import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
+/**
+ * A request to a swap peer over Bluetooth, see {@link Frames} for how it is sent.
+ */
 public final class Request {
 
     private static final String TAG = "bluetooth.Request";
@@ -21,21 +23,16 @@ public final class Request {
         String GET = "GET";
     }
 
-    private String method;
-    private String path;
-    private Map<String, String> headers;
+    private final String method;
+    private final String path;
+    private final Map<String, String> headers = new HashMap<>();
 
     private final BluetoothConnection connection;
-    private final Writer output;
-    private final InputStream input;
 
     private Request(String method, String path, BluetoothConnection connection) {
         this.method = method;
         this.path = path;
         this.connection = connection;
-
-        output = new OutputStreamWriter(connection.getOutputStream());
-        input = connection.getInputStream();
     }
 
     public static Request createHEAD(String path, BluetoothConnection connection) {
@@ -46,152 +43,70 @@ public final class Request {
         return new Request(Methods.GET, path, connection);
     }
 
-    public String getHeaderValue(String header) {
-        return headers.containsKey(header) ? headers.get(header) : null;
-    }
-
-    public Response send() throws IOException {
-
-        Utils.debugLog(TAG, "Sending request to server (" + path + ")");
-
-        output.write(method);
-        output.write(' ');
-        output.write(path);
-
-        output.write("\n\n");
-
-        output.flush();
-
-        Utils.debugLog(TAG, "Finished sending request, now attempting to read response status code...");
-
-        int responseCode = readResponseCode();
-
-        Utils.debugLog(TAG, "Read response code " + responseCode + " from server, now reading headers...");
-
-        Map<String, String> headers = readHeaders();
-
-        Utils.debugLog(TAG, "Read " + headers.size() + " headers");
-
-        if (method.equals(Methods.HEAD)) {
-            Utils.debugLog(TAG, "Request was a " + Methods.HEAD
-                    + " request, not including anything other than headers and status...");
-            return new Response(responseCode, headers);
-        }
-        Utils.debugLog(TAG, "Request was a " + Methods.GET
-                + " request, so including content stream in response...");
-        return new Response(responseCode, headers, connection.getInputStream());
+    public Request addHeader(String header, String value) {
+        headers.put(header.toLowerCase(Locale.ENGLISH), value);
+        return this;
     }
 
     /**
-     * Helper function used by listenForRequest().
-     * The reason it is here is because the listenForRequest() is a static function, which would
-     * need to instantiate it's own InputReaders from the bluetooth connection. However, we already
-     * have that happening in a Request, so it is in some ways simpler to delegate to a member
-     * method like this.
+     * Asks for the content starting at {@code fromByte} only,
+     * which the server answers with {@link java.net.HttpURLConnection#HTTP_PARTIAL}.
      */
-    private boolean listen() throws IOException {
-
-        String requestLine = readLine();
-
-        if (requestLine == null || requestLine.trim().length() == 0) {
-            return false;
-        }
-
-        String[] parts = requestLine.split("\\s+");
-
-        // First part is the method (GET/HEAD), second is the path (/fdroid/repo/index.jar)
-        if (parts.length < 2) {
-            return false;
-        }
+    public Request setRange(long fromByte) {
+        return addHeader("Range", "bytes=" + fromByte + "-");
+    }
 
-        method = parts[0].toUpperCase(Locale.ENGLISH);
-        path = parts[1];
-        headers = readHeaders();
-        return true;
+    public String getHeaderValue(String header) {
+        return headers.get(header.toLowerCase(Locale.ENGLISH));
     }
 
     /**
-     * This is a blocking method, which will wait until a full Request is received.
+     * Returns all headers with their names in lower case.
      */
-    public static Request listenForRequest(BluetoothConnection connection) throws IOException {
-        Request request = new Request("", "", connection);
-        return request.listen() ? request : null;
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
     }
 
     /**
-     * First line of a HTTP 1.1 response is the status line:
-     * http://www.w3.org/Protocols/rfc2616/rfc2616-sec6.html#sec6.1
-     * The first part is the HTTP version, followed by a space, then the status code, then
-     * a space, and then the status label (which may contain spaces).
+     * Sends this request and blocks until the start of its response has arrived.
      */
-    private int readResponseCode() throws IOException {
-
-        String line = readLine();
-
-        // TODO: Error handling
-        int firstSpace = line.indexOf(' ');
-        int secondSpace = line.indexOf(' ', firstSpace + 1);
-
-        String status = line.substring(firstSpace + 1, secondSpace);
-        return Integer.parseInt(status);
+    public Response send() throws IOException {
+        write();
+        Response response = Response.read(connection);
+        Utils.debugLog(TAG, "Received " + response.getStatusCode() + " for " + path);
+        return response;
     }
 
-    private String readLine() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        String line = null;
-
-        while (line == null) {
-
-            while (input.available() > 0) {
-
-                int b = input.read();
-
-                if (((char) b) == '\n') {
-                    if (baos.size() > 0) {
-                        line = baos.toString();
-                    }
-
-                    return line;
-                }
-
-                baos.write(b);
-            }
-
-            try {
-                Thread.sleep(100);
-            } catch (Exception e) {
-                // ignore
-            }
-        }
-
-        return line;
+    /**
+     * Sends this request without waiting for its response, so more requests can follow right away.
+     * The responses then need to be read in the same order with {@link Response#read},
+     * each one after all content of the previous one was read.
+     */
+    public void write() throws IOException {
+        Utils.debugLog(TAG, "Sending " + method + " request to server (" + path + ")");
+        DataOutputStream output = new DataOutputStream(connection.getOutputStream());
+        output.writeInt(Frames.MAGIC);
+        output.writeUTF(method);
+        output.writeUTF(path);
+        Frames.writeHeaders(output, headers);
+        output.flush();
     }
 
     /**
-     * Subsequent lines (after the status line) represent the headers, which are case
-     * insensitive and may be multi-line. We don't deal with multi-line headers in
-     * our HTTP-ish implementation.
+     * This is a blocking method, which will wait until a full Request is received.
+     *
+     * @return the received request or null, if the client closed the connection.
      */
-    private Map<String, String> readHeaders() throws IOException {
-        Map<String, String> headers = new HashMap<>();
-        String responseLine = readLine();
-        while (responseLine != null) {
-
-            // TODO: Error handling
-            String[] parts = responseLine.split(":");
-            if (parts.length > 1) {
-                String header = parts[0].trim();
-                String value = parts[1].trim();
-                headers.put(header, value);
-            }
-
-            if (input.available() > 0) {
-                responseLine = readLine();
-            } else {
-                break;
-            }
+    public static Request listenForRequest(BluetoothConnection connection) throws IOException {
+        DataInputStream input = new DataInputStream(connection.getInputStream());
+        if (!Frames.readMagic(input)) {
+            return null;
         }
-        return headers;
+        String method = input.readUTF().toUpperCase(Locale.ENGLISH);
+        String path = input.readUTF();
+        Request request = new Request(method, path, connection);
+        request.headers.putAll(Frames.readHeaders(input));
+        return request;
     }
 
     public String getPath() {
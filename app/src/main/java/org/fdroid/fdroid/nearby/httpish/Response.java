@@ -4,17 +4,23 @@ import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.nearby.BluetoothConnection;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
-public class Response {
+/**
+ * A response from a swap peer over Bluetooth, see {@link Frames} for how it is sent.
+ */
+public class Response implements Closeable {
 
     private static final String TAG = "bluetooth.Response";
 
@@ -28,7 +34,7 @@ public class Response {
 
     /**
      * This class expects 'contentStream' to be open, and ready for use.
-     * It will not close it either. However it will block while doing things
+     * It will not close it, unless {@link #close()} gets called. It will block while doing things
      * so you can call a method, wait for it to finish, and then close
      * it afterwards if you like.
      */
@@ -60,12 +66,12 @@ public class Response {
         return statusCode;
     }
 
-    public int getFileSize() {
+    public long getFileSize() {
         if (headers != null) {
             for (Map.Entry<String, String> entry : headers.entrySet()) {
                 if ("content-length".equals(entry.getKey().toLowerCase(Locale.ENGLISH))) {
                     try {
-                        return Integer.parseInt(entry.getValue());
+                        return Long.parseLong(entry.getValue());
                     } catch (NumberFormatException e) {
                         return -1;
                     }
@@ -95,35 +101,89 @@ public class Response {
         return contentStream;
     }
 
+    /**
+     * Returns true, if all content of this response was read from the connection,
+     * so it can be used for the next request.
+     */
+    public boolean isContentConsumed() {
+        return !(contentStream instanceof ContentInputStream)
+                || ((ContentInputStream) contentStream).isExhausted();
+    }
+
+    /**
+     * Returns a response with the same status and headers, but without content,
+     * e.g. to answer a HEAD request.
+     */
+    public Response withoutContent() {
+        close();
+        return new Response(statusCode, headers);
+    }
+
+    /**
+     * Closes the content stream, but never the connection it may be read from.
+     */
+    @Override
+    public void close() {
+        Utils.closeQuietly(contentStream);
+    }
+
     public void send(BluetoothConnection connection) throws IOException {
+        write(connection);
+        connection.getOutputStream().flush();
+    }
 
-        Utils.debugLog(TAG, "Sending Bluetooth HTTP-ish response...");
+    /**
+     * Writes this response without flushing it,
+     * so responses to pipelined requests can go out together.
+     */
+    public void write(BluetoothConnection connection) throws IOException {
 
-        Writer output = new OutputStreamWriter(connection.getOutputStream());
-        output.write("HTTP(ish)/0.1 200 OK\n");
+        Utils.debugLog(TAG, "Sending Bluetooth HTTP-ish response...");
 
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            output.write(entry.getKey());
-            output.write(": ");
-            output.write(entry.getValue());
-            output.write("\n");
+        InputStream content = contentStream;
+        long length = content == null ? -1 : getFileSize();
+        if (content != null && length < 0) {
+            // the length goes before the content, so we need to know it first
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            Utils.copy(content, buffer);
+            content = new ByteArrayInputStream(buffer.toByteArray());
+            length = buffer.size();
         }
 
-        output.write("\n");
-        output.flush();
-
-        if (contentStream != null) {
-            Utils.copy(contentStream, connection.getOutputStream());
+        DataOutputStream output = new DataOutputStream(connection.getOutputStream());
+        output.writeInt(Frames.MAGIC);
+        output.writeShort(statusCode);
+        Frames.writeHeaders(output, headers);
+        output.writeLong(length);
+        if (content != null) {
+            Frames.copy(content, output, length);
         }
+    }
 
-        output.flush();
+    /**
+     * Reads the status and headers of the next response from the given connection.
+     * Its content, if any, must be read before the next response can be read.
+     */
+    public static Response read(BluetoothConnection connection) throws IOException {
+        DataInputStream input = new DataInputStream(connection.getInputStream());
+        if (!Frames.readMagic(input)) {
+            throw new EOFException("Connection closed while waiting for response");
+        }
+        int statusCode = input.readUnsignedShort();
+        Map<String, String> headers = Frames.readHeaders(input);
+        long length = input.readLong();
+        if (length >= 0 && !headers.containsKey("content-length")) {
+            headers.put("content-length", Long.toString(length));
+        }
+        InputStream content = length < 0 ? null : new ContentInputStream(input, length);
+        return new Response(statusCode, headers, content);
     }
 
     public static class Builder {
 
         private InputStream contentStream;
         private int statusCode = HttpURLConnection.HTTP_OK;
-        private int fileSize = -1;
+        private long fileSize = -1;
         private String etag;
 
         public Builder() {
@@ -138,7 +198,7 @@ public class Response {
             return this;
         }
 
-        public Builder setFileSize(int fileSize) {
+        public Builder setFileSize(long fileSize) {
             this.fileSize = fileSize;
             return this;
         }
@@ -153,7 +213,7 @@ public class Response {
             Map<String, String> headers = new HashMap<>(3);
 
             if (fileSize > 0) {
-                headers.put("Content-Length", Integer.toString(fileSize));
+                headers.put("Content-Length", Long.toString(fileSize));
             }
 
             if (etag != null) {
@@ -1,5 +1,6 @@
 package org.fdroid.fdroid.net;
 
+import android.annotation.SuppressLint;
 import android.net.Uri;
 import android.util.Log;
 
@@ -7,9 +8,9 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresPermission;
 
-import org.apache.commons.io.input.BoundedInputStream;
 import org.fdroid.IndexFile;
 import org.fdroid.download.Downloader;
+import org.fdroid.download.NotFoundException;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.nearby.BluetoothClient;
 import org.fdroid.fdroid.nearby.BluetoothConnection;
@@ -20,11 +21,24 @@ import org.fdroid.fdroid.nearby.httpish.Response;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 /**
  * Download from a Bluetooth swap repo.  Example URI:
  * {@code bluetooth://84-CF-BF-8B-3E-34/fdroid/repo}
+ * <p>
+ * Setting up a Bluetooth connection takes seconds, so once a download is done,
+ * its connection is kept for the next download from the same device.
+ * Kept connections get closed after {@link #IDLE_TIMEOUT_MILLIS} or when
+ * {@link #closeIdleConnections()} is called at the end of the swap session.
  */
 public class BluetoothDownloader extends Downloader {
 
@@ -32,9 +46,22 @@ public class BluetoothDownloader extends Downloader {
 
     public static final String SCHEME = "bluetooth";
 
-    private final BluetoothConnection connection;
-    private FileDetails fileDetails;
+    /**
+     * How long a connection is kept without being used by any download.
+     */
+    private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Open connections that aren't used by any download right now, by MAC address.
+     */
+    private static final Map<String, IdleConnection> IDLE_CONNECTIONS = new HashMap<>();
+
+    private final String macAddress;
     private final String sourcePath;
+    private BluetoothConnection connection;
+    private boolean isReusedConnection;
+    private Response response;
+    private FileDetails fileDetails;
 
     public static boolean isBluetoothUri(Uri uri) {
         return SCHEME.equals(uri.getScheme())
@@ -44,30 +71,63 @@ public class BluetoothDownloader extends Downloader {
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     BluetoothDownloader(Uri uri, IndexFile indexFile, File destFile) throws IOException {
         super(indexFile, destFile);
-        String macAddress = uri.getHost().replace("-", ":");
-        this.connection = new BluetoothClient(macAddress).openConnection();
+        this.macAddress = uri.getHost().replace("-", ":");
         this.sourcePath = uri.getPath();
+        this.connection = takeIdleConnection(macAddress);
+        this.isReusedConnection = connection != null;
+        if (connection == null) {
+            this.connection = new BluetoothClient(macAddress).openConnection();
+        }
     }
 
     @NonNull
     @Override
-    protected InputStream getInputStream(boolean resumable) throws IOException {
-        Request request = Request.createGET(sourcePath, connection);
-        Response response = request.send();
+    protected InputStream getInputStream(boolean resumable) throws IOException, NotFoundException {
+        long skipBytes = resumable ? outputFile.length() : 0;
+        response = send(Request.Methods.GET, skipBytes);
         fileDetails = response.toFileDetails();
 
-        // TODO: Manage the dependency which includes this class better?
-        // Right now, I only needed the one class from apache commons.
-        // There are countless classes online which provide this functionality,
-        // including some which are available from the Android SDK - the only
-        // problem is that they have a funky API which doesn't just wrap a
-        // plain old InputStream (the class is ContentLengthInputStream -
-        // whereas this BoundedInputStream is much more generic and useful
-        // to us).
-        BoundedInputStream stream = new BoundedInputStream(response.toContentStream(), fileDetails.getFileSize());
-        stream.setPropagateClose(false);
-
-        return stream;
+        int statusCode = response.getStatusCode();
+        if (statusCode == HttpURLConnection.HTTP_NOT_FOUND) {
+            throw new NotFoundException();
+        } else if (skipBytes > 0 && statusCode != HttpURLConnection.HTTP_PARTIAL) {
+            throw new ProtocolException("Expected partial content, but got " + statusCode);
+        } else if (statusCode != HttpURLConnection.HTTP_OK && statusCode != HttpURLConnection.HTTP_PARTIAL) {
+            throw new ProtocolException("Unexpected response code " + statusCode);
+        }
+        return response.toContentStream();
+    }
+
+    /**
+     * Sends a request for {@link #sourcePath} starting at {@code skipBytes}.
+     * If the connection was left over from an earlier download, the peer may have closed it
+     * in the meantime, so this tries once more with a new connection.
+     */
+    @SuppressLint("MissingPermission") // the constructor already requires it
+    private Response send(String method, long skipBytes) throws IOException {
+        if (connection == null) throw new IOException("Downloader was closed already");
+        try {
+            return createRequest(method, skipBytes).send();
+        } catch (IOException e) {
+            // the connection is in an unknown state now, so it can't be used anymore
+            connection.closeQuietly();
+            if (!isReusedConnection) {
+                connection = null;
+                throw e;
+            }
+            Utils.debugLog(TAG, "Kept connection failed, opening a new one: " + e);
+            isReusedConnection = false;
+            connection = new BluetoothClient(macAddress).openConnection();
+            return send(method, skipBytes);
+        }
+    }
+
+    private Request createRequest(String method, long skipBytes) {
+        Request request = Request.Methods.HEAD.equals(method)
+                ? Request.createHEAD(sourcePath, connection)
+                : Request.createGET(sourcePath, connection);
+        if (skipBytes > 0) request.setRange(skipBytes);
+        return request;
     }
 
     /**
@@ -78,7 +138,7 @@ public class BluetoothDownloader extends Downloader {
         if (fileDetails == null) {
             Utils.debugLog(TAG, "Going to Bluetooth \"server\" to get file details.");
             try {
-                fileDetails = Request.createHEAD(sourcePath, connection).send().toFileDetails();
+                fileDetails = send(Request.Methods.HEAD, 0).toFileDetails();
             } catch (IOException e) {
                 Log.e(TAG, "Error getting file details from Bluetooth \"server\"", e);
             }
@@ -101,14 +161,91 @@ public class BluetoothDownloader extends Downloader {
 
     @Override
     public void download() throws IOException, InterruptedException {
-        downloadFromStream(false);
-        connection.closeQuietly();
+        // without knowing the expected size, we can't tell if a partial file can be resumed
+        long fileLength = outputFile.length();
+        Long expectedLength = getIndexFile().getSize();
+        boolean resumable = expectedLength != null && fileLength > 0 && fileLength < expectedLength;
+        downloadFromStream(resumable);
     }
 
+    /**
+     * Keeps the connection for the next download, if the last response was read completely.
+     */
     @Override
     public void close() {
-        if (connection != null) {
+        if (connection == null) return;
+        if ((response == null || response.isContentConsumed()) && connection.isConnected()) {
+            List<BluetoothConnection> toClose;
+            synchronized (IDLE_CONNECTIONS) {
+                toClose = removeExpiredConnections();
+                IdleConnection replaced = IDLE_CONNECTIONS.put(macAddress, new IdleConnection(connection));
+                if (replaced != null) toClose.add(replaced.connection);
+            }
+            for (BluetoothConnection c : toClose) c.closeQuietly();
+        } else {
             connection.closeQuietly();
         }
+        connection = null;
+    }
+
+    /**
+     * Closes all connections kept for later downloads,
+     * e.g. because the Bluetooth swap session is over.
+     */
+    public static void closeIdleConnections() {
+        List<BluetoothConnection> toClose = new ArrayList<>();
+        synchronized (IDLE_CONNECTIONS) {
+            for (IdleConnection idle : IDLE_CONNECTIONS.values()) toClose.add(idle.connection);
+            IDLE_CONNECTIONS.clear();
+        }
+        for (BluetoothConnection c : toClose) c.closeQuietly();
+    }
+
+    /**
+     * Returns the kept connection to {@code macAddress}, if it is still usable,
+     * and closes all connections that were idle for too long.
+     */
+    @Nullable
+    private static BluetoothConnection takeIdleConnection(String macAddress) {
+        List<BluetoothConnection> toClose;
+        IdleConnection idle;
+        synchronized (IDLE_CONNECTIONS) {
+            toClose = removeExpiredConnections();
+            idle = IDLE_CONNECTIONS.remove(macAddress);
+        }
+        for (BluetoothConnection c : toClose) c.closeQuietly();
+        if (idle == null) return null;
+        if (!idle.connection.isConnected()) {
+            idle.connection.closeQuietly();
+            return null;
+        }
+        return idle.connection;
+    }
+
+    /**
+     * Removes the connections that were idle for longer than {@link #IDLE_TIMEOUT_MILLIS},
+     * so the caller can close them outside of the lock.
+     */
+    private static List<BluetoothConnection> removeExpiredConnections() {
+        List<BluetoothConnection> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        Iterator<IdleConnection> iterator = IDLE_CONNECTIONS.values().iterator();
+        while (iterator.hasNext()) {
+            IdleConnection idle = iterator.next();
+            if (now - idle.since >= IDLE_TIMEOUT_MILLIS || now < idle.since) {
+                expired.add(idle.connection);
+                iterator.remove();
+            }
+        }
+        return expired;
+    }
+
+    private static class IdleConnection {
+        private final BluetoothConnection connection;
+        private final long since = System.currentTimeMillis();
+
+        private IdleConnection(BluetoothConnection connection) {
+            this.connection = connection;
+        }
     }
 }
@@ -3,40 +3,96 @@ package org.fdroid.fdroid.net;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import org.fdroid.fdroid.Preferences;
 
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import okhttp3.Dns;
+
+/**
+ * Remembers DNS lookup results, so hosts can still be reached when DNS gets blocked.
+ * <p>
+ * The platform resolver doesn't tell us the TTL of its answers, so every entry is
+ * considered fresh for {@link #DEFAULT_TTL_MILLIS} after it was resolved.
+ * Stale entries still get returned right away while they are refreshed in the background.
+ * If that refresh fails, the stale entry is kept, because it may be all we have.
+ * Concurrent lookups of the same host share a single query to the resolver.
+ */
 public final class DnsCache {
 
     private static final String TAG = "DnsCache";
 
-    private volatile HashMap<String, List<InetAddress>> cache;
+    static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int REFRESH_THREADS = 2;
+
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, FutureTask<List<InetAddress>>> inFlight = new ConcurrentHashMap<>();
+    private final Dns resolver;
+    private final long ttlMillis;
     private static final int DELAY_TIME = 1;
     private static final TimeUnit DELAY_UNIT = TimeUnit.SECONDS;
     private volatile boolean writeScheduled = false;
 
     private final Runnable delayedWrite = () -> {
-        Preferences prefs = Preferences.get();
-        prefs.setDnsCache(cache);
         writeScheduled = false;
+        HashMap<String, List<InetAddress>> map = new HashMap<>();
+        for (Map.Entry<String, Entry> entry : cache.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().addresses);
+        }
+        Preferences prefs = Preferences.get();
+        prefs.setDnsCache(map);
     };
 
     private final ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService refreshExecutor = Executors.newFixedThreadPool(REFRESH_THREADS);
 
     private static DnsCache instance;
 
+    private static final class Entry {
+        final List<InetAddress> addresses;
+        /**
+         * The time this entry was resolved at, or 0 if it needs refreshing.
+         */
+        final long resolvedAt;
+
+        Entry(List<InetAddress> addresses, long resolvedAt) {
+            this.addresses = Collections.unmodifiableList(new ArrayList<>(addresses));
+            this.resolvedAt = resolvedAt;
+        }
+    }
+
     private DnsCache() {
+        this(Dns.SYSTEM, DEFAULT_TTL_MILLIS);
+    }
+
+    @VisibleForTesting
+    DnsCache(Dns resolver, long ttlMillis) {
+        this.resolver = resolver;
+        this.ttlMillis = ttlMillis;
         Preferences prefs = Preferences.get();
-        cache = prefs.getDnsCache();
-        if (cache == null) {
-            cache = new HashMap<>();
+        HashMap<String, List<InetAddress>> saved = prefs.getDnsCache();
+        if (saved != null) {
+            // we don't know when those were resolved, so refresh them when used
+            for (Map.Entry<String, List<InetAddress>> entry : saved.entrySet()) {
+                cache.put(entry.getKey(), new Entry(entry.getValue(), 0));
+            }
         }
     }
 
@@ -59,28 +115,127 @@ public final class DnsCache {
     }
 
     public void insert(@NonNull String url, @NonNull List<InetAddress> ipList) {
-        cache.put(url, ipList);
-        if (!writeScheduled) {
-            writeScheduled = true;
-            writeExecutor.schedule(delayedWrite, DELAY_TIME, DELAY_UNIT);
-        }
+        cache.put(url, new Entry(ipList, System.currentTimeMillis()));
+        scheduleWrite();
     }
 
     public List<InetAddress> remove(@NonNull String url) {
-        List<InetAddress> removed = cache.remove(url);
-        if (!writeScheduled && removed != null) {
-            writeScheduled = true;
-            writeExecutor.schedule(delayedWrite, DELAY_TIME, DELAY_UNIT);
-        }
-        return removed;
+        Entry removed = cache.remove(url);
+        if (removed == null) return null;
+        scheduleWrite();
+        return removed.addresses;
     }
 
     public List<InetAddress> lookup(@NonNull String url) {
         Preferences prefs = Preferences.get();
-        if (!prefs.isDnsCacheEnabled() || !cache.keySet().contains(url)) {
+        Entry entry = cache.get(url);
+        if (!prefs.isDnsCacheEnabled() || entry == null) {
             return null;
         } else {
-            return cache.get(url);
+            return entry.addresses;
+        }
+    }
+
+    /**
+     * Returns the addresses of the given host, resolving it only if it isn't cached.
+     * Stale entries get returned as well, but trigger a refresh in the background.
+     */
+    @NonNull
+    public List<InetAddress> resolve(@NonNull String host) throws UnknownHostException {
+        Entry entry = cache.get(host);
+        if (entry == null || entry.addresses.isEmpty()) {
+            return resolveNow(host);
+        }
+        if (isStale(entry)) refreshInBackground(host);
+        return entry.addresses;
+    }
+
+    /**
+     * Resolves all given hosts in the background that aren't cached or are stale,
+     * so they are ready when we connect to them.
+     */
+    public void prefetch(@NonNull Collection<String> hosts) {
+        for (String host : hosts) {
+            Entry entry = cache.get(host);
+            if (entry == null || isStale(entry)) refreshInBackground(host);
+        }
+    }
+
+    /**
+     * Stops returning the given address for the given host, because connecting to it failed.
+     * If no address is left, the last known addresses are kept, but will get refreshed.
+     */
+    public void onConnectFailed(@NonNull String host, @NonNull InetAddress address) {
+        Entry entry = cache.get(host);
+        if (entry == null || !entry.addresses.contains(address)) return;
+        List<InetAddress> addresses = new ArrayList<>(entry.addresses);
+        addresses.remove(address);
+        Entry newEntry = addresses.isEmpty()
+                ? new Entry(entry.addresses, 0)
+                : new Entry(addresses, entry.resolvedAt);
+        if (cache.replace(host, entry, newEntry)) {
+            Log.i(TAG, "Connecting to " + address + " failed, evicted from entry for " + host);
+            scheduleWrite();
+        }
+    }
+
+    private boolean isStale(Entry entry) {
+        return System.currentTimeMillis() - entry.resolvedAt >= ttlMillis;
+    }
+
+    private void refreshInBackground(String host) {
+        if (inFlight.containsKey(host)) return;
+        refreshExecutor.execute(() -> {
+            try {
+                resolveNow(host);
+            } catch (UnknownHostException e) {
+                Log.w(TAG, "Could not refresh " + host + ", keeping old entry: " + e);
+            }
+        });
+    }
+
+    /**
+     * Asks the resolver for the addresses of the given host and caches them.
+     * If another thread is already resolving the same host, this waits for its result instead.
+     */
+    private List<InetAddress> resolveNow(String host) throws UnknownHostException {
+        FutureTask<List<InetAddress>> task = new FutureTask<>(() -> {
+            List<InetAddress> addresses = resolver.lookup(host);
+            insert(host, addresses);
+            return addresses;
+        });
+        FutureTask<List<InetAddress>> running = inFlight.putIfAbsent(host, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(host, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnknownHostException) throw (UnknownHostException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw getUnknownHostException(host, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw getUnknownHostException(host, e);
+        }
+    }
+
+    private static UnknownHostException getUnknownHostException(String host, @Nullable Throwable cause) {
+        UnknownHostException e = new UnknownHostException(host);
+        e.initCause(cause);
+        return e;
+    }
+
+    private void scheduleWrite() {
+        if (!writeScheduled) {
+            writeScheduled = true;
+            writeExecutor.schedule(delayedWrite, DELAY_TIME, DELAY_UNIT);
         }
     }
 }
@@ -2,6 +2,7 @@ package org.fdroid.fdroid.net;
 
 import androidx.annotation.NonNull;
 
+import org.fdroid.download.ConnectFailureAwareDns;
 import org.fdroid.fdroid.Preferences;
 
 import java.net.InetAddress;
@@ -10,7 +11,7 @@ import java.util.List;
 
 import okhttp3.Dns;
 
-public class DnsWithCache implements Dns {
+public class DnsWithCache implements ConnectFailureAwareDns {
 
     @NonNull
     @Override
@@ -19,12 +20,13 @@ public class DnsWithCache implements Dns {
         if (!prefs.isDnsCacheEnabled()) {
             return Dns.SYSTEM.lookup(url);
         }
-        DnsCache cache = DnsCache.get();
-        List<InetAddress> list = cache.lookup(url);
-        if (list == null) {
-            list = Dns.SYSTEM.lookup(url);
-            cache.insert(url, list);
+        return DnsCache.get().resolve(url);
+    }
+
+    @Override
+    public void onConnectFailed(@NonNull String hostname, @NonNull InetAddress address) {
+        if (Preferences.get().isDnsCacheEnabled()) {
+            DnsCache.get().onConnectFailed(hostname, address);
         }
-        return list;
     }
 }
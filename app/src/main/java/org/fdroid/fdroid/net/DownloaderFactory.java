@@ -19,6 +19,7 @@ import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.index.IndexFormatVersion;
+import org.fdroid.index.v2.IndexV2UpdaterKt;
 
 import java.io.File;
 import java.io.IOException;
@@ -67,33 +68,51 @@ public class DownloaderFactory extends org.fdroid.download.DownloaderFactory {
             String repoAddress = Utils.getRepoAddress(repo);
             String path = uri.toString().replace(repoAddress, "");
             Utils.debugLog(TAG, "Using suffix " + path + " with mirrors " + mirrors);
-            Proxy proxy = NetCipher.getProxy();
-            DownloadRequest request = new DownloadRequest(indexFile, mirrors, proxy,
-                    repo.getUsername(), repo.getPassword(), tryFirst);
             Preferences prefs = Preferences.get();
             boolean oldIndex = prefs.isForceOldIndexEnabled();
             boolean v1OrUnknown = repo.getFormatVersion() == null ||
                     repo.getFormatVersion() == IndexFormatVersion.ONE;
             if (oldIndex || v1OrUnknown) {
+                DownloadRequest request = new DownloadRequest(indexFile, mirrors, NetCipher.getProxy(),
+                        repo.getUsername(), repo.getPassword(), tryFirst);
                 //noinspection deprecation
                 downloader = new HttpDownloader(HTTP_MANAGER, request, destFile);
             } else {
-                DownloadRequest r;
-                if (request.getIndexFile().getIpfsCidV1() == null || !prefs.isIpfsEnabled()) {
-                    r = request;
-                } else {
-                    // add IPFS gateways to mirrors, because have have a CIDv1 and IPFS is enabled in preferences
-                    List<Mirror> m = new ArrayList<>(mirrors);
-                    m.addAll(loadIpfsGateways(prefs));
-                    r = new DownloadRequest(request.getIndexFile(), m, proxy, repo.getUsername(),
-                            repo.getPassword(), tryFirst);
-                }
+                DownloadRequest r = createDownloadRequestV2(repo, mirrors, indexFile, tryFirst);
                 downloader = new HttpDownloaderV2(HTTP_MANAGER, r, destFile);
             }
         }
         return downloader;
     }
 
+    @Nullable
+    @Override
+    protected DownloadRequest createStreamRequest(@NonNull Repository repo, @NonNull List<Mirror> mirrors,
+                                                  @NonNull Uri uri, @NonNull IndexFile indexFile,
+                                                  @Nullable Mirror tryFirst) {
+        String scheme = uri.getScheme();
+        // only http(s) downloads can be streamed
+        if (scheme == null || !scheme.startsWith("http")) return null;
+        return createDownloadRequestV2(repo, mirrors, indexFile, tryFirst);
+    }
+
+    private static DownloadRequest createDownloadRequestV2(Repository repo, List<Mirror> mirrors,
+                                                           IndexFile indexFile, @Nullable Mirror tryFirst) {
+        Proxy proxy = NetCipher.getProxy();
+        Preferences prefs = Preferences.get();
+        List<Mirror> m;
+        if (indexFile.getIpfsCidV1() == null || !prefs.isIpfsEnabled()) {
+            m = mirrors;
+        } else {
+            // add IPFS gateways to mirrors, because have have a CIDv1 and IPFS is enabled in preferences
+            m = new ArrayList<>(mirrors);
+            m.addAll(loadIpfsGateways(prefs));
+        }
+        // the entry is small and needed before anything else, so we rather ask two mirrors than wait
+        boolean hedged = ("/" + IndexV2UpdaterKt.SIGNED_FILE_NAME).equals(indexFile.getName());
+        return new DownloadRequest(indexFile, m, proxy, repo.getUsername(), repo.getPassword(), tryFirst, hedged);
+    }
+
     private static List<Mirror> loadIpfsGateways(Preferences prefs) {
         List<Mirror> mirrorList = new ArrayList<>();
         for (String gatewayUrl : prefs.getActiveIpfsGateways()) {
@@ -4,9 +4,11 @@ import android.content.Context;
 import android.telephony.TelephonyManager;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.os.LocaleListCompat;
 
 import org.fdroid.download.MirrorParameterManager;
+import org.fdroid.download.MirrorStats;
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.data.App;
@@ -28,6 +30,9 @@ public class FDroidMirrorParameterManager implements MirrorParameterManager {
     private final AtomicBoolean writeErrorScheduled = new AtomicBoolean(false);
     private final Runnable delayedErrorWrite;
     private final ScheduledExecutorService writeErrorExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final ConcurrentHashMap<String, MirrorStats> statsCache = new ConcurrentHashMap<>();
+    private final AtomicBoolean writeStatsScheduled = new AtomicBoolean(false);
+    private final Runnable delayedStatsWrite;
 
     public FDroidMirrorParameterManager() {
         Preferences prefs = Preferences.get();
@@ -39,6 +44,19 @@ public class FDroidMirrorParameterManager implements MirrorParameterManager {
                 writePrefs.setMirrorErrorData(snapshot);
             }
         };
+        for (Map.Entry<String, String> entry : prefs.getMirrorStatsData().entrySet()) {
+            MirrorStats stats = MirrorStats.deserialize(entry.getValue());
+            if (stats != null) statsCache.put(entry.getKey(), stats);
+        }
+        delayedStatsWrite = () -> {
+            if (writeStatsScheduled.compareAndSet(true, false)) {
+                Map<String, String> snapshot = new HashMap<>();
+                for (Map.Entry<String, MirrorStats> entry : statsCache.entrySet()) {
+                    snapshot.put(entry.getKey(), entry.getValue().serialize());
+                }
+                Preferences.get().setMirrorStatsData(snapshot);
+            }
+        };
     }
 
     public void updateErrorCacheAndPrefs(@NonNull String url, @NonNull Integer errorCount) {
@@ -66,6 +84,21 @@ public class FDroidMirrorParameterManager implements MirrorParameterManager {
         }
     }
 
+    @Override
+    public void setMirrorStats(@NonNull String mirrorUrl, @NonNull MirrorStats stats) {
+        statsCache.put(mirrorUrl, stats);
+        // stats change with every request, so only write them out every now and then
+        if (writeStatsScheduled.compareAndSet(false, true)) {
+            writeErrorExecutor.schedule(delayedStatsWrite, DELAY_TIME, DELAY_UNIT);
+        }
+    }
+
+    @Nullable
+    @Override
+    public MirrorStats getMirrorStats(@NonNull String mirrorUrl) {
+        return statsCache.get(mirrorUrl);
+    }
+
     @Override
     public boolean preferForeignMirrors() {
         Preferences prefs = Preferences.get();
@@ -0,0 +1,47 @@
+package org.fdroid.fdroid.receiver;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+
+import org.fdroid.fdroid.AppUpdateStatusManager;
+
+import java.util.Collections;
+
+/**
+ * Re-checks a single app for updates when it was installed, updated or removed,
+ * including by other app stores or via adb.
+ */
+public class PackageChangeReceiver extends BroadcastReceiver {
+
+    public static IntentFilter getIntentFilter() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        return filter;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (intent == null) {
+            return;
+        }
+        String action = intent.getAction();
+        boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+        if (replacing && !Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
+            // we'll get ACTION_PACKAGE_REPLACED for this as well
+            return;
+        }
+        Uri data = intent.getData();
+        String packageName = data == null ? null : data.getSchemeSpecificPart();
+        if (packageName == null) {
+            return;
+        }
+        AppUpdateStatusManager.getInstance(context)
+                .checkForUpdates(Collections.singleton(packageName), false);
+    }
+}
@@ -23,11 +23,15 @@ import org.fdroid.fdroid.installer.Installer
 import org.fdroid.fdroid.installer.InstallerFactory
 import org.fdroid.index.RepoManager
 import org.fdroid.index.v2.FileV1
+import org.junit.Assert.assertEquals
 import org.junit.Assert.assertFalse
 import org.junit.Assert.assertTrue
 import org.junit.Test
 import java.io.File
 import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.concurrent.atomic.AtomicInteger
 
 class AppUpdateManagerTest {
 
@@ -248,6 +252,97 @@ class AppUpdateManagerTest {
         }
     }
 
+    @Test
+    fun testDownloadsRunInParallel() {
+        val updates = listOf(updatableApp1, updatableApp2)
+        val downloader1: Downloader = mockk()
+        val downloader2: Downloader = mockk()
+        // each download only completes when the other one started as well
+        val downloadsStarted = CountDownLatch(2)
+
+        every { preferences.backendReleaseChannels } returns null
+        every {
+            updateChecker.getUpdatableApps(
+                releaseChannels = null,
+                onlyFromPreferredRepo = true,
+                includeKnownVulnerabilities = false,
+            )
+        } returns updates
+        every { context.packageName } returns null
+        every { repoManager.getRepository(app1.repoId) } returns repo
+        every { repoManager.getRepository(app2.repoId) } returns repo
+        every { statusManager.addUpdatableApps(updates, false) } just Runs
+        every { statusManager.addApk(any(), any(), any(), any()) } just Runs
+        every {
+            packageManager.getPackageInfo(any<String>(), any<Int>())
+        } returns getPackageInfo(0)
+        every { context.cacheDir } returns File("/tmp/fdroid-app-update-test")
+        every { downloaderFactory.create(repo, any(), file1, any()) } returns downloader1
+        every { downloaderFactory.create(repo, any(), file2, any()) } returns downloader2
+        listOf(downloader1, downloader2).forEach { downloader ->
+            every { downloader.setListener(any()) } just Runs
+            every { downloader.download() } answers {
+                downloadsStarted.countDown()
+                if (!downloadsStarted.await(5, SECONDS)) throw IOException("not in parallel")
+            }
+        }
+        every { installer.installPackage(any(), any()) } just Runs
+
+        assertTrue(appUpdateManager.updateApps())
+
+        verify(exactly = 2) {
+            installer.installPackage(any(), any())
+        }
+    }
+
+    @Test
+    fun testDownloadsPerHostAreLimited() {
+        val appUpdateManager = AppUpdateManager(
+            context = context,
+            repoManager = repoManager,
+            updateChecker = updateChecker,
+            downloaderFactory = downloaderFactory,
+            statusManager = statusManager,
+            maxParallelDownloads = 4,
+            maxDownloadsPerHost = 1,
+        )
+        val updates = listOf(updatableApp1, updatableApp2)
+        val runningDownloads = AtomicInteger(0)
+
+        every { preferences.backendReleaseChannels } returns null
+        every {
+            updateChecker.getUpdatableApps(
+                releaseChannels = null,
+                onlyFromPreferredRepo = true,
+                includeKnownVulnerabilities = false,
+            )
+        } returns updates
+        every { context.packageName } returns null
+        every { repoManager.getRepository(app1.repoId) } returns repo
+        every { repoManager.getRepository(app2.repoId) } returns repo
+        every { statusManager.addUpdatableApps(updates, false) } just Runs
+        every { statusManager.addApk(any(), any(), any(), any()) } just Runs
+        every {
+            packageManager.getPackageInfo(any<String>(), any<Int>())
+        } returns getPackageInfo(0)
+        every { context.cacheDir } returns File("/tmp/fdroid-app-update-test")
+        every { downloaderFactory.create(repo, any(), any(), any()) } returns downloader
+        every { downloader.setListener(any()) } just Runs
+        every { downloader.download() } answers {
+            // both apps come from the same repo, so they must not download at the same time
+            assertEquals(1, runningDownloads.incrementAndGet())
+            Thread.sleep(50)
+            runningDownloads.decrementAndGet()
+        }
+        every { installer.installPackage(any(), any()) } just Runs
+
+        assertTrue(appUpdateManager.updateApps())
+
+        verify(exactly = 2) {
+            installer.installPackage(any(), any())
+        }
+    }
+
     @Test
     fun testFailedDownloadSkipsUpdate() {
         val updates = listOf(updatableApp1)
@@ -27,6 +27,8 @@ import org.junit.Assert.assertThrows
 import org.junit.Assert.assertTrue
 import org.junit.Test
 import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.SECONDS
 
 class RepoUpdateManagerTest {
 
@@ -183,6 +185,7 @@ class RepoUpdateManagerTest {
         }
 
         every { preferences.lastUpdateCheck } returns 1337
+        every { preferences.isDnsCacheEnabled } returns false
         every { repositoryDao.getRepositories() } returns listOf(repo1, repo2)
         every { preferences.isUpdateNotificationEnabled } returns true
         every { notificationManager.showUpdateRepoNotification(any(), false, null) } just Runs
@@ -209,4 +212,36 @@ class RepoUpdateManagerTest {
         // repo2 is disabled and should not get updated
         verify(exactly = 0) { repoUpdater.update(repo2) }
     }
+
+    @Test
+    fun testReposGetUpdatedInParallel() {
+        val repo1: Repository = mockk(relaxed = true) {
+            every { enabled } returns true
+        }
+        val repo2: Repository = mockk(relaxed = true) {
+            every { enabled } returns true
+        }
+
+        every { preferences.lastUpdateCheck } returns 1337
+        every { preferences.isDnsCacheEnabled } returns false
+        every { repositoryDao.getRepositories() } returns listOf(repo1, repo2)
+        every { preferences.isUpdateNotificationEnabled } returns false
+        // each update only finishes once the other one has started as well
+        val bothStarted = CountDownLatch(2)
+        every { repoUpdater.update(any()) } answers {
+            bothStarted.countDown()
+            assertTrue(bothStarted.await(5, SECONDS))
+            IndexUpdateResult.Unchanged
+        }
+        every { notificationManager.cancelUpdateRepoNotification() } just Runs
+        every { repositoryDao.walCheckpoint() } just Runs
+        every { preferences.lastUpdateCheck = any() } just Runs
+
+        repoUpdateManager.updateRepos()
+
+        verify(exactly = 1) {
+            repoUpdater.update(repo1)
+            repoUpdater.update(repo2)
+        }
+    }
 }
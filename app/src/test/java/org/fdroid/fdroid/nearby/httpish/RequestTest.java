@@ -0,0 +1,107 @@
+package org.fdroid.fdroid.nearby.httpish;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.fdroid.fdroid.nearby.BluetoothConnection;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+
+public class RequestTest {
+
+    private final ByteArrayOutputStream clientOutput = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream serverOutput = new ByteArrayOutputStream();
+
+    @Test
+    public void testPipelinedRequestsOnOneConnection() throws IOException {
+        BluetoothConnection client = connection(new ByteArrayInputStream(new byte[0]), clientOutput);
+        Request.createGET("/fdroid/repo/index-v2.json", client).write();
+        Request.createGET("/fdroid/repo/app.apk", client).setRange(3).write();
+
+        // server answers both requests, then sees the client closing the connection
+        BluetoothConnection server = connection(input(clientOutput), serverOutput);
+        Request first = Request.listenForRequest(server);
+        assertEquals(Request.Methods.GET, first.getMethod());
+        assertEquals("/fdroid/repo/index-v2.json", first.getPath());
+        new Response(HttpURLConnection.HTTP_OK, "application/json", "{}").write(server);
+
+        Request second = Request.listenForRequest(server);
+        assertEquals("/fdroid/repo/app.apk", second.getPath());
+        assertEquals("bytes=3-", second.getHeaderValue("Range"));
+        byte[] apk = "apk content".getBytes(StandardCharsets.UTF_8);
+        new Response.Builder(new ByteArrayInputStream(apk, 3, apk.length - 3))
+                .setStatusCode(HttpURLConnection.HTTP_PARTIAL)
+                .setFileSize(apk.length - 3)
+                .setETag("abc")
+                .build()
+                .write(server);
+        assertNull(Request.listenForRequest(server));
+
+        // client reads the responses in the order of its requests
+        client = connection(input(serverOutput), clientOutput);
+        Response firstResponse = Response.read(client);
+        assertEquals(HttpURLConnection.HTTP_OK, firstResponse.getStatusCode());
+        assertEquals(2, firstResponse.getFileSize());
+        assertArrayEquals("{}".getBytes(StandardCharsets.UTF_8), readAll(firstResponse.toContentStream()));
+        assertTrue(firstResponse.isContentConsumed());
+
+        Response secondResponse = Response.read(client);
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, secondResponse.getStatusCode());
+        assertEquals("abc", secondResponse.toFileDetails().getCacheTag());
+        assertEquals(apk.length - 3, secondResponse.toFileDetails().getFileSize());
+        assertArrayEquals(" content".getBytes(StandardCharsets.UTF_8), readAll(secondResponse.toContentStream()));
+        assertTrue(secondResponse.isContentConsumed());
+    }
+
+    @Test
+    public void testHeadResponseHasNoContent() throws IOException {
+        BluetoothConnection server = connection(new ByteArrayInputStream(new byte[0]), serverOutput);
+        new Response.Builder(new ByteArrayInputStream(new byte[42]))
+                .setFileSize(42)
+                .build()
+                .withoutContent()
+                .send(server);
+        new Response(HttpURLConnection.HTTP_NOT_FOUND, "text/plain", "not found").send(server);
+
+        BluetoothConnection client = connection(input(serverOutput), clientOutput);
+        Response head = Response.read(client);
+        assertEquals(42, head.getFileSize());
+        assertTrue(head.isContentConsumed());
+
+        Response notFound = Response.read(client);
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, notFound.getStatusCode());
+        assertFalse(notFound.isContentConsumed());
+    }
+
+    private static BluetoothConnection connection(InputStream input, ByteArrayOutputStream output) {
+        BluetoothConnection connection = mock(BluetoothConnection.class);
+        when(connection.getInputStream()).thenReturn(input);
+        when(connection.getOutputStream()).thenReturn(output);
+        return connection;
+    }
+
+    private static InputStream input(ByteArrayOutputStream output) {
+        return new ByteArrayInputStream(output.toByteArray());
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4];
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+            output.write(buffer, 0, count);
+        }
+        return output.toByteArray();
+    }
+}
@@ -398,6 +398,47 @@ public class LocalHTTPDTest {
         }
     }
 
+    @Test
+    public void testRangeHeaderWithSuffixLength() throws IOException {
+        HttpURLConnection connection = null;
+        try {
+            connection = getNoKeepAliveConnection(baseUrl + "/testdir/test.html");
+            connection.addRequestProperty("range", "bytes=-7");
+            String responseString = IOUtils.toString(connection.getInputStream(), "UTF-8");
+            Assert.assertEquals("Only the requested number of bytes from the end of the file should be served",
+                    "</html>", responseString);
+            Assert.assertEquals("bytes 77-83/84", connection.getHeaderField("Content-Range"));
+            Assert.assertEquals(206, connection.getResponseCode());
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void testRangeHeaderWithMultipleRanges() throws IOException {
+        HttpURLConnection connection = null;
+        try {
+            connection = getNoKeepAliveConnection(baseUrl + "/testdir/test.html");
+            connection.addRequestProperty("range", "bytes=0-5,-7");
+            String responseString = IOUtils.toString(connection.getInputStream(), "UTF-8");
+            Assert.assertEquals(206, connection.getResponseCode());
+            String contentType = connection.getHeaderField("Content-Type");
+            Assert.assertTrue(contentType, contentType.startsWith("multipart/byteranges; boundary="));
+            String boundary = contentType.substring(contentType.indexOf('=') + 1);
+            Assert.assertEquals(String.valueOf(responseString.length()), connection.getHeaderField("Content-Length"));
+            Assert.assertThat(responseString, containsString("Content-Range: bytes 0-5/84\r\n\r\n<html>\r\n"));
+            Assert.assertThat(responseString, containsString("Content-Range: bytes 77-83/84\r\n\r\n</html>\r\n"));
+            Assert.assertThat(responseString, not(containsString("<head>")));
+            Assert.assertTrue(responseString.endsWith("--" + boundary + "--\r\n"));
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
     @Test
     public void testIfNoneMatchHeader() throws IOException {
         HttpURLConnection connection = null;
@@ -0,0 +1,96 @@
+package org.fdroid.fdroid.nearby;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NearbyServerExecutorTest {
+
+    private final AtomicInteger closed = new AtomicInteger();
+    private final Closeable connection = closed::incrementAndGet;
+
+    @Test
+    public void testConnectionLimits() throws InterruptedException {
+        NearbyServerExecutor executor = new NearbyServerExecutor(2, 0, 1);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch finish = new CountDownLatch(1);
+        Runnable task = () -> {
+            started.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        assertTrue(executor.execute("peer1", task, connection));
+        assertTrue(executor.execute("peer2", task, connection));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(2, executor.getActiveCount());
+
+        // no thread free and no room in the queue
+        assertFalse(executor.execute("peer3", task, connection));
+        assertEquals(1, closed.get());
+        assertEquals(1, executor.getRejectedCount());
+
+        finish.countDown();
+        CountDownLatch done = new CountDownLatch(1);
+        assertTrue(executor.execute("peer4", done::countDown, connection));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, closed.get());
+    }
+
+    @Test
+    public void testConnectionsWaitForTheirPeer() throws InterruptedException {
+        NearbyServerExecutor executor = new NearbyServerExecutor(8, 16, 4);
+        CountDownLatch started = new CountDownLatch(4);
+        CountDownLatch finish = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(6);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Runnable task = () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            started.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            done.countDown();
+        };
+
+        // like an HTTP client opening more connections than we serve per peer
+        for (int i = 0; i < 6; i++) {
+            assertTrue(executor.execute("peer1", task, connection));
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(4, executor.getActiveCount());
+        assertEquals(2, executor.getQueuedCount());
+
+        // other peers don't have to wait for peer1
+        CountDownLatch other = new CountDownLatch(1);
+        assertTrue(executor.execute("peer2", other::countDown, connection));
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+
+        // only as many as can run get queued per peer
+        for (int i = 0; i < 2; i++) {
+            assertTrue(executor.execute("peer1", () -> {
+            }, connection));
+        }
+        assertFalse(executor.execute("peer1", task, connection));
+        assertEquals(1, closed.get());
+
+        finish.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(4, maxRunning.get());
+        assertEquals(1, closed.get());
+    }
+}
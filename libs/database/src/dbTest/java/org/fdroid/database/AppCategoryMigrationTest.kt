@@ -0,0 +1,103 @@
+package org.fdroid.database
+
+import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
+import androidx.room.Room
+import androidx.room.testing.MigrationTestHelper
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.fdroid.database.Converters.listStringToString
+import org.fdroid.database.Converters.localizedTextV2toString
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.random.Random
+import kotlin.test.assertEquals
+
+private const val TEST_DB = "migration-test"
+
+@RunWith(AndroidJUnit4::class)
+internal class AppCategoryMigrationTest {
+
+    @get:Rule
+    val helper: MigrationTestHelper = MigrationTestHelper(
+        instrumentation = InstrumentationRegistry.getInstrumentation(),
+        databaseClass = FDroidDatabaseInt::class.java,
+        specs = emptyList(),
+        openFactory = FrameworkSQLiteOpenHelperFactory(),
+    )
+
+    @Test
+    fun migrateCategories() {
+        helper.createDatabase(TEST_DB, 9).use { db ->
+            // Database has schema version 9. Insert some data using SQL queries.
+            // We can't use DAO classes because they expect the latest schema.
+            val repoId = db.insert(
+                CoreRepository.TABLE,
+                SQLiteDatabase.CONFLICT_FAIL,
+                ContentValues().apply {
+                    put("name", localizedTextV2toString(mapOf("en-US" to "foo")))
+                    put("description", localizedTextV2toString(mapOf("en-US" to "bar")))
+                    put("address", "https://example.org/repo")
+                    put("certificate", "0123")
+                    put("timestamp", -1)
+                },
+            )
+            db.insert(
+                RepositoryPreferences.TABLE,
+                SQLiteDatabase.CONFLICT_FAIL,
+                ContentValues().apply {
+                    put("repoId", repoId)
+                    put("enabled", true)
+                    put("weight", Long.MAX_VALUE)
+                },
+            )
+            insertApp(db, repoId, "org.example.a", listOf("A", "B"))
+            insertApp(db, repoId, "org.example.b", listOf("B"))
+            insertApp(db, repoId, "org.example.c", null)
+        }
+
+        // Re-open the database with version 10, auto-migrations are applied automatically
+        helper.runMigrationsAndValidate(TEST_DB, 10, true).close()
+
+        // now get the Room DB, so we can use our DAOs for verifying the migration
+        Room.databaseBuilder(
+            ApplicationProvider.getApplicationContext(),
+            FDroidDatabaseInt::class.java,
+            TEST_DB
+        )
+            .addMigrations(
+                MIGRATION_2_3, MIGRATION_5_6, MIGRATION_8_9, MIGRATION_10_11, MIGRATION_11_12
+            )
+            .allowMainThreadQueries()
+            .build().use { db ->
+                val appDao = db.getAppDao()
+                assertEquals(3, appDao.countAppCategories())
+                assertEquals(1, appDao.getNumberOfAppsInCategory("A"))
+                assertEquals(2, appDao.getNumberOfAppsInCategory("B"))
+                assertEquals(0, appDao.getNumberOfAppsInCategory("C"))
+            }
+    }
+
+    private fun insertApp(
+        db: SupportSQLiteDatabase,
+        repoId: Long,
+        packageName: String,
+        categories: List<String>?,
+    ) {
+        val metadata = ContentValues().apply {
+            put("packageName", packageName)
+            put("repoId", repoId)
+            put("localizedName", packageName)
+            put("added", Random.nextLong())
+            put("lastUpdated", Random.nextLong())
+            put("categories", listStringToString(categories))
+            put("isCompatible", true)
+        }
+        db.insert(AppMetadata.TABLE, SQLiteDatabase.CONFLICT_FAIL, metadata)
+    }
+
+}
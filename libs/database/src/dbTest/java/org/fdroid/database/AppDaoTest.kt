@@ -2,8 +2,11 @@ package org.fdroid.database
 
 import androidx.core.os.LocaleListCompat
 import androidx.test.ext.junit.runners.AndroidJUnit4
+import kotlinx.coroutines.runBlocking
+import kotlinx.serialization.json.jsonObject
 import org.fdroid.database.TestUtils.getOrFail
 import org.fdroid.database.TestUtils.toMetadataV2
+import org.fdroid.index.IndexParser.json
 import org.fdroid.test.TestRepoUtils.getRandomRepo
 import org.fdroid.test.TestUtils.sort
 import org.fdroid.test.TestVersionUtils.getRandomPackageVersionV2
@@ -205,6 +208,36 @@ internal class AppDaoTest : AppTest() {
         assertEquals(0, appDao.getNumberOfAppsInCategory("C"))
     }
 
+    @Test
+    fun testAppCategoriesKeptInSync() {
+        val repoId = repoDao.insertOrReplace(getRandomRepo())
+        appDao.insert(repoId, packageName1, app1, locales)
+        assertEquals(2, appDao.countAppCategories())
+
+        // diff moves app from A and B to B and C
+        val diff = json.parseToJsonElement("""{"categories": ["B", "C"]}""").jsonObject
+        appDao.updateApp(repoId, packageName1, diff, locales)
+        assertEquals(0, appDao.getNumberOfAppsInCategory("A"))
+        assertEquals(1, appDao.getNumberOfAppsInCategory("B"))
+        assertEquals(1, appDao.getNumberOfAppsInCategory("C"))
+
+        // diff not touching categories keeps them
+        val nameDiff = json.parseToJsonElement("""{"name": {"en-US": "foo"}}""").jsonObject
+        appDao.updateApp(repoId, packageName1, nameDiff, locales)
+        assertEquals(1, appDao.getNumberOfAppsInCategory("C"))
+
+        // removing categories removes app from them
+        val nullDiff = json.parseToJsonElement("""{"categories": null}""").jsonObject
+        appDao.updateApp(repoId, packageName1, nullDiff, locales)
+        assertEquals(0, appDao.countAppCategories())
+
+        // re-inserting and then deleting the app removes its categories as well
+        appDao.insert(repoId, packageName1, app1, locales)
+        assertEquals(2, appDao.countAppCategories())
+        appDao.updateApp(repoId, packageName1, null, locales)
+        assertEquals(0, appDao.countAppCategories())
+    }
+
     @Test
     fun testGetNumberOfAppsInRepository() {
         val repoId = repoDao.insertOrReplace(getRandomRepo())
@@ -220,4 +253,46 @@ internal class AppDaoTest : AppTest() {
         assertEquals(3, appDao.getNumberOfAppsInRepository(repoId))
     }
 
+    @Test
+    fun testSearchRanking() = runBlocking {
+        val repoId = repoDao.insertOrReplace(getRandomRepo())
+        val now = System.currentTimeMillis()
+        val query = "zyxwvut"
+        fun metadata(
+            name: String = "name",
+            summary: String = "summary",
+            description: String = "description",
+            lastUpdated: Long = now,
+        ) = app1.copy(
+            name = mapOf("en-US" to name),
+            summary = mapOf("en-US" to summary),
+            description = mapOf("en-US" to description),
+            authorName = null,
+            lastUpdated = lastUpdated,
+        )
+        appDao.insert(repoId, packageName1, metadata(summary = query), locales)
+        appDao.insert(repoId, packageName2, metadata(name = query), locales)
+        appDao.insert(repoId, packageName3, metadata(description = query), locales)
+        // matches in the name, but wasn't updated for ten years
+        val oldLastUpdated = now - 10L * 365 * 24 * 60 * 60 * 1000
+        val oldApp = metadata(name = query, lastUpdated = oldLastUpdated)
+        appDao.insert(repoId, "org.example", oldApp, locales)
+        appDao.insert(repoId, "org.example.nomatch", metadata(), locales)
+
+        // best matches come first
+        appDao.getAppSearchItems(query).let { items ->
+            assertEquals(
+                listOf(packageName2, packageName1, packageName3, "org.example"),
+                items.map { it.packageName },
+            )
+            assertEquals(listOf(100.0, 50.0, 25.0, 0.0), items.map { it.score })
+            assertEquals(mapOf("en-US" to query), items[2].description)
+        }
+        // paging through results
+        appDao.getAppSearchItems(query, limit = 2, offset = 1).let { items ->
+            assertEquals(listOf(packageName1, packageName3), items.map { it.packageName })
+        }
+        assertEquals(emptyList(), appDao.getAppSearchItems(query, limit = 2, offset = 4))
+    }
+
 }
@@ -80,7 +80,9 @@ internal class CountryCodeMigrationTest {
             FDroidDatabaseInt::class.java,
             TEST_DB
         )
-            .addMigrations(MIGRATION_2_3, MIGRATION_5_6, MIGRATION_8_9)
+            .addMigrations(
+                MIGRATION_2_3, MIGRATION_5_6, MIGRATION_8_9, MIGRATION_10_11, MIGRATION_11_12
+            )
             .allowMainThreadQueries()
             .build().use { db ->
                 // check repo got timestamp and etag reset
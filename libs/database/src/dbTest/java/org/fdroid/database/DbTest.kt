@@ -49,6 +49,7 @@ internal abstract class DbTest {
     open fun createDb() {
         db = Room.inMemoryDatabaseBuilder(context, FDroidDatabaseInt::class.java)
             .allowMainThreadQueries()
+            .addCallback(MaterializedTables.Callback())
             .build()
         repoDao = db.getRepositoryDao()
         appDao = db.getAppDao()
@@ -223,6 +223,26 @@ internal class DbUpdateCheckerTest : AppTest() {
         assertEquals(TestDataMinV2.version.file.sha256, appVersions[0].update.version.versionId)
     }
 
+    @Test
+    fun testGetUpdatableAppsForPackageNames() {
+        streamIndexV2IntoDb("index-min-v2.json")
+        every {
+            packageManager.getPackageInfo(packageInfo.packageName, any<Int>())
+        } returns packageInfo
+        every {
+            packageManager.getPackageInfo("org.example.not.installed", any<Int>())
+        } throws NameNotFoundException()
+
+        val packageNames = setOf(packageInfo.packageName, "org.example.not.installed")
+        val appVersions = updateChecker.getUpdatableApps(packageNames)
+        assertEquals(1, appVersions.size)
+        assertEquals(TestDataMinV2.PACKAGE_NAME, appVersions[0].packageName)
+        assertEquals(TestDataMinV2.version.file.sha256, appVersions[0].update.version.versionId)
+
+        // an app that wasn't asked for doesn't get returned
+        assertEquals(0, updateChecker.getUpdatableApps(setOf("org.example.not.installed")).size)
+    }
+
     @Test
     fun testGetUpdatableAppsOnlyFromPreferredRepo() {
         // insert the same app into three repos
@@ -185,6 +185,7 @@ internal class FtsAddColumnsMigrationTest {
         // now get the Room DB, so we can use our DAOs for verifying the migration
         Room.databaseBuilder(context, FDroidDatabaseInt::class.java, TEST_DB)
             .allowMainThreadQueries()
+            .addMigrations(MIGRATION_10_11, MIGRATION_11_12) // was added later
             .build().use { db ->
                 // assert that apps are still there
                 val metadata = db.getAppDao().getAppMetadata()
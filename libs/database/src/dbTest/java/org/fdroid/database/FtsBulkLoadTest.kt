@@ -0,0 +1,105 @@
+package org.fdroid.database
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import kotlinx.coroutines.runBlocking
+import org.fdroid.index.v2.IndexV2
+import org.fdroid.test.TestDataMaxV2
+import org.fdroid.test.VerifierConstants.CERTIFICATE
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+/**
+ * Tests that [FDroidDatabaseInt.runInBulkLoadMode] leaves the search index
+ * in the same state as keeping it in sync row by row.
+ */
+@RunWith(AndroidJUnit4::class)
+internal class FtsBulkLoadTest : DbTest() {
+
+    private val index = TestDataMaxV2.index.let { index ->
+        // copy the packages a few times, so there's a lot to bulk load
+        val packages = (0 until 300).flatMap { i ->
+            index.packages.map { (packageName, packageV2) -> "$packageName$i" to packageV2 }
+        }.toMap()
+        index.copy(packages = packages)
+    }
+    private val queries = listOf("fdroid", "min*", "max*", "org*", "app*", "foo", "\"one two\"")
+
+    @Test
+    fun testBulkLoadGivesSameSearchResults() {
+        // bulk loading must not touch the search index of other repos
+        val otherRepoId = streamIndexV2IntoDb("index-mid-v2.json", address = "https://example.org")
+        val otherResults = search()
+
+        val repoId = repoDao.insertEmptyRepo("https://f-droid.org/repo", certificate = CERTIFICATE)
+        import(repoId, index, bulkLoad = false)
+        val expectedResults = search()
+        // replaces the existing data of the repo
+        import(repoId, index, bulkLoad = true)
+        assertEquals(expectedResults, search())
+        assertTrue(expectedResults.values.any { it.isNotEmpty() })
+
+        // removing the repo also removes its apps from the search index
+        repoDao.deleteRepository(repoId)
+        assertEquals(otherResults, search())
+        assertTrue(otherResults.values.flatten().all { it.first == otherRepoId })
+    }
+
+    @Test
+    fun testBulkLoadKeepsTriggers() {
+        val repoId = repoDao.insertEmptyRepo("https://f-droid.org/repo", certificate = CERTIFICATE)
+        import(repoId, index, bulkLoad = true)
+        // inserting outside of bulk load mode updates search index via triggers again
+        val otherRepoId = streamIndexV2IntoDb("index-max-v2.json", address = "https://example.org")
+        val results = search().values.flatten()
+        assertTrue(results.any { it.first == otherRepoId })
+    }
+
+    @Test
+    fun testBulkLoadRethrowsException() {
+        val repoId = repoDao.insertEmptyRepo("https://f-droid.org/repo", certificate = CERTIFICATE)
+        val e = assertFailsWith<IllegalArgumentException> {
+            db.runInTransaction {
+                db.runInBulkLoadMode(repoId) { throw IllegalArgumentException("foo") }
+            }
+        }
+        assertEquals("foo", e.message)
+        // the triggers are back
+        val otherRepoId = streamIndexV2IntoDb("index-max-v2.json", address = "https://example.org")
+        assertTrue(search().values.flatten().any { it.first == otherRepoId })
+    }
+
+    @Test
+    fun testBulkLoadNeedsTransaction() {
+        assertFailsWith<IllegalStateException> {
+            db.runInBulkLoadMode(1L) {}
+        }
+    }
+
+    private fun import(repoId: Long, index: IndexV2, bulkLoad: Boolean) {
+        db.runInTransaction {
+            val insert = {
+                val streamReceiver = DbV2StreamReceiver(db, repoId) { true }
+                streamReceiver.receive(index.repo, 42L)
+                index.packages.forEach { (packageName, packageV2) ->
+                    streamReceiver.receive(packageName, packageV2)
+                }
+                streamReceiver.onStreamEnded()
+            }
+            if (bulkLoad) db.runInBulkLoadMode(repoId, insert) else insert()
+        }
+    }
+
+    /**
+     * Returns a comparable representation of the search results for all [queries].
+     */
+    private fun search(): Map<String, List<Triple<Long, String, Double>>> = runBlocking {
+        queries.associateWith { query ->
+            appDao.getAppSearchItems(query).map { item ->
+                Triple(item.repoId, item.packageName, item.score)
+            }.sortedBy { it.second }
+        }
+    }
+}
@@ -176,7 +176,7 @@ internal class FtsCaseInsensitiveMigrationTest {
         // now get the Room DB, so we can use our DAOs for verifying the migration
         Room.databaseBuilder(context, FDroidDatabaseInt::class.java, TEST_DB)
             .allowMainThreadQueries()
-            .addMigrations(MIGRATION_8_9) // was added later
+            .addMigrations(MIGRATION_8_9, MIGRATION_10_11, MIGRATION_11_12) // were added later
             .build().use { db ->
                 // assert that apps are still there
                 val metadata = db.getAppDao().getAppMetadata()
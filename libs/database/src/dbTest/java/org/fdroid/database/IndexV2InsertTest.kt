@@ -4,11 +4,14 @@ import androidx.test.ext.junit.runners.AndroidJUnit4
 import kotlinx.serialization.SerializationException
 import org.apache.commons.io.input.CountingInputStream
 import org.fdroid.CompatibilityChecker
+import org.fdroid.index.IndexFormatVersion.TWO
 import org.fdroid.index.v2.IndexV2FullStreamProcessor
+import org.fdroid.index.v2.IndexV2ParallelStreamProcessor
 import org.fdroid.test.TestDataEmptyV2
 import org.fdroid.test.TestDataMaxV2
 import org.fdroid.test.TestDataMidV2
 import org.fdroid.test.TestDataMinV2
+import org.fdroid.test.VerifierConstants.CERTIFICATE
 import org.junit.Test
 import org.junit.runner.RunWith
 import kotlin.test.assertEquals
@@ -53,6 +56,56 @@ internal class IndexV2InsertTest : DbTest() {
         assertDbEquals(repoId, TestDataMaxV2.index)
     }
 
+    @Test
+    fun testBatchInsertMaxIntoDb() {
+        val index = TestDataMaxV2.index
+        val repoId = repoDao.insertEmptyRepo("https://f-droid.org/repo", certificate = CERTIFICATE)
+        db.runInTransaction {
+            repoDao.update(repoId, index.repo, 42L, TWO)
+            // batch size is smaller than number of packages, so we get full and partial batches
+            val batchInserter = PackageBatchInserter(db, batchSize = 2)
+            index.packages.forEach { (packageName, packageV2) ->
+                batchInserter.add(packageV2.toPackageRows(repoId, packageName, locales) { true })
+            }
+            batchInserter.flush()
+            db.afterUpdatingRepo(repoId)
+        }
+        assertEquals(1, repoDao.getRepositories().size)
+        assertDbEquals(repoId, index)
+    }
+
+    @Test
+    fun testParallelStreamMaxIntoDb() {
+        val repoId = repoDao.insertEmptyRepo("https://f-droid.org/repo", certificate = CERTIFICATE)
+        val streamReceiver = DbV2StreamReceiver(db, repoId) { true }
+        val indexProcessor = IndexV2ParallelStreamProcessor(streamReceiver, numWorkers = 2)
+        db.runInTransaction {
+            assets.open("index-max-v2.json").use { indexStream ->
+                indexProcessor.process(42, indexStream) {}
+            }
+        }
+        assertEquals(1, repoDao.getRepositories().size)
+        assertDbEquals(repoId, TestDataMaxV2.index)
+    }
+
+    @Test
+    fun testExceptionWhileParallelStreamingDoesNotSaveIntoDb() {
+        val compatibilityChecker = CompatibilityChecker { throw SerializationException() }
+        assertFailsWith<SerializationException> {
+            db.runInTransaction {
+                val repoId = db.getRepositoryDao().insertEmptyRepo("http://example.org")
+                val streamReceiver = DbV2StreamReceiver(db, repoId, compatibilityChecker)
+                val indexProcessor = IndexV2ParallelStreamProcessor(streamReceiver)
+                assets.open("index-max-v2.json").use { indexStream ->
+                    indexProcessor.process(42, indexStream) {}
+                }
+            }
+        }
+        assertTrue(repoDao.getRepositories().isEmpty())
+        assertTrue(appDao.countApps() == 0)
+        assertTrue(versionDao.countAppVersions() == 0)
+    }
+
     @Test
     fun testExceptionWhileStreamingDoesNotSaveIntoDb() {
         val cIn = CountingInputStream(assets.open("index-max-v2.json"))
@@ -0,0 +1,153 @@
+package org.fdroid.database
+
+import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
+import androidx.room.testing.MigrationTestHelper
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.fdroid.database.Converters.localizedTextV2toString
+import org.fdroid.database.Converters.mapOfLocalizedTextV2toString
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.random.Random
+import kotlin.test.assertEquals
+
+private const val TEST_DB = "migration-test"
+
+@RunWith(AndroidJUnit4::class)
+internal class MaterializedTablesMigrationTest {
+
+    @get:Rule
+    val helper: MigrationTestHelper = MigrationTestHelper(
+        instrumentation = InstrumentationRegistry.getInstrumentation(),
+        databaseClass = FDroidDatabaseInt::class.java,
+        specs = emptyList(),
+        openFactory = FrameworkSQLiteOpenHelperFactory(),
+    )
+
+    private val antiFeatures = mapOf("Ads" to mapOf("en-US" to "ads"))
+
+    @Test
+    fun migrateViewsToTables() {
+        var repoId1 = 0L
+        var repoId2 = 0L
+        helper.createDatabase(TEST_DB, 10).use { db ->
+            // Database has schema version 10. Insert some data using SQL queries.
+            // We can't use DAO classes because they expect the latest schema.
+            repoId1 = insertRepo(db, "https://example.org/repo", 100)
+            repoId2 = insertRepo(db, "https://example.com/repo", 200)
+            insertApp(db, repoId1, "org.example.a")
+            insertApp(db, repoId2, "org.example.a")
+            insertApp(db, repoId1, "org.example.b")
+            insertVersion(db, repoId1, "org.example.a", 1, null)
+            insertVersion(db, repoId1, "org.example.a", 2, antiFeatures)
+            insertVersion(db, repoId2, "org.example.a", 3, null)
+            // user prefers repo 1 for app b, but the repo doesn't have it
+            db.insert(
+                AppPrefs.TABLE,
+                SQLiteDatabase.CONFLICT_FAIL,
+                ContentValues().apply {
+                    put("packageName", "org.example.b")
+                    put("ignoreVersionCodeUpdate", 0)
+                    put("preferredRepoId", 42)
+                },
+            )
+        }
+
+        // Re-open the database with version 11 and validate it against the exported schema
+        helper.runMigrationsAndValidate(TEST_DB, 11, true, MIGRATION_10_11).use { db ->
+            // the tables have what the views returned
+            val highestVersions = db.query(
+                "SELECT repoId, packageName, antiFeatures FROM ${HighestVersion.TABLE} " +
+                    "ORDER BY repoId"
+            ).use { cursor ->
+                buildList {
+                    while (cursor.moveToNext()) {
+                        add(Triple(cursor.getLong(0), cursor.getString(1), cursor.getString(2)))
+                    }
+                }
+            }
+            assertEquals(
+                listOf(
+                    Triple(repoId1, "org.example.a", mapOfLocalizedTextV2toString(antiFeatures)),
+                    Triple(repoId2, "org.example.a", null),
+                ),
+                highestVersions,
+            )
+            val preferredRepos = db.query(
+                "SELECT packageName, preferredRepoId FROM ${PreferredRepo.TABLE} " +
+                    "ORDER BY packageName"
+            ).use { cursor ->
+                buildMap {
+                    while (cursor.moveToNext()) put(cursor.getString(0), cursor.getLong(1))
+                }
+            }
+            assertEquals(
+                mapOf("org.example.a" to repoId2, "org.example.b" to repoId1),
+                preferredRepos,
+            )
+        }
+    }
+
+    private fun insertRepo(db: SupportSQLiteDatabase, address: String, weight: Int): Long {
+        val repoId = db.insert(
+            CoreRepository.TABLE,
+            SQLiteDatabase.CONFLICT_FAIL,
+            ContentValues().apply {
+                put("name", localizedTextV2toString(mapOf("en-US" to "foo")))
+                put("description", localizedTextV2toString(mapOf("en-US" to "bar")))
+                put("address", address)
+                put("certificate", "0123")
+                put("timestamp", -1)
+            },
+        )
+        db.insert(
+            RepositoryPreferences.TABLE,
+            SQLiteDatabase.CONFLICT_FAIL,
+            ContentValues().apply {
+                put("repoId", repoId)
+                put("enabled", true)
+                put("weight", weight)
+            },
+        )
+        return repoId
+    }
+
+    private fun insertApp(db: SupportSQLiteDatabase, repoId: Long, packageName: String) {
+        val metadata = ContentValues().apply {
+            put("packageName", packageName)
+            put("repoId", repoId)
+            put("localizedName", packageName)
+            put("added", Random.nextLong())
+            put("lastUpdated", Random.nextLong())
+            put("isCompatible", true)
+        }
+        db.insert(AppMetadata.TABLE, SQLiteDatabase.CONFLICT_FAIL, metadata)
+    }
+
+    private fun insertVersion(
+        db: SupportSQLiteDatabase,
+        repoId: Long,
+        packageName: String,
+        versionCode: Long,
+        antiFeatures: Map<String, Map<String, String>>?,
+    ) {
+        val version = ContentValues().apply {
+            put("repoId", repoId)
+            put("packageName", packageName)
+            put("versionId", "$packageName-$versionCode")
+            put("added", Random.nextLong())
+            put("isCompatible", true)
+            put("file_name", "$packageName-$versionCode.apk")
+            put("file_sha256", "0123")
+            put("manifest_versionName", "$versionCode")
+            put("manifest_versionCode", versionCode)
+            put("antiFeatures", mapOfLocalizedTextV2toString(antiFeatures))
+        }
+        db.insert(Version.TABLE, SQLiteDatabase.CONFLICT_FAIL, version)
+    }
+
+}
@@ -0,0 +1,133 @@
+package org.fdroid.database
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.fdroid.index.IndexParser
+import org.fdroid.index.parseV2
+import org.fdroid.index.v2.IndexV2DiffStreamProcessor
+import org.fdroid.test.TestDataMidV2.PACKAGE_NAME_1
+import org.fdroid.test.TestDataMidV2.PACKAGE_NAME_2
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.InputStream
+import kotlin.test.assertEquals
+import kotlin.test.fail
+
+/**
+ * Tests that the [HighestVersion] and [PreferredRepo] tables always have the same content
+ * as the database views they replaced.
+ */
+@RunWith(AndroidJUnit4::class)
+internal class MaterializedTablesTest : DbTest() {
+
+    private companion object {
+        // the original view definitions from before they became tables
+        const val HIGHEST_VERSION_VIEW = """SELECT repoId, packageName, antiFeatures FROM Version
+            GROUP BY repoId, packageName HAVING MAX(manifest_versionCode)"""
+        const val PREFERRED_REPO_VIEW = """SELECT packageName, repoId AS preferredRepoId
+            FROM AppMetadata
+            JOIN RepositoryPreferences AS pref USING (repoId)
+            LEFT JOIN AppPrefs USING (packageName)
+            WHERE pref.enabled = 1 AND (repoId = COALESCE(preferredRepoId, repoId) OR
+              NOT EXISTS (SELECT 1 FROM AppMetadata WHERE repoId=AppPrefs.preferredRepoId
+                AND packageName=AppPrefs.packageName)
+            )
+            GROUP BY packageName HAVING MAX(pref.weight)"""
+    }
+
+    @Test
+    fun testIndexUpdates() {
+        val repoId1 = streamIndexV2IntoDb("index-min-v2.json", address = "https://example.org")
+        assertSameAsViews()
+        val repoId2 = streamIndexV2IntoDb("index-mid-v2.json")
+        assertSameAsViews()
+
+        // index diff adds and changes apps and versions
+        applyDiff(repoId1, assets.open("diff-empty-max/42.json"))
+        assertSameAsViews()
+
+        // index diff removes an app
+        applyDiff(repoId2, """{ "packages": { "$PACKAGE_NAME_2": null } }""".byteInputStream())
+        assertSameAsViews()
+
+        // full index update in bulk load mode replaces all apps of the repo
+        db.runInTransaction {
+            db.runInBulkLoadMode(repoId1) {
+                val streamReceiver = DbV2StreamReceiver(db, repoId1) { true }
+                val index = IndexParser.parseV2(assets.open("index-min-v2.json"))
+                streamReceiver.receive(index.repo, 1337L)
+                index.packages.forEach { (packageName, packageV2) ->
+                    streamReceiver.receive(packageName, packageV2)
+                }
+                streamReceiver.onStreamEnded()
+            }
+        }
+        assertSameAsViews()
+
+        db.clearAllAppData()
+        assertSameAsViews(expectEmpty = true)
+    }
+
+    @Test
+    fun testPreferenceChanges() {
+        val repoId1 = streamIndexV2IntoDb("index-min-v2.json", address = "https://example.org/1")
+        val repoId2 = streamIndexV2IntoDb("index-mid-v2.json", address = "https://example.org/2")
+        val repoId3 = streamIndexV2IntoDb("index-max-v2.json")
+        assertSameAsViews()
+
+        // user prefers a repository
+        appPrefsDao.update(AppPrefs(PACKAGE_NAME_1, preferredRepoId = repoId1))
+        assertSameAsViews()
+        assertEquals(repoId1, appPrefsDao.getPreferredRepos(listOf(PACKAGE_NAME_1))[PACKAGE_NAME_1])
+        // user prefers a repository that doesn't have the app
+        appPrefsDao.update(AppPrefs(PACKAGE_NAME_2, preferredRepoId = repoId1))
+        assertSameAsViews()
+
+        // repositories get re-ordered
+        val repo1 = repoDao.getRepository(repoId1) ?: fail()
+        val repo3 = repoDao.getRepository(repoId3) ?: fail()
+        repoDao.reorderRepositories(repo3, repo1)
+        assertSameAsViews()
+
+        // repositories get disabled and enabled again
+        repoDao.setRepositoryEnabled(repoId1, false)
+        assertSameAsViews()
+        repoDao.setRepositoryEnabled(repoId3, false)
+        assertSameAsViews()
+        repoDao.setRepositoryEnabled(repoId1, true)
+        assertSameAsViews()
+
+        // repository gets removed
+        repoDao.deleteRepository(repoId2)
+        assertSameAsViews()
+    }
+
+    private fun applyDiff(repoId: Long, diffStream: InputStream) {
+        val streamReceiver = DbV2DiffStreamReceiver(db, repoId) { true }
+        val streamProcessor = IndexV2DiffStreamProcessor(streamReceiver)
+        db.runInTransaction {
+            diffStream.use { streamProcessor.process(42, it) {} }
+        }
+    }
+
+    private fun assertSameAsViews(expectEmpty: Boolean = false) {
+        val highestVersions = query(HIGHEST_VERSION_VIEW)
+        assertEquals(
+            expected = highestVersions,
+            actual = query("SELECT repoId, packageName, antiFeatures FROM ${HighestVersion.TABLE}"),
+        )
+        val preferredRepos = query(PREFERRED_REPO_VIEW)
+        assertEquals(
+            expected = preferredRepos,
+            actual = query("SELECT packageName, preferredRepoId FROM ${PreferredRepo.TABLE}"),
+        )
+        assertEquals(expectEmpty, highestVersions.isEmpty() && preferredRepos.isEmpty())
+    }
+
+    private fun query(sql: String): Set<List<String?>> = db.query(sql, null).use { cursor ->
+        buildSet {
+            while (cursor.moveToNext()) {
+                add((0 until cursor.columnCount).map { cursor.getString(it) })
+            }
+        }
+    }
+}
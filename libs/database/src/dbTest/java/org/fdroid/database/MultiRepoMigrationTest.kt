@@ -232,7 +232,9 @@ internal class MultiRepoMigrationTest {
 
         // now get the Room DB, so we can use our DAOs for verifying the migration
         databaseBuilder(getApplicationContext(), FDroidDatabaseInt::class.java, TEST_DB)
-            .addMigrations(MIGRATION_2_3, MIGRATION_5_6, MIGRATION_8_9)
+            .addMigrations(
+                MIGRATION_2_3, MIGRATION_5_6, MIGRATION_8_9, MIGRATION_10_11, MIGRATION_11_12
+            )
             .allowMainThreadQueries()
             .build()
             .use { db ->
@@ -275,7 +277,9 @@ internal class MultiRepoMigrationTest {
 
         // now get the Room DB, so we can use our DAOs for verifying the migration
         databaseBuilder(getApplicationContext(), FDroidDatabaseInt::class.java, TEST_DB)
-            .addMigrations(MIGRATION_2_3, MIGRATION_5_6, MIGRATION_8_9)
+            .addMigrations(
+                MIGRATION_2_3, MIGRATION_5_6, MIGRATION_8_9, MIGRATION_10_11, MIGRATION_11_12
+            )
             .allowMainThreadQueries()
             .build().use { db ->
                 // repo without cert did not get migrated, because we auto-migrate to latest version
@@ -311,7 +315,9 @@ internal class MultiRepoMigrationTest {
 
         // now get the Room DB, so we can use our DAOs for verifying the migration
         databaseBuilder(getApplicationContext(), FDroidDatabaseInt::class.java, TEST_DB)
-            .addMigrations(MIGRATION_2_3, MIGRATION_5_6, MIGRATION_8_9)
+            .addMigrations(
+                MIGRATION_2_3, MIGRATION_5_6, MIGRATION_8_9, MIGRATION_10_11, MIGRATION_11_12
+            )
             .allowMainThreadQueries()
             .build().use { db ->
                 check(db)
@@ -80,7 +80,9 @@ internal class PreferredRepoMigrationTest {
             FDroidDatabaseInt::class.java,
             TEST_DB
         )
-            .addMigrations(MIGRATION_2_3, MIGRATION_5_6, MIGRATION_8_9)
+            .addMigrations(
+                MIGRATION_2_3, MIGRATION_5_6, MIGRATION_8_9, MIGRATION_10_11, MIGRATION_11_12
+            )
             .allowMainThreadQueries()
             .build().use { db ->
                 // repo without cert did not get migrated, the other one did
@@ -60,6 +60,26 @@ internal class VersionTest : DbTest() {
         }
     }
 
+    @Test
+    fun getVersionedStringsOfSeveralVersions() {
+        val repoId1 = repoDao.insertOrReplace(getRandomRepo())
+        val repoId2 = repoDao.insertOrReplace(getRandomRepo())
+        listOf(repoId1, repoId2).forEach { repoId ->
+            appDao.insert(repoId, packageName, getRandomMetadataV2())
+            versionDao.insert(repoId, packageName, packageVersions, compatChecker)
+        }
+        // only the requested combinations of repo and version get returned
+        val versions = listOf(getVersion1(repoId1), getVersion2(repoId2))
+        val expected = mapOf(
+            Triple(repoId1, packageName, versionId1) to
+                packageVersion1.manifest.getVersionedStrings(versions[0]).toSet(),
+            Triple(repoId2, packageName, versionId2) to
+                packageVersion2.manifest.getVersionedStrings(versions[1]).toSet(),
+        ).filterValues { it.isNotEmpty() }
+        val actual = versionDao.getVersionedStrings(versions).mapValues { it.value.toSet() }
+        assertEquals(expected, actual)
+    }
+
     @Test
     fun insertGetDeleteSingleVersion() {
         val repoId = repoDao.insertOrReplace(getRandomRepo())
@@ -3,11 +3,14 @@ package org.fdroid.index.v2
 import android.net.Uri
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import io.mockk.Runs
+import io.mockk.coEvery
 import io.mockk.every
 import io.mockk.just
 import io.mockk.mockk
+import io.mockk.mockkStatic
 import io.mockk.slot
 import io.mockk.spyk
+import io.mockk.verify
 import kotlinx.coroutines.DelicateCoroutinesApi
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.async
@@ -16,8 +19,15 @@ import org.fdroid.CompatibilityChecker
 import org.fdroid.database.DbTest
 import org.fdroid.database.Repository
 import org.fdroid.database.TestUtils.assertTimestampRecent
+import org.fdroid.download.BufferReceiver
+import org.fdroid.download.CacheValidators
+import org.fdroid.download.ConditionalResponse
 import org.fdroid.download.Downloader
+import org.fdroid.download.DownloadRequest
 import org.fdroid.download.DownloaderFactory
+import org.fdroid.download.HttpManager
+import org.fdroid.download.Mirror
+import org.fdroid.download.getDigestInputStream
 import org.fdroid.index.IndexFormatVersion.TWO
 import org.fdroid.index.IndexUpdateResult
 import org.fdroid.index.SigningException
@@ -26,12 +36,15 @@ import org.fdroid.test.TestDataEntry
 import org.fdroid.test.TestDataMaxV2
 import org.fdroid.test.TestDataMidV2
 import org.fdroid.test.TestDataMinV2
+import org.fdroid.test.TestUtils.decodeHex
 import org.fdroid.test.VerifierConstants.CERTIFICATE
 import org.junit.Before
 import org.junit.Rule
 import org.junit.Test
 import org.junit.rules.TemporaryFolder
 import org.junit.runner.RunWith
+import java.security.DigestInputStream
+import java.security.MessageDigest
 import java.util.concurrent.CountDownLatch
 import kotlin.test.assertEquals
 import kotlin.test.assertIs
@@ -111,6 +124,85 @@ internal class IndexV2UpdaterTest : DbTest() {
         assertTimestampRecent(repoDao.getRepository(repoId)?.lastUpdated)
     }
 
+    @Test
+    fun testFullIndexEmptyToMinStreaming() {
+        val repoId = repoDao.insertEmptyRepo("http://example.org", certificate = CERTIFICATE)
+        val repo = prepareStreamingUpdate(
+            repoId = repoId,
+            entryPath = "diff-empty-min/$SIGNED_FILE_NAME",
+            jsonPath = "index-min-v2.json",
+            indexFileV2 = TestDataEntry.emptyToMin.index,
+            digestHex = TestDataEntry.emptyToMin.index.sha256,
+        )
+        val result = indexUpdater.update(repo).noError()
+        assertEquals(IndexUpdateResult.Processed, result)
+        assertDbEquals(repoId, TestDataMinV2.index)
+        assertTimestampRecent(repoDao.getRepository(repoId)?.lastUpdated)
+    }
+
+    @Test
+    fun testFullIndexStreamingWrongHashRollsBack() {
+        val repoId = repoDao.insertEmptyRepo("http://example.org", certificate = CERTIFICATE)
+        val repo = prepareStreamingUpdate(
+            repoId = repoId,
+            entryPath = "diff-empty-min/$SIGNED_FILE_NAME",
+            jsonPath = "index-min-v2.json",
+            indexFileV2 = TestDataEntry.emptyToMin.index,
+            digestHex = TestDataEntry.emptyToMid.index.sha256,
+        )
+        val result = indexUpdater.update(repo)
+        assertIs<IndexUpdateResult.Error>(result)
+        assertIs<SigningException>(result.e)
+
+        // nothing got inserted and repo did not get updated
+        assertEquals(0, appDao.countApps())
+        assertEquals(0, versionDao.countAppVersions())
+        assertNull(repoDao.getRepository(repoId)?.lastUpdated)
+    }
+
+    @Test
+    fun testUnchangedEntryDoesNotGetDownloaded() {
+        val repoId = repoDao.insertEmptyRepo("http://example.org", certificate = CERTIFICATE)
+        val httpManager: HttpManager = mockk()
+        val repo = prepareStreamingUpdate(
+            repoId = repoId,
+            entryPath = "diff-empty-min/$SIGNED_FILE_NAME",
+            jsonPath = "index-min-v2.json",
+            indexFileV2 = TestDataEntry.emptyToMin.index,
+            digestHex = TestDataEntry.emptyToMin.index.sha256,
+            httpManager = httpManager,
+        )
+        val entryFileV2 = FileV2.fromPath("/$SIGNED_FILE_NAME")
+        every {
+            downloaderFactory.createStreamRequestWithTryFirstMirror(any(), any(), entryFileV2)
+        } returns DownloadRequest(entryFileV2, repo.getMirrors())
+        val mirror = repo.getMirrors()[0]
+        val validators = CacheValidators("eTag", "Wed, 21 Oct 2015 07:28:00 GMT")
+        val sentValidators = mutableListOf<CacheValidators?>()
+        val entryBytes = assets.open("diff-empty-min/$SIGNED_FILE_NAME").use { it.readBytes() }
+        coEvery { httpManager.getIfModified(any(), any(), any()) } coAnswers {
+            val sent = secondArg<(Mirror) -> CacheValidators?>().invoke(mirror)
+            sentValidators.add(sent)
+            if (sent == validators) {
+                ConditionalResponse(mirror, false, sent)
+            } else {
+                thirdArg<BufferReceiver>().receive(entryBytes, entryBytes.size, null)
+                ConditionalResponse(mirror, true, validators)
+            }
+        }
+        assertEquals(IndexUpdateResult.Processed, indexUpdater.update(repo).noError())
+        assertDbEquals(repoId, TestDataMinV2.index)
+
+        // the entry wasn't modified, so the mirror doesn't send it again
+        val updatedRepo = repoDao.getRepository(repoId) ?: fail()
+        assertEquals(IndexUpdateResult.Unchanged, indexUpdater.update(updatedRepo).noError())
+        assertEquals(listOf(null, validators), sentValidators)
+        // the entry didn't get downloaded in another way
+        verify(exactly = 0) {
+            downloaderFactory.createWithTryFirstMirror(any(), any(), entryFileV2, any())
+        }
+    }
+
     @Test
     fun testDiffMinToMid() {
         val repoId = streamIndexV2IntoDb("index-min-v2.json")
@@ -327,6 +419,58 @@ internal class IndexV2UpdaterTest : DbTest() {
         return repo
     }
 
+    /**
+     * Same as [prepareUpdate], but the index gets streamed with an [HttpManager]
+     * that returns [jsonPath] and pretends its hash is [digestHex].
+     */
+    private fun prepareStreamingUpdate(
+        repoId: Long,
+        entryPath: String,
+        jsonPath: String,
+        indexFileV2: EntryFileV2,
+        digestHex: String,
+        httpManager: HttpManager = mockk(),
+    ): Repository {
+        val digest: MessageDigest = mockk()
+        mockkStatic("org.fdroid.download.HttpManagerKt")
+        indexUpdater = IndexV2Updater(
+            database = db,
+            tempFileProvider = tempFileProvider,
+            downloaderFactory = downloaderFactory,
+            compatibilityChecker = compatibilityChecker,
+            httpManager = httpManager,
+        )
+        val repo = prepareUpdate(repoId, entryPath, jsonPath, indexFileV2)
+        val entryFile = tmpFolder.newFile()
+        assets.open(entryPath).use { inputStream ->
+            entryFile.outputStream().use { inputStream.copyTo(it) }
+        }
+        // index temp file is empty, so it doesn't get re-used
+        every {
+            tempFileProvider.createTempFile(any())
+        } returnsMany listOf(entryFile, tmpFolder.newFile())
+
+        val request = DownloadRequest(indexFileV2, repo.getMirrors())
+        every {
+            downloaderFactory.createStreamRequestWithTryFirstMirror(repo, any(), indexFileV2)
+        } returns request
+        // the entry doesn't get requested directly, unless a test wants that
+        every {
+            downloaderFactory.createStreamRequestWithTryFirstMirror(
+                repo = any(),
+                uri = any(),
+                indexFile = FileV2.fromPath("/$SIGNED_FILE_NAME"),
+            )
+        } returns null
+        every { digest.update(any(), any(), any()) } just Runs
+        every { digest.update(any<Byte>()) } just Runs
+        every { digest.digest() } returns digestHex.decodeHex()
+        coEvery {
+            httpManager.getDigestInputStream(request)
+        } returns DigestInputStream(assets.open(jsonPath), digest)
+        return repo
+    }
+
     /**
      * Easier for debugging, if we throw the index error.
      */
@@ -11,6 +11,7 @@ import androidx.room.ForeignKey
 import androidx.room.Fts4
 import androidx.room.FtsOptions
 import androidx.room.Ignore
+import androidx.room.Index
 import androidx.room.Relation
 import org.fdroid.LocaleChooser.getBestLocale
 import org.fdroid.database.Converters.fromStringToMapOfLocalizedTextV2
@@ -43,6 +44,7 @@ public interface MinimalApp {
         childColumns = ["repoId"],
         onDelete = ForeignKey.CASCADE,
     )],
+    indices = [Index("packageName")],
 )
 public data class AppMetadata(
     public val repoId: Long,
@@ -125,6 +127,39 @@ internal fun MetadataV2.toAppMetadata(
     isCompatible = isCompatible,
 )
 
+/**
+ * One row for each of the [AppMetadata.categories] of an app,
+ * so apps in a category can be found with an index lookup
+ * instead of scanning the comma-joined categories of all apps.
+ * This must be updated whenever [AppMetadata.categories] changes.
+ */
+@Entity(
+    tableName = AppCategory.TABLE,
+    primaryKeys = ["repoId", "packageName", "categoryId"],
+    foreignKeys = [ForeignKey(
+        entity = AppMetadata::class,
+        parentColumns = ["repoId", "packageName"],
+        childColumns = ["repoId", "packageName"],
+        onDelete = ForeignKey.CASCADE,
+    )],
+    indices = [Index("categoryId", "repoId", "packageName")],
+)
+internal data class AppCategory(
+    val repoId: Long,
+    val packageName: String,
+    val categoryId: String,
+) {
+    internal companion object {
+        const val TABLE = "AppCategory"
+    }
+}
+
+internal fun AppMetadata.toAppCategories(): List<AppCategory> {
+    return categories?.distinct()?.map { categoryId ->
+        AppCategory(repoId, packageName, categoryId)
+    } ?: emptyList()
+}
+
 /**
  * Introduce zero whitespace for CJK (Chinese, Japanese, Korean) languages.
  * This is needed, because the sqlite tokenizers available to us either handle those languages
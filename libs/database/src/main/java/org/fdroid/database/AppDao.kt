@@ -35,7 +35,6 @@ import org.fdroid.index.v2.FileV2
 import org.fdroid.index.v2.LocalizedFileListV2
 import org.fdroid.index.v2.LocalizedFileV2
 import org.fdroid.index.v2.MetadataV2
-import org.fdroid.index.v2.ReflectionDiffer.applyDiff
 import java.util.concurrent.TimeUnit
 
 public interface AppDao {
@@ -190,8 +189,22 @@ public interface AppDao {
 
     public fun getInstalledAppListItems(packageManager: PackageManager): LiveData<List<AppListItem>>
 
+    /**
+     * Returns all apps matching the given [searchQuery] with the best matches first,
+     * see [AppSearchItem.score].
+     */
     public suspend fun getAppSearchItems(searchQuery: String): List<AppSearchItem>
 
+    /**
+     * Same as [getAppSearchItems], but returns at most [limit] apps after skipping [offset],
+     * so large result sets can be paged through.
+     */
+    public suspend fun getAppSearchItems(
+        searchQuery: String,
+        limit: Int,
+        offset: Int,
+    ): List<AppSearchItem>
+
     public fun getNumberOfAppsInCategory(category: String): Int
 
     public fun getNumberOfAppsInRepository(repoId: Long): Int
@@ -229,7 +242,9 @@ internal interface AppDaoInt : AppDao {
         app: MetadataV2,
         locales: LocaleListCompat,
     ) {
-        insert(app.toAppMetadata(repoId, packageName, false, locales))
+        val appMetadata = app.toAppMetadata(repoId, packageName, false, locales)
+        insert(appMetadata)
+        replaceAppCategories(appMetadata)
         app.icon.insert(repoId, packageName, "icon")
         app.featureGraphic.insert(repoId, packageName, "featureGraphic")
         app.promoGraphic.insert(repoId, packageName, "promoGraphic")
@@ -259,9 +274,24 @@ internal interface AppDaoInt : AppDao {
     @Insert(onConflict = REPLACE)
     fun insert(appMetadata: AppMetadata)
 
+    @Insert(onConflict = REPLACE)
+    fun insertAppMetadata(appMetadata: List<AppMetadata>)
+
     @Insert(onConflict = REPLACE)
     fun insert(localizedFiles: List<LocalizedFile>)
 
+    @Insert(onConflict = REPLACE)
+    fun insertAppCategories(appCategories: List<AppCategory>)
+
+    /**
+     * Keeps the [AppCategory] table in sync with the categories of the given [appMetadata].
+     */
+    fun replaceAppCategories(appMetadata: AppMetadata) {
+        deleteAppCategories(appMetadata.repoId, appMetadata.packageName)
+        val appCategories = appMetadata.toAppCategories()
+        if (appCategories.isNotEmpty()) insertAppCategories(appCategories)
+    }
+
     @Insert(onConflict = REPLACE)
     fun insertLocalizedFileLists(localizedFiles: List<LocalizedFileList>)
 
@@ -287,7 +317,7 @@ internal interface AppDaoInt : AppDao {
                 if (jsonObject.containsKey(forbiddenKey)) throw SerializationException(forbiddenKey)
             }
             // diff metadata
-            val diffedApp = applyDiff(metadata, jsonObject)
+            val diffedApp = EntityDiffer.applyDiff(metadata, jsonObject)
             val containsName = jsonObject.containsKey("name")
             val containsSummary = jsonObject.containsKey("summary")
             val containsDescription = jsonObject.containsKey("description")
@@ -302,6 +332,7 @@ internal interface AppDaoInt : AppDao {
                 )
             } else diffedApp
             updateAppMetadata(updatedApp)
+            if (jsonObject.containsKey("categories")) replaceAppCategories(updatedApp)
             // diff localizedFiles
             val localizedFiles = getLocalizedFiles(repoId, packageName)
             localizedFiles.diffAndUpdate(repoId, packageName, "icon", jsonObject)
@@ -338,6 +369,7 @@ internal interface AppDaoInt : AppDao {
         insertReplace = { list -> insert(list) },
         isNewItemValid = { it.name.isNotEmpty() },
         keyDenyList = DENY_FILE_LIST,
+        applyDiff = { item, diff -> EntityDiffer.applyDiff(item, diff) },
     )
 
     private fun diffAndUpdateLocalizedFileList(
@@ -445,7 +477,8 @@ internal interface AppDaoInt : AppDao {
         JOIN PreferredRepo USING (packageName)
         LEFT JOIN ${HighestVersion.TABLE} AS version USING (repoId, packageName)
         LEFT JOIN ${LocalizedIcon.TABLE} AS icon USING (repoId, packageName)
-        WHERE pref.enabled = 1 AND categories  LIKE '%,' || :category || ',%' AND
+        JOIN ${AppCategory.TABLE} AS category USING (repoId, packageName)
+        WHERE pref.enabled = 1 AND category.categoryId = :category AND
             repoId = preferredRepoId
         GROUP BY packageName HAVING MAX(pref.weight)
         ORDER BY localizedName IS NULL ASC, icon.packageName IS NULL ASC,
@@ -463,6 +496,38 @@ internal interface AppDaoInt : AppDao {
         FROM ${AppMetadata.TABLE} AS app WHERE repoId = :repoId AND packageName = :packageName""")
     fun getAppOverviewItem(repoId: Long, packageName: String): AppOverviewItem?
 
+    /**
+     * Like [getAppOverviewItem], but for several apps at once,
+     * keyed by their repoId and packageName.
+     */
+    fun getAppOverviewItems(
+        apps: Collection<Pair<Long, String>>,
+    ): Map<Pair<Long, String>, AppOverviewItem> {
+        val result = HashMap<Pair<Long, String>, AppOverviewItem>(apps.size)
+        apps.groupBy({ it.first }, { it.second }).forEach { (repoId, packageNames) ->
+            packageNames.chunked(998).forEach { chunk ->
+                getAppOverviewItemsInternal(repoId, chunk).forEach { item ->
+                    result[Pair(item.repoId, item.packageName)] = item
+                }
+            }
+        }
+        return result
+    }
+
+    /**
+     * Use [getAppOverviewItems] instead as this handles more than 1000 package names.
+     */
+    @Transaction
+    @SuppressWarnings(QUERY_MISMATCH) // no anti-features needed here
+    @Query("""SELECT repoId, packageName, added, app.lastUpdated, localizedName,
+             localizedSummary, name, summary, categories, app.isCompatible
+        FROM ${AppMetadata.TABLE} AS app
+        WHERE repoId = :repoId AND packageName IN (:packageNames)""")
+    fun getAppOverviewItemsInternal(
+        repoId: Long,
+        packageNames: List<String>,
+    ): List<AppOverviewItem>
+
     @Transaction
     override suspend fun getAllApps(): List<AppOverviewItem> {
         val query = getAppsQuery("") {}
@@ -479,7 +544,10 @@ internal interface AppDaoInt : AppDao {
 
     @Transaction
     override suspend fun getAppsByCategory(categoryId: String): List<AppOverviewItem> {
-        val query = getAppsQuery("categories LIKE '%,' || ? || ',%'") { statement ->
+        val query = getAppsQuery(
+            whereQuery = "category.categoryId = ?",
+            join = "JOIN ${AppCategory.TABLE} AS category USING (repoId, packageName)",
+        ) { statement ->
             statement.bindText(1, categoryId)
         }
         return getApps(query)
@@ -539,6 +607,7 @@ internal interface AppDaoInt : AppDao {
 
     private fun getAppsQuery(
         whereQuery: String,
+        join: String = "",
         onBindStatement: (SQLiteStatement) -> Unit,
     ): RoomRawQuery {
         val queryBuilder = StringBuilder(
@@ -548,6 +617,7 @@ internal interface AppDaoInt : AppDao {
         FROM ${AppMetadata.TABLE} AS app
         JOIN PreferredRepo USING (packageName)
         LEFT JOIN ${HighestVersion.TABLE} AS version USING (repoId, packageName)
+        $join
         WHERE repoId = preferredRepoId"""
         )
         if (whereQuery.isNotEmpty()) queryBuilder.append(" AND ").append(whereQuery)
@@ -599,9 +669,10 @@ internal interface AppDaoInt : AppDao {
                 JOIN PreferredRepo USING (packageName)
                 LEFT JOIN ${HighestVersion.TABLE} AS version USING (repoId, packageName)
                 LEFT JOIN AppPrefs USING (packageName)
+                JOIN ${AppCategory.TABLE} AS category USING (repoId, packageName)
                 WHERE pref.enabled = 1
                     AND repoId = PreferredRepo.preferredRepoId
-                    AND categories LIKE '%,' || ? || ',%' 
+                    AND category.categoryId = ?
                 GROUP BY packageName HAVING MAX(pref.weight)""")
             addOrderBy(queryBuilder, sortOrder)
             val rawQuery = RoomRawQuery(
@@ -723,7 +794,8 @@ internal interface AppDaoInt : AppDao {
         JOIN PreferredRepo USING (packageName)
         LEFT JOIN ${HighestVersion.TABLE} AS version USING (repoId, packageName)
         JOIN ${RepositoryPreferences.TABLE} AS pref USING (repoId)
-        WHERE pref.enabled = 1 AND categories LIKE '%,' || :category || ',%' AND
+        JOIN ${AppCategory.TABLE} AS category USING (repoId, packageName)
+        WHERE pref.enabled = 1 AND category.categoryId = :category AND
            ${AppMetadataFts.TABLE} MATCH :searchQuery AND repoId = preferredRepoId
         GROUP BY packageName HAVING MAX(pref.weight)""")
     fun getAppListItems(category: String, searchQuery: String): LiveData<List<AppListItem>>
@@ -863,19 +935,47 @@ internal interface AppDaoInt : AppDao {
         }
     }
 
+    override suspend fun getAppSearchItems(searchQuery: String): List<AppSearchItem> {
+        // a negative limit means no limit for SQLite
+        return getAppSearchItems(searchQuery, -1, 0, System.currentTimeMillis())
+    }
+
+    override suspend fun getAppSearchItems(
+        searchQuery: String,
+        limit: Int,
+        offset: Int,
+    ): List<AppSearchItem> {
+        return getAppSearchItems(searchQuery, limit, offset, System.currentTimeMillis())
+    }
+
+    /**
+     * Scores, sorts and limits the search results inside SQLite,
+     * so only the rows that get returned need to be loaded.
+     */
     @Transaction
     @Query(
         """
-        SELECT repoId, packageName, app.lastUpdated, app.name, app.summary,
-            app.description, app.authorName, app.categories,
-            matchinfo(${AppMetadataFts.TABLE}, 'pcx')
-        FROM ${AppMetadata.TABLE} AS app
-        JOIN PreferredRepo USING (packageName)
-        JOIN ${AppMetadataFts.TABLE} USING (repoId, packageName)
-        WHERE ${AppMetadataFts.TABLE} MATCH :searchQuery AND
-            repoId = preferredRepoId"""
+        SELECT repoId, packageName, lastUpdated, name, summary, description, authorName,
+            categories, ${AppSearchItem.SCORE} AS score
+        FROM (
+            SELECT repoId, packageName, app.lastUpdated, app.name, app.summary,
+                app.description, app.authorName, app.categories,
+                hex(matchinfo(${AppMetadataFts.TABLE}, 's')) AS matchInfo
+            FROM ${AppMetadata.TABLE} AS app
+            JOIN ${PreferredRepo.TABLE} USING (packageName)
+            JOIN ${AppMetadataFts.TABLE} USING (repoId, packageName)
+            WHERE ${AppMetadataFts.TABLE} MATCH :searchQuery AND
+                repoId = preferredRepoId
+        )
+        ORDER BY score DESC, lastUpdated DESC
+        LIMIT :limit OFFSET :offset"""
     )
-    override suspend fun getAppSearchItems(searchQuery: String): List<AppSearchItem>
+    suspend fun getAppSearchItems(
+        searchQuery: String,
+        limit: Int,
+        offset: Int,
+        now: Long,
+    ): List<AppSearchItem>
 
     //
     // Misc Queries
@@ -884,16 +984,24 @@ internal interface AppDaoInt : AppDao {
     @Query("""SELECT COUNT(DISTINCT packageName) FROM ${AppMetadata.TABLE}
         JOIN ${RepositoryPreferences.TABLE} AS pref USING (repoId)
         JOIN PreferredRepo USING (packageName)
-        WHERE pref.enabled = 1 AND categories LIKE '%,' || :category || ',%' AND
+        JOIN ${AppCategory.TABLE} AS category USING (repoId, packageName)
+        WHERE pref.enabled = 1 AND category.categoryId = :category AND
             repoId = preferredRepoId""")
     override fun getNumberOfAppsInCategory(category: String): Int
 
     @Query("SELECT COUNT(*) FROM ${AppMetadata.TABLE} WHERE repoId = :repoId")
     override fun getNumberOfAppsInRepository(repoId: Long): Int
 
+    @Query("SELECT packageName FROM ${AppMetadata.TABLE} WHERE repoId = :repoId")
+    fun getPackageNames(repoId: Long): List<String>
+
     @Query("DELETE FROM ${AppMetadata.TABLE} WHERE repoId = :repoId AND packageName = :packageName")
     fun deleteAppMetadata(repoId: Long, packageName: String)
 
+    @Query("""DELETE FROM ${AppCategory.TABLE}
+        WHERE repoId = :repoId AND packageName = :packageName""")
+    fun deleteAppCategories(repoId: Long, packageName: String)
+
     @Query("""DELETE FROM ${LocalizedFile.TABLE}
         WHERE repoId = :repoId AND packageName = :packageName AND type = :type""")
     fun deleteLocalizedFiles(repoId: Long, packageName: String, type: String)
@@ -928,6 +1036,10 @@ internal interface AppDaoInt : AppDao {
     @Query("SELECT COUNT(*) FROM ${LocalizedFileList.TABLE}")
     fun countLocalizedFileLists(): Int
 
+    @VisibleForTesting
+    @Query("SELECT COUNT(*) FROM ${AppCategory.TABLE}")
+    fun countAppCategories(): Int
+
     /**
      * Removes all apps and associated data such as versions from the database.
      * Careful: Doing this without other measures such as calling [RepositoryDaoInt.resetTimestamps]
@@ -1,7 +1,7 @@
 package org.fdroid.database
 
-import androidx.room.DatabaseView
 import androidx.room.Entity
+import androidx.room.Index
 import androidx.room.PrimaryKey
 import org.fdroid.PackagePreference
 
@@ -56,14 +56,40 @@ public data class AppPrefs(
     )
 }
 
-@DatabaseView("""SELECT packageName, repoId AS preferredRepoId FROM ${AppMetadata.TABLE}
-    JOIN ${RepositoryPreferences.TABLE} AS pref USING (repoId)
-    LEFT JOIN ${AppPrefs.TABLE} USING (packageName)
-    WHERE pref.enabled = 1 AND (repoId = COALESCE(preferredRepoId, repoId) OR
-      NOT EXISTS (SELECT 1 FROM AppMetadata WHERE repoId=AppPrefs.preferredRepoId AND packageName=AppPrefs.packageName)
-    )
-    GROUP BY packageName HAVING MAX(pref.weight)""")
+/**
+ * The repository each app should be taken from.
+ * This is the enabled repository with the highest weight,
+ * unless the user prefers another repository that has the app in [AppPrefs.preferredRepoId].
+ *
+ * This used to be a database view, but is now a table,
+ * because it gets joined in almost all app queries.
+ * It is kept in sync by triggers, see [MaterializedTables],
+ * and refreshed for a whole repository in [FDroidDatabaseInt.afterUpdatingRepo].
+ */
+@Entity(
+    tableName = PreferredRepo.TABLE,
+    indices = [Index("preferredRepoId")],
+)
 internal class PreferredRepo(
+    @PrimaryKey
     val packageName: String,
     val preferredRepoId: Long,
-)
+) {
+    internal companion object {
+        const val TABLE = "PreferredRepo"
+
+        /**
+         * Selects the rows of this table.
+         * Further conditions may be added with AND between this and [GROUP_BY].
+         */
+        const val SELECT = """SELECT packageName, repoId AS preferredRepoId
+            FROM ${AppMetadata.TABLE}
+            JOIN ${RepositoryPreferences.TABLE} AS pref USING (repoId)
+            LEFT JOIN ${AppPrefs.TABLE} USING (packageName)
+            WHERE pref.enabled = 1 AND (repoId = COALESCE(preferredRepoId, repoId) OR
+              NOT EXISTS (SELECT 1 FROM ${AppMetadata.TABLE} WHERE repoId=AppPrefs.preferredRepoId
+                AND packageName=AppPrefs.packageName)
+            )"""
+        const val GROUP_BY = "GROUP BY packageName HAVING MAX(pref.weight)"
+    }
+}
@@ -8,6 +8,7 @@ import androidx.room.Insert
 import androidx.room.MapColumn
 import androidx.room.OnConflictStrategy.Companion.REPLACE
 import androidx.room.Query
+import androidx.room.Transaction
 
 public interface AppPrefsDao {
     public fun getAppPrefs(packageName: String): LiveData<AppPrefs>
@@ -29,6 +30,20 @@ internal interface AppPrefsDaoInt : AppPrefsDao {
     @Query("SELECT * FROM ${AppPrefs.TABLE} WHERE packageName = :packageName")
     fun getAppPrefsOrNull(packageName: String): AppPrefs?
 
+    /**
+     * Returns the [AppPrefs] of the given [packageNames], if the user has set any.
+     */
+    fun getAppPrefs(packageNames: List<String>): Map<String, AppPrefs> {
+        return packageNames.chunked(999).flatMap { getAppPrefsInternal(it) }
+            .associateBy { it.packageName }
+    }
+
+    /**
+     * Use [getAppPrefs] instead as this handles more than 1000 package names.
+     */
+    @Query("SELECT * FROM ${AppPrefs.TABLE} WHERE packageName IN (:packageNames)")
+    fun getAppPrefsInternal(packageNames: List<String>): List<AppPrefs>
+
     fun getPreferredRepos(packageNames: List<String>): Map<String, Long> {
         return if (packageNames.size <= 999) getPreferredReposInternal(packageNames)
         else HashMap<String, Long>(packageNames.size).also { map ->
@@ -40,7 +55,7 @@ internal interface AppPrefsDaoInt : AppPrefsDao {
      * Use [getPreferredRepos] instead as this handles more than 1000 package names.
      */
     @Query(
-        """SELECT packageName, preferredRepoId FROM PreferredRepo 
+        """SELECT packageName, preferredRepoId FROM ${PreferredRepo.TABLE}
              WHERE packageName IN (:packageNames)"""
     )
     fun getPreferredReposInternal(
@@ -55,4 +70,38 @@ internal interface AppPrefsDaoInt : AppPrefsDao {
     @Insert(onConflict = REPLACE)
     override fun update(appPrefs: AppPrefs)
 
+    /**
+     * Re-computes the [PreferredRepo] of all apps that are in the given [repoId]
+     * or that had it as their preferred repo before.
+     * Changes to single apps or preferences are already handled by [MaterializedTables].
+     */
+    @Transaction
+    fun refreshPreferredRepos(repoId: Long) {
+        replacePreferredRepos(repoId)
+        deleteStalePreferredRepos(repoId)
+    }
+
+    @Query(
+        """INSERT OR REPLACE INTO ${PreferredRepo.TABLE} (packageName, preferredRepoId)
+        ${PreferredRepo.SELECT}
+        AND (packageName IN (SELECT packageName FROM ${AppMetadata.TABLE} WHERE repoId = :repoId)
+          OR packageName IN
+            (SELECT packageName FROM ${PreferredRepo.TABLE} WHERE preferredRepoId = :repoId))
+        ${PreferredRepo.GROUP_BY}"""
+    )
+    fun replacePreferredRepos(repoId: Long)
+
+    /**
+     * Removes rows still pointing to [repoId] after [replacePreferredRepos],
+     * because the repo is disabled now or doesn't have the app anymore
+     * and no other enabled repository has the app either.
+     */
+    @Query(
+        """DELETE FROM ${PreferredRepo.TABLE} WHERE preferredRepoId = :repoId
+        AND packageName NOT IN (SELECT packageName FROM ${AppMetadata.TABLE}
+          JOIN ${RepositoryPreferences.TABLE} AS pref USING (repoId)
+          WHERE repoId = :repoId AND pref.enabled = 1)"""
+    )
+    fun deleteStalePreferredRepos(repoId: Long)
+
 }
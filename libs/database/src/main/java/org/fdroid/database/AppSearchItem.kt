@@ -1,17 +1,14 @@
 package org.fdroid.database
 
 import androidx.core.os.LocaleListCompat
-import androidx.room.ColumnInfo
-import androidx.room.Ignore
 import androidx.room.Relation
 import org.fdroid.LocaleChooser.getBestLocale
 import org.fdroid.index.v2.FileV2
 import org.fdroid.index.v2.LocalizedTextV2
-import java.nio.ByteBuffer
-import java.nio.ByteOrder
-import kotlin.math.min
 
-@OptIn(ExperimentalUnsignedTypes::class)
+/**
+ * An app matching a search query, see [AppDao.getAppSearchItems].
+ */
 @ConsistentCopyVisibility
 public data class AppSearchItem internal constructor(
     public val repoId: Long,
@@ -27,56 +24,39 @@ public data class AppSearchItem internal constructor(
         entityColumn = "packageName",
     )
     internal val localizedIcon: List<LocalizedIcon>? = null,
-    @Suppress("ArrayInDataClass")
-    @ColumnInfo("matchinfo(${AppMetadataFts.TABLE}, 'pcx')")
-    internal val matchInfo: ByteArray,
+    /**
+     * How well this app matches the search query. Higher is better.
+     * The score gets calculated by SQLite, see [SCORE].
+     */
+    public val score: Double,
 ) : Comparable<AppSearchItem> {
+    internal companion object {
+        /**
+         * The weights of the [AppMetadataFts] columns (except repoId) a search query was found in.
+         * Each column only contributes to the score once.
+         *
+         * This expects the result of `hex(matchinfo(AppMetadataFts, 's'))` in a `matchInfo` column.
+         * For each column, that has a little-endian 32-bit integer
+         * which is only zero, if no phrase of the query was found in that column.
+         * Apps get punished by one point for every three weeks they haven't been updated,
+         * up to 100 points. The current time in milliseconds needs to be bound to `:now`.
+         */
+        const val SCORE = """(
+            100 * (substr(matchInfo, 9, 8) != '00000000') +
+            50 * (substr(matchInfo, 17, 8) != '00000000') +
+            25 * (substr(matchInfo, 25, 8) != '00000000') +
+            10 * (substr(matchInfo, 33, 8) != '00000000') +
+            5 * (substr(matchInfo, 41, 8) != '00000000') -
+            MIN(100, ((:now - lastUpdated) / 604800000) / 3)
+        )"""
+    }
+
     public fun getIcon(localeList: LocaleListCompat): FileV2? {
         return localizedIcon?.filter { icon ->
             icon.repoId == repoId
         }?.toLocalizedFileV2().getBestLocale(localeList)
     }
 
-    @Ignore
-    public val score: Double
-
-    init {
-        val info = matchInfo.toIntArray()
-        val numPhrases = info[0]
-        val numColumns = info[1]
-        val scoreMap = mutableMapOf<Int, Int>()
-        for (phrase in 0 until numPhrases) {
-            val offset = 2 + phrase * numColumns * 3
-            // start with 1 below, because we don't care about repoId column
-            for (column in 1 until numColumns) {
-                val numHitsInRow = info[offset + 3 * column]
-                // increase score if this column had a hit
-                if (numHitsInRow > 0) {
-                    // each hit in a column only contributes to the score once
-                    scoreMap.getOrPut(column) {
-                        weights[column] ?: error("No weight for column $column")
-                    }
-                }
-            }
-        }
-        val weeksOld = (System.currentTimeMillis() - lastUpdated) / (1000 * 60 * 60 * 24 * 7)
-        val punishment = min(100, weeksOld / 3)
-        score = scoreMap.values.sum().toDouble() - punishment
-    }
-
-    private fun ByteArray.toIntArray(skipSize: Int = 4): IntArray {
-        val intArray = IntArray(size / skipSize)
-        // go through each 4 bytes to turn them into integers
-        (indices step skipSize).forEachIndexed { intIndex, byteIndex ->
-            // we are cutting the first two bytes off, because we don't want to deal with UInt
-            // and expected integers are small enough
-            intArray[intIndex] = ByteBuffer.wrap(this, byteIndex, 4)
-                .order(ByteOrder.LITTLE_ENDIAN)
-                .int
-        }
-        return intArray
-    }
-
     override fun compareTo(other: AppSearchItem): Int {
         val scoreComp = score.compareTo(other.score)
         return if (scoreComp == 0) {
@@ -86,13 +66,3 @@ public data class AppSearchItem internal constructor(
         }
     }
 }
-
-@Suppress("ktlint:standard:no-multi-spaces")
-private val weights = mapOf(
-    // 0 is repoId which we ignore
-    1 to 100,   // "name"
-    2 to 50,    // "summary"
-    3 to 25,    // "description"
-    4 to 10,    // "authorName"
-    5 to 5,     // "packageName"
-)
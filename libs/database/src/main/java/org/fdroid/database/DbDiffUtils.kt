@@ -15,6 +15,8 @@ internal object DbDiffUtils {
      * to [itemList] and updates the DB as needed.
      *
      * @param newItem A function to produce a new [T] which typically contains the primary key(s).
+     * @param applyDiff A function applying a JSON Merge Patch to a [T],
+     * see [EntityDiffer] for faster alternatives to the default [ReflectionDiffer].
      */
     @Throws(SerializationException::class)
     fun <T : Any> diffAndUpdateTable(
@@ -28,6 +30,7 @@ internal object DbDiffUtils {
         insertReplace: (List<T>) -> Unit,
         isNewItemValid: (T) -> Boolean = { true },
         keyDenyList: List<String>? = null,
+        applyDiff: (T, JsonObject) -> T = { item, diff -> ReflectionDiffer.applyDiff(item, diff) },
     ) {
         if (!jsonObject.containsKey(jsonObjectKey)) return
         if (jsonObject[jsonObjectKey] == JsonNull) {
@@ -44,12 +47,11 @@ internal object DbDiffUtils {
                     val index = list.indexOfFirst { itemFinder(key, it) }
                     val item = if (index == -1) null else list[index]
                     if (item == null) {
-                        val itemToInsert =
-                            ReflectionDiffer.applyDiff(newItem(key), value.jsonObject)
+                        val itemToInsert = applyDiff(newItem(key), value.jsonObject)
                         if (!isNewItemValid(itemToInsert)) throw SerializationException("$newItem")
                         list.add(itemToInsert)
                     } else {
-                        list[index] = ReflectionDiffer.applyDiff(item, value.jsonObject)
+                        list[index] = applyDiff(item, value.jsonObject)
                     }
                 }
             }
@@ -10,6 +10,8 @@ import org.fdroid.CompatibilityCheckerImpl
 import org.fdroid.PackagePreference
 import org.fdroid.UpdateChecker
 
+private const val MAX_SINGLE_PACKAGE_LOOKUPS = 50
+
 public class DbUpdateChecker @JvmOverloads constructor(
     db: FDroidDatabase,
     private val packageManager: PackageManager,
@@ -36,10 +38,56 @@ public class DbUpdateChecker @JvmOverloads constructor(
         onlyFromPreferredRepo: Boolean = false,
         includeKnownVulnerabilities: Boolean = false,
     ): List<UpdatableApp> {
-        val updatableApps = ArrayList<UpdatableApp>()
-
         @Suppress("DEPRECATION") // we'll use this as long as it works, new one was broken
         val installedPackages = packageManager.getInstalledPackages(GET_SIGNATURES)
+        return getUpdatableApps(
+            installedPackages = installedPackages,
+            releaseChannels = releaseChannels,
+            onlyFromPreferredRepo = onlyFromPreferredRepo,
+            includeKnownVulnerabilities = includeKnownVulnerabilities,
+        )
+    }
+
+    /**
+     * Like [getUpdatableApps], but only checks the given [packageNames],
+     * e.g. because only those got changed by a repository update or were (re-)installed.
+     * Apps that are not installed are ignored.
+     */
+    @SuppressLint("PackageManagerGetSignatures")
+    public fun getUpdatableApps(
+        packageNames: Set<String>,
+        releaseChannels: List<String>? = null,
+        onlyFromPreferredRepo: Boolean = false,
+        includeKnownVulnerabilities: Boolean = false,
+    ): List<UpdatableApp> {
+        @Suppress("DEPRECATION")
+        val installedPackages = if (packageNames.size > MAX_SINGLE_PACKAGE_LOOKUPS) {
+            // cheaper to get all installed packages at once
+            packageManager.getInstalledPackages(GET_SIGNATURES).filter { packageInfo ->
+                packageInfo.packageName in packageNames
+            }
+        } else packageNames.mapNotNull { packageName ->
+            try {
+                packageManager.getPackageInfo(packageName, GET_SIGNATURES)
+            } catch (_: PackageManager.NameNotFoundException) {
+                null
+            }
+        }
+        return getUpdatableApps(
+            installedPackages = installedPackages,
+            releaseChannels = releaseChannels,
+            onlyFromPreferredRepo = onlyFromPreferredRepo,
+            includeKnownVulnerabilities = includeKnownVulnerabilities,
+        )
+    }
+
+    private fun getUpdatableApps(
+        installedPackages: List<PackageInfo>,
+        releaseChannels: List<String>?,
+        onlyFromPreferredRepo: Boolean,
+        includeKnownVulnerabilities: Boolean,
+    ): List<UpdatableApp> {
+        val updatableApps = ArrayList<UpdatableApp>()
         val packageNames = installedPackages.map { it.packageName }
         val preferredRepos = appPrefsDao.getPreferredRepos(packageNames)
 
@@ -52,6 +100,9 @@ public class DbUpdateChecker @JvmOverloads constructor(
             val list = versionsByPackage.getOrPut(version.packageName) { ArrayList() }
             list.add(version)
         }
+        // resolve updates in memory with all app prefs fetched at once
+        val appPrefs = appPrefsDao.getAppPrefs(versionsByPackage.keys.toList())
+        val updates = ArrayList<Pair<PackageInfo, Version>>()
         installedPackages.iterator().forEach { packageInfo ->
             val packageName = packageInfo.packageName
             val versions = versionsByPackage[packageName] ?: return@forEach // continue
@@ -62,18 +113,32 @@ public class DbUpdateChecker @JvmOverloads constructor(
                 preferredSigner = null,
                 releaseChannels = releaseChannels,
                 includeKnownVulnerabilities = includeKnownVulnerabilities,
+                preferencesGetter = { appPrefs[packageName] },
             )
-            if (version != null) {
-                val preferredRepoId = preferredRepos[packageName]
-                    ?: error("No preferred repo for $packageName")
-                val app = getUpdatableApp(
-                    version = version,
-                    installedVersionCode = getLongVersionCode(packageInfo),
-                    installedVersionName = packageInfo.versionName ?: "???", // should never be null
-                    isFromPreferredRepo = preferredRepoId == version.repoId,
-                )
-                if (app != null) updatableApps.add(app)
-            }
+            if (version != null) updates.add(Pair(packageInfo, version))
+        }
+        // fetch what is needed for showing the updates at once as well
+        val updateVersions = updates.map { it.second }
+        val versionedStrings = versionDao.getVersionedStrings(updateVersions)
+        val appOverviewItems = appDao.getAppOverviewItems(updateVersions.map { version ->
+            Pair(version.repoId, version.packageName)
+        })
+        updates.forEach { (packageInfo, version) ->
+            val packageName = packageInfo.packageName
+            val appOverviewItem = appOverviewItems[Pair(version.repoId, packageName)]
+                ?: return@forEach // continue
+            val preferredRepoId = preferredRepos[packageName]
+                ?: error("No preferred repo for $packageName")
+            val versionKey = Triple(version.repoId, packageName, version.versionId)
+            val app = getUpdatableApp(
+                version = version,
+                versionedStrings = versionedStrings[versionKey] ?: emptyList(),
+                appOverviewItem = appOverviewItem,
+                installedVersionCode = getLongVersionCode(packageInfo),
+                installedVersionName = packageInfo.versionName ?: "???", // should never be null
+                isFromPreferredRepo = preferredRepoId == version.repoId,
+            )
+            updatableApps.add(app)
         }
         return updatableApps
     }
@@ -134,10 +199,10 @@ public class DbUpdateChecker @JvmOverloads constructor(
         preferredSigner: String?,
         releaseChannels: List<String>?,
         includeKnownVulnerabilities: Boolean = false,
-    ): Version? {
-        val preferencesGetter: (() -> PackagePreference?) = {
+        preferencesGetter: (() -> PackagePreference?) = {
             appPrefsDao.getAppPrefsOrNull(packageName)
-        }
+        },
+    ): Version? {
         return if (packageInfo == null) {
             updateChecker.getSuggestedVersion(
                 versions = versions,
@@ -158,17 +223,12 @@ public class DbUpdateChecker @JvmOverloads constructor(
 
     private fun getUpdatableApp(
         version: Version,
+        versionedStrings: List<VersionedString>,
+        appOverviewItem: AppOverviewItem,
         installedVersionCode: Long,
         installedVersionName: String,
         isFromPreferredRepo: Boolean,
-    ): UpdatableApp? {
-        val versionedStrings = versionDao.getVersionedStrings(
-            repoId = version.repoId,
-            packageName = version.packageName,
-            versionId = version.versionId,
-        )
-        val appOverviewItem =
-            appDao.getAppOverviewItem(version.repoId, version.packageName) ?: return null
+    ): UpdatableApp {
         return UpdatableApp(
             repoId = version.repoId,
             packageName = version.packageName,
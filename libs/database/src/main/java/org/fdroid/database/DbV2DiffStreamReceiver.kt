@@ -13,11 +13,18 @@ internal class DbV2DiffStreamReceiver(
 
     private val locales: LocaleListCompat = LocaleListCompat.getDefault()
 
+    /**
+     * The apps that were touched by the diff.
+     */
+    val changedPackageNames: Set<String> get() = packageNames
+    private val packageNames = HashSet<String>()
+
     override fun receiveRepoDiff(version: Long, repoJsonObject: JsonObject) {
         db.getRepositoryDao().updateRepository(repoId, version, repoJsonObject)
     }
 
     override fun receivePackageMetadataDiff(packageName: String, packageJsonObject: JsonObject?) {
+        packageNames.add(packageName)
         db.getAppDao().updateApp(repoId, packageName, packageJsonObject, locales)
     }
 
@@ -25,6 +32,7 @@ internal class DbV2DiffStreamReceiver(
         packageName: String,
         versionsDiffMap: Map<String, JsonObject?>?,
     ) {
+        packageNames.add(packageName)
         db.getVersionDao().update(repoId, packageName, versionsDiffMap) {
             compatibilityChecker.isCompatible(it)
         }
@@ -5,13 +5,18 @@ import kotlinx.serialization.SerializationException
 import org.fdroid.CompatibilityChecker
 import org.fdroid.index.IndexFormatVersion.TWO
 import org.fdroid.index.v2.FileV2
-import org.fdroid.index.v2.IndexV2StreamReceiver
+import org.fdroid.index.v2.IndexV2PreparingStreamReceiver
 import org.fdroid.index.v2.PackageV2
 import org.fdroid.index.v2.RepoV2
 
 /**
  * Receives a stream of IndexV2 data and stores it in the DB.
  *
+ * Packages are not inserted one by one, but in batches, see [PackageBatchInserter].
+ * So all data is only guaranteed to be in the DB after [onStreamEnded] was called.
+ * Use it with an [org.fdroid.index.v2.IndexV2ParallelStreamProcessor]
+ * to [prepare] packages on several threads.
+ *
  * Note: This should only be used once.
  * If you want to process a second stream, create a new instance.
  */
@@ -19,10 +24,17 @@ internal class DbV2StreamReceiver(
     private val db: FDroidDatabaseInt,
     private val repoId: Long,
     private val compatibilityChecker: CompatibilityChecker,
-) : IndexV2StreamReceiver {
+) : IndexV2PreparingStreamReceiver<PackageRows> {
 
     private val locales: LocaleListCompat = LocaleListCompat.getDefault()
+    private val batchInserter = PackageBatchInserter(db)
     private var clearedRepoData = false
+
+    /**
+     * The apps that were in the repository before and the ones that are in it now.
+     */
+    val changedPackageNames: Set<String> get() = packageNames
+    private val packageNames = HashSet<String>()
     private val nonNullFileV2: (FileV2?) -> Unit = { fileV2 ->
         if (fileV2 != null) {
             if (fileV2.sha256 == null) throw SerializationException("${fileV2.name} has no sha256")
@@ -40,18 +52,27 @@ internal class DbV2StreamReceiver(
         db.getRepositoryDao().update(repoId, repo, version, TWO)
     }
 
-    @Synchronized
-    override fun receive(packageName: String, p: PackageV2) {
+    /**
+     * Validates the package and converts it into [PackageRows].
+     * This doesn't touch the DB or any other mutable state, so it can run on any thread.
+     */
+    override fun prepare(packageName: String, p: PackageV2): PackageRows {
         p.walkFiles(nonNullFileV2)
-        clearRepoDataIfNeeded()
-        db.getAppDao().insert(repoId, packageName, p.metadata, locales)
-        db.getVersionDao().insert(repoId, packageName, p.versions) {
+        return p.toPackageRows(repoId, packageName, locales) {
             compatibilityChecker.isCompatible(it.manifest)
         }
     }
 
+    @Synchronized
+    override fun receivePrepared(packageName: String, prepared: PackageRows) {
+        clearRepoDataIfNeeded()
+        packageNames.add(packageName)
+        batchInserter.add(prepared)
+    }
+
     @Synchronized
     override fun onStreamEnded() {
+        batchInserter.flush()
         db.afterUpdatingRepo(repoId)
     }
 
@@ -62,6 +83,7 @@ internal class DbV2StreamReceiver(
      */
     private fun clearRepoDataIfNeeded() {
         if (!clearedRepoData) {
+            packageNames.addAll(db.getAppDao().getPackageNames(repoId))
             db.getRepositoryDao().clear(repoId)
             clearedRepoData = true
         }
@@ -0,0 +1,301 @@
+package org.fdroid.database
+
+import kotlinx.serialization.SerializationException
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonNull
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.contentOrNull
+import kotlinx.serialization.json.intOrNull
+import kotlinx.serialization.json.longOrNull
+import org.fdroid.index.v2.FileV1
+import org.fdroid.index.v2.FileV2
+import org.fdroid.index.v2.LocalizedTextV2
+import org.fdroid.index.v2.ReflectionDiffer
+import org.fdroid.index.v2.SignerV2
+import org.fdroid.index.v2.UsesSdkV2
+
+/**
+ * Implements JSON Merge Patch (RFC 7386) for the database entities that get diffed
+ * for each changed package when applying an index diff.
+ *
+ * This has exactly the same semantics as [ReflectionDiffer.applyDiff],
+ * but spells out each property, so it doesn't need any slow reflection.
+ * Like with [ReflectionDiffer], the keys of the diff are the names of the constructor parameters.
+ * When adding or changing properties of the classes handled here,
+ * this needs to be updated as well (EntityDifferTest ensures parity with [ReflectionDiffer]).
+ *
+ * As with [ReflectionDiffer], internal fields are NOT protected here.
+ * Callers need to check the diff against their deny list first.
+ */
+internal object EntityDiffer {
+
+    @Throws(SerializationException::class)
+    fun applyDiff(obj: AppMetadata, diff: JsonObject): AppMetadata = AppMetadata(
+        repoId = diff.long("repoId", obj.repoId),
+        packageName = diff.string("packageName", obj.packageName),
+        added = diff.long("added", obj.added),
+        lastUpdated = diff.long("lastUpdated", obj.lastUpdated),
+        name = diff.text("name", obj.name),
+        summary = diff.text("summary", obj.summary),
+        description = diff.text("description", obj.description),
+        localizedName = diff.stringOrNull("localizedName", obj.localizedName),
+        localizedSummary = diff.stringOrNull("localizedSummary", obj.localizedSummary),
+        webSite = diff.stringOrNull("webSite", obj.webSite),
+        changelog = diff.stringOrNull("changelog", obj.changelog),
+        license = diff.stringOrNull("license", obj.license),
+        sourceCode = diff.stringOrNull("sourceCode", obj.sourceCode),
+        issueTracker = diff.stringOrNull("issueTracker", obj.issueTracker),
+        translation = diff.stringOrNull("translation", obj.translation),
+        preferredSigner = diff.stringOrNull("preferredSigner", obj.preferredSigner),
+        video = diff.text("video", obj.video),
+        authorName = diff.stringOrNull("authorName", obj.authorName),
+        authorEmail = diff.stringOrNull("authorEmail", obj.authorEmail),
+        authorWebSite = diff.stringOrNull("authorWebSite", obj.authorWebSite),
+        authorPhone = diff.stringOrNull("authorPhone", obj.authorPhone),
+        donate = diff.listOrNull("donate", obj.donate),
+        liberapayID = diff.stringOrNull("liberapayID", obj.liberapayID),
+        liberapay = diff.stringOrNull("liberapay", obj.liberapay),
+        openCollective = diff.stringOrNull("openCollective", obj.openCollective),
+        bitcoin = diff.stringOrNull("bitcoin", obj.bitcoin),
+        litecoin = diff.stringOrNull("litecoin", obj.litecoin),
+        flattrID = diff.stringOrNull("flattrID", obj.flattrID),
+        categories = diff.listOrNull("categories", obj.categories),
+        isCompatible = diff.boolean("isCompatible", obj.isCompatible),
+    )
+
+    @Throws(SerializationException::class)
+    fun applyDiff(obj: Version, diff: JsonObject): Version = Version(
+        repoId = diff.long("repoId", obj.repoId),
+        packageName = diff.string("packageName", obj.packageName),
+        versionId = diff.string("versionId", obj.versionId),
+        added = diff.long("added", obj.added),
+        file = diff.obj("file", obj.file, ::applyFileV1Diff),
+        src = diff.objOrNull("src", obj.src, ::applyFileV2Diff, ::constructFileV2),
+        manifest = diff.obj("manifest", obj.manifest, ::applyManifestDiff),
+        releaseChannels = diff.listOrNull("releaseChannels", obj.releaseChannels),
+        antiFeatures = diff.mapText("antiFeatures", obj.antiFeatures),
+        whatsNew = diff.text("whatsNew", obj.whatsNew),
+        isCompatible = diff.boolean("isCompatible", obj.isCompatible),
+    )
+
+    @Throws(SerializationException::class)
+    fun applyDiff(obj: LocalizedFile, diff: JsonObject): LocalizedFile = LocalizedFile(
+        repoId = diff.long("repoId", obj.repoId),
+        packageName = diff.string("packageName", obj.packageName),
+        type = diff.string("type", obj.type),
+        locale = diff.string("locale", obj.locale),
+        name = diff.string("name", obj.name),
+        sha256 = diff.stringOrNull("sha256", obj.sha256),
+        size = diff.longOrNull("size", obj.size),
+        ipfsCidV1 = diff.stringOrNull("ipfsCidV1", obj.ipfsCidV1),
+    )
+
+    private fun applyManifestDiff(obj: AppManifest, diff: JsonObject): AppManifest = AppManifest(
+        versionName = diff.string("versionName", obj.versionName),
+        versionCode = diff.long("versionCode", obj.versionCode),
+        usesSdk = diff.objOrNull("usesSdk", obj.usesSdk, ::applyUsesSdkDiff, ::constructUsesSdk),
+        maxSdkVersion = diff.intOrNull("maxSdkVersion", obj.maxSdkVersion),
+        signer = diff.objOrNull("signer", obj.signer, ::applySignerDiff, ::constructSigner),
+        nativecode = diff.listOrNull("nativecode", obj.nativecode),
+        features = diff.featuresOrNull("features", obj.features),
+    )
+
+    private fun applyFileV1Diff(obj: FileV1, diff: JsonObject): FileV1 = FileV1(
+        name = diff.string("name", obj.name),
+        sha256 = diff.string("sha256", obj.sha256),
+        size = diff.longOrNull("size", obj.size),
+        ipfsCidV1 = diff.stringOrNull("ipfsCidV1", obj.ipfsCidV1),
+    )
+
+    private fun applyFileV2Diff(obj: FileV2, diff: JsonObject): FileV2 = FileV2(
+        name = diff.string("name", obj.name),
+        sha256 = diff.stringOrNull("sha256", obj.sha256),
+        size = diff.longOrNull("size", obj.size),
+        ipfsCidV1 = diff.stringOrNull("ipfsCidV1", obj.ipfsCidV1),
+    )
+
+    private fun applyUsesSdkDiff(obj: UsesSdkV2, diff: JsonObject): UsesSdkV2 = UsesSdkV2(
+        minSdkVersion = diff.int("minSdkVersion", obj.minSdkVersion),
+        targetSdkVersion = diff.int("targetSdkVersion", obj.targetSdkVersion),
+    )
+
+    private fun applySignerDiff(obj: SignerV2, diff: JsonObject): SignerV2 = SignerV2(
+        sha256 = diff.list("sha256", obj.sha256),
+        hasMultipleSigners = diff.boolean("hasMultipleSigners", obj.hasMultipleSigners) {
+            false
+        },
+    )
+
+    /**
+     * Used when the diff introduces a new object, see [ReflectionDiffer.constructFromJson].
+     * Missing optional values get their default, missing required values throw.
+     */
+    private fun constructFileV2(json: JsonObject): FileV2 = FileV2(
+        name = json.string("name", null),
+        sha256 = json.stringOrNull("sha256", null),
+        size = json.longOrNull("size", null),
+        ipfsCidV1 = json.stringOrNull("ipfsCidV1", null),
+    )
+
+    private fun constructUsesSdk(json: JsonObject): UsesSdkV2 = UsesSdkV2(
+        minSdkVersion = json.int("minSdkVersion", null),
+        targetSdkVersion = json.int("targetSdkVersion", null),
+    )
+
+    private fun constructSigner(json: JsonObject): SignerV2 = SignerV2(
+        sha256 = json.list("sha256", null),
+        hasMultipleSigners = json.boolean("hasMultipleSigners", null) { false },
+    )
+
+    /**
+     * Returns the value for a non-nullable property.
+     * If [old] is null, we are constructing a new object and the [key] is required,
+     * unless the property has a [default].
+     */
+    private inline fun <T : Any> JsonObject.value(
+        key: String,
+        old: T?,
+        noinline default: (() -> T)?,
+        parse: (JsonElement) -> T,
+    ): T {
+        val element = get(key)
+            ?: return old ?: default?.invoke() ?: e("$key required but not found")
+        if (element is JsonNull) return default?.invoke() ?: e("not nullable: $key")
+        return parse(element)
+    }
+
+    /**
+     * Returns the value for a nullable property, null values in the diff erase the [old] value.
+     */
+    private inline fun <T : Any> JsonObject.valueOrNull(
+        key: String,
+        old: T?,
+        parse: (JsonElement) -> T,
+    ): T? {
+        val element = get(key) ?: return old
+        if (element is JsonNull) return null
+        return parse(element)
+    }
+
+    private fun JsonObject.long(key: String, old: Long?): Long = value(key, old, null) {
+        it.primitiveOrNull()?.longOrNull ?: e("$key no long")
+    }
+
+    private fun JsonObject.longOrNull(key: String, old: Long?): Long? = valueOrNull(key, old) {
+        it.primitiveOrNull()?.longOrNull ?: e("$key no long")
+    }
+
+    private fun JsonObject.int(key: String, old: Int?): Int = value(key, old, null) {
+        it.primitiveOrNull()?.intOrNull ?: e("$key no int")
+    }
+
+    private fun JsonObject.intOrNull(key: String, old: Int?): Int? = valueOrNull(key, old) {
+        it.primitiveOrNull()?.intOrNull ?: e("$key no int")
+    }
+
+    private fun JsonObject.string(key: String, old: String?): String = value(key, old, null) {
+        it.primitiveOrNull()?.contentOrNull ?: e("$key no string")
+    }
+
+    private fun JsonObject.stringOrNull(key: String, old: String?): String? =
+        valueOrNull(key, old) {
+            it.primitiveOrNull()?.contentOrNull ?: e("$key no string")
+        }
+
+    /**
+     * Booleans can't be set by a diff, see [ReflectionDiffer], only reset to their [default].
+     */
+    private fun JsonObject.boolean(
+        key: String,
+        old: Boolean?,
+        default: (() -> Boolean)? = null,
+    ): Boolean = value(key, old, default) { e("$key can not be changed") }
+
+    private fun JsonObject.list(key: String, old: List<String>?): List<String> =
+        value(key, old, null) { it.toStringList(key) }
+
+    private fun JsonObject.listOrNull(key: String, old: List<String>?): List<String>? =
+        valueOrNull(key, old) { it.toStringList(key) }
+
+    private fun JsonElement.toStringList(key: String): List<String> {
+        val array = jsonArrayOrNull() ?: e("$key no array")
+        return array.map {
+            it.primitiveOrNull()?.contentOrNull ?: e("$key non-primitive array")
+        }
+    }
+
+    private fun JsonObject.featuresOrNull(key: String, old: List<String>?): List<String>? =
+        valueOrNull(key, old) { element ->
+            val array = element.jsonArrayOrNull() ?: e("$key no array")
+            array.map {
+                (it as? JsonObject)?.get("name")?.primitiveOrNull()?.contentOrNull
+                    ?: e("features without primitive name: $it")
+            }
+        }
+
+    private fun <T : Any> JsonObject.obj(
+        key: String,
+        old: T,
+        applyDiff: (T, JsonObject) -> T,
+    ): T = value(key, old, null) {
+        applyDiff(old, it as? JsonObject ?: e("$key no dict"))
+    }
+
+    private fun <T : Any> JsonObject.objOrNull(
+        key: String,
+        old: T?,
+        applyDiff: (T, JsonObject) -> T,
+        construct: (JsonObject) -> T,
+    ): T? = valueOrNull(key, old) {
+        val jsonObject = it as? JsonObject ?: e("$key no dict")
+        if (old == null) construct(jsonObject) else applyDiff(old, jsonObject)
+    }
+
+    private fun JsonObject.text(key: String, old: LocalizedTextV2?): LocalizedTextV2? =
+        valueOrNull(key, old) {
+            applyTextDiff(old ?: HashMap(), it as? JsonObject ?: e("$key no map"))
+        }
+
+    private fun JsonObject.mapText(
+        key: String,
+        old: Map<String, LocalizedTextV2>?,
+    ): Map<String, LocalizedTextV2>? = valueOrNull(key, old) { element ->
+        val diff = element as? JsonObject ?: e("$key no map")
+        (old ?: HashMap()).toMutableMap().apply {
+            diff.entries.forEach { (mapKey, localizedTextElement) ->
+                if (localizedTextElement is JsonNull) {
+                    remove(mapKey)
+                    return@forEach
+                }
+                val localizedTextObject = localizedTextElement as? JsonObject
+                    ?: e("no FileV2: $localizedTextElement")
+                set(mapKey, applyTextDiff(old?.get(mapKey) ?: HashMap(), localizedTextObject))
+            }
+        }
+    }
+
+    private fun applyTextDiff(
+        obj: LocalizedTextV2,
+        diff: JsonObject,
+    ): LocalizedTextV2 = obj.toMutableMap().apply {
+        diff.entries.forEach { (locale, textElement) ->
+            if (textElement is JsonNull) {
+                remove(locale)
+                return@forEach
+            }
+            val text = textElement.primitiveOrNull()?.contentOrNull
+                ?: e("no string: $textElement")
+            set(locale, text)
+        }
+    }
+
+    private fun JsonElement.primitiveOrNull(): JsonPrimitive? = this as? JsonPrimitive
+
+    private fun JsonElement.jsonArrayOrNull(): JsonArray? = this as? JsonArray
+
+    @Throws(SerializationException::class)
+    private fun e(msg: String): Nothing = throw SerializationException(msg)
+
+}
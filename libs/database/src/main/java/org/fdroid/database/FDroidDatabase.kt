@@ -16,7 +16,7 @@ import java.util.concurrent.Callable
     // When bumping this version, please make sure to add one (or more) migration(s) below!
     // Consider also providing tests for that migration.
     // Don't forget to commit the new schema to the git repo as well.
-    version = 9,
+    version = 12,
     entities = [
         // repo
         CoreRepository::class,
@@ -28,6 +28,7 @@ import java.util.concurrent.Callable
         // packages
         AppMetadata::class,
         AppMetadataFts::class,
+        AppCategory::class,
         LocalizedFile::class,
         LocalizedFileList::class,
         // versions
@@ -35,11 +36,12 @@ import java.util.concurrent.Callable
         VersionedString::class,
         // app user preferences
         AppPrefs::class,
+        // derived data
+        HighestVersion::class,
+        PreferredRepo::class,
     ],
     views = [
         LocalizedIcon::class,
-        HighestVersion::class,
-        PreferredRepo::class,
     ],
     exportSchema = true,
     autoMigrations = [
@@ -51,6 +53,9 @@ import java.util.concurrent.Callable
         AutoMigration(6, 7),
         AutoMigration(7, 8, CountryCodeMigration::class),
         // 8 to 9 is a manual migration
+        AutoMigration(9, 10, AppCategoryMigration::class),
+        // 10 to 11 is a manual migration
+        // 11 to 12 is a manual migration
         // add future migrations above!
     ],
 )
@@ -79,9 +84,50 @@ internal abstract class FDroidDatabaseInt : RoomDatabase(), FDroidDatabase, Clos
     /**
      * Call this after updating the data belonging to the given [repoId],
      * so the [AppMetadata.isCompatible] can be recalculated in case new versions were added.
+     * This also refreshes the [HighestVersion] and [PreferredRepo] rows of the repository.
      */
     fun afterUpdatingRepo(repoId: Long) {
         getAppDao().updateCompatibility(repoId)
+        getVersionDao().refreshHighestVersions(repoId)
+        getAppPrefsDao().refreshPreferredRepos(repoId)
+    }
+
+    /**
+     * Runs the given [body] in bulk-load mode for the given [repoId].
+     * The triggers keeping [AppMetadataFts] in sync with [AppMetadata] get dropped,
+     * so inserting or updating thousands of apps doesn't update the full-text index row by row.
+     * Afterwards, the triggers get re-created and, if [body] succeeded,
+     * the index for [repoId] gets rebuilt in one go.
+     *
+     * The same is done for the [MaterializedTables.INDEX_TRIGGERS].
+     * Those tables get refreshed by [afterUpdatingRepo] which [body] is expected to call.
+     *
+     * This must be called inside a transaction, so the triggers are never missing for others,
+     * and [body] must not modify [AppMetadata] of other repositories.
+     */
+    fun <T> runInBulkLoadMode(repoId: Long, body: () -> T): T {
+        check(inTransaction()) { "Bulk loading is only possible inside a transaction" }
+        val db = openHelper.writableDatabase
+        // needs to happen while the content of the FTS rows is still in AppMetadata
+        db.execSQL(
+            "DELETE FROM ${AppMetadataFts.TABLE} WHERE docid IN " +
+                "(SELECT rowid FROM ${AppMetadata.TABLE} WHERE repoId = ?)",
+            arrayOf(repoId),
+        )
+        val triggers = FTS_TRIGGERS + MaterializedTables.INDEX_TRIGGERS
+        triggers.keys.forEach { name -> db.execSQL("DROP TRIGGER IF EXISTS `$name`") }
+        val result = try {
+            body()
+        } finally {
+            triggers.values.forEach { sql -> db.execSQL(sql) }
+        }
+        // only if the body succeeded, otherwise the transaction gets rolled back anyway
+        db.execSQL(
+            "INSERT INTO ${AppMetadataFts.TABLE}(docid, $FTS_COLUMNS) " +
+                "SELECT rowid, $FTS_COLUMNS FROM ${AppMetadata.TABLE} WHERE repoId = ?",
+            arrayOf(repoId),
+        )
+        return result
     }
 
     override fun clearAllAppData() {
@@ -108,6 +154,36 @@ internal abstract class FDroidDatabaseInt : RoomDatabase(), FDroidDatabase, Clos
     }
 }
 
+private const val FTS_COLUMNS = "repoId, name, summary, description, authorName, packageName"
+
+/**
+ * The triggers Room creates to keep [AppMetadataFts] in sync with its content table.
+ * Taken from auto-generated code, see also [MIGRATION_8_9]:
+ * build/generated/ksp/debug/kotlin/org/fdroid/database/FDroidDatabaseInt_Impl.kt
+ */
+private val FTS_TRIGGERS = mapOf(
+    "room_fts_content_sync_AppMetadataFts_BEFORE_UPDATE" to
+        "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_AppMetadataFts_BEFORE_UPDATE " +
+        "BEFORE UPDATE ON `AppMetadata` BEGIN DELETE FROM `AppMetadataFts` " +
+        "WHERE `docid`=OLD.`rowid`; END",
+    "room_fts_content_sync_AppMetadataFts_BEFORE_DELETE" to
+        "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_AppMetadataFts_BEFORE_DELETE " +
+        "BEFORE DELETE ON `AppMetadata` BEGIN DELETE FROM `AppMetadataFts` " +
+        "WHERE `docid`=OLD.`rowid`; END",
+    "room_fts_content_sync_AppMetadataFts_AFTER_UPDATE" to
+        "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_AppMetadataFts_AFTER_UPDATE " +
+        "AFTER UPDATE ON `AppMetadata` BEGIN INSERT INTO `AppMetadataFts`(`docid`, `repoId`, " +
+        "`name`, `summary`, `description`, `authorName`, `packageName`) VALUES (NEW.`rowid`, " +
+        "NEW.`repoId`, NEW.`name`, NEW.`summary`, NEW.`description`, NEW.`authorName`, " +
+        "NEW.`packageName`); END",
+    "room_fts_content_sync_AppMetadataFts_AFTER_INSERT" to
+        "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_AppMetadataFts_AFTER_INSERT " +
+        "AFTER INSERT ON `AppMetadata` BEGIN INSERT INTO `AppMetadataFts`(`docid`, `repoId`, " +
+        "`name`, `summary`, `description`, `authorName`, `packageName`) VALUES (NEW.`rowid`, " +
+        "NEW.`repoId`, NEW.`name`, NEW.`summary`, NEW.`description`, NEW.`authorName`, " +
+        "NEW.`packageName`); END",
+)
+
 /**
  * The F-Droid database offering methods to retrieve the various data access objects.
  */
@@ -58,10 +58,14 @@ public object FDroidDatabaseHolder {
                 FDroidDatabaseInt::class.java,
                 name,
             ).apply {
-                addMigrations(MIGRATION_2_3, MIGRATION_5_6, MIGRATION_8_9)
+                addMigrations(
+                    MIGRATION_2_3, MIGRATION_5_6, MIGRATION_8_9, MIGRATION_10_11, MIGRATION_11_12
+                )
                 // We allow destructive migration (if no real migration was provided),
                 // so we have the option to nuke the DB in production (if that will ever be needed).
                 fallbackToDestructiveMigration(false)
+                // keeps tables with data derived from other tables up-to-date
+                addCallback(MaterializedTables.Callback())
                 // Add our [FixtureCallback] if a fixture was provided
                 if (fixture != null) addCallback(FixtureCallback(fixture))
             }
@@ -0,0 +1,108 @@
+package org.fdroid.database
+
+import androidx.room.RoomDatabase
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+/**
+ * Keeps the [HighestVersion] and [PreferredRepo] tables in sync with the tables they derive from.
+ *
+ * Room has no support for triggers, so they get created by [Callback] whenever the database opens.
+ * Changes to single rows (e.g. when applying an index diff or changing preferences)
+ * update only the affected app via the triggers.
+ * After larger changes to a repository, [FDroidDatabaseInt.afterUpdatingRepo]
+ * refreshes all rows of that repository in one go.
+ */
+internal object MaterializedTables {
+
+    /**
+     * Triggers on tables that get filled from the index.
+     * These may be dropped in [FDroidDatabaseInt.runInBulkLoadMode].
+     */
+    val INDEX_TRIGGERS: Map<String, String> = mapOf(
+        trigger("HighestVersion_AFTER_INSERT", "AFTER INSERT ON ${Version.TABLE}") {
+            refreshHighestVersion("NEW")
+        },
+        trigger("HighestVersion_AFTER_UPDATE",
+            "AFTER UPDATE OF manifest_versionCode, antiFeatures ON ${Version.TABLE}") {
+            refreshHighestVersion("NEW")
+        },
+        trigger("HighestVersion_AFTER_DELETE", "AFTER DELETE ON ${Version.TABLE}") {
+            refreshHighestVersion("OLD")
+        },
+        trigger("PreferredRepo_AFTER_INSERT_APP", "AFTER INSERT ON ${AppMetadata.TABLE}") {
+            refreshPreferredRepo("packageName = NEW.packageName")
+        },
+        trigger("PreferredRepo_AFTER_DELETE_APP", "AFTER DELETE ON ${AppMetadata.TABLE}") {
+            refreshPreferredRepo("packageName = OLD.packageName")
+        },
+    )
+
+    /**
+     * Triggers on tables holding user preferences.
+     */
+    private val PREFERENCE_TRIGGERS: Map<String, String> = mapOf(
+        trigger("PreferredRepo_AFTER_INSERT_PREFS", "AFTER INSERT ON ${AppPrefs.TABLE}") {
+            refreshPreferredRepo("packageName = NEW.packageName")
+        },
+        trigger("PreferredRepo_AFTER_UPDATE_PREFS",
+            "AFTER UPDATE OF preferredRepoId ON ${AppPrefs.TABLE}") {
+            refreshPreferredRepo("packageName = NEW.packageName")
+        },
+        trigger("PreferredRepo_AFTER_DELETE_PREFS", "AFTER DELETE ON ${AppPrefs.TABLE}") {
+            refreshPreferredRepo("packageName = OLD.packageName")
+        },
+        // a change of weight or enabled state only affects apps of that repository
+        trigger("PreferredRepo_AFTER_INSERT_REPO",
+            "AFTER INSERT ON ${RepositoryPreferences.TABLE}") {
+            refreshPreferredRepo(
+                "packageName IN (SELECT packageName FROM ${AppMetadata.TABLE} " +
+                    "WHERE repoId = NEW.repoId)"
+            )
+        },
+        trigger("PreferredRepo_AFTER_UPDATE_REPO",
+            "AFTER UPDATE OF weight, enabled ON ${RepositoryPreferences.TABLE}") {
+            refreshPreferredRepo(
+                "packageName IN (SELECT packageName FROM ${AppMetadata.TABLE} " +
+                    "WHERE repoId = NEW.repoId)"
+            )
+        },
+    )
+
+    fun createTriggers(db: SupportSQLiteDatabase) {
+        INDEX_TRIGGERS.values.forEach { sql -> db.execSQL(sql) }
+        PREFERENCE_TRIGGERS.values.forEach { sql -> db.execSQL(sql) }
+    }
+
+    private fun trigger(
+        name: String,
+        event: String,
+        statements: () -> String,
+    ): Pair<String, String> {
+        val triggerName = "fdroid_materialized_$name"
+        return triggerName to "CREATE TRIGGER IF NOT EXISTS `$triggerName` $event " +
+            "BEGIN ${statements()} END"
+    }
+
+    private fun refreshHighestVersion(row: String): String {
+        val where = "WHERE repoId = $row.repoId AND packageName = $row.packageName"
+        return "DELETE FROM ${HighestVersion.TABLE} $where; " +
+            "INSERT INTO ${HighestVersion.TABLE} (repoId, packageName, antiFeatures) " +
+            "${HighestVersion.SELECT} $where ${HighestVersion.GROUP_BY};"
+    }
+
+    private fun refreshPreferredRepo(condition: String): String {
+        return "DELETE FROM ${PreferredRepo.TABLE} WHERE $condition; " +
+            "INSERT INTO ${PreferredRepo.TABLE} (packageName, preferredRepoId) " +
+            "${PreferredRepo.SELECT} AND $condition ${PreferredRepo.GROUP_BY};"
+    }
+
+    /**
+     * Creates the triggers when the database gets opened.
+     * This needs to be added to all database builders.
+     */
+    class Callback : RoomDatabase.Callback() {
+        override fun onOpen(db: SupportSQLiteDatabase) {
+            createTriggers(db)
+        }
+    }
+}
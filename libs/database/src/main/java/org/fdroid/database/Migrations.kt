@@ -3,6 +3,7 @@ package org.fdroid.database
 import android.content.ContentValues
 import android.database.Cursor
 import android.database.sqlite.SQLiteDatabase.CONFLICT_FAIL
+import android.database.sqlite.SQLiteDatabase.CONFLICT_IGNORE
 import androidx.room.RenameColumn
 import androidx.room.migration.AutoMigrationSpec
 import androidx.room.migration.Migration
@@ -222,3 +223,90 @@ internal val MIGRATION_8_9 = object : Migration(8, 9) {
         db.execSQL("INSERT INTO AppMetadataFts(AppMetadataFts) VALUES('rebuild')")
     }
 }
+
+/**
+ * Adds the [AppCategory] table and fills it with the categories of all existing apps,
+ * so we don't need to wait for the next repo update to be able to find apps by category.
+ */
+internal class AppCategoryMigration : AutoMigrationSpec {
+    override fun onPostMigrate(db: SupportSQLiteDatabase) {
+        db.beginTransaction()
+        try {
+            db.query(
+                "SELECT repoId, packageName, categories FROM ${AppMetadata.TABLE} " +
+                    "WHERE categories IS NOT NULL"
+            ).use { cursor ->
+                while (cursor.moveToNext()) {
+                    val repoId = cursor.getLong(0)
+                    val packageName = cursor.getString(1)
+                    Converters.fromStringToListString(cursor.getString(2)).distinct().forEach {
+                        db.insert(
+                            table = AppCategory.TABLE,
+                            conflictAlgorithm = CONFLICT_IGNORE,
+                            values = ContentValues(3).apply {
+                                put("repoId", repoId)
+                                put("packageName", packageName)
+                                put("categoryId", it)
+                            },
+                        )
+                    }
+                }
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+}
+
+/**
+ * Turns the [HighestVersion] and [PreferredRepo] views into tables of the same name
+ * and fills them with what the views returned.
+ * Room can't auto-migrate a view into a table, so this is a manual migration.
+ * The triggers keeping the tables in sync get created by [MaterializedTables.Callback].
+ */
+internal val MIGRATION_10_11 = object : Migration(10, 11) {
+    override fun migrate(db: SupportSQLiteDatabase) {
+        db.execSQL("DROP VIEW IF EXISTS `${HighestVersion.TABLE}`")
+        db.execSQL("DROP VIEW IF EXISTS `${PreferredRepo.TABLE}`")
+        // table creation taken from auto-generated code:
+        // build/generated/ksp/debug/kotlin/org/fdroid/database/FDroidDatabaseInt_Impl.kt
+        db.execSQL(
+            """CREATE TABLE IF NOT EXISTS `HighestVersion` (`repoId` INTEGER NOT NULL,
+            `packageName` TEXT NOT NULL, `antiFeatures` TEXT,
+            PRIMARY KEY(`repoId`, `packageName`))""".trimIndent()
+        )
+        db.execSQL(
+            """CREATE TABLE IF NOT EXISTS `PreferredRepo` (`packageName` TEXT NOT NULL,
+            `preferredRepoId` INTEGER NOT NULL, PRIMARY KEY(`packageName`))""".trimIndent()
+        )
+        db.execSQL(
+            "CREATE INDEX IF NOT EXISTS `index_PreferredRepo_preferredRepoId` " +
+                "ON `PreferredRepo` (`preferredRepoId`)"
+        )
+        db.execSQL(
+            "CREATE INDEX IF NOT EXISTS `index_AppMetadata_packageName` " +
+                "ON `AppMetadata` (`packageName`)"
+        )
+        db.execSQL(
+            "INSERT INTO ${HighestVersion.TABLE} (repoId, packageName, antiFeatures) " +
+                "${HighestVersion.SELECT} ${HighestVersion.GROUP_BY}"
+        )
+        db.execSQL(
+            "INSERT INTO ${PreferredRepo.TABLE} (packageName, preferredRepoId) " +
+                "${PreferredRepo.SELECT} ${PreferredRepo.GROUP_BY}"
+        )
+    }
+}
+
+/**
+ * Adds [RepositoryPreferences.entryCacheTags],
+ * so the v2 entry file doesn't need to be downloaded again when it hasn't changed.
+ */
+internal val MIGRATION_11_12 = object : Migration(11, 12) {
+    override fun migrate(db: SupportSQLiteDatabase) {
+        db.execSQL(
+            "ALTER TABLE `${RepositoryPreferences.TABLE}` ADD COLUMN `entryCacheTags` TEXT"
+        )
+    }
+}
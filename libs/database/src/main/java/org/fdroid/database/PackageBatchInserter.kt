@@ -0,0 +1,127 @@
+package org.fdroid.database
+
+import androidx.core.os.LocaleListCompat
+import org.fdroid.index.v2.PackageV2
+import org.fdroid.index.v2.PackageVersionV2
+
+/**
+ * All database rows belonging to a single [PackageV2].
+ * Creating those doesn't need the database, so it can happen on any thread.
+ */
+internal class PackageRows(
+    val appMetadata: AppMetadata,
+    val appCategories: List<AppCategory>,
+    val localizedFiles: List<LocalizedFile>,
+    val localizedFileLists: List<LocalizedFileList>,
+    val versions: List<Version>,
+    val versionedStrings: List<VersionedString>,
+)
+
+internal fun PackageV2.toPackageRows(
+    repoId: Long,
+    packageName: String,
+    locales: LocaleListCompat,
+    checkIfCompatible: (PackageVersionV2) -> Boolean,
+): PackageRows {
+    val localizedFiles = ArrayList<LocalizedFile>()
+    metadata.icon?.let { localizedFiles += it.toLocalizedFile(repoId, packageName, "icon") }
+    metadata.featureGraphic?.let {
+        localizedFiles += it.toLocalizedFile(repoId, packageName, "featureGraphic")
+    }
+    metadata.promoGraphic?.let {
+        localizedFiles += it.toLocalizedFile(repoId, packageName, "promoGraphic")
+    }
+    metadata.tvBanner?.let {
+        localizedFiles += it.toLocalizedFile(repoId, packageName, "tvBanner")
+    }
+    val localizedFileLists = ArrayList<LocalizedFileList>()
+    metadata.screenshots?.let { screenshots ->
+        screenshots.phone?.let {
+            localizedFileLists += it.toLocalizedFileList(repoId, packageName, "phone")
+        }
+        screenshots.sevenInch?.let {
+            localizedFileLists += it.toLocalizedFileList(repoId, packageName, "sevenInch")
+        }
+        screenshots.tenInch?.let {
+            localizedFileLists += it.toLocalizedFileList(repoId, packageName, "tenInch")
+        }
+        screenshots.wear?.let {
+            localizedFileLists += it.toLocalizedFileList(repoId, packageName, "wear")
+        }
+        screenshots.tv?.let {
+            localizedFileLists += it.toLocalizedFileList(repoId, packageName, "tv")
+        }
+    }
+    val versionList = ArrayList<Version>(versions.size)
+    val versionedStrings = ArrayList<VersionedString>()
+    versions.forEach { (versionId, packageVersion) ->
+        val isCompatible = checkIfCompatible(packageVersion)
+        val version = packageVersion.toVersion(repoId, packageName, versionId, isCompatible)
+        versionList += version
+        versionedStrings += packageVersion.manifest.getVersionedStrings(version)
+    }
+    val appMetadata = metadata.toAppMetadata(repoId, packageName, false, locales)
+    return PackageRows(
+        appMetadata = appMetadata,
+        appCategories = appMetadata.toAppCategories(),
+        localizedFiles = localizedFiles,
+        localizedFileLists = localizedFileLists,
+        versions = versionList,
+        versionedStrings = versionedStrings,
+    )
+}
+
+/**
+ * Buffers the [PackageRows] of up to [batchSize] packages
+ * and then inserts them with one multi-row insert per table.
+ * Room re-uses a single compiled statement for all rows of such an insert,
+ * so this avoids the overhead of separate nested transactions and inserts for each package.
+ *
+ * Call [flush] at the end to insert the remaining packages.
+ * This must be used within a transaction, so partial batches are never visible.
+ */
+internal class PackageBatchInserter(
+    private val db: FDroidDatabaseInt,
+    private val batchSize: Int = DEFAULT_BATCH_SIZE,
+) {
+
+    internal companion object {
+        const val DEFAULT_BATCH_SIZE = 100
+    }
+
+    private val appMetadata = ArrayList<AppMetadata>(batchSize)
+    private val appCategories = ArrayList<AppCategory>()
+    private val localizedFiles = ArrayList<LocalizedFile>()
+    private val localizedFileLists = ArrayList<LocalizedFileList>()
+    private val versions = ArrayList<Version>()
+    private val versionedStrings = ArrayList<VersionedString>()
+
+    fun add(rows: PackageRows) {
+        appMetadata += rows.appMetadata
+        appCategories += rows.appCategories
+        localizedFiles += rows.localizedFiles
+        localizedFileLists += rows.localizedFileLists
+        versions += rows.versions
+        versionedStrings += rows.versionedStrings
+        if (appMetadata.size >= batchSize) flush()
+    }
+
+    fun flush() {
+        if (appMetadata.isEmpty()) return
+        val appDao = db.getAppDao()
+        val versionDao = db.getVersionDao()
+        // order matters here, because of foreign keys to AppMetadata and Version
+        appDao.insertAppMetadata(appMetadata)
+        if (appCategories.isNotEmpty()) appDao.insertAppCategories(appCategories)
+        if (localizedFiles.isNotEmpty()) appDao.insert(localizedFiles)
+        if (localizedFileLists.isNotEmpty()) appDao.insertLocalizedFileLists(localizedFileLists)
+        if (versions.isNotEmpty()) versionDao.insertVersions(versions)
+        if (versionedStrings.isNotEmpty()) versionDao.insert(versionedStrings)
+        appMetadata.clear()
+        appCategories.clear()
+        localizedFiles.clear()
+        localizedFileLists.clear()
+        versions.clear()
+        versionedStrings.clear()
+    }
+}
@@ -183,6 +183,13 @@ public data class Repository internal constructor(
     public val lastETag: String?
         get() = preferences.lastETag
 
+    /**
+     * Returns the tag of the v2 entry file of the mirror with the given [baseUrl]
+     * when it was last processed, see [RepositoryPreferences.entryCacheTags].
+     */
+    internal fun getEntryCacheTag(baseUrl: String): String? =
+        preferences.entryCacheTags?.get(baseUrl)
+
     /**
      * The fingerprint for the [certificate].
      * This gets calculated on first call and is an expensive operation.
@@ -417,6 +424,12 @@ internal data class RepositoryPreferences(
     val disabledMirrors: List<String>? = null,
     val username: String? = null,
     val password: String? = null,
+    /**
+     * A tag for the v2 entry file of each mirror (by base URL) when it was last processed.
+     * It holds the mirror's ETag and Last-Modified headers which [IndexV2Updater] sends back
+     * to it, so the mirror doesn't need to send the entry file again when nothing has changed.
+     */
+    val entryCacheTags: Map<String, String>? = null,
 ) {
     internal companion object {
         const val TABLE = "RepositoryPreferences"
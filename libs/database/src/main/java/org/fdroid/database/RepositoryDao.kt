@@ -517,11 +517,22 @@ internal interface RepositoryDaoInt : RepositoryDao {
 
     /**
      * Resets ETags for *all* repos in the database.
-     * This will use cause a full index update when updating the repository via [IndexV1Updater].
+     * This will use cause a full index update when updating the repository via [IndexV1Updater]
+     * and the entry file to be downloaded again by [IndexV2Updater].
      */
-    @Query("UPDATE ${RepositoryPreferences.TABLE} SET lastETag = NULL")
+    @Query("UPDATE ${RepositoryPreferences.TABLE} SET lastETag = NULL, entryCacheTags = NULL")
     fun resetETags()
 
+    /**
+     * Remembers the given [cacheTag] of the v2 entry file of the mirror with the given [baseUrl].
+     */
+    @Transaction
+    fun updateEntryCacheTag(repoId: Long, baseUrl: String, cacheTag: String) {
+        val prefs = getRepositoryPreferences(repoId) ?: return
+        val cacheTags = (prefs.entryCacheTags ?: emptyMap()) + (baseUrl to cacheTag)
+        updateRepositoryPreferences(prefs.copy(entryCacheTags = cacheTags))
+    }
+
     /**
      * Use when replacing an existing repo with a full index.
      * This removes all existing index data associated with this repo from the database,
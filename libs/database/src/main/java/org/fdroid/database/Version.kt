@@ -1,7 +1,6 @@
 package org.fdroid.database
 
 import androidx.core.os.LocaleListCompat
-import androidx.room.DatabaseView
 import androidx.room.Embedded
 import androidx.room.Entity
 import androidx.room.ForeignKey
@@ -167,10 +166,16 @@ internal fun ManifestV2.toManifest() = AppManifest(
     features = features.map { it.name },
 )
 
-@DatabaseView(
-    viewName = HighestVersion.TABLE,
-    value = """SELECT repoId, packageName, antiFeatures FROM ${Version.TABLE}
-    GROUP BY repoId, packageName HAVING MAX(manifest_versionCode)""",
+/**
+ * The [Version.antiFeatures] of the version with the highest version code of each app.
+ * This used to be a database view, but is now a table,
+ * because it gets joined in almost all app queries.
+ * It is kept in sync by triggers, see [MaterializedTables],
+ * and refreshed for a whole repository in [FDroidDatabaseInt.afterUpdatingRepo].
+ */
+@Entity(
+    tableName = HighestVersion.TABLE,
+    primaryKeys = ["repoId", "packageName"],
 )
 internal class HighestVersion(
     val repoId: Long,
@@ -179,6 +184,13 @@ internal class HighestVersion(
 ) {
     internal companion object {
         const val TABLE = "HighestVersion"
+
+        /**
+         * Selects the rows of this table from [Version].
+         * A WHERE clause may be put between this and [GROUP_BY].
+         */
+        const val SELECT = "SELECT repoId, packageName, antiFeatures FROM ${Version.TABLE}"
+        const val GROUP_BY = "GROUP BY repoId, packageName HAVING MAX(manifest_versionCode)"
     }
 }
 
@@ -18,7 +18,6 @@ import org.fdroid.index.IndexParser.json
 import org.fdroid.index.v2.PackageManifest
 import org.fdroid.index.v2.PackageVersionV2
 import org.fdroid.index.v2.PermissionV2
-import org.fdroid.index.v2.ReflectionDiffer
 
 public interface VersionDao {
     /**
@@ -84,6 +83,28 @@ internal interface VersionDaoInt : VersionDao {
     @Insert(onConflict = REPLACE)
     fun insert(version: Version)
 
+    /**
+     * Re-computes all [HighestVersion] rows of the given [repoId].
+     * Changes to single versions are already handled by [MaterializedTables].
+     */
+    @Transaction
+    fun refreshHighestVersions(repoId: Long) {
+        deleteHighestVersions(repoId)
+        insertHighestVersions(repoId)
+    }
+
+    @Query("DELETE FROM ${HighestVersion.TABLE} WHERE repoId = :repoId")
+    fun deleteHighestVersions(repoId: Long)
+
+    @Query(
+        """INSERT INTO ${HighestVersion.TABLE} (repoId, packageName, antiFeatures)
+        ${HighestVersion.SELECT} WHERE repoId = :repoId ${HighestVersion.GROUP_BY}"""
+    )
+    fun insertHighestVersions(repoId: Long)
+
+    @Insert(onConflict = REPLACE)
+    fun insertVersions(versions: List<Version>)
+
     @Insert(onConflict = REPLACE)
     fun insert(versionedString: List<VersionedString>)
 
@@ -127,7 +148,7 @@ internal interface VersionDaoInt : VersionDao {
             }
         }
         // diff version
-        val diffedVersion = ReflectionDiffer.applyDiff(version, jsonObject)
+        val diffedVersion = EntityDiffer.applyDiff(version, jsonObject)
         val isCompatible = checkIfCompatible(diffedVersion.packageManifest)
         update(diffedVersion.copy(isCompatible = isCompatible))
         // diff versioned strings
@@ -222,6 +243,45 @@ internal interface VersionDaoInt : VersionDao {
         versionId: String,
     ): List<VersionedString>
 
+    /**
+     * Returns the [VersionedString]s of all given [versions]
+     * keyed by their repoId, packageName and versionId.
+     * This uses one query per repository and chunk of 499 versions
+     * instead of one query per version.
+     */
+    fun getVersionedStrings(
+        versions: List<Version>,
+    ): Map<Triple<Long, String, String>, List<VersionedString>> {
+        val keys = versions.mapTo(HashSet()) { Triple(it.repoId, it.packageName, it.versionId) }
+        val result = HashMap<Triple<Long, String, String>, ArrayList<VersionedString>>()
+        versions.groupBy { it.repoId }.forEach { (repoId, repoVersions) ->
+            // 999 is the maximum number of variables per query
+            repoVersions.chunked(499).forEach { chunk ->
+                getVersionedStringsInternal(
+                    repoId = repoId,
+                    packageNames = chunk.map { it.packageName },
+                    versionIds = chunk.map { it.versionId },
+                ).forEach { versionedString ->
+                    val key = Triple(repoId, versionedString.packageName, versionedString.versionId)
+                    // the query can return other combinations of packageNames and versionIds
+                    if (key in keys) result.getOrPut(key) { ArrayList() }.add(versionedString)
+                }
+            }
+        }
+        return result
+    }
+
+    /**
+     * Use [getVersionedStrings] instead as this handles more than 1000 versions.
+     */
+    @Query("""SELECT * FROM ${VersionedString.TABLE}
+        WHERE repoId = :repoId AND packageName IN (:packageNames) AND versionId IN (:versionIds)""")
+    fun getVersionedStringsInternal(
+        repoId: Long,
+        packageNames: List<String>,
+        versionIds: List<String>,
+    ): List<VersionedString>
+
     @Query("""DELETE FROM ${Version.TABLE} WHERE repoId = :repoId AND packageName = :packageName""")
     fun deleteAppVersion(repoId: Long, packageName: String)
 
@@ -34,6 +34,25 @@ public abstract class DownloaderFactory {
         return create(repo, mirrors, uri, indexFile, destFile, tryFirst)
     }
 
+    /**
+     * Returns a [DownloadRequest] for streaming the given [indexFile] with an [HttpManager],
+     * trying the canonical address first.
+     * This allows processing the file while it is still being downloaded.
+     *
+     * Returns null if the [uri] can not be streamed, e.g. for local or swap repositories.
+     * Use [createWithTryFirstMirror] to download the file first in that case.
+     */
+    public fun createStreamRequestWithTryFirstMirror(
+        repo: Repository,
+        uri: Uri,
+        indexFile: IndexFile,
+    ): DownloadRequest? {
+        val tryFirst = repo.getMirrors().find { mirror ->
+            mirror.baseUrl == repo.address
+        }
+        return createStreamRequest(repo, repo.getMirrors(), uri, indexFile, tryFirst)
+    }
+
     @Throws(IOException::class)
     public abstract fun create(
         repo: Repository,
@@ -52,4 +71,16 @@ public abstract class DownloaderFactory {
         tryFirst: Mirror?,
     ): Downloader
 
+    /**
+     * Override this to support streaming downloads, see [createStreamRequestWithTryFirstMirror].
+     * The default implementation does not support streaming.
+     */
+    protected open fun createStreamRequest(
+        repo: Repository,
+        mirrors: List<Mirror>,
+        uri: Uri,
+        indexFile: IndexFile,
+        tryFirst: Mirror?,
+    ): DownloadRequest? = null
+
 }
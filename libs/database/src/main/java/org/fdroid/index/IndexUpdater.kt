@@ -22,6 +22,14 @@ public sealed class IndexUpdateResult {
 public interface IndexUpdateListener {
     public fun onDownloadProgress(repo: Repository, bytesRead: Long, totalBytes: Long)
     public fun onUpdateProgress(repo: Repository, appsProcessed: Int, totalApps: Int)
+
+    /**
+     * Called after the index of the given [repo] was processed and committed to the database.
+     * [packageNames] are the apps that got added, changed or removed,
+     * so that only those need to be checked for updates again.
+     * If this is null, any app of the repository may have changed.
+     */
+    public fun onPackagesChanged(repo: Repository, packageNames: Set<String>?) {}
 }
 
 public fun interface RepoUriBuilder {
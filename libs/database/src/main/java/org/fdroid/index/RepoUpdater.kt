@@ -5,6 +5,7 @@ import org.fdroid.CompatibilityChecker
 import org.fdroid.database.FDroidDatabase
 import org.fdroid.database.Repository
 import org.fdroid.download.DownloaderFactory
+import org.fdroid.download.HttpManager
 import org.fdroid.index.v1.IndexV1Updater
 import org.fdroid.index.v2.IndexV2Updater
 import java.io.File
@@ -13,6 +14,9 @@ import java.io.FileNotFoundException
 /**
  * Updates a [Repository] with a downloaded index, detects changes and chooses the right
  * [IndexUpdater] automatically.
+ *
+ * Pass an [HttpManager] to allow streaming v2 indexes while downloading them,
+ * see [IndexV2Updater].
  */
 public class RepoUpdater(
     tempDir: File,
@@ -21,6 +25,7 @@ public class RepoUpdater(
     repoUriBuilder: RepoUriBuilder = defaultRepoUriBuilder,
     compatibilityChecker: CompatibilityChecker,
     listener: IndexUpdateListener? = null,
+    httpManager: HttpManager? = null,
 ) {
     private val log = KotlinLogging.logger {}
     private val tempFileProvider = TempFileProvider { sha256 ->
@@ -42,6 +47,7 @@ public class RepoUpdater(
             repoUriBuilder = repoUriBuilder,
             compatibilityChecker = compatibilityChecker,
             listener = listener,
+            httpManager = httpManager,
         ),
         IndexV1Updater(
             database = db,
@@ -59,11 +59,15 @@ public class IndexV1Updater(
 
             val verifier = IndexV1Verifier(file, repo.certificate, null)
             db.runInTransaction {
-                verifier.getStreamAndVerify { inputStream ->
-                    listener?.onUpdateProgress(repo, 0, 0)
-                    val streamReceiver = DbV1StreamReceiver(db, repo.repoId, compatibilityChecker)
-                    val streamProcessor = IndexV1StreamProcessor(streamReceiver, repo.timestamp)
-                    streamProcessor.process(inputStream)
+                // the v1 index is always a full index, so rebuild the search index only once
+                db.runInBulkLoadMode(repo.repoId) {
+                    verifier.getStreamAndVerify { inputStream ->
+                        listener?.onUpdateProgress(repo, 0, 0)
+                        val streamReceiver =
+                            DbV1StreamReceiver(db, repo.repoId, compatibilityChecker)
+                        val streamProcessor = IndexV1StreamProcessor(streamReceiver, repo.timestamp)
+                        streamProcessor.process(inputStream)
+                    }
                 }
                 // update RepositoryPreferences with timestamp and ETag (for v1)
                 val repoDao = db.getRepositoryDao()
@@ -79,6 +83,8 @@ public class IndexV1Updater(
         } finally {
             file.delete()
         }
+        // the v1 index is always a full index, we don't keep track of what changed
+        listener?.onPackagesChanged(repo, null)
         return IndexUpdateResult.Processed
     }
 }
@@ -1,12 +1,24 @@
 package org.fdroid.index.v2
 
+import io.ktor.client.plugins.ResponseException
+import io.ktor.http.HttpStatusCode.Companion.NotFound
+import kotlinx.coroutines.runBlocking
+import mu.KotlinLogging
 import org.fdroid.CompatibilityChecker
 import org.fdroid.database.DbV2DiffStreamReceiver
 import org.fdroid.database.DbV2StreamReceiver
 import org.fdroid.database.FDroidDatabase
 import org.fdroid.database.FDroidDatabaseInt
 import org.fdroid.database.Repository
+import org.fdroid.download.CacheValidators
+import org.fdroid.download.ConditionalResponse
+import org.fdroid.download.DownloadRequest
 import org.fdroid.download.DownloaderFactory
+import org.fdroid.download.HttpManager
+import org.fdroid.download.Mirror
+import org.fdroid.download.NotFoundException
+import org.fdroid.download.getDigestInputStream
+import org.fdroid.fdroid.getDigestHex
 import org.fdroid.index.IndexFormatVersion
 import org.fdroid.index.IndexFormatVersion.ONE
 import org.fdroid.index.IndexFormatVersion.TWO
@@ -15,13 +27,35 @@ import org.fdroid.index.IndexUpdateListener
 import org.fdroid.index.IndexUpdateResult
 import org.fdroid.index.IndexUpdater
 import org.fdroid.index.RepoUriBuilder
+import org.fdroid.index.SigningException
 import org.fdroid.index.TempFileProvider
 import org.fdroid.index.defaultRepoUriBuilder
 import org.fdroid.index.parseEntry
 import org.fdroid.index.setIndexUpdateListener
+import java.io.File
+import java.io.InputStream
+import java.security.DigestInputStream
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 
 public const val SIGNED_FILE_NAME: String = "entry.jar"
 
+/**
+ * Updates a [Repository] with a v2 index.
+ *
+ * If an [httpManager] is given and the [downloaderFactory] supports streaming
+ * (see [DownloaderFactory.createStreamRequestWithTryFirstMirror]),
+ * the index gets processed while it is still downloading
+ * and its hash is verified before the database transaction gets committed.
+ * Otherwise, the index gets downloaded to a temporary file first.
+ *
+ * Several repositories may get updated with the same instance at once.
+ * Their indexes get processed one at a time, so only one of them can be streamed
+ * while the others get downloaded to temporary files in the meantime.
+ *
+ * Full indexes get decoded on several threads with an [IndexV2ParallelStreamProcessor],
+ * while the database writes stay on the thread holding the transaction.
+ */
 public class IndexV2Updater(
     database: FDroidDatabase,
     private val tempFileProvider: TempFileProvider,
@@ -29,13 +63,36 @@ public class IndexV2Updater(
     private val repoUriBuilder: RepoUriBuilder = defaultRepoUriBuilder,
     private val compatibilityChecker: CompatibilityChecker,
     private val listener: IndexUpdateListener? = null,
+    private val httpManager: HttpManager? = null,
 ) : IndexUpdater() {
 
+    private val log = KotlinLogging.logger {}
     public override val formatVersion: IndexFormatVersion = TWO
+
+    /**
+     * Held while an index gets processed, so concurrent updates don't wait for
+     * each other's database transactions in the middle of a download.
+     */
+    private val processLock = ReentrantLock()
     private val db: FDroidDatabaseInt = database as FDroidDatabaseInt
 
     override fun updateRepo(repo: Repository): IndexUpdateResult {
-        val (_, entry) = getCertAndEntry(repo, repo.certificate)
+        val (_, entry, response) = getCertAndEntry(repo, repo.certificate) ?: run {
+            log.debug { "$SIGNED_FILE_NAME of ${repo.address} not modified." }
+            return IndexUpdateResult.Unchanged
+        }
+        return processEntry(repo, entry).also {
+            // only remember the validators once the entry was processed, so we don't miss changes
+            val validators = response?.validators ?: return@also
+            db.getRepositoryDao().updateEntryCacheTag(
+                repoId = repo.repoId,
+                baseUrl = response.mirror.baseUrl,
+                cacheTag = validators.toCacheTag(),
+            )
+        }
+    }
+
+    private fun processEntry(repo: Repository, entry: Entry): IndexUpdateResult {
         // don't process repos that we already did process in the past
         if (entry.timestamp <= repo.timestamp) return IndexUpdateResult.Unchanged
         // get diff, if available
@@ -43,73 +100,143 @@ public class IndexV2Updater(
         return if (diff == null || repo.formatVersion == ONE) {
             // no diff found (or this is upgrade from v1 repo), so do full index update
             val streamReceiver = DbV2StreamReceiver(db, repo.repoId, compatibilityChecker)
-            val streamProcessor = IndexV2FullStreamProcessor(streamReceiver)
-            processStream(repo, entry.index, entry.version, streamProcessor)
+            val streamProcessor = IndexV2ParallelStreamProcessor(streamReceiver)
+            processStream(repo, entry.index, entry.version, streamProcessor, bulkLoad = true).also {
+                listener?.onPackagesChanged(repo, streamReceiver.changedPackageNames)
+            }
         } else {
             // use available diff
             val streamReceiver = DbV2DiffStreamReceiver(db, repo.repoId, compatibilityChecker)
             val streamProcessor = IndexV2DiffStreamProcessor(streamReceiver)
-            processStream(repo, diff, entry.version, streamProcessor)
+            processStream(repo, diff, entry.version, streamProcessor).also {
+                listener?.onPackagesChanged(repo, streamReceiver.changedPackageNames)
+            }
         }
     }
 
-    private fun getCertAndEntry(repo: Repository, certificate: String): Pair<String, Entry> {
+    /**
+     * Downloads and verifies the entry file.
+     * Returns null, if the mirror responded that it wasn't modified since we processed it,
+     * see [getEntryIfModified].
+     * The returned [ConditionalResponse] is null, if the entry had to be downloaded otherwise.
+     */
+    private fun getCertAndEntry(
+        repo: Repository,
+        certificate: String,
+    ): Triple<String, Entry, ConditionalResponse?>? {
         val file = tempFileProvider.createTempFile(null)
-        val downloader = downloaderFactory.createWithTryFirstMirror(
-            repo = repo,
-            uri = repoUriBuilder.getUri(repo, SIGNED_FILE_NAME),
-            indexFile = FileV2.fromPath("/$SIGNED_FILE_NAME"),
-            destFile = file,
-        ).apply {
-            setIndexUpdateListener(listener, repo)
-        }
         try {
-            downloader.download()
+            val response = getEntryIfModified(repo, file)
+            if (response?.isModified == false) return null
+            if (response == null) {
+                downloaderFactory.createWithTryFirstMirror(
+                    repo = repo,
+                    uri = repoUriBuilder.getUri(repo, SIGNED_FILE_NAME),
+                    indexFile = FileV2.fromPath("/$SIGNED_FILE_NAME"),
+                    destFile = file,
+                ).apply {
+                    setIndexUpdateListener(listener, repo)
+                }.download()
+            }
             val verifier = EntryVerifier(file, certificate, null)
-            return verifier.getStreamAndVerify { inputStream ->
+            val (cert, entry) = verifier.getStreamAndVerify { inputStream ->
                 IndexParser.parseEntry(inputStream)
             }
+            return Triple(cert, entry, response)
         } finally {
             file.delete()
         }
     }
 
+    /**
+     * Writes the entry file to the given [file] with a conditional GET,
+     * sending the [CacheValidators] we stored for the mirror that gets requested.
+     * So the mirror can tell us that it wasn't modified without sending it again.
+     * Returns null, if the entry can't be requested with the [httpManager].
+     */
+    private fun getEntryIfModified(repo: Repository, file: File): ConditionalResponse? {
+        if (httpManager == null) return null
+        val request = downloaderFactory.createStreamRequestWithTryFirstMirror(
+            repo = repo,
+            uri = repoUriBuilder.getUri(repo, SIGNED_FILE_NAME),
+            indexFile = FileV2.fromPath("/$SIGNED_FILE_NAME"),
+        ) ?: return null
+        val getValidators = { mirror: Mirror ->
+            repo.getEntryCacheTag(mirror.baseUrl)?.toCacheValidators()
+        }
+        return try {
+            runBlocking {
+                file.outputStream().use { outputStream ->
+                    httpManager.getIfModified(request, getValidators) { buffer, length, _ ->
+                        outputStream.write(buffer, 0, length)
+                    }
+                }
+            }
+        } catch (e: ResponseException) {
+            if (e.response.status == NotFound) throw NotFoundException(e)
+            else throw e
+        }
+    }
+
+    // header values can't contain line breaks
+    private fun CacheValidators.toCacheTag(): String =
+        "${eTag.orEmpty()}\n${lastModified.orEmpty()}"
+
+    private fun String.toCacheValidators() = CacheValidators(
+        eTag = substringBefore('\n').ifEmpty { null },
+        lastModified = substringAfter('\n', "").ifEmpty { null },
+    )
+
     private fun processStream(
         repo: Repository,
         entryFile: EntryFileV2,
         repoVersion: Long,
         streamProcessor: IndexV2StreamProcessor,
+        bulkLoad: Boolean = false,
     ): IndexUpdateResult {
+        val uri = repoUriBuilder.getUri(repo, entryFile.name.trimStart('/'))
         val file = tempFileProvider.createTempFile(entryFile.sha256)
-        val downloader = downloaderFactory.createWithTryFirstMirror(
-            repo = repo,
-            uri = repoUriBuilder.getUri(repo, entryFile.name.trimStart('/')),
-            indexFile = entryFile,
-            destFile = file,
-        ).apply {
-            setIndexUpdateListener(listener, repo)
+        // don't stream if we have the file already, e.g. from adding the repo
+        val streamRequest = if (httpManager == null || file.length() > 0) null else {
+            downloaderFactory.createStreamRequestWithTryFirstMirror(repo, uri, entryFile)
         }
         try {
-            downloader.download()
-            file.inputStream().use { inputStream ->
-                val repoDao = db.getRepositoryDao()
-                db.runInTransaction {
-                    // ensure somebody else hasn't updated the repo in the meantime
-                    val currentTimestamp = repoDao.getRepository(repo.repoId)?.timestamp
-                    if (currentTimestamp != repo.timestamp) throw ConcurrentModificationException(
-                        "Repo timestamp expected ${repo.timestamp}, but was $currentTimestamp"
+            // only stream, if we can process right away, otherwise download while waiting
+            if (streamRequest != null && httpManager != null && processLock.tryLock()) {
+                try {
+                    streamAndProcess(
+                        httpManager = httpManager,
+                        request = streamRequest,
+                        repo = repo,
+                        entryFile = entryFile,
+                        repoVersion = repoVersion,
+                        streamProcessor = streamProcessor,
+                        bulkLoad = bulkLoad,
                     )
-                    // still the expected timestamp, so go on processing...
-                    streamProcessor.process(repoVersion, inputStream) { i ->
-                        listener?.onUpdateProgress(repo, i, entryFile.numPackages)
-                    }
-                    // update RepositoryPreferences with timestamp
-                    val repoPrefs = repoDao.getRepositoryPreferences(repo.repoId)
-                        ?: error("No repo prefs for ${repo.repoId}")
-                    val updatedPrefs = repoPrefs.copy(
-                        lastUpdated = System.currentTimeMillis(),
+                } finally {
+                    processLock.unlock()
+                }
+                return IndexUpdateResult.Processed
+            }
+            val downloader = downloaderFactory.createWithTryFirstMirror(
+                repo = repo,
+                uri = uri,
+                indexFile = entryFile,
+                destFile = file,
+            ).apply {
+                setIndexUpdateListener(listener, repo)
+            }
+            downloader.download()
+            processLock.withLock {
+                file.inputStream().use { inputStream ->
+                    processInTransaction(
+                        repo = repo,
+                        entryFile = entryFile,
+                        repoVersion = repoVersion,
+                        streamProcessor = streamProcessor,
+                        inputStream = inputStream,
+                        bulkLoad = bulkLoad,
                     )
-                    repoDao.updateRepositoryPreferences(updatedPrefs)
                 }
             }
         } finally {
@@ -117,4 +244,91 @@ public class IndexV2Updater(
         }
         return IndexUpdateResult.Processed
     }
+
+    /**
+     * Processes the index while it is still downloading.
+     * Its hash can only be known after the last byte was received,
+     * so we check it at the end of the transaction and roll back, if it doesn't match.
+     */
+    private fun streamAndProcess(
+        httpManager: HttpManager,
+        request: DownloadRequest,
+        repo: Repository,
+        entryFile: EntryFileV2,
+        repoVersion: Long,
+        streamProcessor: IndexV2StreamProcessor,
+        bulkLoad: Boolean,
+    ) {
+        val digestInputStream = try {
+            runBlocking { httpManager.getDigestInputStream(request) }
+        } catch (e: ResponseException) {
+            if (e.response.status == NotFound) throw NotFoundException(e)
+            else throw e
+        }
+        digestInputStream.use { inputStream ->
+            processInTransaction(
+                repo = repo,
+                entryFile = entryFile,
+                repoVersion = repoVersion,
+                streamProcessor = streamProcessor,
+                inputStream = inputStream,
+                bulkLoad = bulkLoad,
+            ) {
+                verifyHash(inputStream, entryFile)
+            }
+        }
+    }
+
+    @Throws(SigningException::class)
+    private fun verifyHash(inputStream: DigestInputStream, entryFile: EntryFileV2) {
+        // the parser may stop before the end of the stream, so read what is left for the hash
+        val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+        var bytes = inputStream.read(buffer)
+        while (bytes >= 0) bytes = inputStream.read(buffer)
+        val hexDigest = inputStream.getDigestHex()
+        if (!hexDigest.equals(entryFile.sha256, ignoreCase = true)) {
+            throw SigningException("Invalid ${entryFile.name} hash: $hexDigest")
+        }
+    }
+
+    /**
+     * Processes the given [inputStream] in a single database transaction.
+     * If [beforeCommit] throws, the entire transaction gets rolled back.
+     *
+     * Use [bulkLoad] for full indexes, so the search index gets rebuilt once at the end
+     * instead of being updated for each app, see [FDroidDatabaseInt.runInBulkLoadMode].
+     */
+    private fun processInTransaction(
+        repo: Repository,
+        entryFile: EntryFileV2,
+        repoVersion: Long,
+        streamProcessor: IndexV2StreamProcessor,
+        inputStream: InputStream,
+        bulkLoad: Boolean = false,
+        beforeCommit: () -> Unit = {},
+    ) {
+        val repoDao = db.getRepositoryDao()
+        db.runInTransaction {
+            // ensure somebody else hasn't updated the repo in the meantime
+            val currentTimestamp = repoDao.getRepository(repo.repoId)?.timestamp
+            if (currentTimestamp != repo.timestamp) throw ConcurrentModificationException(
+                "Repo timestamp expected ${repo.timestamp}, but was $currentTimestamp"
+            )
+            // still the expected timestamp, so go on processing...
+            val process = {
+                streamProcessor.process(repoVersion, inputStream) { i ->
+                    listener?.onUpdateProgress(repo, i, entryFile.numPackages)
+                }
+            }
+            if (bulkLoad) db.runInBulkLoadMode(repo.repoId, process) else process()
+            // update RepositoryPreferences with timestamp
+            val repoPrefs = repoDao.getRepositoryPreferences(repo.repoId)
+                ?: error("No repo prefs for ${repo.repoId}")
+            val updatedPrefs = repoPrefs.copy(
+                lastUpdated = System.currentTimeMillis(),
+            )
+            repoDao.updateRepositoryPreferences(updatedPrefs)
+            beforeCommit()
+        }
+    }
 }
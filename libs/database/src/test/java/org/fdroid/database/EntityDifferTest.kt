@@ -0,0 +1,183 @@
+package org.fdroid.database
+
+import android.content.Context
+import androidx.core.os.LocaleListCompat
+import androidx.test.core.app.ApplicationProvider.getApplicationContext
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import kotlinx.serialization.SerializationException
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.jsonObject
+import org.fdroid.index.IndexParser
+import org.fdroid.index.IndexParser.json
+import org.fdroid.index.parseV2
+import org.fdroid.index.v2.IndexV2
+import org.fdroid.index.v2.LocalizedFileV2
+import org.fdroid.index.v2.ReflectionDiffer
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Locale
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+/**
+ * Ensures that [EntityDiffer] behaves exactly like [ReflectionDiffer].
+ */
+@RunWith(AndroidJUnit4::class)
+internal class EntityDifferTest {
+
+    private val assets = getApplicationContext<Context>().resources.assets
+    private val locales = LocaleListCompat.create(Locale.US)
+
+    private val startPaths = listOf(
+        "index-empty-v2.json",
+        "index-min-v2.json",
+        "index-mid-v2.json",
+        "index-max-v2.json",
+    )
+    private val diffPaths = listOf(
+        "diff-empty-min/23.json",
+        "diff-empty-mid/23.json",
+        "diff-empty-mid/42.json",
+        "diff-empty-max/23.json",
+        "diff-empty-max/42.json",
+        "diff-empty-max/1337.json",
+    )
+    private val fileTypes = listOf("icon", "featureGraphic", "promoGraphic", "tvBanner")
+
+    @Test
+    fun testDiffFixtures() {
+        var numDiffs = 0
+        // apply each diff to packages from all start indexes, not only the one it was made for,
+        // so we also cover diffs that fail or that get applied to unexpected values
+        startPaths.forEach { startPath ->
+            val start = assets.open(startPath).use { IndexParser.parseV2(it) }
+            diffPaths.forEach { diffPath ->
+                numDiffs += testDiff(start, readJson(diffPath))
+            }
+        }
+        assertTrue(numDiffs > 0)
+    }
+
+    @Test
+    fun testEdgeCases() {
+        val start = assets.open("index-max-v2.json").use { IndexParser.parseV2(it) }
+        val metadataDiffs = listOf(
+            """{"webSite": null, "name": {"de": null, "fr": "Nom"}}""",
+            """{"video": {"en-US": null}, "donate": null, "categories": []}""",
+            """{"localizedName": 23, "lastUpdated": "1337"}""",
+            """{"added": null}""",
+            """{"added": "foo"}""",
+            """{"summary": "foo"}""",
+            """{"categories": ["a", {"b": "c"}]}""",
+            """{"isCompatible": true}""",
+            """{"isCompatible": null}""",
+        )
+        val versionDiffs = listOf(
+            """{"src": null, "whatsNew": null, "releaseChannels": null}""",
+            """{"src": {"name": "/src.tar.gz"}}""",
+            """{"src": {"sha256": "foo"}}""",
+            """{"file": null}""",
+            """{"file": {"name": "/foo.apk", "size": null}}""",
+            """{"manifest": {"features": [{"name": "foo"}], "nativecode": null}}""",
+            """{"manifest": {"features": ["foo"]}}""",
+            """{"manifest": {"usesSdk": {"minSdkVersion": 21}, "maxSdkVersion": null}}""",
+            """{"manifest": {"usesSdk": null, "signer": {"sha256": ["foo"]}}}""",
+            """{"manifest": {"signer": {"hasMultipleSigners": null}}}""",
+            """{"manifest": {"signer": {"hasMultipleSigners": true}}}""",
+            """{"antiFeatures": {"Ads": null, "NonFreeNet": {"en-US": "foo"}}}""",
+            """{"antiFeatures": {"Ads": "foo"}}""",
+            """{"isCompatible": false}""",
+        )
+        start.packages.forEach { (packageName, packageV2) ->
+            val metadata = packageV2.metadata.toAppMetadata(REPO_ID, packageName, true, locales)
+            metadataDiffs.forEach { diff ->
+                assertSameDiff(metadata, json.parseToJsonElement(diff).jsonObject) { o, d ->
+                    EntityDiffer.applyDiff(o, d)
+                }
+            }
+            packageV2.versions.forEach { (versionId, packageVersionV2) ->
+                val version = packageVersionV2.toVersion(REPO_ID, packageName, versionId, true)
+                versionDiffs.forEach { diff ->
+                    assertSameDiff(version, json.parseToJsonElement(diff).jsonObject) { o, d ->
+                        EntityDiffer.applyDiff(o, d)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the [diff] to all packages in [start] and returns the number of applied diffs.
+     */
+    private fun testDiff(start: IndexV2, diff: JsonObject): Int {
+        var numDiffs = 0
+        val packagesDiff = diff["packages"] as? JsonObject ?: return 0
+        packagesDiff.forEach { (packageName, packageDiff) ->
+            val packageV2 = start.packages[packageName] ?: return@forEach
+            if (packageDiff !is JsonObject) return@forEach
+            // metadata
+            val metadataDiff = packageDiff["metadata"] as? JsonObject
+            if (metadataDiff != null) {
+                val metadataV2 = packageV2.metadata
+                val metadata = metadataV2.toAppMetadata(REPO_ID, packageName, false, locales)
+                assertSameDiff(metadata, metadataDiff) { o, d -> EntityDiffer.applyDiff(o, d) }
+                numDiffs++
+                // localized files
+                fileTypes.forEach { type ->
+                    val localizedFiles: LocalizedFileV2? = when (type) {
+                        "icon" -> metadataV2.icon
+                        "featureGraphic" -> metadataV2.featureGraphic
+                        "promoGraphic" -> metadataV2.promoGraphic
+                        else -> metadataV2.tvBanner
+                    }
+                    val files = localizedFiles?.toLocalizedFile(REPO_ID, packageName, type)
+                    val filesDiff = metadataDiff[type] as? JsonObject ?: return@forEach
+                    filesDiff.forEach { (locale, fileDiff) ->
+                        if (fileDiff !is JsonObject) return@forEach
+                        val file = files?.find { it.locale == locale }
+                            ?: LocalizedFile(REPO_ID, packageName, type, locale, "")
+                        assertSameDiff(file, fileDiff) { o, d -> EntityDiffer.applyDiff(o, d) }
+                        numDiffs++
+                    }
+                }
+            }
+            // versions, each diff gets applied to every version of the package
+            val versionsDiff = packageDiff["versions"] as? JsonObject ?: return@forEach
+            versionsDiff.values.forEach { versionDiff ->
+                if (versionDiff !is JsonObject) return@forEach
+                packageV2.versions.forEach { (versionId, packageVersionV2) ->
+                    val version = packageVersionV2.toVersion(REPO_ID, packageName, versionId, true)
+                    assertSameDiff(version, versionDiff) { o, d -> EntityDiffer.applyDiff(o, d) }
+                    numDiffs++
+                }
+            }
+        }
+        return numDiffs
+    }
+
+    private fun <T : Any> assertSameDiff(
+        obj: T,
+        diff: JsonObject,
+        applyDiff: (T, JsonObject) -> T,
+    ) {
+        val expected = try {
+            ReflectionDiffer.applyDiff(obj, diff)
+        } catch (e: SerializationException) {
+            assertFailsWith<SerializationException>("$diff") {
+                applyDiff(obj, diff)
+            }
+            return
+        }
+        assertEquals(expected, applyDiff(obj, diff), "$diff")
+    }
+
+    private fun readJson(path: String): JsonObject = assets.open(path).use { inputStream ->
+        json.parseToJsonElement(inputStream.readBytes().decodeToString()).jsonObject
+    }
+
+    private companion object {
+        const val REPO_ID = 1L
+    }
+
+}
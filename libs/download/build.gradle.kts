@@ -49,6 +49,7 @@ kotlin {
         androidMain {
             dependencies {
                 implementation(libs.ktor.client.okhttp)
+                implementation(libs.bcprov.jdk15to18)
                 //noinspection UseTomlInstead
                 implementation("com.github.bumptech.glide:glide:4.16.0") {
                     isTransitive = false // we don't need all that it pulls in, just the basics
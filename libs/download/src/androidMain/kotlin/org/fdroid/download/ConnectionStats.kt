@@ -0,0 +1,87 @@
+package org.fdroid.download
+
+import mu.KotlinLogging
+import okhttp3.Call
+import okhttp3.Connection
+import okhttp3.EventListener
+import okhttp3.Protocol
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Counts how often HTTP requests could reuse an existing connection
+ * instead of paying for a new TCP connection and TLS handshake.
+ * This covers all requests of all [HttpManager]s in this process.
+ */
+public object ConnectionStats {
+    private val acquired = AtomicLong()
+    private val opened = AtomicLong()
+
+    /**
+     * The number of times a request got a connection, new or reused.
+     */
+    public val connectionsAcquired: Long get() = acquired.get()
+
+    /**
+     * The number of connections that were newly opened.
+     */
+    public val connectionsOpened: Long get() = opened.get()
+
+    /**
+     * The share of acquired connections that were reused, between 0 and 1.
+     */
+    public val reuseRate: Double
+        get() {
+            val numAcquired = acquired.get()
+            if (numAcquired == 0L) return 0.0
+            return (numAcquired - opened.get()).coerceAtLeast(0L).toDouble() / numAcquired
+        }
+
+    internal fun onConnectionOpened() {
+        opened.incrementAndGet()
+    }
+
+    internal fun onConnectionAcquired() {
+        acquired.incrementAndGet()
+    }
+}
+
+/**
+ * Records [ConnectionStats] and reports failed connections to the given [dns], if any.
+ */
+internal class ConnectionListener(private val dns: ConnectFailureAwareDns?) : EventListener() {
+
+    private val log = KotlinLogging.logger {}
+
+    override fun connectEnd(
+        call: Call,
+        inetSocketAddress: InetSocketAddress,
+        proxy: Proxy,
+        protocol: Protocol?,
+    ) {
+        ConnectionStats.onConnectionOpened()
+        log.debug {
+            "New $protocol connection to ${call.request().url.host}, " +
+                "reuse rate: ${ConnectionStats.reuseRate}"
+        }
+    }
+
+    override fun connectFailed(
+        call: Call,
+        inetSocketAddress: InetSocketAddress,
+        proxy: Proxy,
+        protocol: Protocol?,
+        ioe: IOException,
+    ) {
+        // with a proxy, we didn't connect to the address ourselves
+        if (dns == null || proxy.type() != Proxy.Type.DIRECT) return
+        val address = inetSocketAddress.address ?: return
+        dns.onConnectFailed(call.request().url.host, address)
+    }
+
+    override fun connectionAcquired(call: Call, connection: Connection) {
+        ConnectionStats.onConnectionAcquired()
+    }
+}
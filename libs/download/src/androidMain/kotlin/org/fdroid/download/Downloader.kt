@@ -1,16 +1,21 @@
 package org.fdroid.download
 
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
 import mu.KotlinLogging
 import org.fdroid.IndexFile
 import org.fdroid.fdroid.ProgressListener
 import org.fdroid.fdroid.isMatching
 import java.io.File
-import java.io.FileInputStream
 import java.io.FileOutputStream
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
-import java.security.MessageDigest
+import java.io.RandomAccessFile
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.min
 
 public abstract class Downloader(
     protected val indexFile: IndexFile,
@@ -39,6 +44,11 @@ public abstract class Downloader(
     @Volatile
     private var progressListener: ProgressListener? = null
 
+    /**
+     * Keeps the hash state of partially downloaded files, so resuming doesn't need to re-hash.
+     */
+    internal val checkpoint = HashCheckpoint(outputFile)
+
     /**
      * Call this to start the download.
      * Never call this more than once. Create a new [Downloader], if you need to download again!
@@ -52,6 +62,24 @@ public abstract class Downloader(
         throw NotImplementedError()
     }
 
+    /**
+     * Same as [getBytes], but passes the bytes in a buffer that the [receiver] must not keep.
+     * Override this to avoid allocating a new array for each chunk of a download.
+     */
+    protected open suspend fun getBuffers(resumable: Boolean, receiver: BufferReceiver) {
+        getBytes(resumable) { bytes, numTotalBytes ->
+            receiver.receive(bytes, bytes.size, numTotalBytes)
+        }
+    }
+
+    /**
+     * Passes only the bytes from [fromByte] to [toByte] (inclusive) to the [receiver].
+     * Needed for [downloadInSegments].
+     */
+    protected open suspend fun getRange(fromByte: Long, toByte: Long, receiver: BufferReceiver) {
+        throw NotImplementedError()
+    }
+
     /**
      * Returns the size of the file to be downloaded in bytes.
      * Note this is -1 when the size is unknown.
@@ -99,28 +127,29 @@ public abstract class Downloader(
         NotFoundException::class,
     )
     protected suspend fun downloadFromBytesReceiver(isResume: Boolean) {
+        // hash pre-downloaded bytes (if any) for hash to match
+        val messageDigest = getMessageDigest()
         try {
-            val messageDigest: MessageDigest? = if (indexFile.sha256 == null) null else {
-                MessageDigest.getInstance("SHA-256")
-            }
             var bytesCopied = outputFile.length()
-            // read pre-downloaded bytes (if any) for hash to match
-            if (bytesCopied > 0 && messageDigest != null) outputFile.initDigest(messageDigest)
+            var lastCheckpoint = bytesCopied
             FileOutputStream(outputFile, isResume).use { outputStream ->
+                val sink = FileChannelSink(outputStream.channel)
                 var lastTimeReported = 0L
                 val bytesTotal = totalDownloadSize()
-                getBytes(isResume) { bytes, numTotalBytes ->
+                getBuffers(isResume) { buffer, length, numTotalBytes ->
                     // Getting the input stream is slow(ish) for HTTP downloads, so we'll check if
                     // we were interrupted before proceeding to the download.
                     throwExceptionIfInterrupted()
-                    outputStream.write(bytes)
-                    messageDigest?.update(bytes)
-                    bytesCopied += bytes.size
+                    sink.write(buffer, length)
+                    messageDigest?.update(buffer, 0, length)
+                    bytesCopied += length
+                    lastCheckpoint = saveCheckpointIfNeeded(messageDigest, lastCheckpoint)
                     val total = if (bytesTotal == -1L) numTotalBytes ?: -1L else bytesTotal
                     lastTimeReported = reportProgress(lastTimeReported, bytesCopied, total)
                 }
                 // check if expected sha256 hash matches
                 indexFile.sha256?.let { expectedHash ->
+                    checkpoint.save(messageDigest!!)
                     if (!messageDigest.isMatching(expectedHash)) {
                         throw IOException("Hash not matching")
                     }
@@ -131,6 +160,78 @@ public abstract class Downloader(
             // Even if we have completely downloaded the file, we should probably respect
             // the wishes of the user who wanted to cancel us.
             throwExceptionIfInterrupted()
+        } catch (e: Exception) {
+            saveCheckpointAfterError(messageDigest)
+            throw e
+        } finally {
+            close()
+        }
+    }
+
+    /**
+     * Downloads the file in [numSegments] parts of about equal size in parallel
+     * and writes each part at its offset into the [outputFile] which gets [totalBytes] long.
+     * The expected sha256 hash gets verified after all parts were written.
+     *
+     * Parts can not be resumed individually, so the [outputFile] gets deleted if this fails.
+     */
+    @Throws(
+        InterruptedException::class,
+        IOException::class,
+        NoResumeException::class,
+        NotFoundException::class,
+    )
+    protected suspend fun downloadInSegments(totalBytes: Long, numSegments: Int) {
+        log.debug { "Downloading in $numSegments segments" }
+        val bytesCopied = AtomicLong(0L)
+        var lastTimeReported = 0L
+        try {
+            // the file doesn't grow from the start, so it can't have a checkpoint until the end
+            checkpoint.clear()
+            RandomAccessFile(outputFile, "rw").use { file ->
+                file.setLength(totalBytes)
+                val segmentSize = (totalBytes + numSegments - 1) / numSegments
+                coroutineScope {
+                    (0 until numSegments).map { i ->
+                        val fromByte = i * segmentSize
+                        val toByte = min(fromByte + segmentSize, totalBytes) - 1
+                        async(Dispatchers.IO) {
+                            val sink = FileChannelSink(file.channel)
+                            var position = fromByte
+                            getRange(fromByte, toByte) { buffer, length, _ ->
+                                // don't interrupt the worker thread, we'll do that at the end
+                                if (cancelled) throw InterruptedException()
+                                if (position + length > toByte + 1) {
+                                    throw IOException("Received more bytes than requested")
+                                }
+                                sink.write(buffer, length, position)
+                                position += length
+                                val bytesRead = bytesCopied.addAndGet(length.toLong())
+                                synchronized(this@Downloader) {
+                                    lastTimeReported =
+                                        reportProgress(lastTimeReported, bytesRead, totalBytes)
+                                }
+                            }
+                            if (position != toByte + 1) throw IOException("Segment incomplete")
+                        }
+                    }.awaitAll()
+                }
+            }
+            throwExceptionIfInterrupted()
+            // check if expected sha256 hash matches
+            indexFile.sha256?.let { expectedHash ->
+                // this also saves a checkpoint, so later checks of the file are fast
+                val messageDigest = checkpoint.restore()
+                if (!messageDigest.isMatching(expectedHash)) {
+                    throw IOException("Hash not matching")
+                }
+            }
+            // force progress reporting at the end
+            reportProgress(0L, bytesCopied.get(), totalBytes)
+        } catch (e: Exception) {
+            if (!checkpoint.delete()) log.warn { "Warning: outputFile not deleted" }
+            if (e is InterruptedException) throwExceptionIfInterrupted()
+            throw e
         } finally {
             close()
         }
@@ -144,13 +245,11 @@ public abstract class Downloader(
      */
     @Throws(IOException::class, InterruptedException::class)
     private fun copyInputToOutputStream(input: InputStream, output: OutputStream) {
-        val messageDigest: MessageDigest? = if (indexFile.sha256 == null) null else {
-            MessageDigest.getInstance("SHA-256")
-        }
+        // hash pre-downloaded bytes (if any) for hash to match
+        val messageDigest = getMessageDigest()
         try {
             var bytesCopied = outputFile.length()
-            // read pre-downloaded bytes (if any) for hash to match
-            if (bytesCopied > 0 && messageDigest != null) outputFile.initDigest(messageDigest)
+            var lastCheckpoint = bytesCopied
 
             var lastTimeReported = 0L
             val bytesTotal = totalDownloadSize()
@@ -161,23 +260,63 @@ public abstract class Downloader(
                 output.write(buffer, 0, numBytes)
                 messageDigest?.update(buffer, 0, numBytes)
                 bytesCopied += numBytes
+                lastCheckpoint = saveCheckpointIfNeeded(messageDigest, lastCheckpoint)
                 lastTimeReported = reportProgress(lastTimeReported, bytesCopied, bytesTotal)
                 numBytes = input.read(buffer)
             }
             // check if expected sha256 hash matches
             indexFile.sha256?.let { expectedHash ->
+                output.flush()
+                checkpoint.save(messageDigest!!)
                 if (!messageDigest.isMatching(expectedHash)) {
                     throw IOException("Hash not matching")
                 }
             }
             // force progress reporting at the end
             reportProgress(0L, bytesCopied, bytesTotal)
+        } catch (e: Exception) {
+            output.flush()
+            saveCheckpointAfterError(messageDigest)
+            throw e
         } finally {
             output.flush()
             progressListener = null
         }
     }
 
+    /**
+     * Returns a digest of the bytes already in the [outputFile],
+     * or null if there is no hash to check.
+     */
+    @Throws(IOException::class)
+    private fun getMessageDigest(): Sha256? {
+        return if (indexFile.sha256 == null) null else checkpoint.restore()
+    }
+
+    /**
+     * Saves a [HashCheckpoint], if the [messageDigest] hashed enough bytes since the last one.
+     * Returns the length of the file at the last checkpoint.
+     */
+    private fun saveCheckpointIfNeeded(messageDigest: Sha256?, lastCheckpoint: Long): Long {
+        if (messageDigest == null) return lastCheckpoint
+        if (messageDigest.length - lastCheckpoint < HashCheckpoint.INTERVAL_BYTES) {
+            return lastCheckpoint
+        }
+        checkpoint.save(messageDigest)
+        return messageDigest.length
+    }
+
+    /**
+     * Saves a [HashCheckpoint] after a failed download, so resuming it doesn't need to re-hash.
+     * This does nothing if the [messageDigest] doesn't cover the entire [outputFile],
+     * e.g. because it was already used for checking the hash.
+     */
+    private fun saveCheckpointAfterError(messageDigest: Sha256?) {
+        if (messageDigest != null && messageDigest.length == outputFile.length()) {
+            checkpoint.save(messageDigest)
+        }
+    }
+
     private fun reportProgress(lastTimeReported: Long, bytesRead: Long, bytesTotal: Long): Long {
         val now = System.currentTimeMillis()
         return if (now - lastTimeReported > 1000) {
@@ -220,16 +359,4 @@ public abstract class Downloader(
         }
     }
 
-    @Throws(IOException::class)
-    private fun File.initDigest(messageDigest: MessageDigest) {
-        FileInputStream(this).use { inputStream ->
-            val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
-            var bytes = inputStream.read(buffer)
-            while (bytes >= 0) {
-                messageDigest.update(buffer, 0, bytes)
-                bytes = inputStream.read(buffer)
-            }
-        }
-    }
-
 }
@@ -0,0 +1,44 @@
+package org.fdroid.download
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Writes the buffers a [BufferReceiver] gets to a [FileChannel].
+ * As long as the buffer stays the same, no new objects get allocated for writing.
+ */
+internal class FileChannelSink(private val channel: FileChannel) {
+
+    private var byteBuffer: ByteBuffer? = null
+
+    /**
+     * Writes the first [length] bytes of the given [buffer]
+     * at the current position of the channel.
+     */
+    @Throws(IOException::class)
+    fun write(buffer: ByteArray, length: Int) {
+        val byteBuffer = wrap(buffer, length)
+        while (byteBuffer.hasRemaining()) channel.write(byteBuffer)
+    }
+
+    /**
+     * Writes the first [length] bytes of the given [buffer] at the given [position]
+     * without changing the position of the channel, so several sinks can share it.
+     */
+    @Throws(IOException::class)
+    fun write(buffer: ByteArray, length: Int, position: Long) {
+        val byteBuffer = wrap(buffer, length)
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer, position + byteBuffer.position())
+        }
+    }
+
+    private fun wrap(buffer: ByteArray, length: Int): ByteBuffer {
+        val byteBuffer = byteBuffer?.takeIf { it.array() === buffer } ?: ByteBuffer.wrap(buffer)
+        this.byteBuffer = byteBuffer
+        byteBuffer.clear()
+        byteBuffer.limit(length)
+        return byteBuffer
+    }
+}
@@ -0,0 +1,130 @@
+package org.fdroid.download
+
+import mu.KotlinLogging
+import org.fdroid.fdroid.isMatching
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * Returns true if the given [file] has the given [sha256] hash.
+ * For files a [Downloader] wrote, only the bytes added after its last checkpoint need hashing.
+ */
+@Throws(IOException::class)
+public fun isFileMatchingSha256(file: File, sha256: String): Boolean {
+    return HashCheckpoint(file).restore().isMatching(sha256)
+}
+
+/**
+ * A sidecar file next to the given [file] that stores the state of its [Sha256] digest,
+ * so that resuming a download or checking an already downloaded file
+ * only needs to hash the bytes that were added after the checkpoint was saved.
+ *
+ * Only use this for files that get appended to, or deleted with [delete].
+ */
+internal class HashCheckpoint(private val file: File) {
+
+    companion object {
+        private val log = KotlinLogging.logger {}
+        private const val SUFFIX = ".sha256state"
+        private const val VERSION = 2
+
+        /**
+         * Save a checkpoint after this many bytes, so not much needs re-hashing after a crash.
+         */
+        const val INTERVAL_BYTES = 4L * 1024 * 1024
+    }
+
+    private val checkpointFile = File(file.parentFile, file.name + SUFFIX)
+
+    /**
+     * Returns a digest of all bytes currently in the [file].
+     * This uses a saved checkpoint if it is still valid and hashes the entire file otherwise.
+     * If bytes needed hashing, a new checkpoint gets saved.
+     */
+    @Throws(IOException::class)
+    fun restore(): Sha256 {
+        // the file may still grow, so we only look at what is there right now
+        val lastModified = file.lastModified()
+        val fileLength = file.length()
+        val digest = load(fileLength, lastModified) ?: Sha256()
+        if (digest.length < fileLength) {
+            log.debug { "Hashing ${fileLength - digest.length} bytes of ${file.name}" }
+            RandomAccessFile(file, "r").use { f ->
+                f.seek(digest.length)
+                val buffer = ByteArray(DEFAULT_BUFFER_SIZE * 8)
+                while (digest.length < fileLength) {
+                    val length = minOf(buffer.size.toLong(), fileLength - digest.length).toInt()
+                    f.readFully(buffer, 0, length)
+                    digest.update(buffer, 0, length)
+                }
+            }
+            save(digest, lastModified)
+        }
+        return digest
+    }
+
+    /**
+     * Saves the state of the given [digest] which must have hashed
+     * the first [Sha256.length] bytes of the [file] and nothing else.
+     */
+    fun save(digest: Sha256, lastModified: Long = file.lastModified()) {
+        val tmpFile = File(checkpointFile.path + ".tmp")
+        try {
+            DataOutputStream(tmpFile.outputStream().buffered()).use { output ->
+                output.writeInt(VERSION)
+                output.writeLong(lastModified)
+                digest.writeState(output)
+            }
+            // renaming replaces the old checkpoint atomically
+            if (!tmpFile.renameTo(checkpointFile)) throw IOException("Could not rename $tmpFile")
+        } catch (e: IOException) {
+            // this isn't critical, we can always hash the whole file again
+            log.warn(e) { "Could not save hash checkpoint for ${file.name}" }
+            tmpFile.delete()
+        }
+    }
+
+    /**
+     * Deletes only the checkpoint, e.g. before bytes of the [file] get overwritten.
+     */
+    fun clear() {
+        checkpointFile.delete()
+    }
+
+    /**
+     * Deletes the [file] together with its checkpoint.
+     * Returns true, if the [file] was deleted.
+     */
+    fun delete(): Boolean {
+        clear()
+        return file.delete()
+    }
+
+    /**
+     * Returns the saved digest, if it can still be used for the [file] with the given
+     * [fileLength] and [lastModified] time, or null otherwise.
+     */
+    private fun load(fileLength: Long, lastModified: Long): Sha256? {
+        if (!checkpointFile.isFile) return null
+        return try {
+            DataInputStream(checkpointFile.inputStream().buffered()).use { input ->
+                if (input.readInt() != VERSION) return null
+                val savedLastModified = input.readLong()
+                val digest = Sha256.readState(input)
+                val isValid = if (digest.length == fileLength) {
+                    // nothing was appended, so the file must not have been touched at all
+                    savedLastModified == lastModified
+                } else {
+                    digest.length < fileLength && savedLastModified <= lastModified
+                }
+                if (isValid) digest else null
+            }
+        } catch (e: IOException) {
+            log.warn(e) { "Could not load hash checkpoint for ${file.name}" }
+            null
+        }
+    }
+}
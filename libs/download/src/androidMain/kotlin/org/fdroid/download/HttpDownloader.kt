@@ -52,10 +52,10 @@ public class HttpDownloader constructor(
     }
 
     @Throws(IOException::class, NoResumeException::class, NotFoundException::class)
-    protected override suspend fun getBytes(resumable: Boolean, receiver: BytesReceiver) {
+    protected override suspend fun getBuffers(resumable: Boolean, receiver: BufferReceiver) {
         val skipBytes = if (resumable) outputFile.length() else null
         return try {
-            httpManager.get(request, skipBytes, receiver)
+            httpManager.getBuffered(request, skipBytes, receiver)
         } catch (e: ResponseException) {
             if (e.response.status == NotFound) throw NotFoundException(e)
             else throw IOException(e)
@@ -145,7 +145,7 @@ public class HttpDownloader constructor(
         var resumable = false
         val fileLength = outputFile.length()
         if (fileLength > (fileSize ?: -1)) {
-            if (!outputFile.delete()) log.warn { "Warning: outputFile not deleted" }
+            if (!checkpoint.delete()) log.warn { "Warning: outputFile not deleted" }
         } else if (fileLength == fileSize && outputFile.isFile) {
             log.debug { "Already have outputFile, not downloading: ${outputFile.name}" }
             return // already have it!
@@ -157,7 +157,7 @@ public class HttpDownloader constructor(
             try {
                 downloadFromBytesReceiver(resumable)
             } catch (e: NoResumeException) {
-                if (!outputFile.delete()) log.warn { "Warning: outputFile not deleted" }
+                if (!checkpoint.delete()) log.warn { "Warning: outputFile not deleted" }
                 downloadFromBytesReceiver(false)
             }
         }
@@ -25,24 +25,36 @@ import io.ktor.client.plugins.ResponseException
 import io.ktor.http.HttpStatusCode.Companion.NotFound
 import kotlinx.coroutines.runBlocking
 import mu.KotlinLogging
-import org.fdroid.fdroid.toHex
+import org.fdroid.fdroid.isMatching
 import java.io.File
 import java.io.IOException
 import java.io.InputStream
-import java.security.MessageDigest
-import java.security.NoSuchAlgorithmException
 
 /**
  * Download files over HTTP, with support for proxies, `.onion` addresses, HTTP Basic Auth, etc.
  */
-public class HttpDownloaderV2 constructor(
+public class HttpDownloaderV2 internal constructor(
     private val httpManager: HttpManager,
     private val request: DownloadRequest,
     destFile: File,
+    private val minSegmentedBytes: Long,
 ) : Downloader(request.indexFile, destFile) {
 
+    public constructor(
+        httpManager: HttpManager,
+        request: DownloadRequest,
+        destFile: File,
+    ) : this(httpManager, request, destFile, MIN_SEGMENTED_BYTES)
+
     private companion object {
         val log = KotlinLogging.logger {}
+
+        /**
+         * Files of at least this size get downloaded in [NUM_SEGMENTS] parallel segments,
+         * because a single connection often can't use all bandwidth of high latency links.
+         */
+        const val MIN_SEGMENTED_BYTES = 16L * 1024 * 1024
+        const val NUM_SEGMENTS = 4
     }
 
     override fun getInputStream(resumable: Boolean): InputStream {
@@ -50,10 +62,24 @@ public class HttpDownloaderV2 constructor(
     }
 
     @Throws(IOException::class, NoResumeException::class, NotFoundException::class)
-    protected override suspend fun getBytes(resumable: Boolean, receiver: BytesReceiver) {
+    protected override suspend fun getBuffers(resumable: Boolean, receiver: BufferReceiver) {
         val skipBytes = if (resumable) outputFile.length() else null
         return try {
-            httpManager.get(request, skipBytes, receiver)
+            httpManager.getBuffered(request, skipBytes, receiver)
+        } catch (e: ResponseException) {
+            if (e.response.status == NotFound) throw NotFoundException(e)
+            else throw IOException(e)
+        }
+    }
+
+    @Throws(IOException::class, NoResumeException::class, NotFoundException::class)
+    protected override suspend fun getRange(
+        fromByte: Long,
+        toByte: Long,
+        receiver: BufferReceiver,
+    ) {
+        return try {
+            httpManager.getRange(request, fromByte, toByte, receiver)
         } catch (e: ResponseException) {
             if (e.response.status == NotFound) throw NotFoundException(e)
             else throw IOException(e)
@@ -66,36 +92,56 @@ public class HttpDownloaderV2 constructor(
         val fileLength = outputFile.length()
         if (fileLength > (request.indexFile.size ?: -1)) {
             // file was larger than expected, so delete and re-download
-            if (!outputFile.delete()) log.warn { "Warning: outputFile not deleted" }
+            if (!checkpoint.delete()) log.warn { "Warning: outputFile not deleted" }
         } else if (fileLength == request.indexFile.size && outputFile.isFile) {
             log.debug { "Already have outputFile, not downloading: ${outputFile.name}" }
-            if (request.indexFile.sha256 == null) {
+            val sha256 = request.indexFile.sha256
+            if (sha256 == null) {
                 // no way to check file, so we trust that what we have is legit (v1 only)
                 return
             } else {
-                if (hashFile(outputFile) == request.indexFile.sha256) {
+                // only hashes what wasn't hashed while downloading
+                if (checkpoint.restore().isMatching(sha256)) {
                     // hash matched, so we already have the good file, don't download again
                     return
                 } else {
                     log.warn { "Hash mismatch for ${request.indexFile}" }
                     // delete file and continue
-                    if (!outputFile.delete()) log.warn { "Warning: outputFile not deleted" }
+                    if (!checkpoint.delete()) log.warn { "Warning: outputFile not deleted" }
                 }
             }
         } else if (fileLength > 0) {
             resumable = true
         }
+        val size = request.indexFile.size
+        if (!resumable && size != null && size >= minSegmentedBytes && canDownloadInSegments()) {
+            log.debug { "Downloading ${request.indexFile.name} in segments" }
+            try {
+                runBlocking { downloadInSegments(size, NUM_SEGMENTS) }
+                return
+            } catch (e: NoResumeException) {
+                log.info { "Mirror doesn't support ranges, downloading in one piece..." }
+            }
+        }
         log.debug { "Downloading ${request.indexFile.name} (is resumable: $resumable)" }
         runBlocking {
             try {
                 downloadFromBytesReceiver(resumable)
             } catch (e: NoResumeException) {
-                if (!outputFile.delete()) log.warn { "Warning: outputFile not deleted" }
+                if (!checkpoint.delete()) log.warn { "Warning: outputFile not deleted" }
                 downloadFromBytesReceiver(false)
             }
         }
     }
 
+    /**
+     * Segments get written to the file in any order, so we can only check the hash at the end.
+     * Without an expected hash, we rather don't risk a file with unnoticed holes.
+     */
+    private fun canDownloadInSegments(): Boolean {
+        return request.indexFile.sha256 != null
+    }
+
     protected override fun totalDownloadSize(): Long = request.indexFile.size ?: -1L
 
     @Deprecated("Only for v1 repos")
@@ -106,21 +152,4 @@ public class HttpDownloaderV2 constructor(
     override fun close() {
     }
 
-    private fun hashFile(file: File): String {
-        val messageDigest: MessageDigest = try {
-            MessageDigest.getInstance("SHA-256")
-        } catch (e: NoSuchAlgorithmException) {
-            throw AssertionError(e)
-        }
-        file.inputStream().use { inputStream ->
-            val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
-            var bytes = inputStream.read(buffer)
-            while (bytes >= 0) {
-                messageDigest.update(buffer, 0, bytes)
-                bytes = inputStream.read(buffer)
-            }
-        }
-        return messageDigest.digest().toHex()
-    }
-
 }
@@ -29,8 +29,10 @@ internal actual fun getHttpClientEngineFactory(customDns: Dns?): HttpClientEngin
             config {
                 if (proxy.isTor()) { // don't allow DNS requests when using Tor
                     dns(NoDns())
-                } else if (customDns != null) {
-                    dns(customDns)
+                    eventListener(ConnectionListener(null))
+                } else {
+                    if (customDns != null) dns(customDns)
+                    eventListener(ConnectionListener(customDns as? ConnectFailureAwareDns))
                 }
                 hostnameVerifier { hostname, session ->
                     try {
@@ -64,6 +66,14 @@ public suspend fun HttpManager.getDigestInputStream(request: DownloadRequest): D
     return DigestInputStream(inputStream, digest)
 }
 
+/**
+ * A [Dns] that gets told when connecting to an address it returned failed,
+ * so it can stop handing out addresses that are dead.
+ */
+public interface ConnectFailureAwareDns : Dns {
+    public fun onConnectFailed(hostname: String, address: InetAddress)
+}
+
 /**
  * Prevent DNS requests.
  * Important when proxying all requests over Tor to not leak DNS queries.
@@ -0,0 +1,90 @@
+package org.fdroid.download
+
+import org.bouncycastle.crypto.digests.SHA256Digest
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
+import java.security.MessageDigest
+
+/**
+ * A SHA-256 [MessageDigest] whose intermediate state can be saved with [writeState]
+ * and restored with [readState], so hashing a file can continue where it stopped.
+ * The platform implementations don't allow this, so this wraps BouncyCastle's [SHA256Digest].
+ */
+internal class Sha256 private constructor(
+    private val digest: SHA256Digest,
+    private var byteCount: Long,
+) : MessageDigest("SHA-256"), Cloneable {
+
+    constructor() : this(SHA256Digest(), 0L)
+
+    companion object {
+        /**
+         * More than the encoded state of a [SHA256Digest] needs,
+         * so a corrupt state doesn't make us allocate a lot.
+         */
+        private const val MAX_STATE_SIZE = 1024
+
+        /**
+         * Restores a digest from the state written by [writeState].
+         */
+        @Throws(IOException::class)
+        fun readState(input: DataInput): Sha256 {
+            val byteCount = input.readLong()
+            if (byteCount < 0) throw IOException("Invalid byte count: $byteCount")
+            val stateSize = input.readInt()
+            if (stateSize !in 1..MAX_STATE_SIZE) throw IOException("Invalid size: $stateSize")
+            val state = ByteArray(stateSize)
+            input.readFully(state)
+            val digest = try {
+                SHA256Digest(state)
+            } catch (e: RuntimeException) {
+                throw IOException("Invalid state", e)
+            }
+            return Sha256(digest, byteCount)
+        }
+    }
+
+    /**
+     * The number of bytes hashed so far.
+     */
+    val length: Long get() = byteCount
+
+    /**
+     * Writes the current state, so it can be restored with [readState].
+     */
+    @Throws(IOException::class)
+    fun writeState(output: DataOutput) {
+        val state = digest.encodedState
+        output.writeLong(byteCount)
+        output.writeInt(state.size)
+        output.write(state)
+    }
+
+    override fun engineGetDigestLength(): Int = digest.digestSize
+
+    override fun engineUpdate(input: Byte) {
+        digest.update(input)
+        byteCount++
+    }
+
+    override fun engineUpdate(input: ByteArray, offset: Int, len: Int) {
+        digest.update(input, offset, len)
+        byteCount += len
+    }
+
+    override fun engineDigest(): ByteArray {
+        val result = ByteArray(digest.digestSize)
+        // this also resets the digest
+        digest.doFinal(result, 0)
+        byteCount = 0L
+        return result
+    }
+
+    override fun engineReset() {
+        digest.reset()
+        byteCount = 0L
+    }
+
+    override fun clone(): Any = Sha256(SHA256Digest(digest), byteCount)
+}
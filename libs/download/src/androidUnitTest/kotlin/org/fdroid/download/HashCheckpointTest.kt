@@ -0,0 +1,107 @@
+package org.fdroid.download
+
+import org.fdroid.fdroid.toHex
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.security.MessageDigest
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+internal class HashCheckpointTest {
+
+    @get:Rule
+    var folder = TemporaryFolder()
+
+    @Test
+    fun testSha256MatchesPlatform() {
+        repeat(100) {
+            val bytes = Random.nextBytes(Random.nextInt(0, 1000))
+            val digest = Sha256()
+            // update in random chunks to exercise partial blocks
+            var i = 0
+            while (i < bytes.size) {
+                val length = minOf(Random.nextInt(1, 100), bytes.size - i)
+                digest.update(bytes, i, length)
+                i += length
+            }
+            assertEquals(bytes.size.toLong(), digest.length)
+            assertEquals(bytes.sha256(), digest.digest().toHex())
+        }
+    }
+
+    @Test
+    fun testSha256StateRoundTrip() {
+        val bytes = Random.nextBytes(1337)
+        val digest = Sha256()
+        digest.update(bytes, 0, 1000)
+
+        val output = ByteArrayOutputStream()
+        digest.writeState(DataOutputStream(output))
+        val restored = Sha256.readState(DataInputStream(ByteArrayInputStream(output.toByteArray())))
+        assertEquals(1000L, restored.length)
+
+        restored.update(bytes, 1000, 337)
+        assertEquals(bytes.sha256(), restored.digest().toHex())
+    }
+
+    @Test
+    fun testRestoreUsesCheckpoint() {
+        val file = folder.newFile()
+        val firstBytes = Random.nextBytes(2048)
+        file.writeBytes(firstBytes)
+        val checkpoint = HashCheckpoint(file)
+        // without a checkpoint, the entire file gets hashed
+        assertEquals(firstBytes.sha256(), checkpoint.restore().digest().toHex())
+
+        // when bytes get appended, only those need hashing
+        val secondBytes = Random.nextBytes(1024)
+        file.appendBytes(secondBytes)
+        val digest = checkpoint.restore()
+        assertEquals(3072L, digest.length)
+        assertEquals((firstBytes + secondBytes).sha256(), digest.digest().toHex())
+        assertTrue(isFileMatchingSha256(file, (firstBytes + secondBytes).sha256()))
+    }
+
+    @Test
+    fun testStaleCheckpointGetsIgnored() {
+        val file = folder.newFile()
+        file.writeBytes(Random.nextBytes(2048))
+        val checkpoint = HashCheckpoint(file)
+        checkpoint.restore()
+
+        // file was replaced with a shorter one, so checkpoint is useless
+        val bytes = Random.nextBytes(1024)
+        file.writeBytes(bytes)
+        assertEquals(bytes.sha256(), checkpoint.restore().digest().toHex())
+
+        // file changed without changing its length
+        val otherBytes = Random.nextBytes(1024)
+        file.writeBytes(otherBytes)
+        file.setLastModified(file.lastModified() + 2000)
+        assertEquals(otherBytes.sha256(), checkpoint.restore().digest().toHex())
+    }
+
+    @Test
+    fun testDeleteRemovesCheckpoint() {
+        val file = folder.newFile()
+        file.writeBytes(Random.nextBytes(1024))
+        val checkpoint = HashCheckpoint(file)
+        checkpoint.restore()
+        assertEquals(2, file.parentFile!!.listFiles()!!.size)
+
+        assertTrue(checkpoint.delete())
+        assertFalse(file.exists())
+        assertEquals(0, file.parentFile!!.listFiles()!!.size)
+    }
+
+    private fun ByteArray.sha256(): String {
+        return MessageDigest.getInstance("SHA-256").digest(this).toHex()
+    }
+}
@@ -17,6 +17,7 @@ import io.ktor.http.HttpStatusCode.Companion.PartialContent
 import io.ktor.http.headersOf
 import kotlinx.io.Buffer
 import org.fdroid.TestByteReadChannel
+import org.fdroid.fdroid.toHex
 import org.fdroid.get
 import org.fdroid.getByteRangeFrom
 import org.fdroid.getIndexFile
@@ -29,6 +30,7 @@ import java.io.File
 import java.io.IOException
 import java.net.BindException
 import java.net.ServerSocket
+import java.security.MessageDigest
 import kotlin.random.Random
 import kotlin.test.Ignore
 import kotlin.test.Test
@@ -216,6 +218,47 @@ internal class HttpDownloaderTest {
         assertContentEquals(firstBytes + secondBytes, file.readBytes())
     }
 
+    /**
+     * Tests that resuming a download with a [HashCheckpoint] only hashes the new bytes.
+     * The bytes on disk get changed behind the checkpoint's back,
+     * so hashing them again would make the hash check fail.
+     */
+    @Test
+    fun testResumeWithCheckpointHashesOnlyNewBytes() = runSuspend {
+        val file = folder.newFile()
+        val firstBytes =
+            "These are the first bytes that were already downloaded.".encodeToByteArray()
+        file.writeBytes(firstBytes)
+        // this hashes the file and saves a checkpoint
+        HashCheckpoint(file).restore()
+        val lastModified = file.lastModified()
+        val otherBytes = ByteArray(firstBytes.size)
+        file.writeBytes(otherBytes)
+        assertTrue(file.setLastModified(lastModified))
+        val secondBytes =
+            "These are the last bytes that still need to be downloaded.".encodeToByteArray()
+        val totalSize = firstBytes.size + secondBytes.size
+        // the hash of firstBytes + secondBytes
+        val sha256 = "efabb260da949061c88173c19f369b4aa0eaa82003c7c2dec08b5dfe75525368"
+        val downloadRequest = DownloadRequest(getIndexFile("foo/bar", sha256), mirrors)
+
+        val mockEngine = MockEngine.config {
+            reuseHandlers = false
+            addHandler {
+                respond("", OK, headers = headersOf(ContentLength, "$totalSize"))
+            }
+            addHandler {
+                respond(secondBytes, PartialContent)
+            }
+        }
+        val httpManager = HttpManager(userAgent, null, httpClientEngineFactory = mockEngine)
+        val httpDownloader = HttpDownloader(httpManager, downloadRequest, file)
+        // this throws if the first bytes got hashed again
+        httpDownloader.download()
+
+        assertContentEquals(otherBytes + secondBytes, file.readBytes())
+    }
+
     /**
      * Tests re-using an already downloaded file with hash verification.
      * This can fail if the hashing doesn't take the already downloaded bytes into account.
@@ -263,6 +306,60 @@ internal class HttpDownloaderTest {
         assertEquals("Hash not matching", e.message)
     }
 
+    @Test
+    fun testDownloadInSegments() = runSuspend {
+        val file = folder.newFile()
+        val bytes = Random.nextBytes(1024 * 4 + 3)
+        val sha256 = MessageDigest.getInstance("SHA-256").digest(bytes).toHex()
+        val indexFile = getIndexFile("foo/bar", sha256, bytes.size.toLong())
+        val downloadRequest = DownloadRequest(indexFile, mirrors)
+
+        val mockEngine = MockEngine { request ->
+            val range = request.headers[Range] ?: fail("No range requested")
+            val (from, to) = range.removePrefix("bytes=").split('-').map { it.toInt() }
+            respond(bytes.copyOfRange(from, to + 1), PartialContent)
+        }
+        val httpManager = HttpManager(userAgent, null, httpClientEngineFactory = get(mockEngine))
+        val httpDownloader = HttpDownloaderV2(httpManager, downloadRequest, file, 1024)
+        var lastBytesRead = 0L
+        httpDownloader.setListener { bytesRead, totalBytes ->
+            assertEquals(bytes.size.toLong(), totalBytes)
+            lastBytesRead = bytesRead
+        }
+        httpDownloader.download()
+
+        assertContentEquals(bytes, file.readBytes())
+        assertEquals(bytes.size.toLong(), lastBytesRead)
+        assertEquals(
+            expected = setOf(
+                "bytes=0-1024",
+                "bytes=1025-2049",
+                "bytes=2050-3074",
+                "bytes=3075-4098",
+            ),
+            actual = mockEngine.requestHistory.map { it.headers[Range] }.toSet(),
+        )
+    }
+
+    @Test
+    fun testDownloadInSegmentsFallsBackWithoutRangeSupport() = runSuspend {
+        val file = folder.newFile()
+        val bytes = Random.nextBytes(1024 * 4)
+        val sha256 = MessageDigest.getInstance("SHA-256").digest(bytes).toHex()
+        val indexFile = getIndexFile("foo/bar", sha256, bytes.size.toLong())
+        val downloadRequest = DownloadRequest(indexFile, mirrors)
+
+        // server ignores ranges and always sends the full file
+        val mockEngine = MockEngine { respond(bytes, OK) }
+        val httpManager = HttpManager(userAgent, null, httpClientEngineFactory = get(mockEngine))
+        val httpDownloader = HttpDownloaderV2(httpManager, downloadRequest, file, 1024)
+        httpDownloader.download()
+
+        assertContentEquals(bytes, file.readBytes())
+        // the last request was without a range
+        assertEquals(null, mockEngine.requestHistory.last().headers[Range])
+    }
+
     @Test
     fun testResumeError() = runSuspend {
         val file = folder.newFile()
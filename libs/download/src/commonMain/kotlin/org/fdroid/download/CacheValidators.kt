@@ -0,0 +1,25 @@
+package org.fdroid.download
+
+/**
+ * The ETag and Last-Modified headers of a response from a mirror,
+ * so the file can later be requested again only if it was modified,
+ * see [HttpManager.getIfModified].
+ */
+public data class CacheValidators(
+    val eTag: String?,
+    val lastModified: String?,
+)
+
+/**
+ * The result of [HttpManager.getIfModified].
+ *
+ * @param mirror the mirror that responded.
+ * @param isModified false, if the [mirror] responded with 304 Not Modified.
+ * @param validators the [CacheValidators] for the next request to the [mirror],
+ * or null if it sent none.
+ */
+public data class ConditionalResponse(
+    val mirror: Mirror,
+    val isModified: Boolean,
+    val validators: CacheValidators?,
+)
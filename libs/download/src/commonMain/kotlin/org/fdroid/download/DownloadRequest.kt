@@ -18,6 +18,13 @@ public data class DownloadRequest @JvmOverloads constructor(
      * then setting this has no effect.
      */
     val tryFirstMirror: Mirror? = null,
+    /**
+     * If true, the [MirrorChooser] may request from another mirror in parallel,
+     * if the first one takes unusually long to respond, and uses whichever responds first.
+     * This is meant for small files where latency matters more than the wasted bytes,
+     * e.g. the entry file of a repository.
+     */
+    val isHedged: Boolean = false,
 ) {
     @JvmOverloads
     @Deprecated("Use other constructor instead")
@@ -4,6 +4,7 @@ import io.ktor.client.HttpClient
 import io.ktor.client.engine.HttpClientEngineFactory
 import io.ktor.client.engine.ProxyConfig
 import io.ktor.client.plugins.HttpTimeout
+import io.ktor.client.plugins.RedirectResponseException
 import io.ktor.client.plugins.ResponseException
 import io.ktor.client.plugins.UserAgent
 import io.ktor.client.plugins.timeout
@@ -18,27 +19,29 @@ import io.ktor.client.request.setBody
 import io.ktor.client.request.url
 import io.ktor.client.statement.HttpResponse
 import io.ktor.client.statement.HttpStatement
+import io.ktor.client.statement.bodyAsBytes
 import io.ktor.client.statement.bodyAsChannel
 import io.ktor.http.HttpHeaders.ContentType
 import io.ktor.http.HttpHeaders.ETag
+import io.ktor.http.HttpHeaders.IfModifiedSince
+import io.ktor.http.HttpHeaders.IfNoneMatch
 import io.ktor.http.HttpHeaders.LastModified
 import io.ktor.http.HttpHeaders.Range
 import io.ktor.http.HttpMessageBuilder
 import io.ktor.http.HttpStatusCode.Companion.NotFound
+import io.ktor.http.HttpStatusCode.Companion.NotModified
 import io.ktor.http.HttpStatusCode.Companion.PartialContent
 import io.ktor.http.Url
 import io.ktor.http.contentLength
 import io.ktor.utils.io.ByteChannel
 import io.ktor.utils.io.ByteReadChannel
-import io.ktor.utils.io.InternalAPI
-import io.ktor.utils.io.exhausted
-import io.ktor.utils.io.readRemaining
-import kotlinx.io.readByteArray
+import io.ktor.utils.io.readAvailable
 import mu.KotlinLogging
 import okhttp3.Dns
 import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
 import java.io.ByteArrayOutputStream
 import kotlin.coroutines.cancellation.CancellationException
+import kotlin.time.TimeSource
 
 internal expect fun getHttpClientEngineFactory(customDns: Dns?): HttpClientEngineFactory<*>
 
@@ -62,22 +65,23 @@ public open class HttpManager @JvmOverloads constructor(
         public fun isInvalidHttpUrl(url: String): Boolean = url.toHttpUrlOrNull() == null
     }
 
-    private var httpClient = getNewHttpClient(proxyConfig)
-
     /**
-     * Only exists because KTor doesn't keep a reference to the proxy its client uses.
-     * Should only get set in [getNewHttpClient].
+     * One client per proxy configuration, so switching between e.g. a local mirror
+     * and a proxied one doesn't throw away the warm connections of the other.
      */
-    internal var currentProxy: ProxyConfig? = null
-        private set
+    private val httpClients = HashMap<ProxyConfig?, HttpClient>()
+
+    init {
+        getHttpClient(proxyConfig)
+    }
 
     private val parameters = queryString?.split('&')?.map { p ->
         val (key, value) = p.split('=')
         Pair(key, value)
     }
 
-    private fun getNewHttpClient(proxyConfig: ProxyConfig? = null): HttpClient {
-        currentProxy = proxyConfig
+    private fun getNewHttpClient(proxyConfig: ProxyConfig?): HttpClient {
+        log.debug { "Creating new client for proxy [$proxyConfig]" }
         return HttpClient(httpClientEngineFactory) {
             followRedirects = false
             expectSuccess = true
@@ -108,14 +112,17 @@ public open class HttpManager @JvmOverloads constructor(
     public suspend fun head(request: DownloadRequest, eTag: String? = null): HeadInfo? {
         val response: HttpResponse = try {
             mirrorChooser.mirrorRequest(request) { mirror, url ->
-                resetProxyIfNeeded(request.proxy, mirror)
                 log.debug { "HEAD $url" }
-                httpClient.head(url) {
+                val start = TimeSource.Monotonic.markNow()
+                getHttpClient(request.proxy, mirror).head(url) {
                     addQueryParameters()
                     // add authorization header from username / password if set
                     basicAuth(request)
                     // increase connect timeout if using Tor mirror
                     if (mirror.isOnion()) timeout { connectTimeoutMillis = 10_000 }
+                }.also {
+                    val ttfbMillis = start.elapsedNow().inWholeMilliseconds
+                    mirrorChooser.onMirrorSuccess(mirror, ttfbMillis, 0L, 0L)
                 }
             }
         } catch (e: ResponseException) {
@@ -131,7 +138,6 @@ public open class HttpManager @JvmOverloads constructor(
         return HeadInfo(true, response.headers[ETag], contentLength, lastModified)
     }
 
-    @OptIn(InternalAPI::class)
     @JvmOverloads
     @Throws(ResponseException::class, NoResumeException::class, CancellationException::class)
     public suspend fun get(
@@ -139,24 +145,167 @@ public open class HttpManager @JvmOverloads constructor(
         skipFirstBytes: Long? = null,
         receiver: BytesReceiver,
     ) {
+        getBuffered(request, skipFirstBytes) { buffer, length, numTotalBytes ->
+            receiver.receive(buffer.copyOf(length), numTotalBytes)
+        }
+    }
+
+    /**
+     * Same as [get], but passes the bytes to the [receiver] in a buffer that gets re-used,
+     * so large downloads don't need a new array for each chunk they receive.
+     */
+    @JvmOverloads
+    @Throws(ResponseException::class, NoResumeException::class, CancellationException::class)
+    public suspend fun getBuffered(
+        request: DownloadRequest,
+        skipFirstBytes: Long? = null,
+        receiver: BufferReceiver,
+    ) {
+        if (request.isHedged) {
+            // several mirrors may get requested in parallel, so only pass on bytes of the winner
+            val skipBytes = skipFirstBytes ?: 0L
+            val (bytes, contentLength) = mirrorChooser.mirrorRequest(request) { mirror, url ->
+                val outputStream = ByteArrayOutputStream()
+                val contentLength = get(request, mirror, url, skipBytes) { buffer, length, _ ->
+                    outputStream.write(buffer, 0, length)
+                }
+                Pair(outputStream.toByteArray(), contentLength)
+            }
+            if (bytes.isNotEmpty()) receiver.receive(bytes, bytes.size, contentLength)
+            return
+        }
         // remember what we've read already, so we can pass it to the next mirror if needed
         var skipBytes = skipFirstBytes ?: 0L
         mirrorChooser.mirrorRequest(request) { mirror, url ->
-            getHttpStatement(request, mirror, url, skipBytes).execute { response ->
-                val contentLength = response.contentLength()
-                if (skipBytes > 0L && response.status != PartialContent) {
-                    throw NoResumeException()
-                }
-                val channel: ByteReadChannel = response.bodyAsChannel()
-                val readBufferSize = DEFAULT_BUFFER_SIZE.toLong() * 8
-                while (!channel.exhausted()) {
-                    val packet = channel.readRemaining(readBufferSize)
-                    val readBytes = packet.readByteArray()
-                    receiver.receive(readBytes, contentLength)
-                    skipBytes += readBytes.size
+            get(request, mirror, url, skipBytes) { buffer, length, contentLength ->
+                receiver.receive(buffer, length, contentLength)
+                skipBytes += length
+            }
+        }
+    }
+
+    /**
+     * Gets the file of the given [request], but only if it was modified since
+     * [getValidators] returned [CacheValidators] for the mirror that gets requested.
+     * Like [getBuffered], this tries other mirrors if one fails
+     * and for [DownloadRequest.isHedged] requests also if it is slow.
+     *
+     * Responses from different mirrors can't be combined, so each one is received in full
+     * before passing it to the [receiver]. Use this for small files only.
+     * The [receiver] doesn't get called, if the mirror responded with 304 Not Modified.
+     */
+    @Throws(ResponseException::class, CancellationException::class)
+    public suspend fun getIfModified(
+        request: DownloadRequest,
+        getValidators: (Mirror) -> CacheValidators?,
+        receiver: BufferReceiver,
+    ): ConditionalResponse {
+        val (response, bytes) = mirrorChooser.mirrorRequest(request) { mirror, url ->
+            val validators = getValidators(mirror)
+            val start = TimeSource.Monotonic.markNow()
+            try {
+                getHttpStatement(request, mirror, url, 0L, validators = validators).execute {
+                    val ttfb = start.elapsedNow()
+                    val bytes = it.bodyAsBytes()
+                    mirrorChooser.onMirrorSuccess(
+                        mirror = mirror,
+                        ttfbMillis = ttfb.inWholeMilliseconds,
+                        bytes = bytes.size.toLong(),
+                        transferMillis = (start.elapsedNow() - ttfb).inWholeMilliseconds,
+                    )
+                    val eTag = it.headers[ETag]
+                    val lastModified = it.headers[LastModified]
+                    val newValidators = if (eTag == null && lastModified == null) null
+                    else CacheValidators(eTag, lastModified)
+                    Pair(ConditionalResponse(mirror, true, newValidators), bytes)
                 }
+            } catch (e: RedirectResponseException) {
+                if (e.response.status != NotModified) throw e
+                log.debug { "Not modified: $url" }
+                val ttfbMillis = start.elapsedNow().inWholeMilliseconds
+                mirrorChooser.onMirrorSuccess(mirror, ttfbMillis, 0L, 0L)
+                Pair(ConditionalResponse(mirror, false, validators), ByteArray(0))
+            }
+        }
+        if (bytes.isNotEmpty()) receiver.receive(bytes, bytes.size, bytes.size.toLong())
+        return response
+    }
+
+    /**
+     * Passes only the bytes from [fromByte] to [toByte] (inclusive) to the [receiver].
+     * Like [get], this tries other mirrors if one fails, continuing where the last one stopped.
+     *
+     * @throws NoResumeException if no mirror returned the requested range.
+     */
+    @Throws(ResponseException::class, NoResumeException::class, CancellationException::class)
+    internal suspend fun getRange(
+        request: DownloadRequest,
+        fromByte: Long,
+        toByte: Long,
+        receiver: BufferReceiver,
+    ) {
+        var nextByte = fromByte
+        mirrorChooser.mirrorRequest(request) { mirror, url ->
+            get(request, mirror, url, nextByte, toByte) { buffer, length, contentLength ->
+                receiver.receive(buffer, length, contentLength)
+                nextByte += length
+            }
+        }
+    }
+
+    /**
+     * Gets the given [url] from the given [mirror] and passes all bytes to the [receiver].
+     * If [toByte] is given, only the bytes from [skipBytes] to [toByte] (inclusive) get requested.
+     * Returns the content length, if known.
+     */
+    private suspend fun get(
+        request: DownloadRequest,
+        mirror: Mirror,
+        url: Url,
+        skipBytes: Long,
+        toByte: Long? = null,
+        receiver: BufferReceiver,
+    ): Long? {
+        val start = TimeSource.Monotonic.markNow()
+        return getHttpStatement(request, mirror, url, skipBytes, toByte).execute { response ->
+            val ttfb = start.elapsedNow()
+            val contentLength = response.contentLength()
+            if ((skipBytes > 0L || toByte != null) && response.status != PartialContent) {
+                throw NoResumeException()
             }
+            val channel: ByteReadChannel = response.bodyAsChannel()
+            // one buffer for the entire response, the receiver must not hold on to it
+            val buffer = ByteArray(DEFAULT_BUFFER_SIZE * 8)
+            var bytesReceived = 0L
+            while (true) {
+                val length = channel.readChunk(buffer)
+                if (length == 0) break
+                receiver.receive(buffer, length, contentLength)
+                bytesReceived += length
+            }
+            val transferMillis = (start.elapsedNow() - ttfb).inWholeMilliseconds
+            mirrorChooser.onMirrorSuccess(
+                mirror = mirror,
+                ttfbMillis = ttfb.inWholeMilliseconds,
+                bytes = bytesReceived,
+                transferMillis = transferMillis,
+            )
+            contentLength
+        }
+    }
+
+    /**
+     * Reads from this channel until the given [buffer] is full or the channel is exhausted.
+     * Returns the number of bytes read which is only smaller than the buffer at the end.
+     */
+    private suspend fun ByteReadChannel.readChunk(buffer: ByteArray): Int {
+        var length = 0
+        while (length < buffer.size) {
+            val read = readAvailable(buffer, length, buffer.size - length)
+            if (read < 0) break
+            length += read
         }
+        return length
     }
 
     private suspend fun getHttpStatement(
@@ -164,17 +313,23 @@ public open class HttpManager @JvmOverloads constructor(
         mirror: Mirror,
         url: Url,
         skipFirstBytes: Long,
+        toByte: Long? = null,
+        validators: CacheValidators? = null,
     ): HttpStatement {
-        resetProxyIfNeeded(request.proxy, mirror)
         log.debug { "GET $url" }
-        return httpClient.prepareGet(url) {
+        return getHttpClient(request.proxy, mirror).prepareGet(url) {
             addQueryParameters()
             // add authorization header from username / password if set
             basicAuth(request)
             // increase connect timeout if using Tor mirror
             if (mirror.isOnion()) timeout { connectTimeoutMillis = 20_000 }
             // add range header if set
-            if (skipFirstBytes > 0) header(Range, "bytes=$skipFirstBytes-")
+            if (skipFirstBytes > 0 || toByte != null) {
+                header(Range, "bytes=$skipFirstBytes-${toByte ?: ""}")
+            }
+            // only get the file if it was modified since we got these
+            validators?.eTag?.let { header(IfNoneMatch, it) }
+            validators?.lastModified?.let { header(IfModifiedSince, it) }
         }
     }
 
@@ -203,16 +358,15 @@ public open class HttpManager @JvmOverloads constructor(
     ): ByteArray {
         val outputStream = ByteArrayOutputStream()
         outputStream.use {
-            get(request, skipFirstBytes) { bytes, _ ->
-                it.write(bytes)
+            getBuffered(request, skipFirstBytes) { buffer, length, _ ->
+                it.write(buffer, 0, length)
             }
         }
         return outputStream.toByteArray()
     }
 
     public suspend fun post(url: String, json: String, proxy: ProxyConfig? = null) {
-        resetProxyIfNeeded(proxy)
-        httpClient.post {
+        getHttpClient(proxy).post {
             addQueryParameters()
             url(url)
             header(ContentType, "application/json; utf-8")
@@ -220,19 +374,15 @@ public open class HttpManager @JvmOverloads constructor(
         }
     }
 
-    private fun resetProxyIfNeeded(proxyConfig: ProxyConfig?, mirror: Mirror? = null) {
+    /**
+     * Returns the client for the given [proxyConfig], creating it if it doesn't exist, yet.
+     * Local mirrors never use a proxy.
+     */
+    @Synchronized
+    private fun getHttpClient(proxyConfig: ProxyConfig?, mirror: Mirror? = null): HttpClient {
         // force no-proxy when trying to hit a local mirror
-        val newProxy = if (mirror.isLocal() && proxyConfig != null) {
-            if (currentProxy != null) log.debug {
-                "Forcing mirror to null, because mirror is local: $mirror"
-            }
-            null
-        } else proxyConfig
-        if (currentProxy != newProxy) {
-            log.debug { "Switching proxy from [$currentProxy] to [$newProxy]" }
-            httpClient.close()
-            httpClient = getNewHttpClient(newProxy)
-        }
+        val proxy = if (mirror.isLocal()) null else proxyConfig
+        return httpClients.getOrPut(proxy) { getNewHttpClient(proxy) }
     }
 
     private fun HttpMessageBuilder.basicAuth(request: DownloadRequest) {
@@ -252,6 +402,14 @@ public fun interface BytesReceiver {
     public suspend fun receive(bytes: ByteArray, numTotalBytes: Long?)
 }
 
+/**
+ * Like [BytesReceiver], but only the first [length] bytes of the [buffer] are valid
+ * and only until [receive] returns, because the [buffer] gets re-used afterwards.
+ */
+public fun interface BufferReceiver {
+    public suspend fun receive(buffer: ByteArray, length: Int, numTotalBytes: Long?)
+}
+
 /**
  * Thrown if we tried to resume a download, but the current mirror server does not offer resuming.
  */
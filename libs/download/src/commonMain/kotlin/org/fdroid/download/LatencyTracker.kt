@@ -0,0 +1,41 @@
+package org.fdroid.download
+
+import kotlin.jvm.Synchronized
+import kotlin.math.ceil
+
+/**
+ * Keeps the durations of recent requests to know when a request takes unusually long.
+ */
+internal class LatencyTracker(
+    private val maxSamples: Int = 50,
+) {
+
+    companion object {
+        internal const val MIN_SAMPLES = 5
+        internal const val DEFAULT_DELAY_MILLIS = 2_000L
+        internal const val MIN_DELAY_MILLIS = 250L
+        internal const val MAX_DELAY_MILLIS = 10_000L
+    }
+
+    private val samples = ArrayDeque<Long>()
+
+    @Synchronized
+    fun add(millis: Long) {
+        samples.addLast(millis)
+        if (samples.size > maxSamples) samples.removeFirst()
+    }
+
+    /**
+     * Returns the 95th percentile of the recent durations in milliseconds
+     * within [MIN_DELAY_MILLIS] and [MAX_DELAY_MILLIS].
+     * Only 5% of requests should take longer than this, so it is a good time to start hedging.
+     * Returns [DEFAULT_DELAY_MILLIS], if we don't have enough samples, yet.
+     */
+    @Synchronized
+    fun getHedgeDelayMillis(): Long {
+        if (samples.size < MIN_SAMPLES) return DEFAULT_DELAY_MILLIS
+        val sorted = samples.sorted()
+        val p95 = sorted[ceil(sorted.size * 0.95).toInt() - 1]
+        return p95.coerceIn(MIN_DELAY_MILLIS, MAX_DELAY_MILLIS)
+    }
+}
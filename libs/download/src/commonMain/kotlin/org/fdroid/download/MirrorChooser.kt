@@ -4,8 +4,16 @@ import io.ktor.client.plugins.ResponseException
 import io.ktor.http.HttpStatusCode.Companion.Forbidden
 import io.ktor.http.HttpStatusCode.Companion.NotFound
 import io.ktor.http.Url
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.selects.select
+import kotlinx.coroutines.supervisorScope
+import kotlinx.coroutines.withTimeoutOrNull
 import kotlinx.io.IOException
 import mu.KotlinLogging
+import kotlin.random.Random
+import kotlin.time.TimeMark
+import kotlin.time.TimeSource
 
 public interface MirrorChooser {
     public fun orderMirrors(downloadRequest: DownloadRequest): List<Mirror>
@@ -13,16 +21,41 @@ public interface MirrorChooser {
         downloadRequest: DownloadRequest,
         request: suspend (mirror: Mirror, url: Url) -> T,
     ): T
+
+    /**
+     * Gets called after a request to the given [mirror] succeeded,
+     * so implementations can learn which mirrors are fast for us.
+     *
+     * @param ttfbMillis the time in milliseconds until the response headers arrived.
+     * @param bytes the number of body bytes received after that.
+     * @param transferMillis the time in milliseconds it took to receive those bytes.
+     */
+    public fun onMirrorSuccess(
+        mirror: Mirror,
+        ttfbMillis: Long,
+        bytes: Long,
+        transferMillis: Long,
+    ) {
+    }
 }
 
-internal abstract class MirrorChooserImpl : MirrorChooser {
+internal abstract class MirrorChooserImpl(
+    private val hedgedLatencies: LatencyTracker = LatencyTracker(),
+) : MirrorChooser {
 
     companion object {
         protected val log = KotlinLogging.logger {}
+
+        /**
+         * The maximum number of mirrors we request from in parallel for hedged requests.
+         */
+        internal const val MAX_HEDGED_REQUESTS = 2
     }
 
     /**
      * Executes the given request on the best mirror and tries the next best ones if that fails.
+     * For [DownloadRequest.isHedged] requests, the next best mirror is also tried,
+     * if the best one takes unusually long to respond.
      */
     override suspend fun <T> mirrorRequest(
         downloadRequest: DownloadRequest,
@@ -47,38 +80,125 @@ internal abstract class MirrorChooserImpl : MirrorChooser {
             error("No valid mirrors were found. Check settings.")
         }
 
+        if (downloadRequest.isHedged && mirrors.size > 1) {
+            return hedgedRequest(downloadRequest, mirrors, request)
+        }
+
         mirrors.forEachIndexed { index, mirror ->
-            val ipfsCidV1 = downloadRequest.indexFile.ipfsCidV1
-            val url = if (mirror.isIpfsGateway) {
-                if (ipfsCidV1 == null) {
-                    val e = IOException("Got IPFS gateway without CID")
-                    handleException(e, mirror, index, mirrors.size)
-                    return@forEachIndexed
-                } else mirror.getUrl(ipfsCidV1)
+            try {
+                return timedRequest(downloadRequest, mirror, request)
+            } catch (e: Exception) {
+                if (!isRetryable(downloadRequest, e)) throw e
+                // also throw if this is the last mirror to try, otherwise try next
+                handleException(e, mirror, index == mirrors.size - 1)
+            }
+        }
+        error("Reached code that was thought to be unreachable.")
+    }
+
+    /**
+     * Starts the request on the first mirror and if that hasn't finished
+     * after the usual time such requests take, starts it on the next mirror as well.
+     * The first successful result wins and the other request gets cancelled.
+     * Failed requests get replaced with requests to the next mirror immediately.
+     *
+     * The time a cancelled request ran for gets added to the [LatencyTracker] as well,
+     * because it would have taken at least that long, so leaving it out would make
+     * the hedge delay too short.  Failed requests are left out, because they often fail
+     * right away, e.g. when the connection is refused, and tell us nothing about how long
+     * a successful request takes.
+     */
+    private suspend fun <T> hedgedRequest(
+        downloadRequest: DownloadRequest,
+        mirrors: List<Mirror>,
+        request: suspend (mirror: Mirror, url: Url) -> T,
+    ): T = supervisorScope {
+        val remaining = ArrayDeque(mirrors)
+        val running = LinkedHashMap<Deferred<T>, Mirror>()
+        val startTimes = HashMap<Deferred<T>, TimeMark>()
+        fun startNext() {
+            val mirror = remaining.removeFirst()
+            val deferred = async { timedRequest(downloadRequest, mirror, request) }
+            running[deferred] = mirror
+            startTimes[deferred] = TimeSource.Monotonic.markNow()
+        }
+        startNext()
+        while (running.isNotEmpty()) {
+            val finished = if (remaining.isNotEmpty() && running.size < MAX_HEDGED_REQUESTS) {
+                val delayMillis = hedgedLatencies.getHedgeDelayMillis()
+                withTimeoutOrNull(delayMillis) { awaitFirst(running.keys) }.also {
+                    if (it == null) log.info { "No response after ${delayMillis}ms, hedging..." }
+                }
             } else {
-                mirror.getUrl(downloadRequest.indexFile.name)
+                awaitFirst(running.keys)
             }
-            try {
-                return request(mirror, url)
-            } catch (e: ResponseException) {
-                // don't try other mirrors if we got Forbidden response, but supplied credentials
-                if (downloadRequest.hasCredentials && e.response.status == Forbidden) throw e
-                // don't try other mirrors if we got NotFount response and downloaded a repo
-                if (downloadRequest.tryFirstMirror != null && e.response.status == NotFound) throw e
+            if (finished == null) {
+                startNext()
+                continue
+            }
+            val mirror = running.remove(finished) ?: error("Unknown request finished")
+            val result = try {
+                finished.await()
+            } catch (e: Exception) {
+                if (!isRetryable(downloadRequest, e)) {
+                    running.keys.forEach { it.cancel() }
+                    throw e
+                }
                 // also throw if this is the last mirror to try, otherwise try next
-                handleException(e, mirror, index, mirrors.size)
-            } catch (e: IOException) {
-                handleException(e, mirror, index, mirrors.size)
-            } catch (e: NoResumeException) {
-                // continue to next mirror, if we need to resume, but this one doesn't support it
-                handleException(e, mirror, index, mirrors.size)
+                handleException(e, mirror, remaining.isEmpty() && running.isEmpty())
+                if (remaining.isNotEmpty()) startNext()
+                continue
             }
+            running.keys.forEach { deferred ->
+                deferred.cancel()
+                val startTime = startTimes[deferred] ?: return@forEach
+                hedgedLatencies.add(startTime.elapsedNow().inWholeMilliseconds)
+            }
+            return@supervisorScope result
         }
         error("Reached code that was thought to be unreachable.")
     }
 
-    open fun handleException(e: Exception, mirror: Mirror, mirrorIndex: Int, mirrorCount: Int) {
-        val wasLastMirror = mirrorIndex == mirrorCount - 1
+    private suspend fun <T> awaitFirst(deferreds: Collection<Deferred<T>>): Deferred<T> = select {
+        deferreds.forEach { deferred -> deferred.onJoin { deferred } }
+    }
+
+    private suspend fun <T> timedRequest(
+        downloadRequest: DownloadRequest,
+        mirror: Mirror,
+        request: suspend (mirror: Mirror, url: Url) -> T,
+    ): T {
+        val ipfsCidV1 = downloadRequest.indexFile.ipfsCidV1
+        val url = if (mirror.isIpfsGateway) {
+            if (ipfsCidV1 == null) throw IOException("Got IPFS gateway without CID")
+            else mirror.getUrl(ipfsCidV1)
+        } else {
+            mirror.getUrl(downloadRequest.indexFile.name)
+        }
+        if (!downloadRequest.isHedged) return request(mirror, url)
+        val start = TimeSource.Monotonic.markNow()
+        return request(mirror, url).also {
+            hedgedLatencies.add(start.elapsedNow().inWholeMilliseconds)
+        }
+    }
+
+    /**
+     * Returns true if the request may be tried again on another mirror after [e] was thrown.
+     */
+    private fun isRetryable(downloadRequest: DownloadRequest, e: Exception): Boolean = when (e) {
+        is ResponseException -> {
+            // don't try other mirrors if we got Forbidden response, but supplied credentials
+            if (downloadRequest.hasCredentials && e.response.status == Forbidden) false
+            // don't try other mirrors if we got NotFount response and downloaded a repo
+            else !(downloadRequest.tryFirstMirror != null && e.response.status == NotFound)
+        }
+        is IOException -> true
+        // continue to next mirror, if we need to resume, but this one doesn't support it
+        is NoResumeException -> true
+        else -> false
+    }
+
+    open fun handleException(e: Exception, mirror: Mirror, wasLastMirror: Boolean) {
         log.info {
             val info = if (e is ResponseException) e.response.status.toString()
             else e::class.simpleName ?: ""
@@ -107,10 +227,22 @@ internal class MirrorChooserRandom : MirrorChooserImpl() {
 }
 
 internal class MirrorChooserWithParameters(
-    private val mirrorParameterManager: MirrorParameterManager? = null
+    private val mirrorParameterManager: MirrorParameterManager? = null,
+    private val mirrorScorer: MirrorScorer = MirrorScorer(mirrorParameterManager),
+    private val random: Random = Random.Default,
 ) : MirrorChooserImpl() {
 
+    companion object {
+        /**
+         * How often we try a random mirror first, so we learn when other mirrors got faster.
+         */
+        internal const val EXPLORATION_RATE = 0.05
+    }
+
     override fun orderMirrors(downloadRequest: DownloadRequest): List<Mirror> {
+        val scores = downloadRequest.mirrors.associateWith { mirrorScorer.getScore(it) }
+        // try mirrors we don't know anything about first, so we learn about them
+        val scoreComparator = compareBy(nullsFirst()) { mirror: Mirror -> scores[mirror] }
         val errorComparator = Comparator { mirror1: Mirror, mirror2: Mirror ->
             // if no parameter manager is available, default to 0 (should return equal)
             val error1 = mirrorParameterManager?.getMirrorErrorCount(mirror1.baseUrl) ?: 0
@@ -119,6 +251,11 @@ internal class MirrorChooserWithParameters(
             // prefer mirrors with fewer errors
             error1.compareTo(error2)
         }
+        // prefer faster mirrors, fall back to error count for mirrors we know equally little about
+        val comparator = scoreComparator.then(errorComparator)
+        // only explore, if there's something we've learned that we could exploit
+        val explore = scores.values.count { it != null } > 1 &&
+            random.nextDouble() < EXPLORATION_RATE
 
         val mirrorList: MutableList<Mirror> = mutableListOf<Mirror>()
 
@@ -131,17 +268,19 @@ internal class MirrorChooserWithParameters(
                 mirrorParameterManager.preferForeignMirrors(),
                 downloadRequest.mirrors,
                 mirrorParameterManager.getCurrentLocation(),
-                errorComparator
+                comparator,
+                explore,
             )
             mirrorList.addAll(mirrorFilteredList)
         } else {
             // shuffle initial list so all viable mirrors will be tried
-            // then sort list to avoid mirrors that have caused errors
+            // then sort list to prefer fast mirrors and avoid those that have caused errors
             val mirrorCompleteList: List<Mirror> =
                 downloadRequest.mirrors
                     .toMutableList()
-                    .apply { shuffle() }
-                    .sortedWith(errorComparator)
+                    .apply { shuffle(random) }
+                    .sortedWith(comparator)
+                    .explore(explore)
             mirrorList.addAll(mirrorCompleteList)
         }
 
@@ -157,15 +296,17 @@ internal class MirrorChooserWithParameters(
         foreignMirrorsPreferred: Boolean,
         availableMirrorList: List<Mirror>,
         currentLocation: String,
-        mirrorComparator: Comparator<Mirror>
+        mirrorComparator: Comparator<Mirror>,
+        explore: Boolean,
     ): List<Mirror> {
         // shuffle initial list so all viable mirrors will be tried
-        // then sort list to avoid mirrors that have caused errors
+        // then sort list to prefer fast mirrors and avoid those that have caused errors
         val mirrorList: MutableList<Mirror> = mutableListOf<Mirror>()
         val sortedList: List<Mirror> = availableMirrorList
             .toMutableList()
-            .apply { shuffle() }
+            .apply { shuffle(random) }
             .sortedWith(mirrorComparator)
+            .explore(explore)
 
         val domesticList: List<Mirror> = sortedList.filter { mirror ->
             !mirror.countryCode.isNullOrEmpty() && currentLocation == mirror.countryCode
@@ -190,10 +331,29 @@ internal class MirrorChooserWithParameters(
         return mirrorList
     }
 
-    override fun handleException(e: Exception, mirror: Mirror, mirrorIndex: Int, mirrorCount: Int) {
+    /**
+     * Moves a random mirror to the front of the list, if [explore] is true.
+     */
+    private fun List<Mirror>.explore(explore: Boolean): List<Mirror> {
+        if (!explore || size < 2) return this
+        val mirror = this[random.nextInt(size)]
+        return listOf(mirror) + filter { it != mirror }
+    }
+
+    override fun onMirrorSuccess(
+        mirror: Mirror,
+        ttfbMillis: Long,
+        bytes: Long,
+        transferMillis: Long,
+    ) {
+        mirrorScorer.onSuccess(mirror, ttfbMillis, bytes, transferMillis)
+    }
+
+    override fun handleException(e: Exception, mirror: Mirror, wasLastMirror: Boolean) {
         if (e is ResponseException || e is IOException) {
             mirrorParameterManager?.incrementMirrorErrorCount(mirror.baseUrl)
+            mirrorScorer.onFailure(mirror)
         }
-        super.handleException(e, mirror, mirrorIndex, mirrorCount)
+        super.handleException(e, mirror, wasLastMirror)
     }
 }
@@ -5,7 +5,7 @@ package org.fdroid.download
  * additional dependencies.  The expectation is that this will be used to store and retrieve
  * data about mirror performance to use when ordering mirror for subsequent tests.
  *
- * Currently it supports success and error count, but other parameters could be added later.
+ * Currently it supports error count and [MirrorStats], but other parameters could be added later.
  */
 
 public interface MirrorParameterManager {
@@ -18,6 +18,14 @@ public interface MirrorParameterManager {
 
     public fun getMirrorErrorCount(mirrorUrl: String): Int
 
+    /**
+     * Set or get the latest performance statistics of the specified mirror.
+     * These get updated after every request, so implementations should persist them lazily.
+     */
+    public fun setMirrorStats(mirrorUrl: String, stats: MirrorStats) {}
+
+    public fun getMirrorStats(mirrorUrl: String): MirrorStats? = null
+
     /**
      * Returns true or false depending on whether the location preference has been enabled. This
      * preference reflects whether mirrors matching your location should get priority.
@@ -0,0 +1,128 @@
+package org.fdroid.download
+
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.pow
+
+/**
+ * Learns how fast and reliable each mirror is for us and turns that into a score.
+ * The statistics are [MirrorStats] kept per [Mirror.baseUrl],
+ * loaded from and written back to the [MirrorParameterManager] if available.
+ */
+internal class MirrorScorer(
+    private val mirrorParameterManager: MirrorParameterManager?,
+    private val clock: () -> Long = { System.currentTimeMillis() },
+) {
+
+    companion object {
+        /**
+         * The weight of a new sample in the moving averages.
+         */
+        internal const val ALPHA = 0.3
+
+        /**
+         * After this time, old samples have only half their weight left,
+         * so that stats adapt quickly after longer breaks, e.g. when changing networks.
+         */
+        internal const val HALF_LIFE_MILLIS = 24 * 60 * 60 * 1000L
+
+        /**
+         * Stats older than this are not used anymore, because the network has likely changed.
+         */
+        internal const val MAX_AGE_MILLIS = 14 * 24 * 60 * 60 * 1000L
+
+        /**
+         * Transfers smaller than this are dominated by latency, so we don't learn speed from them.
+         */
+        internal const val MIN_SPEED_SAMPLE_BYTES = 64 * 1024L
+
+        /**
+         * The size of the download we compare mirrors for in [getScore].
+         */
+        private const val REFERENCE_BYTES = 1024 * 1024L
+
+        private const val MAX_FAILURE_RATE = 0.95
+    }
+
+    private val stats = ConcurrentHashMap<String, MirrorStats>()
+
+    fun onSuccess(mirror: Mirror, ttfbMillis: Long, bytes: Long, transferMillis: Long) {
+        val bytesPerSecond = if (bytes >= MIN_SPEED_SAMPLE_BYTES && transferMillis > 0) {
+            bytes * 1000.0 / transferMillis
+        } else null
+        // a zero TTFB is what we store before the first success
+        update(mirror, max(1L, ttfbMillis).toDouble(), bytesPerSecond, 0.0)
+    }
+
+    fun onFailure(mirror: Mirror) {
+        update(mirror, null, null, 1.0)
+    }
+
+    /**
+     * Returns the current stats for the given [mirror] or null if there are none or only old ones.
+     */
+    fun getStats(mirror: Mirror): MirrorStats? {
+        val s = stats[mirror.baseUrl] ?: mirrorParameterManager?.getMirrorStats(mirror.baseUrl)
+            ?.also { stats.putIfAbsent(mirror.baseUrl, it) }
+        return s?.takeIf { clock() - it.lastUpdated in 0 until MAX_AGE_MILLIS }
+    }
+
+    /**
+     * Returns the expected time in milliseconds it takes to download a file of medium size
+     * from the given [mirror] including retries after failures, or null if we don't know.
+     * Lower is better.
+     */
+    fun getScore(mirror: Mirror): Double? {
+        val s = getStats(mirror) ?: return null
+        // only failures so far
+        if (s.ttfbMillis <= 0.0) return Double.POSITIVE_INFINITY
+        val transferMillis = if (s.bytesPerSecond > 0) {
+            REFERENCE_BYTES * 1000.0 / s.bytesPerSecond
+        } else 0.0
+        // with failure rate p, we expect to need 1 / (1 - p) attempts
+        return (s.ttfbMillis + transferMillis) /
+            (1 - min(s.failureRate, MAX_FAILURE_RATE))
+    }
+
+    /**
+     * Synchronized, because [ConcurrentHashMap.compute] isn't available before Android 7.0.
+     */
+    @Synchronized
+    private fun update(
+        mirror: Mirror,
+        ttfbMillis: Double?,
+        bytesPerSecond: Double?,
+        failure: Double,
+    ) {
+        val now = clock()
+        val old = (stats[mirror.baseUrl] ?: mirrorParameterManager?.getMirrorStats(mirror.baseUrl))
+            ?.takeIf { now - it.lastUpdated in 0 until MAX_AGE_MILLIS }
+        val newStats = if (old == null) {
+            MirrorStats(
+                ttfbMillis = ttfbMillis ?: 0.0,
+                bytesPerSecond = bytesPerSecond ?: 0.0,
+                failureRate = failure,
+                lastUpdated = now,
+            )
+        } else {
+            // old samples lose weight over time, so we give new ones more weight then
+            val decay = 0.5.pow((now - old.lastUpdated).toDouble() / HALF_LIFE_MILLIS)
+            val alpha = max(ALPHA, 1 - decay)
+            MirrorStats(
+                ttfbMillis = average(old.ttfbMillis, ttfbMillis, alpha),
+                bytesPerSecond = average(old.bytesPerSecond, bytesPerSecond, alpha),
+                failureRate = alpha * failure + (1 - alpha) * old.failureRate,
+                lastUpdated = now,
+            )
+        }
+        stats[mirror.baseUrl] = newStats
+        mirrorParameterManager?.setMirrorStats(mirror.baseUrl, newStats)
+    }
+
+    private fun average(old: Double, new: Double?, alpha: Double): Double = when {
+        new == null -> old
+        old <= 0.0 -> new // no previous sample, e.g. only failures so far
+        else -> alpha * new + (1 - alpha) * old
+    }
+}
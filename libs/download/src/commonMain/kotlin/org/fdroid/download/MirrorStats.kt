@@ -0,0 +1,39 @@
+package org.fdroid.download
+
+/**
+ * Exponentially weighted moving averages of how a mirror performed for us recently.
+ * These get kept by the [MirrorChooser] and can be persisted via [MirrorParameterManager].
+ *
+ * @param ttfbMillis the time in milliseconds until the response headers arrived.
+ * @param bytesPerSecond the sustained download speed, or 0 if no large download was measured yet.
+ * @param failureRate the share of failed requests between 0 and 1.
+ * @param lastUpdated the time in milliseconds since the epoch when these stats were last updated.
+ */
+public data class MirrorStats(
+    val ttfbMillis: Double,
+    val bytesPerSecond: Double,
+    val failureRate: Double,
+    val lastUpdated: Long,
+) {
+    public companion object {
+        /**
+         * Parses the result of [serialize] and returns null, if that isn't possible.
+         */
+        @JvmStatic
+        public fun deserialize(str: String): MirrorStats? {
+            val parts = str.split(',')
+            if (parts.size != 4) return null
+            return MirrorStats(
+                ttfbMillis = parts[0].toDoubleOrNull() ?: return null,
+                bytesPerSecond = parts[1].toDoubleOrNull() ?: return null,
+                failureRate = parts[2].toDoubleOrNull() ?: return null,
+                lastUpdated = parts[3].toLongOrNull() ?: return null,
+            )
+        }
+    }
+
+    /**
+     * Returns a compact representation without whitespace that [deserialize] understands.
+     */
+    public fun serialize(): String = "$ttfbMillis,$bytesPerSecond,$failureRate,$lastUpdated"
+}
@@ -3,6 +3,7 @@ package org.fdroid.download
 import io.ktor.client.engine.HttpClientEngine
 import io.ktor.client.engine.HttpClientEngineFactory
 import io.ktor.client.engine.ProxyBuilder
+import io.ktor.client.engine.ProxyConfig
 import io.ktor.client.engine.config
 import io.ktor.client.engine.mock.MockEngine
 import io.ktor.client.engine.mock.MockEngineConfig
@@ -15,10 +16,14 @@ import io.ktor.client.plugins.RedirectResponseException
 import io.ktor.client.plugins.ServerResponseException
 import io.ktor.http.HttpHeaders.Authorization
 import io.ktor.http.HttpHeaders.ETag
+import io.ktor.http.HttpHeaders.IfModifiedSince
+import io.ktor.http.HttpHeaders.IfNoneMatch
+import io.ktor.http.HttpHeaders.LastModified
 import io.ktor.http.HttpHeaders.UserAgent
 import io.ktor.http.HttpStatusCode.Companion.Forbidden
 import io.ktor.http.HttpStatusCode.Companion.InternalServerError
 import io.ktor.http.HttpStatusCode.Companion.NotFound
+import io.ktor.http.HttpStatusCode.Companion.NotModified
 import io.ktor.http.HttpStatusCode.Companion.OK
 import io.ktor.http.HttpStatusCode.Companion.PartialContent
 import io.ktor.http.HttpStatusCode.Companion.TemporaryRedirect
@@ -176,6 +181,66 @@ internal class HttpManagerTest {
         assertContentEquals(sink.readByteArray(), content)
     }
 
+    @Test
+    fun testGetBufferedReusesBuffer() = runSuspend {
+        val content = Random.nextBytes(DEFAULT_BUFFER_SIZE * 20 + 42)
+        val mockEngine = MockEngine { respond(content) }
+        val httpManager = HttpManager(userAgent, null, httpClientEngineFactory = get(mockEngine))
+
+        val sink = Buffer()
+        val buffers = mutableSetOf<ByteArray>()
+        var numChunks = 0
+        httpManager.getBuffered(downloadRequest) { buffer, length, _ ->
+            sink.write(buffer, 0, length)
+            buffers.add(buffer)
+            numChunks++
+        }
+        assertContentEquals(content, sink.readByteArray())
+        // more than one chunk, but all in the same buffer
+        assertTrue(numChunks > 1)
+        assertEquals(1, buffers.size)
+    }
+
+    @Test
+    fun testGetIfModified() = runSuspend {
+        val downloadRequest = DownloadRequest("foo", listOf(mirrors[0]))
+        val content = Random.nextBytes(1024)
+        val eTag = getRandomString()
+        val lastModified = "Wed, 21 Oct 2015 07:28:00 GMT"
+        val mockEngine = MockEngine { request ->
+            if (request.headers[IfNoneMatch] == eTag) {
+                respond("", NotModified)
+            } else {
+                val headers = headersOf(ETag to listOf(eTag), LastModified to listOf(lastModified))
+                respond(content, headers = headers)
+            }
+        }
+        val httpManager = HttpManager(userAgent, null, httpClientEngineFactory = get(mockEngine))
+
+        // without validators, the file gets received
+        val sink = Buffer()
+        val response = httpManager.getIfModified(downloadRequest, { null }) { buffer, length, _ ->
+            sink.write(buffer, 0, length)
+        }
+        assertTrue(response.isModified)
+        assertEquals(mirrors[0], response.mirror)
+        assertEquals(CacheValidators(eTag, lastModified), response.validators)
+        assertContentEquals(content, sink.readByteArray())
+
+        // with the validators of the mirror, it doesn't get received again
+        val notModified = httpManager.getIfModified(
+            request = downloadRequest,
+            getValidators = { response.validators },
+        ) { _, _, _ ->
+            fail("Unmodified file was received")
+        }
+        assertFalse(notModified.isModified)
+        assertEquals(response.validators, notModified.validators)
+        val request = mockEngine.requestHistory.last()
+        assertEquals(eTag, request.headers[IfNoneMatch])
+        assertEquals(lastModified, request.headers[IfModifiedSince])
+    }
+
     @Test
     fun testMirrorFallback() = runSuspend {
         val mockEngine = MockEngine { respondError(InternalServerError) }
@@ -279,33 +344,29 @@ internal class HttpManagerTest {
         val proxyRequest = DownloadRequest("foo", mirrors, proxyConfig)
         val noProxyRequest = DownloadRequest("foo", mirrors)
 
-        var numRequests = 0
+        val engineProxies = mutableListOf<ProxyConfig?>()
         val factory = object : HttpClientEngineFactory<MockEngineConfig> {
             override fun create(block: MockEngineConfig.() -> Unit): HttpClientEngine {
-                return when (++numRequests) {
-                    1 -> MockEngine { respondOk() }
-                    2 -> MockEngine { respondOk() }
-                    3 -> MockEngine { respondOk() }
-                    else -> fail("Too many engine creations")
-                }
+                engineProxies.add(MockEngineConfig().apply(block).proxy)
+                return MockEngine { respondOk() }
             }
         }
         val httpManager = HttpManager(userAgent, null, httpClientEngineFactory = factory)
-        assertNull(httpManager.currentProxy)
+        assertEquals(listOf<ProxyConfig?>(null), engineProxies)
 
         // does not need a new engine, because also doesn't use a proxy
         assertNotNull(httpManager.head(noProxyRequest))
-        assertNull(httpManager.currentProxy)
+        assertEquals(listOf<ProxyConfig?>(null), engineProxies)
 
-        // now wants proxy, creates new engine (2)
+        // now wants proxy, creates new engine
         assertNotNull(httpManager.head(proxyRequest))
-        assertEquals(proxyConfig, httpManager.currentProxy)
+        assertEquals(listOf(null, proxyConfig), engineProxies)
 
-        // no more proxy, creates new engine (3)
+        // no more proxy, re-uses first engine
         httpManager.getBytes(noProxyRequest)
-        assertNull(httpManager.currentProxy)
-
-        assertEquals(3, numRequests)
+        // proxy again, re-uses second engine
+        httpManager.getBytes(proxyRequest)
+        assertEquals(listOf(null, proxyConfig), engineProxies)
     }
 
     @Test
@@ -316,33 +377,28 @@ internal class HttpManagerTest {
         val localRequest = DownloadRequest("foo", listOf(mirror), proxyConfig)
         val internetRequest = DownloadRequest("foo", mirrors, proxyConfig)
 
-        var numEngines = 0
+        val engineProxies = mutableListOf<ProxyConfig?>()
         val factory = object : HttpClientEngineFactory<MockEngineConfig> {
             override fun create(block: MockEngineConfig.() -> Unit): HttpClientEngine {
-                return when (++numEngines) {
-                    1 -> MockEngine { respondOk() }
-                    2 -> MockEngine { respondOk() }
-                    else -> fail("Too many engine creations")
-                }
+                engineProxies.add(MockEngineConfig().apply(block).proxy)
+                return MockEngine { respondOk() }
             }
         }
         val httpManager =
             HttpManager(userAgent, null, proxyConfig, httpClientEngineFactory = factory)
-        assertEquals(proxyConfig, httpManager.currentProxy)
+        assertEquals(listOf<ProxyConfig?>(proxyConfig), engineProxies)
 
-        // does not need a new engine, because also does use a proxy (1)
+        // does not need a new engine, because also does use a proxy
         assertNotNull(httpManager.head(internetRequest))
-        assertEquals(proxyConfig, httpManager.currentProxy)
+        assertEquals(listOf<ProxyConfig?>(proxyConfig), engineProxies)
 
-        // now no proxy, because local mirror, creates new engine (2)
+        // now no proxy, because local mirror, creates new engine
         assertNotNull(httpManager.head(localRequest))
-        assertNull(httpManager.currentProxy)
+        assertEquals(listOf(proxyConfig, null), engineProxies)
 
         // still no proxy, because local mirror as well, should not create new engine
         assertNotNull(httpManager.getBytes(localRequest))
-        assertNull(httpManager.currentProxy)
-
-        assertEquals(2, numEngines)
+        assertEquals(listOf(proxyConfig, null), engineProxies)
     }
 
 }
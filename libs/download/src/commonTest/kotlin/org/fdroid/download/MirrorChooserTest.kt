@@ -2,6 +2,7 @@ package org.fdroid.download
 
 import io.mockk.every
 import io.mockk.mockk
+import kotlinx.coroutines.delay
 import kotlinx.io.IOException
 import org.fdroid.getIndexFile
 import org.fdroid.runSuspend
@@ -11,6 +12,8 @@ import kotlin.test.Test
 import kotlin.test.assertEquals
 import kotlin.test.assertFailsWith
 import kotlin.test.assertTrue
+import kotlin.time.TimeMark
+import kotlin.time.TimeSource
 
 class MirrorChooserTest {
 
@@ -273,4 +276,141 @@ class MirrorChooserTest {
         // no foreign urls should should have appeared first in the list
         assertEquals(0, countX)
     }
+
+    @Test
+    fun testHedgedRequestUsesFasterMirror() = runSuspend {
+        val mirrorChooser = getStableMirrorChooserWithLowHedgeDelay()
+        val slowMirror = Mirror("http://slow.example.com")
+        val fastMirror = Mirror("http://fast.example.com")
+        val hedgedRequest = downloadRequest.copy(
+            mirrors = listOf(slowMirror, fastMirror),
+            isHedged = true,
+        )
+        var slowRequestCancelled = false
+
+        val result = mirrorChooser.mirrorRequest(hedgedRequest) { mirror, _ ->
+            if (mirror == slowMirror) try {
+                delay(60_000)
+            } finally {
+                slowRequestCancelled = true
+            }
+            mirror
+        }
+        assertEquals(fastMirror, result)
+        assertTrue(slowRequestCancelled)
+    }
+
+    @Test
+    fun testHedgedRequestTriesNextMirrorAfterFailure() = runSuspend {
+        val mirrorChooser = getStableMirrorChooserWithLowHedgeDelay()
+        val hedgedRequest = downloadRequest.copy(isHedged = true)
+        val requestedMirrors = mutableListOf<Mirror>()
+
+        val result = mirrorChooser.mirrorRequest(hedgedRequest) { mirror, _ ->
+            requestedMirrors.add(mirror)
+            // fails with all except last mirror
+            if (mirror != hedgedRequest.mirrors.last()) throw IOException("foo")
+            mirror
+        }
+        assertEquals(hedgedRequest.mirrors.last(), result)
+        assertEquals(hedgedRequest.mirrors, requestedMirrors)
+    }
+
+    @Test
+    fun testHedgedRequestThrowsIfAllMirrorsFail() = runSuspend {
+        val mirrorChooser = getStableMirrorChooserWithLowHedgeDelay()
+        val hedgedRequest = downloadRequest.copy(isHedged = true)
+
+        val e = assertFailsWith<IOException> {
+            mirrorChooser.mirrorRequest(hedgedRequest) { mirror, _ ->
+                // the first mirror fails last
+                if (mirror == hedgedRequest.mirrors.first()) delay(2_000)
+                throw IOException(mirror.baseUrl)
+            }
+        }
+        assertEquals(hedgedRequest.mirrors.first().baseUrl, e.message)
+    }
+
+    @Test
+    fun testHedgedRequestStartsNextMirrorRightAfterFailure() = runSuspend {
+        val mirrorChooser = getStableMirrorChooserWithLowHedgeDelay()
+        val slowMirror = Mirror("http://slow.example.com")
+        val failingMirror = Mirror("http://failing.example.com")
+        val goodMirror = Mirror("http://good.example.com")
+        val hedgedRequest = downloadRequest.copy(
+            mirrors = listOf(slowMirror, failingMirror, goodMirror),
+            isHedged = true,
+        )
+        var failedAt: TimeMark? = null
+        var goodStartedAfterMillis = Long.MAX_VALUE
+
+        val result = mirrorChooser.mirrorRequest(hedgedRequest) { mirror, _ ->
+            when (mirror) {
+                slowMirror -> delay(60_000)
+                failingMirror -> {
+                    failedAt = TimeSource.Monotonic.markNow()
+                    throw IOException("foo")
+                }
+                else -> goodStartedAfterMillis = failedAt!!.elapsedNow().inWholeMilliseconds
+            }
+            mirror
+        }
+        assertEquals(goodMirror, result)
+        // didn't wait for the hedge delay again
+        assertTrue(goodStartedAfterMillis < LatencyTracker.MIN_DELAY_MILLIS)
+    }
+
+    @Test
+    fun testHedgedRequestRecordsCancelledRequests() = runSuspend {
+        val latencyTracker = LatencyTracker().apply {
+            repeat(LatencyTracker.MIN_SAMPLES) { add(0) }
+        }
+        val mirrorChooser = object : MirrorChooserImpl(latencyTracker) {
+            override fun orderMirrors(downloadRequest: DownloadRequest) = downloadRequest.mirrors
+        }
+        val slowMirror = Mirror("http://slow.example.com")
+        val fastMirror = Mirror("http://fast.example.com")
+        val hedgedRequest = downloadRequest.copy(
+            mirrors = listOf(slowMirror, fastMirror),
+            isHedged = true,
+        )
+
+        mirrorChooser.mirrorRequest(hedgedRequest) { mirror, _ ->
+            if (mirror == slowMirror) delay(60_000) else delay(600)
+            mirror
+        }
+        // the slow request ran for the hedge delay plus the fast request and got cancelled,
+        // without recording it, the fast request would be the slowest one
+        val delay = latencyTracker.getHedgeDelayMillis()
+        assertTrue(delay >= 600 + LatencyTracker.MIN_DELAY_MILLIS, "$delay")
+    }
+
+    @Test
+    fun testHedgeDelay() {
+        val latencyTracker = LatencyTracker()
+        assertEquals(LatencyTracker.DEFAULT_DELAY_MILLIS, latencyTracker.getHedgeDelayMillis())
+
+        (1..100L).forEach { latencyTracker.add(it * 10) }
+        // only the last 50 samples are used
+        assertEquals(980, latencyTracker.getHedgeDelayMillis())
+
+        val slowTracker = LatencyTracker()
+        (1..20L).forEach { slowTracker.add(it * 1000) }
+        assertEquals(LatencyTracker.MAX_DELAY_MILLIS, slowTracker.getHedgeDelayMillis())
+
+        val fastTracker = LatencyTracker()
+        (1..20L).forEach { fastTracker.add(it * 20) }
+        assertEquals(380, fastTracker.getHedgeDelayMillis())
+    }
+
+    private fun getStableMirrorChooserWithLowHedgeDelay(): MirrorChooser {
+        val latencyTracker = LatencyTracker().apply {
+            repeat(LatencyTracker.MIN_SAMPLES) { add(0) }
+        }
+        return object : MirrorChooserImpl(latencyTracker) {
+            override fun orderMirrors(downloadRequest: DownloadRequest): List<Mirror> {
+                return downloadRequest.mirrors // keep mirror list stable, no random please
+            }
+        }
+    }
 }
@@ -0,0 +1,129 @@
+package org.fdroid.download
+
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.slot
+import io.mockk.verify
+import org.fdroid.download.MirrorScorer.Companion.HALF_LIFE_MILLIS
+import org.fdroid.download.MirrorScorer.Companion.MAX_AGE_MILLIS
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class MirrorScorerTest {
+
+    private val fast = Mirror("fast")
+    private val slow = Mirror("slow")
+    private val flaky = Mirror("flaky")
+    private val unknown = Mirror("unknown")
+
+    private var now = 1_000_000L
+    private val scorer = MirrorScorer(null) { now }
+
+    @Test
+    fun testUnknownMirrorHasNoScore() {
+        assertNull(scorer.getStats(unknown))
+        assertNull(scorer.getScore(unknown))
+    }
+
+    @Test
+    fun testFastMirrorScoresBetter() {
+        repeat(3) {
+            scorer.onSuccess(fast, ttfbMillis = 50, bytes = 10_000_000, transferMillis = 1_000)
+            scorer.onSuccess(slow, ttfbMillis = 50, bytes = 10_000_000, transferMillis = 10_000)
+        }
+        assertTrue(scorer.getScore(fast)!! < scorer.getScore(slow)!!)
+    }
+
+    @Test
+    fun testSmallTransfersDoNotCountForSpeed() {
+        scorer.onSuccess(fast, ttfbMillis = 50, bytes = 1024, transferMillis = 1_000)
+        assertEquals(0.0, scorer.getStats(fast)?.bytesPerSecond)
+        assertEquals(50.0, scorer.getStats(fast)?.ttfbMillis)
+    }
+
+    @Test
+    fun testFailuresMakeScoreWorse() {
+        scorer.onSuccess(fast, ttfbMillis = 50, bytes = 0, transferMillis = 0)
+        scorer.onSuccess(flaky, ttfbMillis = 50, bytes = 0, transferMillis = 0)
+        scorer.onFailure(flaky)
+        assertEquals(MirrorScorer.ALPHA, scorer.getStats(flaky)?.failureRate)
+        assertTrue(scorer.getScore(fast)!! < scorer.getScore(flaky)!!)
+
+        // a mirror that only failed is worst
+        scorer.onFailure(unknown)
+        assertEquals(Double.POSITIVE_INFINITY, scorer.getScore(unknown))
+    }
+
+    @Test
+    fun testMovingAverage() {
+        scorer.onSuccess(fast, ttfbMillis = 100, bytes = 0, transferMillis = 0)
+        scorer.onSuccess(fast, ttfbMillis = 200, bytes = 0, transferMillis = 0)
+        assertEquals(130.0, scorer.getStats(fast)!!.ttfbMillis, 0.001)
+
+        // after a longer break, new samples get more weight
+        now += HALF_LIFE_MILLIS
+        scorer.onSuccess(fast, ttfbMillis = 330, bytes = 0, transferMillis = 0)
+        assertEquals(230.0, scorer.getStats(fast)!!.ttfbMillis, 0.001)
+    }
+
+    @Test
+    fun testOldStatsGetIgnored() {
+        scorer.onSuccess(fast, ttfbMillis = 100, bytes = 0, transferMillis = 0)
+        assertNotNull(scorer.getScore(fast))
+        now += MAX_AGE_MILLIS
+        assertNull(scorer.getScore(fast))
+    }
+
+    @Test
+    fun testStatsGetPersisted() {
+        val mirrorParameterManager = mockk<MirrorParameterManager>(relaxed = true)
+        val stats = MirrorStats(100.0, 1000.0, 0.5, now)
+        every { mirrorParameterManager.getMirrorStats("slow") } returns stats
+        every { mirrorParameterManager.getMirrorStats("fast") } returns null
+        val scorer = MirrorScorer(mirrorParameterManager) { now }
+
+        // stats get loaded
+        assertEquals(stats, scorer.getStats(slow))
+
+        // and written back
+        val savedStats = slot<MirrorStats>()
+        scorer.onSuccess(fast, ttfbMillis = 100, bytes = 0, transferMillis = 0)
+        verify { mirrorParameterManager.setMirrorStats("fast", capture(savedStats)) }
+        assertEquals(scorer.getStats(fast), savedStats.captured)
+    }
+
+    @Test
+    fun testSerialization() {
+        val stats = MirrorStats(
+            ttfbMillis = Random.nextDouble(),
+            bytesPerSecond = Random.nextDouble(),
+            failureRate = Random.nextDouble(),
+            lastUpdated = Random.nextLong(),
+        )
+        assertEquals(stats, MirrorStats.deserialize(stats.serialize()))
+        assertNull(MirrorStats.deserialize("foo,bar"))
+        assertNull(MirrorStats.deserialize("1.0,2.0,foo,4"))
+    }
+
+    @Test
+    fun testChooserPrefersFastMirrors() {
+        val mirrorChooser = MirrorChooserWithParameters(
+            mirrorScorer = scorer,
+            // never explore
+            random = object : Random() {
+                override fun nextBits(bitCount: Int): Int = Int.MAX_VALUE ushr (32 - bitCount)
+            },
+        )
+        scorer.onSuccess(fast, ttfbMillis = 50, bytes = 10_000_000, transferMillis = 1_000)
+        scorer.onSuccess(slow, ttfbMillis = 50, bytes = 10_000_000, transferMillis = 10_000)
+        scorer.onFailure(flaky)
+        val request = DownloadRequest("foo", listOf(flaky, slow, fast, unknown))
+
+        // mirrors we don't know come first, so we learn about them
+        assertEquals(listOf(unknown, fast, slow, flaky), mirrorChooser.orderMirrors(request))
+    }
+}
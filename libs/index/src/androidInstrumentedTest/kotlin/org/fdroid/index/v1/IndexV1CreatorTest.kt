@@ -38,4 +38,26 @@ internal class IndexV1CreatorTest {
         val indexStr = indexFile.readBytes().decodeToString()
         assertEquals(indexV1, IndexParser.parseV1(indexStr))
     }
+
+    @Test
+    fun testCachedPackagesGetReused() {
+        val repoDir = tmpFolder.newFolder()
+        val cacheFile = File(tmpFolder.newFolder(), "cache.json")
+        val repo = TestDataMinV1.repo
+        val packageNames = context.packageManager.getInstalledPackages(0).filter {
+            it.applicationInfo!!.flags and FLAG_SYSTEM == 0
+        }.take(5).map { it.packageName }.toSet()
+        val indexV1 = IndexV1Creator(context.packageManager, repoDir, packageNames, repo, cacheFile)
+            .createRepo()
+        assertTrue(cacheFile.exists())
+
+        // the second run gets the same result, but doesn't write icons again
+        val icons = indexV1.apps.mapNotNull { it.icon }.map { File(repoDir, "icons/$it") }
+        icons.forEach { assertTrue(it.setLastModified(1000)) }
+        val cachedIndexV1 =
+            IndexV1Creator(context.packageManager, repoDir, packageNames, repo, cacheFile)
+                .createRepo()
+        assertEquals(indexV1, cachedIndexV1)
+        icons.forEach { assertEquals(1000L, it.lastModified()) }
+    }
 }
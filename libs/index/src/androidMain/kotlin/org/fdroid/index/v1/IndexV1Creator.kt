@@ -15,6 +15,9 @@ import org.fdroid.index.IndexUtils.getPackageSigner
 import org.fdroid.index.IndexUtils.getsig
 import java.io.File
 import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
 
 /**
  * Creates a deprecated V1 index from the given [packageNames]
@@ -23,12 +26,16 @@ import java.io.IOException
  * Attention: While [createRepo] creates `index-v1.json`,
  * it does **not** create a signed `index-v1.jar`.
  * The caller needs to handle this last signing step themselves.
+ *
+ * If a [cacheFile] is given, information about each package that is expensive to get
+ * is kept there, so creating the repo again only needs to look at new and updated packages.
  */
-public class IndexV1Creator(
+public class IndexV1Creator @JvmOverloads constructor(
     packageManager: PackageManager,
     repoDir: File,
     packageNames: Set<String>,
     private val repo: RepoV1,
+    private val cacheFile: File? = null,
 ) : IndexCreator<IndexV1>(packageManager, repoDir, packageNames) {
 
     @Throws(IOException::class)
@@ -44,10 +51,35 @@ public class IndexV1Creator(
     }
 
     private fun createIndex(): IndexV1 {
+        val cache = PackageCache(cacheFile)
+        val numThreads = Runtime.getRuntime().availableProcessors()
+            .coerceAtMost(packageNames.size)
+            .coerceAtLeast(1)
+        val executor = Executors.newFixedThreadPool(numThreads)
+        val results = try {
+            packageNames.map { packageName ->
+                executor.submit(Callable { getAppAndPackage(packageName, cache) })
+            }.mapNotNull { future ->
+                try {
+                    future.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+        cache.save()
+
         val apps = ArrayList<AppV1>(packageNames.size)
         val packages = HashMap<String, List<PackageV1>>(packageNames.size)
-        for (packageName in packageNames) {
-            addApp(packageName, apps, packages)
+        for ((app, p) in results) {
+            apps.add(app)
+            if (p == null) {
+                Log.w("IndexV1Creator", "Got no package for ${app.packageName}")
+            } else {
+                packages[app.packageName] = listOf(p)
+            }
         }
         return IndexV1(
             repo = repo,
@@ -56,31 +88,47 @@ public class IndexV1Creator(
         )
     }
 
-    private fun addApp(
+    /**
+     * Gets the app and package for the given [packageName] from the [cache] if possible,
+     * otherwise it creates them and adds their icon and APK to the repo.
+     * Returns null, if the app is not installed anymore.
+     */
+    private fun getAppAndPackage(
         packageName: String,
-        apps: ArrayList<AppV1>,
-        packages: HashMap<String, List<PackageV1>>,
-    ) {
-        @Suppress("DEPRECATION")
-        val flags = GET_SIGNATURES or GET_PERMISSIONS
-
+        cache: PackageCache,
+    ): Pair<AppV1, PackageV1?>? {
         try {
+            val cachedInfo = packageManager.getPackageInfo(packageName, 0)
+            val entry = cache.get(cachedInfo)
+            if (entry != null && isInRepo(entry)) {
+                return Pair(getApp(cachedInfo, entry.icon), entry.packageV1)
+            }
+
+            @Suppress("DEPRECATION")
+            val flags = GET_SIGNATURES or GET_PERMISSIONS
+
             @Suppress("PackageManagerGetSignatures")
             val packageInfo = packageManager.getPackageInfo(packageName, flags)
-            apps.add(getApp(packageInfo))
+            val icon = copyIconToRepo(packageInfo)
             val p = getPackage(packageInfo)
-            if (p == null) {
-                Log.w("IndexV1Creator", "Got no package for $packageName")
-                return
-            }
-            packages[packageName] = listOf(p)
+            if (p != null) cache.put(packageInfo, icon, p)
+            return Pair(getApp(packageInfo, icon), p)
         } catch (e: PackageManager.NameNotFoundException) {
-            Log.i("IndexV1Creator", "app disappeared during addApp: ", e)
+            Log.i("IndexV1Creator", "app disappeared during getAppAndPackage: ", e)
+            return null
         }
     }
 
-    private fun getApp(packageInfo: PackageInfo): AppV1 {
-        val icon = copyIconToRepo(packageInfo)
+    /**
+     * Returns true, if the files of the given cache [entry] are still in the repo,
+     * e.g. they would be gone after the repo was deleted.
+     */
+    private fun isInRepo(entry: PackageCache.Entry): Boolean {
+        if (entry.icon != null && !File(repoDir, "icons/${entry.icon}").exists()) return false
+        return File(repoDir, entry.packageV1.apkName).exists()
+    }
+
+    private fun getApp(packageInfo: PackageInfo, icon: String?): AppV1 {
         return AppV1(
             packageName = packageInfo.packageName,
             name = packageInfo.applicationInfo?.loadLabel(packageManager).toString(),
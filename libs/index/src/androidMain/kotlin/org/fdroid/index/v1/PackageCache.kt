@@ -0,0 +1,95 @@
+package org.fdroid.index.v1
+
+import android.content.pm.PackageInfo
+import android.util.Log
+import androidx.core.content.pm.PackageInfoCompat
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.json.decodeFromStream
+import kotlinx.serialization.json.encodeToStream
+import org.fdroid.index.IndexParser
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Remembers the [PackageV1] and icon created for an installed package in the given [file],
+ * so they only need to be created again when the package was updated or re-installed.
+ * Getting them requires hashing the entire APK, scanning it for native code
+ * and encoding its icon, which is slow for many or large apps.
+ */
+internal class PackageCache(private val file: File?) {
+
+    @Serializable
+    internal data class Entry(
+        val versionCode: Long,
+        val lastUpdateTime: Long,
+        val icon: String?,
+        val packageV1: PackageV1,
+    )
+
+    private val cached: Map<String, Entry> = load()
+
+    /**
+     * The entries used in this run, only those get saved, so uninstalled apps get dropped.
+     */
+    private val entries = ConcurrentHashMap<String, Entry>()
+
+    /**
+     * Returns the cached entry for the given [packageInfo],
+     * if it is for the same version and installation of the package.
+     */
+    fun get(packageInfo: PackageInfo): Entry? {
+        val entry = cached[packageInfo.packageName] ?: return null
+        if (entry.versionCode != PackageInfoCompat.getLongVersionCode(packageInfo)) return null
+        if (entry.lastUpdateTime != packageInfo.lastUpdateTime) return null
+        entries[packageInfo.packageName] = entry
+        return entry
+    }
+
+    fun put(packageInfo: PackageInfo, icon: String?, packageV1: PackageV1) {
+        entries[packageInfo.packageName] = Entry(
+            versionCode = PackageInfoCompat.getLongVersionCode(packageInfo),
+            lastUpdateTime = packageInfo.lastUpdateTime,
+            icon = icon,
+            packageV1 = packageV1,
+        )
+    }
+
+    @OptIn(ExperimentalSerializationApi::class)
+    fun save() {
+        if (file == null) return
+        val tmpFile = File(file.path + ".tmp")
+        try {
+            tmpFile.outputStream().use { outputStream ->
+                IndexParser.json.encodeToStream(HashMap(entries), outputStream)
+            }
+            if (!tmpFile.renameTo(file)) throw IOException("Could not rename $tmpFile")
+        } catch (e: IOException) {
+            // this isn't critical, the next run will just take longer
+            Log.w(TAG, "Could not save package cache: ", e)
+            tmpFile.delete()
+        }
+    }
+
+    @OptIn(ExperimentalSerializationApi::class)
+    private fun load(): Map<String, Entry> {
+        if (file == null || !file.isFile) return emptyMap()
+        return try {
+            file.inputStream().use { inputStream ->
+                IndexParser.json.decodeFromStream<Map<String, Entry>>(inputStream)
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Could not load package cache: ", e)
+            emptyMap()
+        } catch (e: IllegalArgumentException) {
+            // also thrown when the format changed in a new version
+            Log.w(TAG, "Could not parse package cache: ", e)
+            emptyMap()
+        }
+    }
+
+    private companion object {
+        const val TAG = "PackageCache"
+    }
+}
@@ -9,16 +9,28 @@ import kotlinx.serialization.encoding.Decoder
 import kotlinx.serialization.encoding.Encoder
 import kotlinx.serialization.json.Json
 import kotlinx.serialization.json.JsonDecoder
+import kotlinx.serialization.json.JsonElement
 import kotlinx.serialization.json.decodeFromStream
 import org.fdroid.index.IndexParser
 import java.io.InputStream
 
 @OptIn(ExperimentalSerializationApi::class)
-public class IndexV2FullStreamProcessor(
+public class IndexV2FullStreamProcessor internal constructor(
     private val indexStreamReceiver: IndexV2StreamReceiver,
-    private val json: Json = IndexParser.json,
+    private val json: Json,
+    /**
+     * If not null, packages don't get decoded into [PackageV2],
+     * but get passed as [JsonElement] to this function instead.
+     * Used by [IndexV2ParallelStreamProcessor] to decode packages on other threads.
+     */
+    private val rawPackageReceiver: ((String, JsonElement) -> Unit)?,
 ) : IndexV2StreamProcessor {
 
+    public constructor(
+        indexStreamReceiver: IndexV2StreamReceiver,
+        json: Json = IndexParser.json,
+    ) : this(indexStreamReceiver, json, null)
+
     @Throws(SerializationException::class, IllegalStateException::class)
     public override fun process(
         version: Long,
@@ -87,6 +99,15 @@ public class IndexV2FullStreamProcessor(
         private fun readMapEntry(decoder: CompositeDecoder, index: Int) {
             val packageName = decoder.decodeStringElement(descriptor, index)
             decoder.decodeElementIndex(descriptor)
+            if (rawPackageReceiver != null) {
+                val packageElement = decoder.decodeSerializableElement(
+                    descriptor = descriptor,
+                    index = index + 1,
+                    deserializer = JsonElement.serializer(),
+                )
+                rawPackageReceiver.invoke(packageName, packageElement)
+                return
+            }
             val packageV2 = decoder.decodeSerializableElement(
                 descriptor = descriptor,
                 index = index + 1,
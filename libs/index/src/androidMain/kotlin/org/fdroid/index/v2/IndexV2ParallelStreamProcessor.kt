@@ -0,0 +1,145 @@
+package org.fdroid.index.v2
+
+import kotlinx.serialization.SerializationException
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonElement
+import org.fdroid.index.IndexParser
+import java.io.InputStream
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import kotlin.concurrent.thread
+
+/**
+ * Processes a full index stream in a pipeline:
+ *
+ * * one tokenizer thread reads the stream and splits it into one [JsonElement] per package,
+ * * a bounded pool of [numWorkers] threads decodes those into [PackageV2]
+ *   and calls [IndexV2PreparingStreamReceiver.prepare] on them,
+ * * the thread calling [process] receives everything in index order.
+ *
+ * So all calls to the [IndexV2PreparingStreamReceiver] other than
+ * [IndexV2PreparingStreamReceiver.prepare] happen on the thread calling [process].
+ * This is important for receivers writing to a database,
+ * because transactions are bound to the thread that started them.
+ *
+ * At most [queueCapacity] packages are in flight at any time,
+ * so memory usage stays bounded, even if the receiver is slower than the stream.
+ */
+public class IndexV2ParallelStreamProcessor<T> @JvmOverloads constructor(
+    private val indexStreamReceiver: IndexV2PreparingStreamReceiver<T>,
+    private val json: Json = IndexParser.json,
+    private val numWorkers: Int = defaultNumWorkers(),
+    private val queueCapacity: Int = numWorkers * 4,
+) : IndexV2StreamProcessor {
+
+    private companion object {
+        fun defaultNumWorkers(): Int {
+            // leave one core for the tokenizer and one for the receiving thread
+            return (Runtime.getRuntime().availableProcessors() - 2).coerceIn(1, 4)
+        }
+    }
+
+    private sealed class Item<out T> {
+        class Repo(val repo: RepoV2) : Item<Nothing>()
+        class Package<T>(val packageName: String, val prepared: Future<T>) : Item<T>()
+        class Failed(val throwable: Throwable) : Item<Nothing>()
+        object End : Item<Nothing>()
+    }
+
+    init {
+        require(numWorkers > 0) { "numWorkers must be positive" }
+        require(queueCapacity > 0) { "queueCapacity must be positive" }
+    }
+
+    @Throws(SerializationException::class, IllegalStateException::class)
+    public override fun process(
+        version: Long,
+        inputStream: InputStream,
+        onAppProcessed: (Int) -> Unit,
+    ) {
+        val queue = ArrayBlockingQueue<Item<T>>(queueCapacity)
+        val workers = Executors.newFixedThreadPool(numWorkers)
+        val tokenizer = thread(isDaemon = true, name = "IndexV2Tokenizer") {
+            tokenize(version, inputStream, queue, workers)
+        }
+        var completed = false
+        try {
+            var appsProcessed = 0
+            while (true) {
+                when (val item = queue.take()) {
+                    is Item.Repo -> indexStreamReceiver.receive(item.repo, version)
+                    is Item.Package -> {
+                        indexStreamReceiver.receivePrepared(item.packageName, item.getPrepared())
+                        appsProcessed += 1
+                        onAppProcessed(appsProcessed)
+                    }
+                    is Item.Failed -> throw item.throwable
+                    is Item.End -> break
+                }
+            }
+            // The end gets signalled before the parser checks that nothing follows it.
+            // So wait for the tokenizer to be done with the stream, it may still fail.
+            tokenizer.join()
+            (queue.poll() as? Item.Failed)?.let { throw it.throwable }
+            indexStreamReceiver.onStreamEnded()
+            completed = true
+        } finally {
+            // stops the tokenizer, if it is still blocked on a full queue
+            if (!completed) tokenizer.interrupt()
+            workers.shutdownNow()
+        }
+    }
+
+    private fun tokenize(
+        version: Long,
+        inputStream: InputStream,
+        queue: BlockingQueue<Item<T>>,
+        workers: ExecutorService,
+    ) {
+        val tokenizingReceiver = object : IndexV2StreamReceiver {
+            override fun receive(repo: RepoV2, version: Long) {
+                queue.put(Item.Repo(repo))
+            }
+
+            override fun receive(packageName: String, p: PackageV2) {
+                error("Packages should only be received raw")
+            }
+
+            override fun onStreamEnded() {
+                queue.put(Item.End)
+            }
+        }
+        val rawPackageReceiver: (String, JsonElement) -> Unit = { packageName, packageElement ->
+            val prepared = workers.submit(Callable {
+                val packageV2 = json.decodeFromJsonElement(PackageV2.serializer(), packageElement)
+                indexStreamReceiver.prepare(packageName, packageV2)
+            })
+            queue.put(Item.Package(packageName, prepared))
+        }
+        try {
+            IndexV2FullStreamProcessor(tokenizingReceiver, json, rawPackageReceiver)
+                .process(version, inputStream) {}
+        } catch (e: InterruptedException) {
+            // the receiving thread is gone, so nobody cares about the rest of the stream
+        } catch (e: Throwable) {
+            try {
+                queue.put(Item.Failed(e))
+            } catch (e: InterruptedException) {
+                // the receiving thread is gone already
+            }
+        }
+    }
+
+    private fun Item.Package<T>.getPrepared(): T = try {
+        prepared.get()
+    } catch (e: ExecutionException) {
+        // re-throw the original exception, so callers see the same as with sequential processing
+        throw e.cause ?: e
+    }
+
+}
@@ -0,0 +1,201 @@
+package org.fdroid.index.v2
+
+import kotlinx.serialization.SerializationException
+import org.fdroid.index.ASSET_PATH
+import org.fdroid.test.TestDataEmptyV2
+import org.fdroid.test.TestDataMaxV2
+import org.fdroid.test.TestDataMidV2
+import org.fdroid.test.TestDataMinV2
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FilterInputStream
+import kotlin.test.assertContains
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+import kotlin.test.fail
+
+internal class IndexV2ParallelStreamProcessorTest {
+
+    @Test
+    fun testEmpty() {
+        testStreamProcessing("$ASSET_PATH/index-empty-v2.json", TestDataEmptyV2.index, 0)
+    }
+
+    @Test
+    fun testMin() {
+        testStreamProcessing("$ASSET_PATH/index-min-v2.json", TestDataMinV2.index, 1)
+    }
+
+    @Test
+    fun testMinReordered() {
+        testStreamProcessing("$ASSET_PATH/index-min-reordered-v2.json", TestDataMinV2.index, 1)
+    }
+
+    @Test
+    fun testMid() {
+        testStreamProcessing("$ASSET_PATH/index-mid-v2.json", TestDataMidV2.index, 2)
+    }
+
+    @Test
+    fun testMax() {
+        testStreamProcessing("$ASSET_PATH/index-max-v2.json", TestDataMaxV2.index, 3)
+    }
+
+    @Test
+    fun testMaxWithSingleWorkerAndTinyQueue() {
+        testStreamProcessing(
+            filePath = "$ASSET_PATH/index-max-v2.json",
+            index = TestDataMaxV2.index,
+            expectedNumApps = 3,
+            numWorkers = 1,
+            queueCapacity = 1,
+        )
+    }
+
+    @Test
+    fun testMalformedIndex() {
+        // empty dict
+        assertFailsWith<IllegalStateException> {
+            testStreamError("{ }")
+        }.also { assertContains(it.message!!, "Unexpected startIndex") }
+
+        // garbage input
+        assertFailsWith<SerializationException> {
+            testStreamError("{ 23^^%*dfDFG568 }")
+        }
+
+        // package is missing metadata, fails on a worker thread
+        assertFailsWith<SerializationException> {
+            testStreamError("""{
+                "repo": {
+                    "timestamp": 23,
+                    "address": "http://example.com"
+                },
+                "packages": {
+                    "org.example": { "versions": { } }
+                }
+            }""".trimIndent()
+            )
+        }.also { assertContains(it.message!!, "metadata") }
+    }
+
+    @Test
+    fun testTrailingGarbageGetsRethrown() {
+        val testStreamReceiver = TestStreamReceiver()
+        val streamProcessor = IndexV2ParallelStreamProcessor(testStreamReceiver)
+        val index = File("$ASSET_PATH/index-min-v2.json").readText() + " foo"
+        assertFailsWith<SerializationException> {
+            ByteArrayInputStream(index.encodeToByteArray()).use {
+                streamProcessor.process(42, it) {}
+            }
+        }
+        assertFalse(testStreamReceiver.calledOnStreamEnded)
+    }
+
+    @Test
+    fun testStreamIsDoneWhenProcessReturns() {
+        var reading = false
+        var readToEnd = false
+        val file = File("$ASSET_PATH/index-max-v2.json")
+        val inputStream = object : FilterInputStream(FileInputStream(file)) {
+            override fun read(b: ByteArray, off: Int, len: Int): Int {
+                reading = true
+                return super.read(b, off, len).also {
+                    if (it == -1) readToEnd = true
+                    reading = false
+                }
+            }
+        }
+        inputStream.use {
+            IndexV2ParallelStreamProcessor(TestStreamReceiver()).process(42, it) {}
+            // the tokenizer isn't reading concurrently with the caller anymore
+            assertTrue(readToEnd)
+            assertFalse(reading)
+        }
+    }
+
+    @Test
+    fun testExceptionInPrepareGetsRethrown() {
+        val testStreamReceiver = object : TestStreamReceiver() {
+            override fun prepare(packageName: String, p: PackageV2): PackageV2 {
+                throw SerializationException("foo bar")
+            }
+        }
+        val streamProcessor = IndexV2ParallelStreamProcessor(testStreamReceiver)
+        assertFailsWith<SerializationException> {
+            FileInputStream(File("$ASSET_PATH/index-max-v2.json")).use {
+                streamProcessor.process(42, it) {}
+            }
+        }.also { assertEquals("foo bar", it.message) }
+        assertFalse(testStreamReceiver.calledOnStreamEnded)
+    }
+
+    /**
+     * Tests that index parsed with a stream receiver is equal to the expected test data
+     * and that everything but [IndexV2PreparingStreamReceiver.prepare] runs on the calling thread.
+     */
+    private fun testStreamProcessing(
+        filePath: String,
+        index: IndexV2,
+        expectedNumApps: Int,
+        numWorkers: Int = 3,
+        queueCapacity: Int = 2,
+    ) {
+        val file = File(filePath)
+        val testStreamReceiver = TestStreamReceiver()
+        val streamProcessor = IndexV2ParallelStreamProcessor(
+            indexStreamReceiver = testStreamReceiver,
+            numWorkers = numWorkers,
+            queueCapacity = queueCapacity,
+        )
+        var totalApps = 0
+        FileInputStream(file).use {
+            streamProcessor.process(42, it) { numAppsProcessed ->
+                totalApps = numAppsProcessed
+            }
+        }
+
+        assertTrue(testStreamReceiver.calledOnStreamEnded)
+        assertEquals(index.repo, testStreamReceiver.repo)
+        assertEquals(index.packages, testStreamReceiver.packages)
+        assertEquals(expectedNumApps, totalApps)
+    }
+
+    private fun testStreamError(str: String) {
+        val testStreamReceiver = TestStreamReceiver()
+        val streamProcessor = IndexV2ParallelStreamProcessor(testStreamReceiver)
+        ByteArrayInputStream(str.encodeToByteArray()).use {
+            streamProcessor.process(42, it) {}
+        }
+    }
+
+    private open class TestStreamReceiver : IndexV2PreparingStreamReceiver<PackageV2> {
+        private val thread = Thread.currentThread()
+        var repo: RepoV2? = null
+        val packages = LinkedHashMap<String, PackageV2>()
+        var calledOnStreamEnded: Boolean = false
+
+        override fun receive(repo: RepoV2, version: Long) {
+            assertEquals(thread, Thread.currentThread())
+            this.repo = repo
+        }
+
+        override fun prepare(packageName: String, p: PackageV2): PackageV2 = p
+
+        override fun receivePrepared(packageName: String, prepared: PackageV2) {
+            assertEquals(thread, Thread.currentThread())
+            packages[packageName] = prepared
+        }
+
+        override fun onStreamEnded() {
+            assertEquals(thread, Thread.currentThread())
+            if (calledOnStreamEnded) fail()
+            calledOnStreamEnded = true
+        }
+    }
+
+}
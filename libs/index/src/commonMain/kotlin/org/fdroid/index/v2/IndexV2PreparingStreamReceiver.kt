@@ -0,0 +1,27 @@
+package org.fdroid.index.v2
+
+/**
+ * An [IndexV2StreamReceiver] that splits receiving a [PackageV2] into two steps,
+ * so that the expensive part can run in parallel while the results still get received in order.
+ */
+public interface IndexV2PreparingStreamReceiver<T> : IndexV2StreamReceiver {
+
+    /**
+     * Validates and converts the given [PackageV2] into the form it will get received in.
+     * This may get called concurrently from several threads,
+     * so it must not touch any shared mutable state.
+     */
+    public fun prepare(packageName: String, p: PackageV2): T
+
+    /**
+     * Receives the result of [prepare] for one package.
+     * This is called once for each package in the index
+     * on the thread processing the stream and in the order the packages appear in the index.
+     */
+    public fun receivePrepared(packageName: String, prepared: T)
+
+    override fun receive(packageName: String, p: PackageV2) {
+        receivePrepared(packageName, prepare(packageName, p))
+    }
+
+}